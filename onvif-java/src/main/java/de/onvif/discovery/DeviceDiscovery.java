@@ -2,40 +2,49 @@ package de.onvif.discovery;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
 import java.net.MalformedURLException;
 import java.net.NetworkInterface;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
 import javax.xml.soap.MessageFactory;
 import javax.xml.soap.MimeHeaders;
 import javax.xml.soap.SOAPBody;
 import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xmlsoap.schemas.ws._2005._04.discovery.ProbeMatchType;
+import org.xmlsoap.schemas.ws._2005._04.discovery.ProbeMatchesType;
 
 /**
  * Device discovery class to list local accessible devices probed per UDP probe messages.
@@ -46,19 +55,23 @@ import org.w3c.dom.NodeList;
  */
 @SuppressWarnings({"unused", "UseOfSystemOutOrSystemErr", "CallToPrintStackTrace"})
 public class DeviceDiscovery {
+  private static final Logger logger = LoggerFactory.getLogger(DeviceDiscovery.class);
+
   public static final String WS_DISCOVERY_SOAP_VERSION = "SOAP 1.2 Protocol";
   public static final String WS_DISCOVERY_CONTENT_TYPE = "application/soap+xml";
   public static final int WS_DISCOVERY_TIMEOUT = 4000;
   public static final int WS_DISCOVERY_PORT = 3702;
   public static final String WS_DISCOVERY_ADDRESS_IPv4 = "239.255.255.250";
 
-  /** IPv6 not supported yet. set enableIPv6 to true for testing if you need IP6 discovery. */
-  public static final boolean enableIPv6 = false;
+  /**
+   * Set to true to probe FF02::C on every IPv6 capable interface as well, answers are merged with
+   * the IPv4 ones. Off by default, discovery runs on IPv4 only.
+   */
+  public static volatile boolean enableIPv6 = false;
 
   public static final String WS_DISCOVERY_ADDRESS_IPv6 = "[FF02::C]";
   public static final String WS_DISCOVERY_PROBE_MESSAGE =
       "<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope\" xmlns:wsa=\"http://schemas.xmlsoap.org/ws/2004/08/addressing\" xmlns:tns=\"http://schemas.xmlsoap.org/ws/2005/04/discovery\"><soap:Header><wsa:Action>http://schemas.xmlsoap.org/ws/2005/04/discovery/Probe</wsa:Action><wsa:MessageID>urn:uuid:c032cfdd-c3ca-49dc-820e-ee6696ad63e2</wsa:MessageID><wsa:To>urn:schemas-xmlsoap-org:ws:2005:04:discovery</wsa:To></soap:Header><soap:Body><tns:Probe/></soap:Body></soap:Envelope>";
-  private static final Random random = new SecureRandom();
 
   public static void main(String[] args) throws InterruptedException {
     for (URL url : discoverWsDevicesAsUrls()) {
@@ -96,7 +109,7 @@ public class DeviceDiscovery {
         boolean ok = true;
         if (regexpProtocol.length() > 0 && !url.getProtocol().matches(regexpProtocol)) ok = false;
         if (regexpPath.length() > 0 && !url.getPath().matches(regexpPath)) ok = false;
-        // ignore ip6 hosts
+        // ignore ip6 hosts when IPv6 discovery is switched off
         if (ok && !enableIPv6 && url.getHost().startsWith("[")) ok = false;
         if (ok) urls.add(url);
       } catch (MalformedURLException e) {
@@ -113,112 +126,216 @@ public class DeviceDiscovery {
    */
   public static Collection<String> discoverWsDevices() {
     final Collection<String> addresses = new ConcurrentSkipListSet<>();
-    final CountDownLatch serverStarted = new CountDownLatch(1);
-    final CountDownLatch serverFinished = new CountDownLatch(1);
-    final Collection<InetAddress> addressList = new ArrayList<>();
+    probe(
+        null,
+        new ResponseHandler() {
+          public void handle(byte[] data, NetworkInterface from) throws Exception {
+            addresses.addAll(scopeLinkLocal(parseSoapResponseForUrls(data), from));
+          }
+        });
+    return addresses;
+  }
+
+  /**
+   * Discover WS device on the local network and keep the whole ProbeMatch of every responder, so
+   * callers can identify a device by its EndpointReference and MetadataVersion instead of its
+   * current XAddrs.
+   *
+   * @return unique devices, one entry per EndpointReference
+   */
+  public static Collection<DiscoveredDevice> discoverWsProbeMatches() {
+    return discoverWsProbeMatches(null);
+  }
+
+  /**
+   * Like {@link #discoverWsProbeMatches()}, but only probes on one network interface.
+   *
+   * @param only the interface to probe on, null for all interfaces
+   */
+  public static Collection<DiscoveredDevice> discoverWsProbeMatches(NetworkInterface only) {
+    final Map<String, DiscoveredDevice> devices = new LinkedHashMap<>();
+    probe(
+        only,
+        new ResponseHandler() {
+          public void handle(byte[] data, NetworkInterface from) throws Exception {
+            for (DiscoveredDevice d : parseSoapResponseForProbeMatches(data)) {
+              d =
+                  new DiscoveredDevice(
+                      d.getEndpointReference(),
+                      d.getTypes(),
+                      d.getScopes(),
+                      scopeLinkLocal(d.getXAddrs(), from),
+                      d.getMetadataVersion());
+              devices.put(
+                  d.getEndpointReference(), merge(devices.get(d.getEndpointReference()), d));
+            }
+          }
+        });
+    return new ArrayList<>(devices.values());
+  }
+
+  /** Callback for every datagram received in answer to a probe. */
+  interface ResponseHandler {
+    /**
+     * @param data the datagram
+     * @param from the interface the answer arrived on, used to scope IPv6 link-local XAddrs
+     */
+    void handle(byte[] data, NetworkInterface from) throws Exception;
+  }
+
+  /**
+   * Sends one probe per local address, IPv4 to 239.255.255.250 and IPv6 to FF02::C scoped to the
+   * interface of the address, and collects the answers of all of them on a single selector in the
+   * calling thread until {@link #WS_DISCOVERY_TIMEOUT} elapsed.
+   *
+   * @param only the interface to probe on, null for all interfaces
+   */
+  private static void probe(NetworkInterface only, final ResponseHandler handler) {
+    Selector selector = null;
     try {
+      selector = Selector.open();
+      final byte[] probe = probeMessage();
       final Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
       if (interfaces != null) {
         while (interfaces.hasMoreElements()) {
           NetworkInterface anInterface = interfaces.nextElement();
-          if (!anInterface.isLoopback()) {
-            final List<InterfaceAddress> interfaceAddresses = anInterface.getInterfaceAddresses();
-            for (InterfaceAddress address : interfaceAddresses) {
-              Class clz = address.getAddress().getClass();
+          if (anInterface.isLoopback() || !anInterface.isUp()) continue;
+          if (only != null && !only.equals(anInterface)) continue;
+          for (InterfaceAddress address : anInterface.getInterfaceAddresses()) {
+            if (!enableIPv6 && address.getAddress() instanceof Inet6Address) continue;
+            try {
+              openAndSend(selector, anInterface, address.getAddress(), probe);
+            } catch (IOException e) {
+              // e.g. no multicast route on this interface, the others may still work
+              logger.debug("No probe sent from " + address.getAddress(), e);
+            }
+          }
+        }
+      }
 
-              if (!enableIPv6 && address.getAddress() instanceof Inet6Address) continue;
-              addressList.add(address.getAddress());
+      final ByteBuffer buffer = ByteBuffer.allocate(65535);
+      final long deadline = System.currentTimeMillis() + WS_DISCOVERY_TIMEOUT;
+      long remaining;
+      while (!selector.keys().isEmpty()
+          && (remaining = deadline - System.currentTimeMillis()) > 0) {
+        if (selector.select(remaining) == 0) continue;
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          DatagramChannel channel = (DatagramChannel) key.channel();
+          buffer.clear();
+          while (channel.receive(buffer) != null) {
+            buffer.flip();
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            buffer.clear();
+            try {
+              handler.handle(data, (NetworkInterface) key.attachment());
+            } catch (Exception e) {
+              e.printStackTrace();
             }
           }
         }
       }
-    } catch (SocketException e) {
+    } catch (IOException e) {
       e.printStackTrace();
+    } finally {
+      if (selector != null) {
+        for (SelectionKey key : selector.keys()) {
+          try {
+            key.channel().close();
+          } catch (IOException ignored) {
+          }
+        }
+        try {
+          selector.close();
+        } catch (IOException ignored) {
+        }
+      }
     }
+  }
 
-    ExecutorService executorService = Executors.newCachedThreadPool();
-    for (final InetAddress address : addressList) {
-      Runnable runnable =
-          new Runnable() {
-            public void run() {
-              try {
-                final String uuid = UUID.randomUUID().toString();
-                final String probe =
-                    WS_DISCOVERY_PROBE_MESSAGE.replaceAll(
-                        "<wsa:MessageID>urn:uuid:.*</wsa:MessageID>",
-                        "<wsa:MessageID>urn:uuid:" + uuid + "</wsa:MessageID>");
-                final int port = random.nextInt(20000) + 40000;
-                @SuppressWarnings("SocketOpenedButNotSafelyClosed")
-                final DatagramSocket server = new DatagramSocket(port, address);
-                new Thread() {
-                  public void run() {
-                    try {
-                      final DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
-                      server.setSoTimeout(WS_DISCOVERY_TIMEOUT);
-                      long timerStarted = System.currentTimeMillis();
-                      while (System.currentTimeMillis() - timerStarted < (WS_DISCOVERY_TIMEOUT)) {
-                        serverStarted.countDown();
-                        server.receive(packet);
-                        final Collection<String> collection =
-                            parseSoapResponseForUrls(
-                                Arrays.copyOf(packet.getData(), packet.getLength()));
-                        for (String key : collection) {
-                          addresses.add(key);
-                        }
-                      }
-                    } catch (SocketTimeoutException ignored) {
-                    } catch (Exception e) {
-                      e.printStackTrace();
-                    } finally {
-                      serverFinished.countDown();
-                      server.close();
-                    }
-                  }
-                }.start();
-                try {
-                  serverStarted.await(1000, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException e) {
-                  e.printStackTrace();
-                }
-                if (address instanceof Inet4Address) {
-                  server.send(
-                      new DatagramPacket(
-                          probe.getBytes(StandardCharsets.UTF_8),
-                          probe.length(),
-                          InetAddress.getByName(WS_DISCOVERY_ADDRESS_IPv4),
-                          WS_DISCOVERY_PORT));
-                } else {
-                  if (address instanceof Inet6Address) {
-                    if (enableIPv6)
-                      server.send(
-                          new DatagramPacket(
-                              probe.getBytes(StandardCharsets.UTF_8),
-                              probe.length(),
-                              InetAddress.getByName(WS_DISCOVERY_ADDRESS_IPv6),
-                              WS_DISCOVERY_PORT));
-                  } else {
-                    assert (false); // 	unknown network type.. ignore or warn developer
-                  }
-                }
-
-              } catch (Exception e) {
-                e.printStackTrace();
-              }
-              try {
-                serverFinished.await((WS_DISCOVERY_TIMEOUT), TimeUnit.MILLISECONDS);
-              } catch (InterruptedException e) {
-                e.printStackTrace();
-              }
-            }
-          };
-      executorService.submit(runnable);
+  private static void openAndSend(
+      Selector selector, NetworkInterface anInterface, InetAddress address, byte[] probe)
+      throws IOException {
+    final InetSocketAddress target;
+    final DatagramChannel channel;
+    if (address instanceof Inet4Address) {
+      channel = DatagramChannel.open(StandardProtocolFamily.INET);
+      target =
+          new InetSocketAddress(InetAddress.getByName(WS_DISCOVERY_ADDRESS_IPv4), WS_DISCOVERY_PORT);
+    } else if (address instanceof Inet6Address) {
+      channel = DatagramChannel.open(StandardProtocolFamily.INET6);
+      // FF02::C is link scoped, it has to be sent out with the scope of this interface
+      target =
+          new InetSocketAddress(
+              Inet6Address.getByAddress(
+                  null,
+                  InetAddress.getByName(WS_DISCOVERY_ADDRESS_IPv6).getAddress(),
+                  anInterface),
+              WS_DISCOVERY_PORT);
+    } else {
+      return; // unknown network type
     }
     try {
-      executorService.shutdown();
-      executorService.awaitTermination(WS_DISCOVERY_TIMEOUT + 2000, TimeUnit.MILLISECONDS);
-    } catch (InterruptedException ignored) {
+      channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, anInterface);
+      channel.bind(new InetSocketAddress(address, 0));
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ, anInterface);
+      channel.send(ByteBuffer.wrap(probe), target);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
     }
-    return addresses;
+  }
+
+  private static byte[] probeMessage() {
+    final String uuid = UUID.randomUUID().toString();
+    final String probe =
+        WS_DISCOVERY_PROBE_MESSAGE.replaceAll(
+            "<wsa:MessageID>urn:uuid:.*</wsa:MessageID>",
+            "<wsa:MessageID>urn:uuid:" + uuid + "</wsa:MessageID>");
+    return probe.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * IPv6 link-local XAddrs ("http://[fe80::1]/onvif/device_service") are only reachable through
+   * the interface they were received on, so the interface index is added as zone id.
+   */
+  public static String scopeLinkLocal(String xAddr, NetworkInterface from) {
+    if (from == null) return xAddr;
+    int open = xAddr.indexOf("://[");
+    if (open < 0) return xAddr;
+    int close = xAddr.indexOf(']', open);
+    String host = xAddr.substring(open + 4, close < 0 ? xAddr.length() : close);
+    if (close < 0 || host.indexOf('%') >= 0 || !host.toLowerCase().startsWith("fe80:")) {
+      return xAddr;
+    }
+    return xAddr.substring(0, close) + "%" + from.getIndex() + xAddr.substring(close);
+  }
+
+  private static List<String> scopeLinkLocal(List<String> xAddrs, NetworkInterface from) {
+    List<String> scoped = new ArrayList<>(xAddrs.size());
+    for (String x : xAddrs) scoped.add(scopeLinkLocal(x, from));
+    return scoped;
+  }
+
+  /**
+   * Dual stack devices answer the IPv4 and the IPv6 probe. Keeps the newest MetadataVersion and
+   * the XAddrs of both answers if they carry the same one.
+   */
+  public static DiscoveredDevice merge(DiscoveredDevice known, DiscoveredDevice d) {
+    if (known == null || known.getMetadataVersion() < d.getMetadataVersion()) return d;
+    if (known.getMetadataVersion() > d.getMetadataVersion()) return known;
+    Set<String> xAddrs = new LinkedHashSet<>(known.getXAddrs());
+    if (!xAddrs.addAll(d.getXAddrs())) return known;
+    return new DiscoveredDevice(
+        known.getEndpointReference(),
+        known.getTypes(),
+        known.getScopes(),
+        new ArrayList<>(xAddrs),
+        known.getMetadataVersion());
   }
 
   private static Collection<Node> getNodeMatching(Node body, String regexp) {
@@ -233,10 +350,10 @@ public class DeviceDiscovery {
     return nodes;
   }
 
-  private static Collection<String> parseSoapResponseForUrls(byte[] data)
+  private static List<String> parseSoapResponseForUrls(byte[] data)
       throws SOAPException, IOException {
     // System.out.println(new String(data));
-    final Collection<String> urls = new ArrayList<>();
+    final List<String> urls = new ArrayList<>();
     MessageFactory factory = MessageFactory.newInstance(WS_DISCOVERY_SOAP_VERSION);
     final MimeHeaders headers = new MimeHeaders();
     headers.addHeader("Content-type", WS_DISCOVERY_CONTENT_TYPE);
@@ -249,4 +366,35 @@ public class DeviceDiscovery {
     }
     return urls;
   }
+
+  private static Collection<DiscoveredDevice> parseSoapResponseForProbeMatches(byte[] data)
+      throws SOAPException, IOException, JAXBException {
+    final Collection<DiscoveredDevice> devices = new ArrayList<>();
+    MessageFactory factory = MessageFactory.newInstance(WS_DISCOVERY_SOAP_VERSION);
+    final MimeHeaders headers = new MimeHeaders();
+    headers.addHeader("Content-type", WS_DISCOVERY_CONTENT_TYPE);
+    SOAPMessage message = factory.createMessage(headers, new ByteArrayInputStream(data));
+    SOAPBody body = message.getSOAPBody();
+    Unmarshaller unmarshaller = JaxbHolder.CONTEXT.createUnmarshaller();
+    for (Node node : getNodeMatching(body, ".*:ProbeMatches")) {
+      ProbeMatchesType matches = unmarshaller.unmarshal(node, ProbeMatchesType.class).getValue();
+      for (ProbeMatchType match : matches.getProbeMatch()) {
+        devices.add(DiscoveredDevice.from(match));
+      }
+    }
+    return devices;
+  }
+
+  /** Creating a JAXBContext is expensive, do it once and only when ProbeMatches are requested. */
+  private static class JaxbHolder {
+    static final JAXBContext CONTEXT;
+
+    static {
+      try {
+        CONTEXT = JAXBContext.newInstance(ProbeMatchesType.class);
+      } catch (JAXBException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+  }
 }
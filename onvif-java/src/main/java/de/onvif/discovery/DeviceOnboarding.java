@@ -0,0 +1,235 @@
+package de.onvif.discovery;
+
+import de.onvif.soap.OnvifDevice;
+import java.net.ConnectException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.xml.ws.BindingProvider;
+import org.apache.cxf.binding.soap.Soap12;
+import org.apache.cxf.binding.soap.SoapBindingConfiguration;
+import org.apache.cxf.frontend.ClientProxy;
+import org.apache.cxf.jaxws.JaxWsProxyFactoryBean;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.transport.http.HTTPConduit;
+import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
+import org.onvif.ver10.device.wsdl.Device;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns discovery results into connected {@link OnvifDevice}s.
+ *
+ * <p>A ProbeMatch often advertises several XAddrs (IPv4, IPv6, host name, stale DHCP lease).
+ * Instead of trying them one after the other, each costing the full connect timeout when dead,
+ * the addresses are raced happy-eyeballs style: the first attempt starts at once, the next one
+ * after {@link #setStaggerDelay(long)} or as soon as the previous one failed. The first XAddr
+ * answering GetSystemDateAndTime (which needs no credentials) wins and is used to create the
+ * OnvifDevice. At most {@code maxParallel} devices are onboarded at the same time.
+ */
+public class DeviceOnboarding {
+  private static final Logger logger = LoggerFactory.getLogger(DeviceOnboarding.class);
+  private static final String THREAD_LOCAL_REQUEST_CONTEXT = "thread.local.request.context";
+
+  /** Notified once per submitted device, from a pool thread. */
+  public interface Listener {
+    void onboarded(DiscoveredDevice discovered, URL xAddr, OnvifDevice device);
+
+    void failed(DiscoveredDevice discovered, Exception e);
+  }
+
+  private final String user;
+  private final String password;
+  private final ExecutorService devicePool;
+  private final ExecutorService attemptPool;
+
+  private Device probePort;
+  private volatile long staggerDelay = 250;
+  private volatile long attemptTimeout = 5000;
+
+  public DeviceOnboarding(String user, String password, int maxParallel) {
+    this.user = user;
+    this.password = password;
+    this.devicePool = Executors.newFixedThreadPool(maxParallel);
+    this.attemptPool = Executors.newCachedThreadPool();
+  }
+
+  /** Onboards the device in the background and reports to the listener. */
+  public Future<?> submit(final DiscoveredDevice discovered, final Listener listener) {
+    return devicePool.submit(
+        new Runnable() {
+          public void run() {
+            try {
+              URL xAddr = race(discovered);
+              OnvifDevice device = new OnvifDevice(xAddr, user, password);
+              listener.onboarded(discovered, xAddr, device);
+            } catch (Exception e) {
+              listener.failed(discovered, e);
+            }
+          }
+        });
+  }
+
+  /**
+   * Onboards all devices and waits until every one succeeded or failed.
+   *
+   * @return connected devices by EndpointReference, failed devices are logged and left out
+   */
+  public Map<String, OnvifDevice> onboardAll(Collection<DiscoveredDevice> devices)
+      throws InterruptedException {
+    final Map<String, OnvifDevice> result = new ConcurrentHashMap<>();
+    final CountDownLatch done = new CountDownLatch(devices.size());
+    for (DiscoveredDevice d : devices) {
+      submit(
+          d,
+          new Listener() {
+            public void onboarded(DiscoveredDevice discovered, URL xAddr, OnvifDevice device) {
+              result.put(discovered.getEndpointReference(), device);
+              done.countDown();
+            }
+
+            public void failed(DiscoveredDevice discovered, Exception e) {
+              logger.warn("Onboarding failed for " + discovered, e);
+              done.countDown();
+            }
+          });
+    }
+    done.await();
+    return result;
+  }
+
+  /**
+   * Races all advertised XAddrs of the device.
+   *
+   * @return the first XAddr that answered GetSystemDateAndTime
+   * @throws ConnectException if none of them answered
+   */
+  public URL race(DiscoveredDevice discovered) throws ConnectException, InterruptedException {
+    LinkedList<URL> pending = new LinkedList<>(interleaveFamilies(discovered.getXAddrUrls()));
+    if (pending.isEmpty()) throw new ConnectException("No usable XAddr for " + discovered);
+
+    CompletionService<URL> race = new ExecutorCompletionService<>(attemptPool);
+    List<Future<URL>> started = new ArrayList<>();
+    Exception last = null;
+    int running = 0;
+    try {
+      started.add(race.submit(attempt(pending.poll())));
+      running++;
+      while (running > 0) {
+        Future<URL> finished =
+            pending.isEmpty()
+                ? race.poll(attemptTimeout, TimeUnit.MILLISECONDS)
+                : race.poll(staggerDelay, TimeUnit.MILLISECONDS);
+        if (finished == null) {
+          if (pending.isEmpty()) break; // every attempt is hanging, give up
+        } else {
+          running--;
+          try {
+            return finished.get();
+          } catch (ExecutionException e) {
+            last = e;
+          }
+        }
+        // stagger elapsed or an attempt failed: start the next candidate right away
+        if (!pending.isEmpty()) {
+          started.add(race.submit(attempt(pending.poll())));
+          running++;
+        }
+      }
+    } finally {
+      for (Future<URL> f : started) f.cancel(true);
+    }
+    ConnectException ce = new ConnectException("No XAddr answered for " + discovered);
+    if (last != null) ce.initCause(last.getCause());
+    throw ce;
+  }
+
+  private Callable<URL> attempt(final URL xAddr) {
+    return new Callable<URL>() {
+      public URL call() throws Exception {
+        Device port = getProbePort();
+        Map<String, Object> context = ((BindingProvider) port).getRequestContext();
+        context.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, xAddr.toString());
+        // the shared port keeps the timeouts it was created with, the current one is per request
+        context.put(Message.CONNECTION_TIMEOUT, attemptTimeout);
+        context.put(Message.RECEIVE_TIMEOUT, attemptTimeout);
+        port.getSystemDateAndTime();
+        return xAddr;
+      }
+    };
+  }
+
+  /**
+   * Building a proxy for the device service is expensive, so all attempts share one proxy with a
+   * thread local request context and only the endpoint address is set per call.
+   */
+  private synchronized Device getProbePort() {
+    if (probePort != null) return probePort;
+    JaxWsProxyFactoryBean proxyFactory = new JaxWsProxyFactoryBean();
+    proxyFactory.setServiceClass(Device.class);
+    SoapBindingConfiguration config = new SoapBindingConfiguration();
+    config.setVersion(Soap12.getInstance());
+    proxyFactory.setBindingConfig(config);
+    Device port = proxyFactory.create(Device.class);
+    HTTPClientPolicy policy = ((HTTPConduit) ClientProxy.getClient(port).getConduit()).getClient();
+    policy.setConnectionTimeout(attemptTimeout);
+    policy.setReceiveTimeout(attemptTimeout);
+    policy.setAllowChunking(false);
+    ((BindingProvider) port).getRequestContext().put(THREAD_LOCAL_REQUEST_CONTEXT, Boolean.TRUE);
+    probePort = port;
+    return port;
+  }
+
+  /** Alternates IPv6 and IPv4/host name addresses, keeping the advertised order otherwise. */
+  static List<URL> interleaveFamilies(List<URL> urls) {
+    LinkedList<URL> v6 = new LinkedList<>();
+    LinkedList<URL> other = new LinkedList<>();
+    for (URL u : urls) {
+      if (u.getHost().startsWith("[")) v6.add(u);
+      else other.add(u);
+    }
+    List<URL> out = new ArrayList<>(urls.size());
+    boolean takeOther = urls.isEmpty() || !urls.get(0).getHost().startsWith("[");
+    while (!v6.isEmpty() || !other.isEmpty()) {
+      if (takeOther ? !other.isEmpty() : v6.isEmpty()) out.add(other.poll());
+      else out.add(v6.poll());
+      takeOther = !takeOther;
+    }
+    return out;
+  }
+
+  public long getStaggerDelay() {
+    return staggerDelay;
+  }
+
+  public void setStaggerDelay(long staggerDelay) {
+    this.staggerDelay = staggerDelay;
+  }
+
+  public long getAttemptTimeout() {
+    return attemptTimeout;
+  }
+
+  /** @param attemptTimeout connect and receive timeout of one XAddr, in ms */
+  public void setAttemptTimeout(long attemptTimeout) {
+    this.attemptTimeout = attemptTimeout;
+  }
+
+  public void shutdown() {
+    devicePool.shutdown();
+    attemptPool.shutdownNow();
+  }
+}
@@ -0,0 +1,141 @@
+package de.onvif.discovery;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.xmlsoap.schemas.ws._2005._04.discovery.ProbeMatchType;
+
+/**
+ * One WS-Discovery ProbeMatch, either received per multicast or returned by a discovery proxy.
+ *
+ * <p>The EndpointReference address is the stable identity of a device, the XAddrs may change
+ * (DHCP, dual stack) and the MetadataVersion is incremented by the device whenever its metadata
+ * changes.
+ */
+public class DiscoveredDevice {
+
+  private final String endpointReference;
+  private final List<String> types;
+  private final List<String> scopes;
+  private final List<String> xAddrs;
+  private final long metadataVersion;
+
+  public DiscoveredDevice(
+      String endpointReference,
+      List<String> types,
+      List<String> scopes,
+      List<String> xAddrs,
+      long metadataVersion) {
+    this.endpointReference = endpointReference;
+    this.types = Collections.unmodifiableList(new ArrayList<>(types));
+    this.scopes = Collections.unmodifiableList(new ArrayList<>(scopes));
+    this.xAddrs = Collections.unmodifiableList(new ArrayList<>(xAddrs));
+    this.metadataVersion = metadataVersion;
+  }
+
+  public static DiscoveredDevice from(ProbeMatchType match) {
+    String epr = "";
+    if (match.getEndpointReference() != null
+        && match.getEndpointReference().getAddress() != null
+        && match.getEndpointReference().getAddress().getValue() != null) {
+      epr = match.getEndpointReference().getAddress().getValue().trim();
+    }
+    // some devices omit the EndpointReference, fall back to the first advertised address
+    if (epr.isEmpty() && !match.getXAddrs().isEmpty()) epr = match.getXAddrs().get(0);
+    List<String> types = new ArrayList<>();
+    for (QName type : match.getTypes()) types.add(type.getLocalPart());
+    List<String> scopes = new ArrayList<>();
+    if (match.getScopes() != null) scopes.addAll(match.getScopes().getValue());
+    return new DiscoveredDevice(
+        epr, types, scopes, match.getXAddrs(), match.getMetadataVersion());
+  }
+
+  public String getEndpointReference() {
+    return endpointReference;
+  }
+
+  public List<String> getTypes() {
+    return types;
+  }
+
+  public List<String> getScopes() {
+    return scopes;
+  }
+
+  public List<String> getXAddrs() {
+    return xAddrs;
+  }
+
+  public long getMetadataVersion() {
+    return metadataVersion;
+  }
+
+  /** XAddrs that are valid URLs, in the order the device advertised them. */
+  public List<URL> getXAddrUrls() {
+    List<URL> urls = new ArrayList<>();
+    for (String x : xAddrs) {
+      try {
+        urls.add(new URL(x));
+      } catch (MalformedURLException ignored) {
+      }
+    }
+    return urls;
+  }
+
+  /**
+   * Scope matching as defined by the default WS-Discovery rule (RFC 3986 prefix match on path
+   * segments): every requested scope must be a segment-wise prefix of one of the device scopes.
+   */
+  public boolean matchesScopes(List<String> requested) {
+    if (requested == null) return true;
+    for (String r : requested) {
+      boolean found = false;
+      for (String s : scopes) {
+        if (s.equals(r) || (s.startsWith(r) && (r.endsWith("/") || s.charAt(r.length()) == '/'))) {
+          found = true;
+          break;
+        }
+      }
+      if (!found) return false;
+    }
+    return true;
+  }
+
+  /** Matches when every requested type local name is advertised, e.g. "NetworkVideoTransmitter". */
+  public boolean matchesTypes(List<QName> requested) {
+    if (requested == null) return true;
+    for (QName q : requested) if (!types.contains(q.getLocalPart())) return false;
+    return true;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof DiscoveredDevice)) return false;
+    DiscoveredDevice that = (DiscoveredDevice) o;
+    return metadataVersion == that.metadataVersion
+        && endpointReference.equals(that.endpointReference)
+        && xAddrs.equals(that.xAddrs)
+        && scopes.equals(that.scopes)
+        && types.equals(that.types);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * endpointReference.hashCode() + Long.hashCode(metadataVersion);
+  }
+
+  @Override
+  public String toString() {
+    return "DiscoveredDevice [endpointReference="
+        + endpointReference
+        + ", xAddrs="
+        + xAddrs
+        + ", metadataVersion="
+        + metadataVersion
+        + "]";
+  }
+}
@@ -0,0 +1,302 @@
+package de.onvif.discovery;
+
+import de.onvif.beans.DeviceInfo;
+import de.onvif.soap.OnvifDevice;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import org.onvif.ver10.schema.Profile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local store of discovered and inspected devices, so periodic sweeps only inspect what changed.
+ *
+ * <p>A device is identified by its EndpointReference. As long as the MetadataVersion and the
+ * XAddrs of a ProbeMatch are unchanged, the stored service endpoints and device info are still
+ * valid and the device is not connected to again. A device that got a new address, e.g. from
+ * DHCP, is inspected again, its stored endpoints point to the old one. The store is a properties
+ * file, written atomically on {@link #save()}.
+ */
+public class DiscoveryCache {
+  private static final Logger logger = LoggerFactory.getLogger(DiscoveryCache.class);
+
+  private static final String SEP = "|";
+  private static final String SERVICE_PREFIX = "service.";
+  private static final String INSPECT_PREFIX = "inspect.";
+
+  /** Connects to and inspects a new or changed device. */
+  public interface Inspector {
+    Entry inspect(DiscoveredDevice discovered) throws Exception;
+  }
+
+  /** Everything remembered about one device. */
+  public static class Entry {
+    private final DiscoveredDevice discovered;
+    private final String xAddr;
+    private final Map<String, String> serviceAddresses;
+    private final DeviceInfo deviceInfo;
+    private final Map<String, String> inspected;
+    private final long inspectedAt;
+
+    public Entry(
+        DiscoveredDevice discovered,
+        String xAddr,
+        Map<String, String> serviceAddresses,
+        DeviceInfo deviceInfo,
+        Map<String, String> inspected,
+        long inspectedAt) {
+      this.discovered = discovered;
+      this.xAddr = xAddr;
+      this.serviceAddresses = Collections.unmodifiableMap(new LinkedHashMap<>(serviceAddresses));
+      this.deviceInfo = deviceInfo;
+      this.inspected = Collections.unmodifiableMap(new LinkedHashMap<>(inspected));
+      this.inspectedAt = inspectedAt;
+    }
+
+    public DiscoveredDevice getDiscovered() {
+      return discovered;
+    }
+
+    /** The XAddr the device was reached on. */
+    public String getXAddr() {
+      return xAddr;
+    }
+
+    /** Service endpoints, usable with {@link OnvifDevice#OnvifDevice(URL, String, String, Map)}. */
+    public Map<String, String> getServiceAddresses() {
+      return serviceAddresses;
+    }
+
+    public DeviceInfo getDeviceInfo() {
+      return deviceInfo;
+    }
+
+    /** Harvested profile tokens, stream uris and ptz support. */
+    public Map<String, String> getInspected() {
+      return inspected;
+    }
+
+    public long getInspectedAt() {
+      return inspectedAt;
+    }
+  }
+
+  private final File file;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  public DiscoveryCache(File file) {
+    this.file = file;
+  }
+
+  public Entry get(String endpointReference) {
+    return entries.get(endpointReference);
+  }
+
+  public Collection<Entry> getEntries() {
+    return Collections.unmodifiableCollection(entries.values());
+  }
+
+  public void put(Entry entry) {
+    entries.put(entry.getDiscovered().getEndpointReference(), entry);
+  }
+
+  public void remove(String endpointReference) {
+    entries.remove(endpointReference);
+  }
+
+  /**
+   * True if the device was inspected before and neither its metadata nor its addresses changed. A
+   * ProbeMatch without XAddrs, which needs a Resolve, keeps the stored ones.
+   */
+  public boolean isCurrent(DiscoveredDevice discovered) {
+    Entry entry = entries.get(discovered.getEndpointReference());
+    if (entry == null
+        || entry.getDiscovered().getMetadataVersion() != discovered.getMetadataVersion()) {
+      return false;
+    }
+    List<String> xAddrs = discovered.getXAddrs();
+    return xAddrs.isEmpty()
+        || new HashSet<>(xAddrs).equals(new HashSet<>(entry.getDiscovered().getXAddrs()));
+  }
+
+  /**
+   * Runs the inspector for every new or changed device of a sweep, devices that are current are
+   * skipped. Failed inspections are logged and retried on the next sweep.
+   *
+   * @return the devices that were (re-)inspected successfully
+   */
+  public List<Entry> refresh(Collection<DiscoveredDevice> found, Inspector inspector) {
+    List<Entry> inspected = new ArrayList<>();
+    for (DiscoveredDevice d : found) {
+      if (isCurrent(d)) continue;
+      try {
+        Entry entry = inspector.inspect(d);
+        put(entry);
+        inspected.add(entry);
+      } catch (Exception e) {
+        logger.warn("Inspection failed for " + d, e);
+      }
+    }
+    return inspected;
+  }
+
+  /**
+   * Harvests what OperatingCamera.inspect collects from a connected device: device info, service
+   * endpoints, profile tokens and stream uris, ptz support.
+   */
+  public static Entry harvest(DiscoveredDevice discovered, URL xAddr, OnvifDevice device) {
+    Map<String, String> inspected = new LinkedHashMap<>();
+    if (device.getMedia() != null) {
+      List<Profile> profiles = device.getMedia().getProfiles();
+      for (int i = 0; i < profiles.size(); i++) {
+        String profileToken = profiles.get(i).getToken();
+        inspected.put("profileToken_" + i, profileToken);
+        inspected.put("stream_" + i, device.getStreamUri(profileToken));
+      }
+    }
+    inspected.put("ptz", device.getPtz() != null ? "support" : "noSupport");
+    return new Entry(
+        discovered,
+        xAddr.toString(),
+        device.getServiceAddresses(),
+        device.getDeviceInfo(),
+        inspected,
+        System.currentTimeMillis());
+  }
+
+  public void load() throws IOException {
+    entries.clear();
+    if (!file.exists()) return;
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      props.load(in);
+    }
+    // the fields never contain the separator, the EndpointReference might
+    Map<String, Map<String, String>> byEpr = new HashMap<>();
+    for (String key : props.stringPropertyNames()) {
+      int sep = key.lastIndexOf(SEP);
+      if (sep < 0) continue;
+      String epr = key.substring(0, sep);
+      Map<String, String> fields = byEpr.get(epr);
+      if (fields == null) byEpr.put(epr, fields = new HashMap<>());
+      fields.put(key.substring(sep + SEP.length()), props.getProperty(key));
+    }
+    for (Map.Entry<String, Map<String, String>> e : byEpr.entrySet()) {
+      if (!e.getValue().containsKey("metadataVersion")) continue;
+      try {
+        entries.put(e.getKey(), read(e.getKey(), e.getValue()));
+      } catch (RuntimeException ex) {
+        logger.warn("Dropping unreadable cache entry " + e.getKey(), ex);
+      }
+    }
+  }
+
+  public void save() throws IOException {
+    Properties props = new Properties();
+    for (Entry e : entries.values()) write(props, e);
+    File tmp = new File(file.getPath() + ".tmp");
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      props.store(out, "onvif discovery cache");
+    }
+    Files.move(
+        tmp.toPath(),
+        file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void write(Properties props, Entry e) {
+    DiscoveredDevice d = e.getDiscovered();
+    String p = d.getEndpointReference() + SEP;
+    props.setProperty(p + "metadataVersion", Long.toString(d.getMetadataVersion()));
+    props.setProperty(p + "types", join(d.getTypes()));
+    props.setProperty(p + "scopes", join(d.getScopes()));
+    props.setProperty(p + "xAddrs", join(d.getXAddrs()));
+    props.setProperty(p + "xAddr", e.getXAddr());
+    props.setProperty(p + "inspectedAt", Long.toString(e.getInspectedAt()));
+    DeviceInfo info = e.getDeviceInfo();
+    if (info != null) {
+      props.setProperty(p + "manufacturer", nullToEmpty(info.getManufacturer()));
+      props.setProperty(p + "model", nullToEmpty(info.getModel()));
+      props.setProperty(p + "firmwareVersion", nullToEmpty(info.getFirmwareVersion()));
+      props.setProperty(p + "serialNumber", nullToEmpty(info.getSerialNumber()));
+      props.setProperty(p + "hardwareId", nullToEmpty(info.getHardwareId()));
+    }
+    for (Map.Entry<String, String> s : e.getServiceAddresses().entrySet()) {
+      props.setProperty(p + SERVICE_PREFIX + s.getKey(), s.getValue());
+    }
+    for (Map.Entry<String, String> s : e.getInspected().entrySet()) {
+      props.setProperty(p + INSPECT_PREFIX + s.getKey(), nullToEmpty(s.getValue()));
+    }
+  }
+
+  /** @param fields the properties of one EndpointReference, without the prefix */
+  private static Entry read(String epr, Map<String, String> fields) {
+    DiscoveredDevice d =
+        new DiscoveredDevice(
+            epr,
+            split(fields.get("types")),
+            split(fields.get("scopes")),
+            split(fields.get("xAddrs")),
+            Long.parseLong(fields.get("metadataVersion")));
+    DeviceInfo info = null;
+    if (fields.get("manufacturer") != null) {
+      info =
+          new DeviceInfo(
+              fields.get("manufacturer"),
+              fields.get("model"),
+              fields.get("firmwareVersion"),
+              fields.get("serialNumber"),
+              fields.get("hardwareId"));
+    }
+    Map<String, String> services = new LinkedHashMap<>();
+    Map<String, String> inspected = new LinkedHashMap<>();
+    for (Map.Entry<String, String> f : fields.entrySet()) {
+      String field = f.getKey();
+      if (field.startsWith(SERVICE_PREFIX)) {
+        services.put(field.substring(SERVICE_PREFIX.length()), f.getValue());
+      } else if (field.startsWith(INSPECT_PREFIX)) {
+        inspected.put(field.substring(INSPECT_PREFIX.length()), f.getValue());
+      }
+    }
+    String inspectedAt = fields.containsKey("inspectedAt") ? fields.get("inspectedAt") : "0";
+    return new Entry(
+        d, fields.get("xAddr"), services, info, inspected, Long.parseLong(inspectedAt));
+  }
+
+  private static String join(List<String> values) {
+    StringBuilder sb = new StringBuilder();
+    for (String v : values) {
+      if (sb.length() > 0) sb.append(' ');
+      sb.append(v);
+    }
+    return sb.toString();
+  }
+
+  private static List<String> split(String value) {
+    if (value == null || value.isEmpty()) return Collections.emptyList();
+    return Arrays.asList(value.split(" "));
+  }
+
+  private static String nullToEmpty(String s) {
+    return s == null ? "" : s;
+  }
+}
@@ -0,0 +1,247 @@
+package de.onvif.discovery;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.namespace.QName;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.soap.SOAPFaultException;
+import org.apache.cxf.binding.soap.Soap12;
+import org.apache.cxf.binding.soap.SoapBindingConfiguration;
+import org.apache.cxf.endpoint.Client;
+import org.apache.cxf.frontend.ClientProxy;
+import org.apache.cxf.jaxws.JaxWsProxyFactoryBean;
+import org.apache.cxf.transport.http.HTTPConduit;
+import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
+import org.onvif.ver10.network.wsdl.DiscoveryLookupPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmlsoap.schemas.ws._2005._04.discovery.ProbeMatchType;
+import org.xmlsoap.schemas.ws._2005._04.discovery.ProbeMatchesType;
+import org.xmlsoap.schemas.ws._2005._04.discovery.ProbeType;
+import org.xmlsoap.schemas.ws._2005._04.discovery.ScopesType;
+
+/**
+ * Managed mode WS-Discovery client. Devices are looked up through a discovery proxy (the ONVIF
+ * DiscoveryLookupPort) instead of multicast probes, which does not scale to sites with thousands
+ * of devices.
+ *
+ * <p>A lookup is split into pages, one Probe per configured scope (e.g. one per site or building),
+ * so no single proxy response has to carry the whole fleet. Merged results are cached for {@link
+ * #setCacheTtl(long)} milliseconds. Only when the proxy cannot be reached the client falls back to
+ * ad-hoc multicast discovery, and it keeps using multicast for {@link #setRetryInterval(long)}
+ * milliseconds before trying the proxy again; multicast results are not cached beyond that. A
+ * SOAP fault of a reachable proxy is thrown to the caller.
+ */
+public class DiscoveryProxyClient {
+  private static final Logger logger = LoggerFactory.getLogger(DiscoveryProxyClient.class);
+
+  public static final QName NETWORK_VIDEO_TRANSMITTER =
+      new QName("http://www.onvif.org/ver10/network/wsdl", "NetworkVideoTransmitter");
+
+  private final URL proxyUrl;
+  private final DiscoveryLookupPort lookup;
+  private final List<String> pageScopes;
+  private final Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+
+  private long cacheTtl = 60000;
+  private long retryInterval = 30000;
+  private volatile boolean multicastFallback = true;
+  private volatile long proxyDownUntil = 0;
+  private volatile boolean lastFromProxy = true;
+
+  /**
+   * @param proxyUrl address of the discovery proxy, e.g. http://proxy:5357/onvif/discovery
+   * @param pageScopes scopes to probe one by one, or empty to ask for everything in one probe
+   */
+  public DiscoveryProxyClient(URL proxyUrl, List<String> pageScopes) {
+    this.proxyUrl = proxyUrl;
+    this.pageScopes = new ArrayList<>(pageScopes);
+    this.lookup = createPort(proxyUrl);
+  }
+
+  private static DiscoveryLookupPort createPort(URL proxyUrl) {
+    JaxWsProxyFactoryBean proxyFactory = new JaxWsProxyFactoryBean();
+    proxyFactory.setAddress(proxyUrl.toString());
+    proxyFactory.setServiceClass(DiscoveryLookupPort.class);
+    SoapBindingConfiguration config = new SoapBindingConfiguration();
+    config.setVersion(Soap12.getInstance());
+    proxyFactory.setBindingConfig(config);
+    DiscoveryLookupPort port = proxyFactory.create(DiscoveryLookupPort.class);
+
+    // fail fast, an unreachable proxy means we should multicast instead
+    Client client = ClientProxy.getClient(port);
+    HTTPClientPolicy policy = ((HTTPConduit) client.getConduit()).getClient();
+    policy.setConnectionTimeout(3000);
+    policy.setReceiveTimeout(DeviceDiscovery.WS_DISCOVERY_TIMEOUT * 2);
+    policy.setAllowChunking(false);
+    return port;
+  }
+
+  /** All ONVIF NetworkVideoTransmitters known to the proxy. */
+  public List<DiscoveredDevice> discover() {
+    return discover(Collections.singletonList(NETWORK_VIDEO_TRANSMITTER));
+  }
+
+  /**
+   * Looks up devices of the given types, using the cached result if it is younger than the cache
+   * ttl.
+   *
+   * @return devices sorted by EndpointReference
+   */
+  public List<DiscoveredDevice> discover(List<QName> types) {
+    String key = types.toString();
+    CacheEntry entry = cache.get(key);
+    long now = System.currentTimeMillis();
+    if (entry != null && now < entry.expiresAt) return entry.devices;
+
+    List<DiscoveredDevice> devices = null;
+    if (now >= proxyDownUntil) {
+      try {
+        devices = probeProxy(types);
+        lastFromProxy = true;
+      } catch (SOAPFaultException e) {
+        // the proxy is up and refused the probe, multicast would only hide that
+        throw e;
+      } catch (WebServiceException e) {
+        if (!multicastFallback) throw e;
+        logger.warn("Discovery proxy " + proxyUrl + " unreachable, falling back to multicast", e);
+        proxyDownUntil = now + retryInterval;
+      }
+    }
+    long expiresAt = System.currentTimeMillis() + cacheTtl;
+    if (devices == null) {
+      devices = probeMulticast(types);
+      lastFromProxy = false;
+      // ask the proxy again as soon as the retry interval is over
+      expiresAt = Math.min(expiresAt, proxyDownUntil);
+    }
+    cache.put(key, new CacheEntry(devices, expiresAt));
+    return devices;
+  }
+
+  /**
+   * One page of the (cached) result of {@link #discover(List)}.
+   *
+   * @param page zero based page number
+   * @param pageSize maximum number of devices per page
+   */
+  public List<DiscoveredDevice> getPage(List<QName> types, int page, int pageSize) {
+    List<DiscoveredDevice> all = discover(types);
+    int from = Math.min(page * pageSize, all.size());
+    int to = Math.min(from + pageSize, all.size());
+    return all.subList(from, to);
+  }
+
+  /** Drops all cached results, the next lookup goes to the proxy (or multicast) again. */
+  public void invalidate() {
+    cache.clear();
+  }
+
+  /** True if the last lookup was answered by the proxy, false if by multicast. */
+  public boolean isLastFromProxy() {
+    return lastFromProxy;
+  }
+
+  public long getCacheTtl() {
+    return cacheTtl;
+  }
+
+  public void setCacheTtl(long cacheTtl) {
+    this.cacheTtl = cacheTtl;
+  }
+
+  public boolean isMulticastFallback() {
+    return multicastFallback;
+  }
+
+  /**
+   * @param multicastFallback false to throw the WebServiceException of an unreachable proxy
+   *     instead of probing by multicast, for callers that must tell an outage from empty results
+   */
+  public void setMulticastFallback(boolean multicastFallback) {
+    this.multicastFallback = multicastFallback;
+  }
+
+  public long getRetryInterval() {
+    return retryInterval;
+  }
+
+  public void setRetryInterval(long retryInterval) {
+    this.retryInterval = retryInterval;
+  }
+
+  private List<DiscoveredDevice> probeProxy(List<QName> types) {
+    Map<String, DiscoveredDevice> merged = new LinkedHashMap<>();
+    List<List<String>> pages = new ArrayList<>();
+    if (pageScopes.isEmpty()) pages.add(Collections.<String>emptyList());
+    for (String scope : pageScopes) pages.add(Collections.singletonList(scope));
+
+    for (List<String> scopes : pages) {
+      ProbeType probe = new ProbeType();
+      probe.getTypes().addAll(types);
+      if (!scopes.isEmpty()) {
+        ScopesType scopesType = new ScopesType();
+        scopesType.getValue().addAll(scopes);
+        probe.setScopes(scopesType);
+      }
+      ProbeMatchesType matches = lookup.probe(probe);
+      if (matches == null) continue;
+      for (ProbeMatchType match : matches.getProbeMatch()) {
+        DiscoveredDevice d = DiscoveredDevice.from(match);
+        DiscoveredDevice known = merged.get(d.getEndpointReference());
+        // a device may be listed on several pages, keep its newest metadata
+        if (known == null || known.getMetadataVersion() < d.getMetadataVersion()) {
+          merged.put(d.getEndpointReference(), d);
+        }
+      }
+    }
+    return sorted(merged.values());
+  }
+
+  private List<DiscoveredDevice> probeMulticast(List<QName> types) {
+    List<DiscoveredDevice> devices = new ArrayList<>();
+    for (DiscoveredDevice d : DeviceDiscovery.discoverWsProbeMatches()) {
+      if (!d.matchesTypes(types)) continue;
+      if (pageScopes.isEmpty()) {
+        devices.add(d);
+      } else {
+        for (String scope : pageScopes) {
+          if (d.matchesScopes(Collections.singletonList(scope))) {
+            devices.add(d);
+            break;
+          }
+        }
+      }
+    }
+    return sorted(devices);
+  }
+
+  private static List<DiscoveredDevice> sorted(Collection<DiscoveredDevice> devices) {
+    List<DiscoveredDevice> list = new ArrayList<>(devices);
+    Collections.sort(
+        list,
+        new Comparator<DiscoveredDevice>() {
+          public int compare(DiscoveredDevice o1, DiscoveredDevice o2) {
+            return o1.getEndpointReference().compareTo(o2.getEndpointReference());
+          }
+        });
+    return Collections.unmodifiableList(list);
+  }
+
+  private static class CacheEntry {
+    final List<DiscoveredDevice> devices;
+    final long expiresAt;
+
+    CacheEntry(List<DiscoveredDevice> devices, long expiresAt) {
+      this.devices = devices;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
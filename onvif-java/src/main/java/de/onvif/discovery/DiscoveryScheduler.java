@@ -0,0 +1,303 @@
+package de.onvif.discovery;
+
+import java.net.NetworkInterface;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs discovery sweeps periodically and publishes what changed instead of full snapshots.
+ *
+ * <p>Every registered {@link Sweep} (typically one per network interface or one per site of a
+ * discovery proxy) runs on its own schedule: the interval is varied by a random jitter, so sweeps
+ * of many interfaces or schedulers don't probe in lock step. The result of a sweep is compared by
+ * EndpointReference with the previous result of the same sweep and listeners receive only the
+ * devices that were added, removed or moved to other XAddrs. A device is only reported as removed
+ * after it was missing in {@link #setMissesBeforeRemoval(int)} sweeps in a row, a single lost UDP
+ * answer does not make it flap.
+ */
+public class DiscoveryScheduler {
+  private static final Logger logger = LoggerFactory.getLogger(DiscoveryScheduler.class);
+
+  /** One source of discovery results. */
+  public interface Sweep {
+    /** Unique name, e.g. the interface or site name. */
+    String getName();
+
+    Collection<DiscoveredDevice> discover() throws Exception;
+  }
+
+  /** Receives the changes of one sweep, never called with an empty list. */
+  public interface ChangeListener {
+    void changed(String sweep, List<DeviceChange> changes);
+  }
+
+  public enum ChangeType {
+    ADDED,
+    REMOVED,
+    /** Same EndpointReference, different XAddrs (new IP, DHCP lease, renumbering). */
+    MOVED
+  }
+
+  public static class DeviceChange {
+    private final ChangeType type;
+    private final DiscoveredDevice device;
+    private final DiscoveredDevice previous;
+
+    DeviceChange(ChangeType type, DiscoveredDevice device, DiscoveredDevice previous) {
+      this.type = type;
+      this.device = device;
+      this.previous = previous;
+    }
+
+    public ChangeType getType() {
+      return type;
+    }
+
+    /** The device as seen now, for REMOVED the last known state. */
+    public DiscoveredDevice getDevice() {
+      return device;
+    }
+
+    /** The state before a MOVED, null otherwise. */
+    public DiscoveredDevice getPrevious() {
+      return previous;
+    }
+
+    @Override
+    public String toString() {
+      return "DeviceChange [type=" + type + ", device=" + device + "]";
+    }
+  }
+
+  private final ScheduledExecutorService scheduler;
+  private final Map<String, SweepState> sweeps = new ConcurrentHashMap<>();
+  private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+  private final Random random = new Random();
+
+  private double jitter = 0.2;
+  private int missesBeforeRemoval = 2;
+
+  /** @param threads number of sweeps that may run at the same time */
+  public DiscoveryScheduler(int threads) {
+    scheduler = Executors.newScheduledThreadPool(threads);
+  }
+
+  /** Multicast sweep restricted to one network interface. */
+  public static Sweep multicast(final NetworkInterface nif) {
+    return new Sweep() {
+      public String getName() {
+        return nif.getName();
+      }
+
+      public Collection<DiscoveredDevice> discover() {
+        return DeviceDiscovery.discoverWsProbeMatches(nif);
+      }
+    };
+  }
+
+  /**
+   * Sweep of one site, looked up through a discovery proxy by the site scope. The sweep fails
+   * while the proxy is unreachable, so the devices of the site are not counted as missing; a
+   * multicast from this host would not see a remote site anyway.
+   */
+  public static Sweep site(final String name, URL proxyUrl, String siteScope) {
+    final DiscoveryProxyClient client =
+        new DiscoveryProxyClient(proxyUrl, Collections.singletonList(siteScope));
+    client.setMulticastFallback(false);
+    return new Sweep() {
+      public String getName() {
+        return name;
+      }
+
+      public Collection<DiscoveredDevice> discover() {
+        client.invalidate();
+        return client.discover();
+      }
+    };
+  }
+
+  public void addListener(ChangeListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(ChangeListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Schedules the sweep every {@code interval} milliseconds (plus or minus jitter). The first run
+   * is at a random point within the first interval.
+   */
+  public void schedule(Sweep sweep, long interval) {
+    SweepState state = new SweepState(sweep, interval);
+    SweepState old = sweeps.put(sweep.getName(), state);
+    if (old != null) old.cancel();
+    state.next((long) (random.nextDouble() * interval));
+  }
+
+  /** Stops the sweep, devices it found are forgotten without REMOVED events. */
+  public void unschedule(String name) {
+    SweepState state = sweeps.remove(name);
+    if (state != null) state.cancel();
+  }
+
+  /** Runs the sweep right now in the calling thread and publishes its changes. */
+  public List<DeviceChange> sweepNow(String name) throws Exception {
+    SweepState state = sweeps.get(name);
+    if (state == null) throw new IllegalArgumentException("Unknown sweep " + name);
+    return state.run0();
+  }
+
+  /** Devices currently known by the sweep, by EndpointReference. */
+  public Map<String, DiscoveredDevice> getDevices(String name) {
+    SweepState state = sweeps.get(name);
+    if (state == null) return Collections.emptyMap();
+    synchronized (state) {
+      Map<String, DiscoveredDevice> devices = new HashMap<>();
+      for (Known k : state.known.values()) devices.put(k.device.getEndpointReference(), k.device);
+      return devices;
+    }
+  }
+
+  public void shutdown() {
+    for (SweepState state : sweeps.values()) state.cancel();
+    scheduler.shutdownNow();
+  }
+
+  public double getJitter() {
+    return jitter;
+  }
+
+  /** @param jitter fraction of the interval the delay is varied by, e.g. 0.2 for +-20% */
+  public void setJitter(double jitter) {
+    this.jitter = jitter;
+  }
+
+  public int getMissesBeforeRemoval() {
+    return missesBeforeRemoval;
+  }
+
+  public void setMissesBeforeRemoval(int missesBeforeRemoval) {
+    this.missesBeforeRemoval = missesBeforeRemoval;
+  }
+
+  /**
+   * Compares a sweep result with the known devices and updates them.
+   *
+   * @return the changes, in the order added, moved, removed
+   */
+  static List<DeviceChange> diff(
+      Map<String, Known> known, Collection<DiscoveredDevice> found, int missesBeforeRemoval) {
+    List<DeviceChange> added = new ArrayList<>();
+    List<DeviceChange> moved = new ArrayList<>();
+    List<DeviceChange> removed = new ArrayList<>();
+    Map<String, DiscoveredDevice> seen = new HashMap<>();
+    for (DiscoveredDevice d : found) seen.put(d.getEndpointReference(), d);
+
+    for (DiscoveredDevice d : seen.values()) {
+      Known k = known.get(d.getEndpointReference());
+      if (k == null) {
+        known.put(d.getEndpointReference(), new Known(d));
+        added.add(new DeviceChange(ChangeType.ADDED, d, null));
+        continue;
+      }
+      k.misses = 0;
+      if (!new HashSet<>(k.device.getXAddrs()).equals(new HashSet<>(d.getXAddrs()))) {
+        moved.add(new DeviceChange(ChangeType.MOVED, d, k.device));
+      }
+      k.device = d;
+    }
+    for (Iterator<Known> it = known.values().iterator(); it.hasNext(); ) {
+      Known k = it.next();
+      if (seen.containsKey(k.device.getEndpointReference())) continue;
+      if (++k.misses >= missesBeforeRemoval) {
+        it.remove();
+        removed.add(new DeviceChange(ChangeType.REMOVED, k.device, null));
+      }
+    }
+    List<DeviceChange> changes = new ArrayList<>(added.size() + moved.size() + removed.size());
+    changes.addAll(added);
+    changes.addAll(moved);
+    changes.addAll(removed);
+    return changes;
+  }
+
+  static class Known {
+    DiscoveredDevice device;
+    int misses;
+
+    Known(DiscoveredDevice device) {
+      this.device = device;
+    }
+  }
+
+  private class SweepState implements Runnable {
+    final Sweep sweep;
+    final long interval;
+    final Map<String, Known> known = new HashMap<>();
+    volatile ScheduledFuture<?> future;
+    volatile boolean cancelled;
+
+    SweepState(Sweep sweep, long interval) {
+      this.sweep = sweep;
+      this.interval = interval;
+    }
+
+    void next(long delay) {
+      if (!cancelled) future = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+    }
+
+    void cancel() {
+      cancelled = true;
+      ScheduledFuture<?> f = future;
+      if (f != null) f.cancel(false);
+    }
+
+    public void run() {
+      try {
+        run0();
+      } catch (Exception e) {
+        logger.warn("Discovery sweep " + sweep.getName() + " failed", e);
+      } finally {
+        long delay = (long) (interval * (1 + jitter * (2 * random.nextDouble() - 1)));
+        next(Math.max(0, delay));
+      }
+    }
+
+    List<DeviceChange> run0() throws Exception {
+      Collection<DiscoveredDevice> found = sweep.discover();
+      List<DeviceChange> changes;
+      synchronized (this) {
+        if (cancelled) return Collections.emptyList();
+        changes = diff(known, found, missesBeforeRemoval);
+      }
+      if (!changes.isEmpty()) {
+        List<DeviceChange> published = Collections.unmodifiableList(changes);
+        for (ChangeListener l : listeners) {
+          try {
+            l.changed(sweep.getName(), published);
+          } catch (RuntimeException e) {
+            logger.warn("Change listener failed", e);
+          }
+        }
+      }
+      return changes;
+    }
+  }
+}
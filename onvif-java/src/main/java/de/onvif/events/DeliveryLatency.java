@@ -0,0 +1,202 @@
+package de.onvif.events;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+
+/**
+ * Where the time between an event on the device and its delivery goes, per device and per topic.
+ *
+ * <p>Every delivered event is split into {@link Stage}s from four timestamps: the UtcTime of the
+ * message, the arrival of the PullMessagesResponse, the end of its decoding and the call of the
+ * listener. The UtcTime is on the device clock, so it is corrected by the offset of that clock:
+ * the CurrentTime of a response is at most the local arrival time plus the offset, the largest
+ * difference of the last {@value #OFFSET_WINDOW} responses is taken as the offset. A CurrentTime
+ * with whole seconds only leaves an error below one second.
+ *
+ * <p>Set it with {@link EventMultiplexer#setDeliveryLatency(DeliveryLatency)} and query it from
+ * any thread. Latencies are in microseconds.
+ */
+public final class DeliveryLatency {
+  /** Responses the clock offset is estimated from. */
+  static final int OFFSET_WINDOW = 16;
+
+  public enum Stage {
+    /** From the UtcTime of the event to the arrival of the response: camera and network. */
+    DEVICE,
+    /** From the arrival of the response until a decode thread takes it. */
+    QUEUE,
+    DECODE,
+    /** From the decoded response to the call of the listener, i.e. the topic filter. */
+    DISPATCH,
+    /** From the UtcTime of the event to the call of the listener. */
+    TOTAL
+  }
+
+  private static final Stage[] STAGES = Stage.values();
+
+  private final ConcurrentHashMap<String, Device> devices = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, LatencyHistogram[]> topics = new ConcurrentHashMap<>();
+
+  /** Latencies of the events of the device in the stage, null if none were recorded. */
+  public LatencyHistogram getDevice(String deviceId, Stage stage) {
+    Device d = devices.get(deviceId);
+    return d == null ? null : d.stages[stage.ordinal()];
+  }
+
+  /** Latencies of the events of the topic from all devices, null if none were recorded. */
+  public LatencyHistogram getTopic(String topic, Stage stage) {
+    LatencyHistogram[] h = topics.get(topic);
+    return h == null ? null : h[stage.ordinal()];
+  }
+
+  public Set<String> getDeviceIds() {
+    return devices.keySet();
+  }
+
+  public Set<String> getTopics() {
+    return topics.keySet();
+  }
+
+  /**
+   * How far the clock of the device is ahead of the local clock, in ms, 0 while it is not known.
+   */
+  public long getClockOffset(String deviceId) {
+    Device d = devices.get(deviceId);
+    return d == null ? 0 : d.offset;
+  }
+
+  /** Forgets the device, its events stay in the topic histograms. */
+  public void remove(String deviceId) {
+    devices.remove(deviceId);
+  }
+
+  /**
+   * Records the events of one response.
+   *
+   * @param currentTime CurrentTime of the response, {@link NotificationEvent#NO_TIME} if unknown
+   * @param arrivedAt local time the response arrived, in ms
+   * @param queued nanoseconds from the arrival to the start of decoding
+   * @param decoding nanoseconds of decoding
+   * @param dispatching nanoseconds from decoded to the call of the listener
+   */
+  void recordEvents(
+      String deviceId,
+      long currentTime,
+      long arrivedAt,
+      long queued,
+      long decoding,
+      long dispatching,
+      List<NotificationEvent> events) {
+    Device d =
+        device(deviceId, currentTime, arrivedAt, queued, decoding, dispatching, events.size());
+    for (int i = 0, n = events.size(); i < n; i++) {
+      NotificationEvent e = events.get(i);
+      event(d, e.getTopic(), e.getUtcTime(), arrivedAt, queued, decoding, dispatching);
+    }
+  }
+
+  /** Like {@link #recordEvents} for messages delivered as they are. */
+  void recordMessages(
+      String deviceId,
+      long currentTime,
+      long arrivedAt,
+      long queued,
+      long decoding,
+      long dispatching,
+      List<NotificationMessageHolderType> messages) {
+    Device d =
+        device(deviceId, currentTime, arrivedAt, queued, decoding, dispatching, messages.size());
+    for (int i = 0, n = messages.size(); i < n; i++) {
+      NotificationMessageHolderType m = messages.get(i);
+      event(
+          d,
+          NotificationDecoder.topic(m),
+          NotificationDecoder.utcTime(m),
+          arrivedAt,
+          queued,
+          decoding,
+          dispatching);
+    }
+  }
+
+  /** Updates the clock offset and records the stages of the response, once for every event. */
+  private Device device(
+      String deviceId,
+      long currentTime,
+      long arrivedAt,
+      long queued,
+      long decoding,
+      long dispatching,
+      int events) {
+    Device d = devices.get(deviceId);
+    if (d == null) {
+      Device created = new Device();
+      d = devices.putIfAbsent(deviceId, created);
+      if (d == null) d = created;
+    }
+    if (currentTime != NotificationEvent.NO_TIME) d.clock(currentTime - arrivedAt);
+    d.stages[Stage.QUEUE.ordinal()].record(queued / 1000, events);
+    d.stages[Stage.DECODE.ordinal()].record(decoding / 1000, events);
+    d.stages[Stage.DISPATCH.ordinal()].record(dispatching / 1000, events);
+    return d;
+  }
+
+  private void event(
+      Device d,
+      String topic,
+      long utcTime,
+      long arrivedAt,
+      long queued,
+      long decoding,
+      long dispatching) {
+    LatencyHistogram[] t = topic == null ? null : topics.get(topic);
+    if (t == null && topic != null) {
+      LatencyHistogram[] created = histograms();
+      t = topics.putIfAbsent(topic, created);
+      if (t == null) t = created;
+    }
+    if (utcTime != NotificationEvent.NO_TIME) {
+      long local = (queued + decoding + dispatching) / 1000;
+      long device = (arrivedAt - (utcTime - d.offset)) * 1000;
+      d.stages[Stage.DEVICE.ordinal()].record(device);
+      d.stages[Stage.TOTAL.ordinal()].record(device + local);
+      if (t != null) {
+        t[Stage.DEVICE.ordinal()].record(device);
+        t[Stage.TOTAL.ordinal()].record(device + local);
+      }
+    }
+    if (t != null) {
+      t[Stage.QUEUE.ordinal()].record(queued / 1000);
+      t[Stage.DECODE.ordinal()].record(decoding / 1000);
+      t[Stage.DISPATCH.ordinal()].record(dispatching / 1000);
+    }
+  }
+
+  private static LatencyHistogram[] histograms() {
+    LatencyHistogram[] h = new LatencyHistogram[STAGES.length];
+    for (int i = 0; i < h.length; i++) h[i] = new LatencyHistogram();
+    return h;
+  }
+
+  private static final class Device {
+    final LatencyHistogram[] stages = histograms();
+    /** CurrentTime minus arrival of the last responses, guarded by this. */
+    private final long[] differences = new long[OFFSET_WINDOW];
+    private int next;
+    private int samples;
+    volatile long offset;
+
+    synchronized void clock(long difference) {
+      differences[next] = difference;
+      next = (next + 1) % OFFSET_WINDOW;
+      samples = Math.min(samples + 1, OFFSET_WINDOW);
+      long max = Long.MIN_VALUE;
+      for (int i = 0; i < samples; i++) {
+        max = Math.max(max, differences[i]);
+      }
+      offset = max;
+    }
+  }
+}
@@ -0,0 +1,679 @@
+package de.onvif.events;
+
+import de.onvif.events.NotificationEvent.PropertyOperation;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the events of many devices in a directory, for replay after a restart
+ * and timeline queries without a database.
+ *
+ * <p>The journal is a sequence of memory mapped segment files of a fixed size. Records are the
+ * {@link NotificationEvent}s in a compact binary form: strings (device ids, topics, item names and
+ * values) are written once per segment and referenced by number afterwards, numbers are varints.
+ * Every record has a length and a CRC32, so a record torn by a crash is detected. Opening a
+ * journal scans its segments, rebuilds the string tables and indexes and continues after the last
+ * intact record.
+ *
+ * <p>Records carry the time they were journaled, which never goes backwards; the event keeps its
+ * own UtcTime. Each segment keeps a sparse index in memory: per device every {@value
+ * #DEVICE_INDEX_EVERY}th record and across devices a record every {@value #TIME_INDEX_BYTES}
+ * bytes, so a range read starts close to its first record and skips the records of other devices
+ * without decoding them. Segments whose last record is older than the retention are deleted.
+ *
+ * <p>Appends are serialized, reads run concurrently with them and with each other. Written records
+ * survive a crash of the process; {@link #flush()} forces them to the disk.
+ */
+public class EventJournal implements EventMultiplexer.EventListener, Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(EventJournal.class);
+
+  private static final int MAGIC = 0x4f4e564a; // ONVJ
+  private static final int VERSION = 1;
+  private static final int SEGMENT_HEADER = 16;
+  /** Length and CRC32 of the payload. */
+  private static final int RECORD_HEADER = 8;
+  private static final String SUFFIX = ".journal";
+  /** Strings per segment table; further strings are written in full every time. */
+  private static final int MAX_STRINGS = 65536;
+  private static final int DEVICE_INDEX_EVERY = 32;
+  private static final int TIME_INDEX_BYTES = 64 * 1024;
+  private static final int HAS_UTC_TIME = 0x10;
+
+  /** Receives the records of a read. */
+  public interface Visitor {
+    /**
+     * @param time time the event was journaled
+     * @return false to end the read
+     */
+    boolean visit(String deviceId, long time, NotificationEvent event);
+  }
+
+  private final File directory;
+  private final int segmentSize;
+  private volatile long retention;
+  /** Oldest first, the last one is appended to. Replaced, never changed. */
+  private volatile Segment[] segments;
+  private final Output out = new Output();
+  private final CRC32 crc = new CRC32();
+  private long lastTime = Long.MIN_VALUE;
+  private long appended;
+
+  /**
+   * Opens the journal in the directory, creating it if needed.
+   *
+   * @param segmentSize size of a segment file in bytes
+   * @param retentionMillis how long records are kept, measured back from the latest record
+   */
+  public EventJournal(File directory, int segmentSize, long retentionMillis) throws IOException {
+    if (segmentSize < 4096) throw new IllegalArgumentException("Segment too small");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can not create " + directory);
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.retention = retentionMillis;
+    File[] files = directory.listFiles();
+    List<File> found = new ArrayList<>();
+    if (files != null) {
+      for (File f : files) {
+        if (f.getName().endsWith(SUFFIX)) found.add(f);
+      }
+    }
+    Collections.sort(found);
+    List<Segment> recovered = new ArrayList<>();
+    for (File f : found) {
+      Segment s = Segment.open(f);
+      if (s == null) {
+        logger.warn("Ignoring {}, not a journal segment", f);
+        continue;
+      }
+      s.recover();
+      recovered.add(s);
+      if (s.maxTime > lastTime) lastTime = s.maxTime;
+    }
+    if (recovered.isEmpty()) {
+      recovered.add(Segment.create(file(0), segmentSize));
+    } else {
+      // the tail of the last segment may hold a torn record, appends continue before it
+      recovered.get(recovered.size() - 1).clearTail();
+    }
+    segments = recovered.toArray(new Segment[recovered.size()]);
+  }
+
+  public void onEvents(String deviceId, List<NotificationEvent> events) {
+    try {
+      synchronized (this) {
+        for (NotificationEvent e : events) append(deviceId, System.currentTimeMillis(), e);
+      }
+    } catch (IOException e) {
+      logger.error("Journal {} failed, events of {} lost", directory, deviceId, e);
+    }
+  }
+
+  /**
+   * Appends the event.
+   *
+   * @param time time of the record, raised to the time of the previous record if older
+   */
+  public synchronized void append(String deviceId, long time, NotificationEvent event)
+      throws IOException {
+    if (time < lastTime) time = lastTime;
+    Segment s = segments[segments.length - 1];
+    int mark = s.stringCount;
+    encode(s, deviceId, time, event);
+    if (s.limit + RECORD_HEADER + out.size > s.capacity) {
+      s.rollback(mark);
+      if (s.limit == SEGMENT_HEADER) {
+        throw new IllegalArgumentException("Event larger than a segment: " + event);
+      }
+      s = roll();
+      encode(s, deviceId, time, event);
+      if (s.limit + RECORD_HEADER + out.size > s.capacity) {
+        s.rollback(0);
+        throw new IllegalArgumentException("Event larger than a segment: " + event);
+      }
+    }
+    int offset = s.limit;
+    crc.reset();
+    crc.update(out.bytes, 0, out.size);
+    s.buffer.putInt(offset, out.size);
+    s.buffer.putInt(offset + 4, (int) crc.getValue());
+    s.writer.position(offset + RECORD_HEADER);
+    s.writer.put(out.bytes, 0, out.size);
+    s.indexRecord(deviceId, s.deviceRef, offset, time);
+    s.limit = offset + RECORD_HEADER + out.size;
+    lastTime = time;
+    appended++;
+  }
+
+  /**
+   * Reads the records of the device (or of all devices) journaled in the time range, oldest
+   * first.
+   *
+   * @param deviceId null for all devices
+   * @param from first time, inclusive
+   * @param to last time, inclusive
+   */
+  public void read(String deviceId, long from, long to, Visitor visitor) {
+    for (Segment s : segments) {
+      if (!s.read(deviceId, from, to, visitor)) return;
+    }
+  }
+
+  /** The events of the device journaled in the time range, oldest first. */
+  public List<NotificationEvent> read(String deviceId, long from, long to) {
+    final List<NotificationEvent> events = new ArrayList<>();
+    read(
+        deviceId,
+        from,
+        to,
+        new Visitor() {
+          public boolean visit(String id, long time, NotificationEvent event) {
+            events.add(event);
+            return true;
+          }
+        });
+    return events;
+  }
+
+  /** Deletes the segments whose records are all older than the retention. */
+  public synchronized void applyRetention() {
+    if (lastTime == Long.MIN_VALUE) return;
+    long cutoff = lastTime - retention;
+    List<Segment> kept = new ArrayList<>(Arrays.asList(segments));
+    while (kept.size() > 1 && kept.get(0).maxTime < cutoff) {
+      Segment old = kept.remove(0);
+      // readers of the segment keep their mapping, the file is gone once they are done
+      if (!old.file.delete()) logger.warn("Can not delete {}", old.file);
+    }
+    if (kept.size() < segments.length) segments = kept.toArray(new Segment[kept.size()]);
+  }
+
+  /** Forces the records appended so far to the disk. */
+  public synchronized void flush() {
+    segments[segments.length - 1].buffer.force();
+  }
+
+  public synchronized void close() {
+    flush();
+  }
+
+  private Segment roll() throws IOException {
+    Segment last = segments[segments.length - 1];
+    last.buffer.force();
+    Segment next = Segment.create(file(last.number + 1), segmentSize);
+    Segment[] rolled = Arrays.copyOf(segments, segments.length + 1);
+    rolled[segments.length] = next;
+    segments = rolled;
+    applyRetention();
+    return next;
+  }
+
+  private File file(long number) {
+    return new File(directory, String.format("%020d%s", number, SUFFIX));
+  }
+
+  private void encode(Segment s, String deviceId, long time, NotificationEvent e) {
+    out.size = 0;
+    out.writeLong(time);
+    s.deviceRef = s.writeString(out, deviceId, true);
+    s.writeString(out, e.getTopic(), false);
+    PropertyOperation op = e.getPropertyOperation();
+    long utcTime = e.getUtcTime();
+    boolean hasTime = utcTime != NotificationEvent.NO_TIME;
+    out.writeByte((op == null ? 0 : op.ordinal() + 1) | (hasTime ? HAS_UTC_TIME : 0));
+    if (hasTime) out.writeVarLong(zigzag(utcTime - time));
+    writeItems(s, e.source());
+    writeItems(s, e.key());
+    writeItems(s, e.data());
+  }
+
+  private void writeItems(Segment s, String[] items) {
+    out.writeVarLong(items.length / 2);
+    for (String item : items) s.writeString(out, item, false);
+  }
+
+  /** Directory of the journal. */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /** Number of segment files. */
+  public int getSegments() {
+    return segments.length;
+  }
+
+  /** Bytes of records in all segments. */
+  public long getSize() {
+    long size = 0;
+    for (Segment s : segments) size += s.limit - SEGMENT_HEADER;
+    return size;
+  }
+
+  /** Records appended since the journal was opened. */
+  public synchronized long getAppended() {
+    return appended;
+  }
+
+  /** Time of the latest record, Long.MIN_VALUE if there is none. */
+  public synchronized long getLastTime() {
+    return lastTime;
+  }
+
+  public long getRetention() {
+    return retention;
+  }
+
+  /** @param retention how long records are kept, measured back from the latest record, in ms */
+  public void setRetention(long retention) {
+    this.retention = retention;
+  }
+
+  private static long zigzag(long v) {
+    return (v << 1) ^ (v >> 63);
+  }
+
+  private static long unzigzag(long v) {
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  /** One mapped segment file with its string table and index. */
+  private static final class Segment {
+    final File file;
+    final long number;
+    final MappedByteBuffer buffer;
+    /** Position of the appending thread. */
+    final ByteBuffer writer;
+    final int capacity;
+    /** End of the intact records, published after a record is complete. */
+    volatile int limit = SEGMENT_HEADER;
+
+    /** Strings by number, replaced when grown; entries below a published limit are final. */
+    volatile String[] strings = new String[256];
+    /** Written by the appending thread only. */
+    int stringCount;
+    /** Numbers of the strings, used by the appending thread only. */
+    final Map<String, Integer> ids = new HashMap<>();
+    /** Number of the device string of the record just encoded. */
+    int deviceRef;
+
+    // index, guarded by this
+    long minTime = Long.MAX_VALUE;
+    long maxTime = Long.MIN_VALUE;
+    final Map<String, DeviceIndex> devices = new HashMap<>();
+    long[] times = new long[16];
+    int[] offsets = new int[16];
+    int entries;
+    int nextIndexedOffset;
+
+    private Segment(File file, long number, MappedByteBuffer buffer) {
+      this.file = file;
+      this.number = number;
+      this.buffer = buffer;
+      this.writer = buffer.duplicate();
+      this.capacity = buffer.capacity();
+    }
+
+    static Segment create(File file, int size) throws IOException {
+      Segment s = new Segment(file, number(file), map(file, size));
+      s.buffer.putInt(0, MAGIC);
+      s.buffer.putInt(4, VERSION);
+      s.buffer.putLong(8, System.currentTimeMillis());
+      return s;
+    }
+
+    /** @return null if the file is no segment */
+    static Segment open(File file) throws IOException {
+      long length = file.length();
+      if (length < SEGMENT_HEADER || length > Integer.MAX_VALUE) return null;
+      long number;
+      try {
+        number = number(file);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      Segment s = new Segment(file, number, map(file, (int) length));
+      if (s.buffer.getInt(0) != MAGIC || s.buffer.getInt(4) != VERSION) return null;
+      return s;
+    }
+
+    private static long number(File file) {
+      return Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        if (raf.length() < size) raf.setLength(size);
+        return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+
+    /** Scans the records, rebuilding strings and index, up to the first one that is not intact. */
+    void recover() {
+      CRC32 check = new CRC32();
+      Input in = new Input(buffer);
+      int offset = SEGMENT_HEADER;
+      while (offset + RECORD_HEADER <= capacity) {
+        int length = buffer.getInt(offset);
+        if (length <= 0 || length > capacity - offset - RECORD_HEADER) break;
+        check.reset();
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(offset + RECORD_HEADER).limit(offset + RECORD_HEADER + length);
+        check.update(payload);
+        if ((int) check.getValue() != buffer.getInt(offset + 4)) {
+          logger.warn("Torn record in {} at {}, later records are ignored", file, offset);
+          break;
+        }
+        in.pos = offset + RECORD_HEADER;
+        long time = in.readLong();
+        int tag = (int) in.readVarLong();
+        String deviceId = learn(in, tag, true);
+        int ref = (tag & 1) != 0 ? tag >>> 1 : stringCount - 1;
+        learn(in, (int) in.readVarLong(), false); // topic
+        int flags = in.readByte();
+        if ((flags & HAS_UTC_TIME) != 0) in.readVarLong();
+        for (int group = 0; group < 3; group++) {
+          int items = (int) in.readVarLong() * 2;
+          for (int i = 0; i < items; i++) learn(in, (int) in.readVarLong(), false);
+        }
+        indexRecord(deviceId, ref, offset, time);
+        offset += RECORD_HEADER + length;
+      }
+      limit = offset;
+    }
+
+    /** Zeroes everything after the intact records, so no stale bytes follow new ones. */
+    void clearTail() {
+      int i = limit;
+      while (i + 8 <= capacity && buffer.getLong(i) == 0) i += 8;
+      while (i < capacity && buffer.get(i) == 0) i++;
+      if (i == capacity) return;
+      logger.info("Clearing {} bytes after the last record of {}", capacity - limit, file);
+      for (i = limit; i + 8 <= capacity; i += 8) buffer.putLong(i, 0);
+      for (; i < capacity; i++) buffer.put(i, (byte) 0);
+    }
+
+    /** Reads a string while recovering, adding it to the table as the writer did. */
+    private String learn(Input in, int tag, boolean always) {
+      if (tag == 0) return null;
+      if ((tag & 1) != 0) return strings[tag >>> 1];
+      String s = in.readString((tag >>> 1) - 1);
+      if (always || stringCount < MAX_STRINGS) add(s);
+      return s;
+    }
+
+    private void add(String s) {
+      String[] table = strings;
+      if (stringCount == table.length) {
+        table = Arrays.copyOf(table, table.length * 2);
+      }
+      table[stringCount] = s;
+      ids.put(s, stringCount++);
+      strings = table;
+    }
+
+    /**
+     * Writes the string as a tag: 0 for null, (length + 1) * 2 followed by the UTF-8 bytes, or
+     * number * 2 + 1 if the string was written before.
+     *
+     * @param always add the string to the table even if it is full, used for device ids
+     * @return the number of the string, -1 if it is not in the table
+     */
+    int writeString(Output out, String s, boolean always) {
+      if (s == null) {
+        out.writeVarLong(0);
+        return -1;
+      }
+      Integer id = ids.get(s);
+      if (id != null) {
+        out.writeVarLong(((long) id << 1) | 1);
+        return id;
+      }
+      byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+      out.writeVarLong((long) (utf8.length + 1) << 1);
+      out.writeBytes(utf8);
+      if (!always && stringCount >= MAX_STRINGS) return -1;
+      add(s);
+      return stringCount - 1;
+    }
+
+    /** Forgets the strings added since the mark, for a record that went to the next segment. */
+    void rollback(int mark) {
+      for (int i = mark; i < stringCount; i++) ids.remove(strings[i]);
+      Arrays.fill(strings, mark, stringCount, null);
+      stringCount = mark;
+    }
+
+    /** @param ref number of the device string in the segment */
+    synchronized void indexRecord(String deviceId, int ref, int offset, long time) {
+      if (time < minTime) minTime = time;
+      if (time > maxTime) maxTime = time;
+      if (offset >= nextIndexedOffset) {
+        if (entries == times.length) {
+          times = Arrays.copyOf(times, entries * 2);
+          offsets = Arrays.copyOf(offsets, entries * 2);
+        }
+        times[entries] = time;
+        offsets[entries++] = offset;
+        nextIndexedOffset = offset + TIME_INDEX_BYTES;
+      }
+      DeviceIndex d = devices.get(deviceId);
+      if (d == null) {
+        d = new DeviceIndex(ref, offset);
+        devices.put(deviceId, d);
+      }
+      d.add(offset, time);
+    }
+
+    /** @return false if the visitor ended the read or the range ended in this segment */
+    boolean read(String deviceId, long from, long to, Visitor visitor) {
+      int start;
+      int end;
+      int ref = -1;
+      int first = -1;
+      synchronized (this) {
+        if (minTime > to) return false; // later segments are later still
+        if (maxTime < from) return true;
+        if (deviceId != null) {
+          DeviceIndex d = devices.get(deviceId);
+          if (d == null) return true;
+          start = d.find(from);
+          end = d.last;
+          ref = d.ref;
+          first = d.first;
+        } else {
+          int i = find(times, entries, from);
+          start = offsets[i];
+          end = Integer.MAX_VALUE;
+        }
+      }
+      int limit = this.limit;
+      String[] table = strings;
+      Input in = new Input(buffer);
+      for (int offset = start; offset < limit && offset <= end; ) {
+        int length = buffer.getInt(offset);
+        in.pos = offset + RECORD_HEADER;
+        long time = in.readLong();
+        if (time > to) return false;
+        int tag = (int) in.readVarLong();
+        boolean match =
+            deviceId == null || ((tag & 1) != 0 ? tag >>> 1 == ref : offset == first);
+        if (match && time >= from) {
+          String id = deviceId;
+          if (id == null) id = (tag & 1) != 0 ? table[tag >>> 1] : in.readString((tag >>> 1) - 1);
+          else if ((tag & 1) == 0) in.pos += (tag >>> 1) - 1;
+          if (!visitor.visit(id, time, decode(in, table, time))) return false;
+        }
+        offset += RECORD_HEADER + length;
+      }
+      return true;
+    }
+
+    private NotificationEvent decode(Input in, String[] table, long time) {
+      String topic = in.readString(table, (int) in.readVarLong());
+      int flags = in.readByte();
+      long utcTime = NotificationEvent.NO_TIME;
+      if ((flags & HAS_UTC_TIME) != 0) utcTime = time + unzigzag(in.readVarLong());
+      int op = flags & 0x0f;
+      String[][] groups = new String[3][];
+      for (int group = 0; group < 3; group++) {
+        String[] items = new String[(int) in.readVarLong() * 2];
+        for (int i = 0; i < items.length; i++) {
+          items[i] = in.readString(table, (int) in.readVarLong());
+        }
+        groups[group] = items;
+      }
+      return new NotificationEvent(
+          topic,
+          utcTime,
+          op == 0 ? null : PropertyOperation.values()[op - 1],
+          groups[0],
+          groups[1],
+          groups[2]);
+    }
+  }
+
+  /** Index of the largest entry not after the time, 0 if there is none. */
+  private static int find(long[] times, int entries, long time) {
+    int low = 0;
+    int high = entries - 1;
+    int found = 0;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (times[mid] <= time) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  /** Sparse index of the records of one device in a segment. */
+  private static final class DeviceIndex {
+    /** Number of the device string in the segment. */
+    final int ref;
+    /** Offset of the first record, which has the device id in full. */
+    final int first;
+    int last;
+    long[] times = new long[4];
+    int[] offsets = new int[4];
+    int entries;
+    int records;
+
+    DeviceIndex(int ref, int first) {
+      this.ref = ref;
+      this.first = first;
+    }
+
+    void add(int offset, long time) {
+      if (records++ % DEVICE_INDEX_EVERY == 0) {
+        if (entries == times.length) {
+          times = Arrays.copyOf(times, entries * 2);
+          offsets = Arrays.copyOf(offsets, entries * 2);
+        }
+        times[entries] = time;
+        offsets[entries++] = offset;
+      }
+      last = offset;
+    }
+
+    int find(long time) {
+      return offsets[EventJournal.find(times, entries, time)];
+    }
+  }
+
+  /** Growing byte array the appending thread encodes a record into. */
+  private static final class Output {
+    byte[] bytes = new byte[256];
+    int size;
+
+    void ensure(int n) {
+      if (size + n > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+      }
+    }
+
+    void writeByte(int b) {
+      ensure(1);
+      bytes[size++] = (byte) b;
+    }
+
+    void writeLong(long v) {
+      ensure(8);
+      for (int i = 56; i >= 0; i -= 8) bytes[size++] = (byte) (v >>> i);
+    }
+
+    void writeVarLong(long v) {
+      ensure(10);
+      while ((v & ~0x7fL) != 0) {
+        bytes[size++] = (byte) ((v & 0x7f) | 0x80);
+        v >>>= 7;
+      }
+      bytes[size++] = (byte) v;
+    }
+
+    void writeBytes(byte[] b) {
+      ensure(b.length);
+      System.arraycopy(b, 0, bytes, size, b.length);
+      size += b.length;
+    }
+  }
+
+  /** Reads a record with absolute gets, so readers do not share a position. */
+  private static final class Input {
+    final ByteBuffer buffer;
+    int pos;
+
+    Input(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    int readByte() {
+      return buffer.get(pos++) & 0xff;
+    }
+
+    long readLong() {
+      long v = buffer.getLong(pos);
+      pos += 8;
+      return v;
+    }
+
+    long readVarLong() {
+      long v = 0;
+      for (int shift = 0; ; shift += 7) {
+        int b = buffer.get(pos++);
+        v |= (long) (b & 0x7f) << shift;
+        if (b >= 0) return v;
+      }
+    }
+
+    String readString(int length) {
+      byte[] utf8 = new byte[length];
+      for (int i = 0; i < length; i++) utf8[i] = buffer.get(pos++);
+      return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    String readString(String[] table, int tag) {
+      if (tag == 0) return null;
+      if ((tag & 1) != 0) return table[tag >>> 1];
+      return readString((tag >>> 1) - 1);
+    }
+  }
+}
@@ -0,0 +1,1555 @@
+package de.onvif.events;
+
+import de.onvif.soap.OnvifDevice;
+import de.onvif.soap.SimpleSecurityHandler;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.JAXBIntrospector;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.apache.cxf.jaxws.spi.ProviderImpl;
+import org.apache.cxf.ws.addressing.EndpointReferenceType;
+import org.apache.cxf.ws.addressing.ReferenceParametersType;
+import org.oasis_open.docs.wsn.b_2.FilterType;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.RenewResponse;
+import org.onvif.ver10.events.wsdl.Capabilities;
+import org.onvif.ver10.events.wsdl.CreatePullPointSubscription;
+import org.onvif.ver10.events.wsdl.CreatePullPointSubscriptionResponse;
+import org.onvif.ver10.events.wsdl.PullMessagesFaultResponse;
+import org.onvif.ver10.events.wsdl.PullMessagesResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+/**
+ * Keeps the PullPoint subscriptions of many devices polling on a few threads.
+ *
+ * <p>{@link PullPointSubscriptionClient} parks a thread in a socket read for every PullMessages
+ * long poll, which does not scale to thousands of devices. Here all long polls are in flight on
+ * one selector thread with non-blocking sockets, one keep-alive HTTP connection per subscription.
+ * Responses are decoded by a small fixed pool and CreatePullPointSubscription, the only blocking
+ * call, runs on a small control pool.
+ *
+ * <p>Every device runs its own state machine (see {@link State}): it subscribes, polls, renews
+ * before the subscription terminates and backs off and subscribes again if the subscription is
+ * lost. A device has at most one request in flight and its batches are delivered in order, from
+ * one decode thread at a time. Scheduling is fair: a device gets one batch decoded and then goes to
+ * the back of the queue, and a device with {@link #setMaxPendingBatches(int)} batches waiting is
+ * not polled again until they are decoded, so a flooding device can not starve the others.
+ *
+ * <p>Subscribes are admitted at {@link #setSubscribeRate(double)}, at most one per control thread
+ * at a time, so that hundreds of devices coming back after a network outage do not all subscribe
+ * in the same second, each then replaying its properties as Initialized events (which {@link
+ * PropertyStateTable} drops if nothing changed). Backoffs are jittered and devices with a {@link
+ * #setCriticalTopics(String...) critical topic} are subscribed first. When a device is subscribed
+ * again the time in which its events may have been lost is reported to the {@link GapListener}.
+ *
+ * <p>A device subscribed again is asked to catch up: if its Capabilities announce
+ * PersistentNotificationStorage the new subscription is moved back with Seek to the UtcTime of the
+ * last message delivered, replaying what was missed (the last messages may come twice), and a
+ * SetSynchronizationPoint gets the current state of all properties in one go instead of with their
+ * next change. A gap is only reported if the device can not seek.
+ *
+ * <p>With {@link #setAdaptivePull(boolean)} the timeout and message limit of every device follow
+ * its events, a quiet device is polled with long timeouts and a busy one with large batches. The
+ * {@link PullTuner} of a device has its event rate, batch fill ratio and lag. A {@link
+ * DeliveryLatency} set with {@link #setDeliveryLatency(DeliveryLatency)} times every event on its
+ * way from the device to the listener.
+ *
+ * <p>PullMessages, Renew and Unsubscribe are written directly as SOAP 1.2 with the WS-Addressing
+ * headers and reference parameters of the SubscriptionReference, so only plain http subscription
+ * addresses are supported.
+ */
+public class EventMultiplexer {
+  private static final Logger logger = LoggerFactory.getLogger(EventMultiplexer.class);
+
+  private static final String WSA = "http://www.w3.org/2005/08/addressing";
+  private static final QName INITIAL_TERMINATION_TIME =
+      new QName("http://www.onvif.org/ver10/events/wsdl", "InitialTerminationTime");
+  private static final String PULL_ACTION =
+      "http://www.onvif.org/ver10/events/wsdl/PullPointSubscription/PullMessagesRequest";
+  private static final String SEEK_ACTION =
+      "http://www.onvif.org/ver10/events/wsdl/PullPointSubscription/SeekRequest";
+  private static final String SYNCHRONIZE_ACTION =
+      "http://www.onvif.org/ver10/events/wsdl/PullPointSubscription/SetSynchronizationPointRequest";
+  private static final String RENEW_ACTION =
+      "http://docs.oasis-open.org/wsn/bw-2/SubscriptionManager/RenewRequest";
+  private static final String UNSUBSCRIBE_ACTION =
+      "http://docs.oasis-open.org/wsn/bw-2/SubscriptionManager/UnsubscribeRequest";
+  private static final String ENVELOPE_START =
+      "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+          + "<env:Envelope xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\""
+          + " xmlns:wsa=\""
+          + WSA
+          + "\" xmlns:tev=\"http://www.onvif.org/ver10/events/wsdl\""
+          + " xmlns:wsnt=\"http://docs.oasis-open.org/wsn/b-2\"><env:Header>";
+
+  /** Receives the messages of one PullMessagesResponse, called from a decode thread. */
+  public interface Listener {
+    void onMessages(String deviceId, List<NotificationMessageHolderType> batch);
+  }
+
+  /**
+   * Receives the messages of one PullMessagesResponse as flat records decoded by {@link
+   * NotificationDecoder}, skipping JAXB and DOM. Called from a decode thread.
+   */
+  public interface EventListener {
+    void onEvents(String deviceId, List<NotificationEvent> events);
+  }
+
+  /** Told about the time ranges in which events of a device may have been lost. */
+  public interface GapListener {
+    /**
+     * Called after a lost subscription was created again and the missed events could not be
+     * replayed with Seek, from a control or decode thread.
+     *
+     * @param from the last response of the old subscription, in ms of the local clock
+     * @param to the creation of the new subscription
+     */
+    void onGap(String deviceId, long from, long to);
+  }
+
+  public enum State {
+    /** Added, the subscription is created when the rate limit admits it. */
+    IDLE,
+    SUBSCRIBING,
+    /** A PullMessages long poll is in flight (or its failure is being decoded). */
+    POLLING,
+    RENEWING,
+    /** Seek and SetSynchronizationPoint after the subscription was created again. */
+    CATCHING_UP,
+    /** Not polled until the decode threads caught up with the batches of the device. */
+    PAUSED,
+    /** The subscription was lost, it is created again after a delay. */
+    BACKOFF,
+    UNSUBSCRIBING,
+    CLOSED
+  }
+
+  private enum Kind {
+    PULL(PULL_ACTION, State.POLLING),
+    RENEW(RENEW_ACTION, State.RENEWING),
+    SEEK(SEEK_ACTION, State.CATCHING_UP),
+    SYNCHRONIZE(SYNCHRONIZE_ACTION, State.CATCHING_UP),
+    UNSUBSCRIBE(UNSUBSCRIBE_ACTION, State.UNSUBSCRIBING);
+
+    final String action;
+    final State state;
+
+    Kind(String action, State state) {
+      this.action = action;
+      this.state = state;
+    }
+  }
+
+  private static final XMLInputFactory INPUT = XMLInputFactory.newInstance();
+  private static final JAXBContext JAXB;
+
+  static {
+    INPUT.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    INPUT.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    try {
+      JAXB =
+          JAXBContext.newInstance(
+              PullMessagesResponse.class, RenewResponse.class, PullMessagesFaultResponse.class);
+    } catch (JAXBException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private static final ThreadLocal<NotificationDecoder> DECODER =
+      new ThreadLocal<NotificationDecoder>() {
+        protected NotificationDecoder initialValue() {
+          return new NotificationDecoder();
+        }
+      };
+
+  private static final ThreadLocal<Unmarshaller> UNMARSHALLER =
+      new ThreadLocal<Unmarshaller>() {
+        protected Unmarshaller initialValue() {
+          try {
+            return JAXB.createUnmarshaller();
+          } catch (JAXBException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      };
+
+  private final Listener listener;
+  private final EventListener eventListener;
+  private final Selector selector;
+  private final Thread selectorThread;
+  private final ExecutorService decodePool;
+  private final ScheduledExecutorService control;
+  private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+  private volatile boolean running = true;
+
+  /** Subscribes waiting for admission, critical devices first, guarded by itself. */
+  private final PriorityQueue<Session> admissions =
+      new PriorityQueue<>(
+          64,
+          new Comparator<Session>() {
+            public int compare(Session a, Session b) {
+              if (a.critical != b.critical) return a.critical ? -1 : 1;
+              return Long.compare(a.admission, b.admission);
+            }
+          });
+  private long admissionCount;
+  private int subscribing;
+  /** nanoTime at which the next subscribe may start. */
+  private long nextAdmission = Long.MIN_VALUE;
+  private boolean admissionScheduled;
+
+  private volatile long pullTimeout = 20000;
+  private volatile int messageLimit = 100;
+  private volatile long subscriptionTime = 60000;
+  private volatile long renewMargin = 10000;
+  private volatile long requestTimeout = 10000;
+  private volatile long maxBackoff = 30000;
+  private volatile int maxPendingBatches = 4;
+  private volatile double subscribeRate = 50;
+  private volatile int subscribeBurst = 10;
+  private volatile int maxSubscribing;
+  private volatile long addJitter;
+  private volatile String[] criticalTopics = new String[0];
+  private volatile GapListener gapListener;
+  private volatile boolean seekOnResubscribe = true;
+  private volatile boolean synchronizeOnResubscribe = true;
+  private volatile boolean adaptivePull;
+  private volatile DeliveryLatency deliveryLatency;
+  private volatile long minPullTimeout = 1000;
+  private volatile long maxPullTimeout = 30000;
+  private volatile int minMessageLimit = 10;
+  private volatile int maxMessageLimit = 1000;
+
+  private final AtomicLong polls = new AtomicLong();
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong filtered = new AtomicLong();
+  private final AtomicLong subscribes = new AtomicLong();
+  private final AtomicLong gaps = new AtomicLong();
+  private final AtomicLong seeks = new AtomicLong();
+
+  /**
+   * @param decodeThreads threads decoding responses and calling the listener
+   * @param controlThreads threads creating subscriptions, each blocks until the device answered
+   */
+  public EventMultiplexer(Listener listener, int decodeThreads, int controlThreads)
+      throws IOException {
+    this(listener, null, decodeThreads, controlThreads);
+  }
+
+  /**
+   * Delivers the messages as {@link NotificationEvent}s, the cheaper way for many events.
+   *
+   * @param decodeThreads threads decoding responses and calling the listener
+   * @param controlThreads threads creating subscriptions, each blocks until the device answered
+   */
+  public EventMultiplexer(EventListener listener, int decodeThreads, int controlThreads)
+      throws IOException {
+    this(null, listener, decodeThreads, controlThreads);
+  }
+
+  private EventMultiplexer(
+      Listener listener, EventListener eventListener, int decodeThreads, int controlThreads)
+      throws IOException {
+    this.listener = listener;
+    this.eventListener = eventListener;
+    this.selector = Selector.open();
+    this.decodePool = Executors.newFixedThreadPool(decodeThreads, threads("event-decode"));
+    this.control = Executors.newScheduledThreadPool(controlThreads, threads("event-control"));
+    this.maxSubscribing = controlThreads;
+    this.selectorThread =
+        new Thread("event-multiplexer") {
+          public void run() {
+            loop();
+          }
+        };
+    selectorThread.setDaemon(true);
+    selectorThread.start();
+  }
+
+  /**
+   * Subscribes to the events of the device and starts polling.
+   *
+   * @param deviceId unique id passed to the listener, e.g. the EndpointReference of the device
+   * @param filter topic/message filter of the subscription, null for all events
+   */
+  public void add(String deviceId, OnvifDevice device, FilterType filter) {
+    if (device.getEvents() == null) {
+      throw new IllegalArgumentException("Device has no events service");
+    }
+    final Session s = new Session(deviceId, device, filter);
+    if (sessions.putIfAbsent(deviceId, s) != null) {
+      throw new IllegalArgumentException("Device " + deviceId + " already added");
+    }
+    long jitter = addJitter;
+    if (jitter > 0) {
+      scheduleAdmission(s, ThreadLocalRandom.current().nextLong(jitter));
+    } else {
+      admit(s);
+    }
+  }
+
+  /** Stops polling the device and unsubscribes, asynchronously. */
+  public void remove(String deviceId) {
+    final Session s = sessions.get(deviceId);
+    if (s == null) return;
+    s.removed = true;
+    inSelector(
+        new Runnable() {
+          public void run() {
+            unsubscribe(s);
+          }
+        });
+  }
+
+  /**
+   * Unsubscribes all devices, waits up to {@code timeout} milliseconds for the Unsubscribe
+   * responses and stops all threads.
+   */
+  public void shutdown(long timeout) throws InterruptedException {
+    for (String id : sessions.keySet()) remove(id);
+    long deadline = System.currentTimeMillis() + timeout;
+    while (!sessions.isEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(20);
+    running = false;
+    selector.wakeup();
+    selectorThread.join(timeout);
+    control.shutdownNow();
+    decodePool.shutdown();
+  }
+
+  /** State of the device, null if it is not (or no longer) added. */
+  public State getState(String deviceId) {
+    Session s = sessions.get(deviceId);
+    return s == null ? null : s.state;
+  }
+
+  public Set<String> getDeviceIds() {
+    return sessions.keySet();
+  }
+
+  /** PullMessages responses received. */
+  public long getPolls() {
+    return polls.get();
+  }
+
+  /** Messages delivered to the listener. */
+  public long getMessages() {
+    return messages.get();
+  }
+
+  /** Messages discarded because their topic does not match the filter of the subscription. */
+  public long getFiltered() {
+    return filtered.get();
+  }
+
+  /** Subscriptions lost, by transport errors, timeouts or faults. */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /** CreatePullPointSubscription requests sent. */
+  public long getSubscribes() {
+    return subscribes.get();
+  }
+
+  /** Gaps reported to the {@link GapListener}. */
+  public long getGaps() {
+    return gaps.get();
+  }
+
+  /** Seeks that replayed the events missed while a subscription was lost. */
+  public long getSeeks() {
+    return seeks.get();
+  }
+
+  /**
+   * Timeout, message limit and poll metrics of the device, null if it is not (or no longer) added.
+   */
+  public PullTuner getPullTuner(String deviceId) {
+    Session s = sessions.get(deviceId);
+    return s == null ? null : s.tuner;
+  }
+
+  /** Subscribes waiting for admission. */
+  public int getQueuedSubscribes() {
+    synchronized (admissions) {
+      return admissions.size();
+    }
+  }
+
+  // --- admission
+
+  private void scheduleAdmission(final Session s, long delay) {
+    control.schedule(
+        new Runnable() {
+          public void run() {
+            admit(s);
+          }
+        },
+        delay,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Queues the subscribe of the device, behind the subscribes of critical devices. */
+  private void admit(Session s) {
+    if (s.removed) {
+      close(s);
+      return;
+    }
+    boolean critical = false;
+    for (String topic : criticalTopics) {
+      if (s.topics == null || s.topics.matches(topic)) {
+        critical = true;
+        break;
+      }
+    }
+    synchronized (admissions) {
+      s.critical = critical;
+      s.admission = admissionCount++;
+      admissions.add(s);
+    }
+    admitNext();
+  }
+
+  /** Starts queued subscribes as far as the rate limit and the free control threads allow. */
+  private void admitNext() {
+    List<Session> admitted = new ArrayList<>();
+    long wait = 0;
+    synchronized (admissions) {
+      long now = System.nanoTime();
+      long interval = subscribeRate > 0 ? (long) (1e9 / subscribeRate) : 0;
+      // permits not used accumulate up to the burst
+      nextAdmission = Math.max(nextAdmission, now - interval * (subscribeBurst - 1));
+      while (!admissions.isEmpty() && subscribing < maxSubscribing) {
+        if (admissions.peek().removed) {
+          admitted.add(admissions.poll());
+        } else if (nextAdmission > now) {
+          wait = nextAdmission - now;
+          break;
+        } else {
+          nextAdmission += interval;
+          subscribing++;
+          admitted.add(admissions.poll());
+        }
+      }
+      if (admissionScheduled) wait = 0;
+      else if (wait > 0) admissionScheduled = true;
+    }
+    try {
+      if (wait > 0) {
+        control.schedule(
+            new Runnable() {
+              public void run() {
+                synchronized (admissions) {
+                  admissionScheduled = false;
+                }
+                admitNext();
+              }
+            },
+            wait,
+            TimeUnit.NANOSECONDS);
+      }
+      for (final Session s : admitted) {
+        if (s.removed) {
+          close(s);
+          continue;
+        }
+        control.execute(
+            new Runnable() {
+              public void run() {
+                try {
+                  subscribe(s);
+                } finally {
+                  synchronized (admissions) {
+                    subscribing--;
+                  }
+                  admitNext();
+                }
+              }
+            });
+      }
+    } catch (RejectedExecutionException e) {
+      // shut down
+    }
+  }
+
+  // --- control pool
+
+  private void subscribe(final Session s) {
+    if (s.removed) {
+      close(s);
+      return;
+    }
+    s.state = State.SUBSCRIBING;
+    subscribes.incrementAndGet();
+    try {
+      CreatePullPointSubscription request = new CreatePullPointSubscription();
+      request.setFilter(s.filter);
+      request.setInitialTerminationTime(
+          new JAXBElement<>(
+              INITIAL_TERMINATION_TIME,
+              String.class,
+              PullPointSubscriptionClient.duration(subscriptionTime)));
+      CreatePullPointSubscriptionResponse response =
+          s.device.getEvents().createPullPointSubscription(request);
+      s.setReference(ProviderImpl.convertToInternal(response.getSubscriptionReference()));
+      s.granted(response.getCurrentTime(), response.getTerminationTime());
+      logger.debug("Subscribed " + s.id + " at " + s.address);
+      long now = System.currentTimeMillis();
+      long gapFrom = s.gapFrom;
+      s.gapFrom = 0;
+      s.lastContact = now;
+      if (gapFrom != 0) {
+        s.synchronize = synchronizeOnResubscribe;
+        if (seekOnResubscribe
+            && s.lastUtcTime != NotificationEvent.NO_TIME
+            && persistentStorage(s)) {
+          s.seekTo = s.lastUtcTime;
+          s.seekGapFrom = gapFrom;
+          s.seekGapTo = now;
+        } else {
+          gap(s, gapFrom, now);
+        }
+      }
+      inSelector(
+          new Runnable() {
+            public void run() {
+              next(s);
+            }
+          });
+    } catch (Exception e) {
+      fail(s, "CreatePullPointSubscription failed", e);
+    }
+  }
+
+  /** Whether the device keeps events for Seek, asked once per device. */
+  private static boolean persistentStorage(Session s) {
+    if (s.persistentStorage == null) {
+      try {
+        Capabilities capabilities = s.device.getEvents().getServiceCapabilities();
+        s.persistentStorage =
+            capabilities != null
+                && Boolean.TRUE.equals(capabilities.getPersistentNotificationStorage());
+      } catch (RuntimeException e) {
+        logger.debug("GetServiceCapabilities of " + s.id + " failed", e);
+        return false;
+      }
+    }
+    return s.persistentStorage;
+  }
+
+  private void gap(Session s, long from, long to) {
+    gaps.incrementAndGet();
+    GapListener gl = gapListener;
+    if (gl == null) return;
+    try {
+      gl.onGap(s.id, from, to);
+    } catch (RuntimeException e) {
+      logger.warn("Gap listener failed", e);
+    }
+  }
+
+  // --- selector thread
+
+  private void inSelector(Runnable task) {
+    selectorTasks.add(task);
+    selector.wakeup();
+  }
+
+  private void loop() {
+    long nextDeadlineCheck = 0;
+    while (running) {
+      try {
+        selector.select(250);
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) task.run();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (key.isValid()) ready(key, (Session) key.attachment());
+        }
+        long now = System.currentTimeMillis();
+        if (now >= nextDeadlineCheck) {
+          checkDeadlines(now);
+          nextDeadlineCheck = now + 250;
+        }
+      } catch (Exception e) {
+        // keep the loop alive, a single device must not stop all others
+        logger.error("Event multiplexer loop failed", e);
+      }
+    }
+    for (Session s : sessions.values()) closeChannel(s);
+    try {
+      selector.close();
+    } catch (IOException e) {
+      logger.debug("Closing selector failed", e);
+    }
+  }
+
+  private void ready(SelectionKey key, Session s) {
+    try {
+      if (key.isConnectable()) {
+        if (s.channel.finishConnect()) key.interestOps(SelectionKey.OP_WRITE);
+      } else if (key.isWritable()) {
+        s.channel.write(s.request);
+        if (!s.request.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+      } else if (key.isReadable()) {
+        readBuffer.clear();
+        int n = s.channel.read(readBuffer);
+        if (n < 0) {
+          if (!s.response.endOfStream()) throw new EOFException("Connection closed by device");
+          completed(s);
+        } else {
+          readBuffer.flip();
+          if (s.response.feed(readBuffer)) completed(s);
+        }
+      }
+    } catch (IOException e) {
+      if (s.reused && !s.response.hasBytes()) {
+        // the device closed the idle keep-alive connection, try once more on a new one
+        closeChannel(s);
+        s.request.rewind();
+        s.response.reset();
+        connect(s);
+      } else {
+        failNow(s, "Request failed", e);
+      }
+    }
+  }
+
+  private void completed(Session s) {
+    HttpResponseReader r = s.response;
+    Kind kind = s.kind;
+    s.inFlight = false;
+    if (!r.isKeepAlive()) closeChannel(s);
+    if (kind == Kind.UNSUBSCRIBE) {
+      if (r.getStatus() != 200) logger.debug("Unsubscribe of " + s.id + " failed: " + r.getStatus());
+      close(s);
+      return;
+    }
+    if (kind == Kind.PULL) polls.incrementAndGet();
+    if (r.getStatus() == 200) s.lastContact = System.currentTimeMillis();
+    if (kind == Kind.RENEW && r.getStatus() == 200) {
+      if (renewed(s, r)) next(s);
+      return;
+    }
+    long now = System.currentTimeMillis();
+    s.received(
+        new Received(
+            kind,
+            r.getStatus(),
+            r.getBody(),
+            r.getBodyLength(),
+            now - s.sentAt,
+            now,
+            System.nanoTime()));
+    // after a failed request the decoder decides how to go on
+    if (r.getStatus() == 200) next(s);
+  }
+
+  /**
+   * Takes over the lifetime of a RenewResponse on the selector thread, before next() chooses the
+   * next request. Left to the decode threads, next() would still see the old TerminationTime and
+   * send another Renew.
+   *
+   * @return false if the response was undecodable and the device is resubscribed
+   */
+  private boolean renewed(Session s, HttpResponseReader r) {
+    NotificationDecoder decoder = DECODER.get();
+    try {
+      decoder.decode(r.getBody(), 0, r.getBodyLength());
+    } catch (XMLStreamException e) {
+      failNow(s, "Undecodable RENEW response", e);
+      return false;
+    }
+    long current = decoder.getCurrentTime();
+    long termination = decoder.getTerminationTime();
+    // without CurrentTime the device clock is unknown, it granted what was asked for
+    long lifetime =
+        current == NotificationEvent.NO_TIME || termination == NotificationEvent.NO_TIME
+            ? subscriptionTime
+            : termination - current;
+    s.renewed(System.currentTimeMillis() + lifetime);
+    s.tuner.fitLifetime(lifetime - renewMargin);
+    return true;
+  }
+
+  /** Issues the next request of the device: Unsubscribe, catch up, Renew or PullMessages. */
+  private void next(Session s) {
+    if (s.removed) {
+      unsubscribe(s);
+      return;
+    }
+    synchronized (s) {
+      if (s.pending.size() >= maxPendingBatches) {
+        s.state = State.PAUSED;
+        return;
+      }
+    }
+    if (s.seekTo != NotificationEvent.NO_TIME) {
+      send(s, Kind.SEEK);
+      s.seekTo = NotificationEvent.NO_TIME;
+    } else if (s.synchronize) {
+      send(s, Kind.SYNCHRONIZE);
+      s.synchronize = false;
+    } else if (s.terminationAt - System.currentTimeMillis()
+        < s.tuner.getPullTimeout() + renewMargin) {
+      send(s, Kind.RENEW);
+    } else {
+      send(s, Kind.PULL);
+    }
+  }
+
+  private void unsubscribe(Session s) {
+    if (s.state == State.UNSUBSCRIBING || s.state == State.CLOSED) return;
+    if (s.address == null) {
+      // not subscribed, a running subscribe() unsubscribes when it is done
+      if (s.state != State.SUBSCRIBING) close(s);
+      return;
+    }
+    // abort the long poll, the connection is needed for the Unsubscribe
+    closeChannel(s);
+    send(s, Kind.UNSUBSCRIBE);
+  }
+
+  private void send(Session s, Kind kind) {
+    s.kind = kind;
+    s.state = kind.state;
+    s.request = ByteBuffer.wrap(request(s, kind));
+    s.response.reset();
+    s.inFlight = true;
+    s.sentAt = System.currentTimeMillis();
+    s.deadline = s.sentAt + (kind == Kind.PULL ? s.tuner.getPullTimeout() : 0) + requestTimeout;
+    if (s.channel != null) {
+      s.reused = true;
+      s.key.interestOps(SelectionKey.OP_WRITE);
+    } else {
+      connect(s);
+    }
+  }
+
+  private void connect(Session s) {
+    s.reused = false;
+    try {
+      SocketChannel channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      s.channel = channel;
+      boolean connected = channel.connect(s.remote);
+      s.key =
+          channel.register(
+              selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, s);
+    } catch (IOException e) {
+      failNow(s, "Connect failed", e);
+    }
+  }
+
+  private void checkDeadlines(long now) {
+    for (Session s : sessions.values()) {
+      if (!s.inFlight || now < s.deadline) continue;
+      if (s.kind == Kind.UNSUBSCRIBE) {
+        closeChannel(s);
+        close(s);
+      } else {
+        failNow(s, "Request timed out", new SocketTimeoutException(s.kind + " timed out"));
+      }
+    }
+  }
+
+  private void closeChannel(Session s) {
+    s.inFlight = false;
+    if (s.channel == null) return;
+    s.key.cancel();
+    try {
+      s.channel.close();
+    } catch (IOException e) {
+      logger.debug("Closing connection failed", e);
+    }
+    s.channel = null;
+    s.key = null;
+  }
+
+  private void close(Session s) {
+    s.state = State.CLOSED;
+    sessions.remove(s.id, s);
+    DeliveryLatency latency = deliveryLatency;
+    if (latency != null) latency.remove(s.id);
+  }
+
+  private void fail(final Session s, final String message, final Exception cause) {
+    inSelector(
+        new Runnable() {
+          public void run() {
+            failNow(s, message, cause);
+          }
+        });
+  }
+
+  private void failNow(final Session s, String message, Exception cause) {
+    closeChannel(s);
+    if (s.removed) {
+      close(s);
+      return;
+    }
+    failures.incrementAndGet();
+    if (s.gapFrom == 0) s.gapFrom = s.lastContact;
+    // equal jitter, devices that failed together do not come back together
+    long delay = s.backoff / 2 + ThreadLocalRandom.current().nextLong(s.backoff / 2 + 1);
+    logger.warn(message + " for " + s.id + ", resubscribing in " + delay + "ms", cause);
+    s.state = State.BACKOFF;
+    s.address = null;
+    s.backoff = Math.min(s.backoff * 2, maxBackoff);
+    scheduleAdmission(s, delay);
+  }
+
+  private byte[] request(Session s, Kind kind) {
+    String action = kind.action;
+    StringBuilder xml = new StringBuilder(1024).append(ENVELOPE_START);
+    SimpleSecurityHandler security = s.device.getSecurityHandler();
+    if (security != null) xml.append(security.createSecurityHeader());
+    xml.append("<wsa:MessageID>urn:uuid:").append(UUID.randomUUID()).append("</wsa:MessageID>");
+    xml.append("<wsa:Action>").append(action).append("</wsa:Action>");
+    xml.append(s.addressing).append("</env:Header><env:Body>");
+    switch (kind) {
+      case PULL:
+        xml.append("<tev:PullMessages><tev:Timeout>")
+            .append(PullPointSubscriptionClient.duration(s.tuner.getPullTimeout()))
+            .append("</tev:Timeout><tev:MessageLimit>")
+            .append(s.tuner.getMessageLimit())
+            .append("</tev:MessageLimit></tev:PullMessages>");
+        break;
+      case RENEW:
+        xml.append("<wsnt:Renew><wsnt:TerminationTime>")
+            .append(PullPointSubscriptionClient.duration(subscriptionTime))
+            .append("</wsnt:TerminationTime></wsnt:Renew>");
+        break;
+      case SEEK:
+        xml.append("<tev:Seek><tev:UtcTime>")
+            .append(Instant.ofEpochMilli(s.seekTo))
+            .append("</tev:UtcTime></tev:Seek>");
+        break;
+      case SYNCHRONIZE:
+        xml.append("<tev:SetSynchronizationPoint/>");
+        break;
+      default:
+        xml.append("<wsnt:Unsubscribe/>");
+    }
+    xml.append("</env:Body></env:Envelope>");
+    byte[] content = xml.toString().getBytes(StandardCharsets.UTF_8);
+    byte[] head =
+        ("POST "
+                + s.path
+                + " HTTP/1.1\r\nHost: "
+                + s.host
+                + "\r\nContent-Type: application/soap+xml; charset=utf-8; action=\""
+                + action
+                + "\"\r\nContent-Length: "
+                + content.length
+                + "\r\n\r\n")
+            .getBytes(StandardCharsets.ISO_8859_1);
+    byte[] bytes = new byte[head.length + content.length];
+    System.arraycopy(head, 0, bytes, 0, head.length);
+    System.arraycopy(content, 0, bytes, head.length, content.length);
+    return bytes;
+  }
+
+  // --- decode pool
+
+  private void process(final Session s, Received r) {
+    long started = System.nanoTime();
+    if (r.kind == Kind.SEEK || r.kind == Kind.SYNCHRONIZE) {
+      caughtUp(s, r);
+      return;
+    }
+    if (eventListener != null && r.kind == Kind.PULL && r.status == 200) {
+      processEvents(s, r, started);
+      return;
+    }
+    Object decoded = null;
+    try {
+      decoded = decode(r.body, r.length);
+    } catch (Exception e) {
+      logger.warn("Undecodable " + r.kind + " response of " + s.id, e);
+    }
+    long decodedAt = System.nanoTime();
+    if (decoded instanceof PullMessagesResponse) {
+      PullMessagesResponse response = (PullMessagesResponse) decoded;
+      if (response.getCurrentTime() != null && response.getTerminationTime() != null) {
+        s.pulled(
+            r.arrivedAt
+                + PullPointSubscriptionClient.lifetime(
+                    response.getCurrentTime(), response.getTerminationTime()));
+      }
+      s.backoff = 1000;
+      List<NotificationMessageHolderType> batch = response.getNotificationMessage();
+      long oldest = Long.MAX_VALUE;
+      for (NotificationMessageHolderType holder : batch) {
+        long utcTime = NotificationDecoder.utcTime(holder);
+        s.delivered(utcTime);
+        if (utcTime != NotificationEvent.NO_TIME) oldest = Math.min(oldest, utcTime);
+      }
+      long currentTime =
+          response.getCurrentTime() == null
+              ? NotificationEvent.NO_TIME
+              : response.getCurrentTime().toGregorianCalendar().getTimeInMillis();
+      s.tuner.pulled(batch.size(), r.elapsed, lag(currentTime, oldest), System.currentTimeMillis());
+      if (s.topics != null) {
+        int before = batch.size();
+        for (int i = batch.size() - 1; i >= 0; i--) {
+          if (!s.topics.matches(batch.get(i))) batch.remove(i);
+        }
+        filtered.addAndGet(before - batch.size());
+      }
+      if (!batch.isEmpty() && !s.removed) {
+        messages.addAndGet(batch.size());
+        DeliveryLatency latency = deliveryLatency;
+        if (latency != null) {
+          long dispatched = System.nanoTime();
+          latency.recordMessages(
+              s.id,
+              currentTime,
+              r.arrivedAt,
+              started - r.arrivedNanos,
+              decodedAt - started,
+              dispatched - decodedAt,
+              batch);
+        }
+        try {
+          listener.onMessages(s.id, batch);
+        } catch (RuntimeException e) {
+          logger.warn("Event listener failed", e);
+        }
+      }
+    }
+    if (r.status == 200) return;
+
+    Fault fault = decoded instanceof Fault ? (Fault) decoded : null;
+    if (fault != null && r.kind == Kind.PULL && adjustToLimits(s, fault.limits)) {
+      inSelector(
+          new Runnable() {
+            public void run() {
+              next(s);
+            }
+          });
+    } else {
+      String reason = fault != null ? fault.reason : "HTTP " + r.status;
+      fail(s, r.kind + " failed: " + reason, null);
+    }
+  }
+
+  /** A Seek or SetSynchronizationPoint response, the device may not support either. */
+  private void caughtUp(final Session s, Received r) {
+    if (r.status == 200) {
+      if (r.kind == Kind.SEEK) seeks.incrementAndGet();
+      return;
+    }
+    Object decoded = null;
+    try {
+      decoded = decode(r.body, r.length);
+    } catch (Exception e) {
+      logger.debug("Undecodable " + r.kind + " response of " + s.id, e);
+    }
+    String reason = decoded instanceof Fault ? ((Fault) decoded).reason : "HTTP " + r.status;
+    logger.info(r.kind + " of " + s.id + " failed: " + reason);
+    if (r.kind == Kind.SEEK) gap(s, s.seekGapFrom, s.seekGapTo);
+    inSelector(
+        new Runnable() {
+          public void run() {
+            next(s);
+          }
+        });
+  }
+
+  /** @return true if timeout or message limit were lowered and the pull can be retried */
+  private static boolean adjustToLimits(Session s, PullMessagesFaultResponse limits) {
+    if (limits == null) return false;
+    // without MaxTimeout the device does not limit the timeout
+    long maxTimeout =
+        limits.getMaxTimeout() == null ? 0 : limits.getMaxTimeout().getTimeInMillis(new Date(0));
+    int maxLimit = limits.getMaxMessageLimit();
+    logger.info(s.id + " limits PullMessages to " + maxTimeout + "ms/" + maxLimit + " messages");
+    return s.tuner.limit(maxTimeout, maxLimit);
+  }
+
+  /**
+   * How long the oldest message of a response waited, on the device clock, -1 if the device did
+   * not tell its CurrentTime or the batch has no UtcTime.
+   */
+  private static long lag(long currentTime, long oldest) {
+    if (currentTime == NotificationEvent.NO_TIME || oldest == Long.MAX_VALUE) return -1;
+    return Math.max(0, currentTime - oldest);
+  }
+
+  /** A PullMessagesResponse for the {@link EventListener}, decoded without JAXB. */
+  private void processEvents(Session s, Received r, long started) {
+    NotificationDecoder decoder = DECODER.get();
+    List<NotificationEvent> events;
+    try {
+      events = decoder.decode(r.body, 0, r.length);
+    } catch (XMLStreamException e) {
+      logger.warn("Undecodable " + r.kind + " response of " + s.id, e);
+      return;
+    }
+    long decodedAt = System.nanoTime();
+    if (decoder.getCurrentTime() != NotificationEvent.NO_TIME
+        && decoder.getTerminationTime() != NotificationEvent.NO_TIME) {
+      s.pulled(r.arrivedAt + decoder.getTerminationTime() - decoder.getCurrentTime());
+    }
+    s.backoff = 1000;
+    long oldest = Long.MAX_VALUE;
+    for (NotificationEvent e : events) {
+      s.delivered(e.getUtcTime());
+      if (e.getUtcTime() != NotificationEvent.NO_TIME) oldest = Math.min(oldest, e.getUtcTime());
+    }
+    s.tuner.pulled(
+        events.size(),
+        r.elapsed,
+        lag(decoder.getCurrentTime(), oldest),
+        System.currentTimeMillis());
+    if (s.topics != null) {
+      int before = events.size();
+      for (int i = events.size() - 1; i >= 0; i--) {
+        if (!s.topics.matches(events.get(i).getTopic())) events.remove(i);
+      }
+      filtered.addAndGet(before - events.size());
+    }
+    if (!events.isEmpty() && !s.removed) {
+      messages.addAndGet(events.size());
+      DeliveryLatency latency = deliveryLatency;
+      if (latency != null) {
+        // recorded before the call, the listener may keep or change the list
+        long dispatched = System.nanoTime();
+        latency.recordEvents(
+            s.id,
+            decoder.getCurrentTime(),
+            r.arrivedAt,
+            started - r.arrivedNanos,
+            decodedAt - started,
+            dispatched - decodedAt,
+            events);
+      }
+      try {
+        eventListener.onEvents(s.id, events);
+      } catch (RuntimeException e) {
+        logger.warn("Event listener failed", e);
+      }
+    }
+  }
+
+  /**
+   * Decodes the first child of the soap body.
+   *
+   * @return the response object or a {@link Fault}
+   */
+  static Object decode(byte[] body, int length) throws XMLStreamException, JAXBException {
+    XMLStreamReader r = INPUT.createXMLStreamReader(new ByteArrayInputStream(body, 0, length));
+    try {
+      while (r.hasNext()) {
+        if (r.next() == XMLStreamConstants.START_ELEMENT && "Body".equals(r.getLocalName())) {
+          if (r.nextTag() != XMLStreamConstants.START_ELEMENT) break;
+          if ("Fault".equals(r.getLocalName())) return readFault(r);
+          return JAXBIntrospector.getValue(UNMARSHALLER.get().unmarshal(r));
+        }
+      }
+      throw new XMLStreamException("Empty soap body");
+    } finally {
+      r.close();
+    }
+  }
+
+  private static Fault readFault(XMLStreamReader r) throws XMLStreamException, JAXBException {
+    Fault fault = new Fault();
+    int depth = 1;
+    while (depth > 0 && r.hasNext()) {
+      int event = r.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      } else if (event == XMLStreamConstants.START_ELEMENT) {
+        String name = r.getLocalName();
+        if ("PullMessagesFaultResponse".equals(name)) {
+          // the detail comes after the reason, nothing else is needed
+          fault.limits =
+              UNMARSHALLER.get().unmarshal(r, PullMessagesFaultResponse.class).getValue();
+          return fault;
+        } else if (fault.reason == null && ("Text".equals(name) || "faultstring".equals(name))) {
+          fault.reason = r.getElementText();
+        } else {
+          depth++;
+        }
+      }
+    }
+    return fault;
+  }
+
+  static class Fault {
+    String reason;
+    PullMessagesFaultResponse limits;
+  }
+
+  private static class Received {
+    final Kind kind;
+    final int status;
+    final byte[] body;
+    final int length;
+    /** From the request to the response, in ms. */
+    final long elapsed;
+    /** Arrival of the response, in ms and as nanoTime. */
+    final long arrivedAt;
+    final long arrivedNanos;
+
+    Received(
+        Kind kind,
+        int status,
+        byte[] body,
+        int length,
+        long elapsed,
+        long arrivedAt,
+        long arrivedNanos) {
+      this.kind = kind;
+      this.status = status;
+      this.body = body;
+      this.length = length;
+      this.elapsed = elapsed;
+      this.arrivedAt = arrivedAt;
+      this.arrivedNanos = arrivedNanos;
+    }
+  }
+
+  /** Poll state of one device, see {@link State}. Connection fields are selector thread only. */
+  private final class Session implements Runnable {
+    final String id;
+    final OnvifDevice device;
+    final FilterType filter;
+    /** Client side topic filter, the device may ignore the filter of the subscription. */
+    final TopicFilter topics;
+    volatile State state = State.IDLE;
+    volatile boolean removed;
+
+    volatile String address;
+    volatile InetSocketAddress remote;
+    volatile String host;
+    volatile String path;
+    /** wsa:To and the reference parameters, sent with every request. */
+    volatile String addressing;
+    volatile long terminationAt;
+    final PullTuner tuner = new PullTuner(pullTimeout, messageLimit);
+    volatile long backoff = 1000;
+    /** Last response of the device, to tell the gap after the subscription was lost. */
+    volatile long lastContact;
+    /** lastContact when the subscription was lost, 0 while subscribed. */
+    volatile long gapFrom;
+    /** Newest UtcTime delivered, where a Seek after a resubscribe starts. */
+    volatile long lastUtcTime = NotificationEvent.NO_TIME;
+    /** PersistentNotificationStorage of the device, null until asked. */
+    volatile Boolean persistentStorage;
+    /** Catch up requests due after a resubscribe, and the gap reported if the Seek fails. */
+    volatile long seekTo = NotificationEvent.NO_TIME;
+    volatile boolean synchronize;
+    volatile long seekGapFrom;
+    volatile long seekGapTo;
+    /** Admission order, guarded by the admission queue. */
+    boolean critical;
+    long admission;
+
+    SocketChannel channel;
+    SelectionKey key;
+    boolean reused;
+    boolean inFlight;
+    Kind kind;
+    ByteBuffer request;
+    long sentAt;
+    long deadline;
+    final HttpResponseReader response = new HttpResponseReader();
+
+    /** Responses not decoded yet, guarded by this. */
+    final ArrayDeque<Received> pending = new ArrayDeque<>();
+    boolean decoding;
+
+    Session(String id, OnvifDevice device, FilterType filter) {
+      this.id = id;
+      this.device = device;
+      this.filter = filter;
+      this.topics = TopicFilter.of(filter);
+      tuner.setBounds(minPullTimeout, maxPullTimeout, minMessageLimit, maxMessageLimit);
+      tuner.setAdaptive(adaptivePull);
+    }
+
+    void setReference(EndpointReferenceType epr) throws Exception {
+      String a = epr.getAddress().getValue();
+      URL url = new URL(a);
+      if (!"http".equals(url.getProtocol())) {
+        throw new IllegalArgumentException("Unsupported subscription address " + a);
+      }
+      int port = url.getPort() < 0 ? 80 : url.getPort();
+      StringBuilder sb = new StringBuilder("<wsa:To>").append(escape(a)).append("</wsa:To>");
+      ReferenceParametersType parameters = epr.getReferenceParameters();
+      if (parameters != null) {
+        for (Object p : parameters.getAny()) {
+          if (p instanceof Element) sb.append(referenceParameter((Element) p));
+          else logger.warn("Ignoring reference parameter " + p + " of " + a);
+        }
+      }
+      remote = new InetSocketAddress(url.getHost(), port);
+      if (remote.isUnresolved()) throw new IOException("Unknown host " + url.getHost());
+      host = url.getHost() + (url.getPort() < 0 ? "" : ":" + url.getPort());
+      path = url.getFile().isEmpty() ? "/" : url.getFile();
+      addressing = sb.toString();
+      address = a;
+    }
+
+    /** Called from the one decode thread of the device at a time. */
+    void delivered(long utcTime) {
+      if (utcTime > lastUtcTime) lastUtcTime = utcTime;
+    }
+
+    /** The lifetime of a Subscribe or Renew, the requested one if the device does not tell. */
+    void granted(XMLGregorianCalendar current, XMLGregorianCalendar termination) {
+      updateTermination(current, termination);
+      long lifetime =
+          current == null || termination == null
+              ? subscriptionTime
+              : PullPointSubscriptionClient.lifetime(current, termination);
+      tuner.fitLifetime(lifetime - renewMargin);
+    }
+
+    void updateTermination(XMLGregorianCalendar current, XMLGregorianCalendar termination) {
+      if (current == null || termination == null) return;
+      terminationAt =
+          System.currentTimeMillis() + PullPointSubscriptionClient.lifetime(current, termination);
+    }
+
+    /** TerminationTime of a RenewResponse, on the selector thread. */
+    synchronized void renewed(long terminationAt) {
+      this.terminationAt = terminationAt;
+    }
+
+    /**
+     * TerminationTime of a PullMessagesResponse, on a decode thread. The response may be decoded
+     * after a later Renew, so it only ever moves the termination on.
+     */
+    synchronized void pulled(long terminationAt) {
+      if (terminationAt > this.terminationAt) this.terminationAt = terminationAt;
+    }
+
+    /**
+     * Queues a response for decoding.
+     *
+     * @return the number of responses waiting
+     */
+    synchronized int received(Received r) {
+      pending.add(r);
+      if (!decoding) {
+        decoding = true;
+        decodePool.execute(this);
+      }
+      return pending.size();
+    }
+
+    /** Decodes one response, then queues itself again behind the other devices. */
+    public void run() {
+      Received r;
+      synchronized (this) {
+        r = pending.poll();
+      }
+      try {
+        if (r != null) process(this, r);
+      } catch (RuntimeException e) {
+        logger.warn("Processing response of " + id + " failed", e);
+      }
+      boolean again;
+      boolean resume = false;
+      synchronized (this) {
+        again = !pending.isEmpty();
+        if (!again) decoding = false;
+        if (state == State.PAUSED && pending.size() < maxPendingBatches) {
+          state = State.POLLING;
+          resume = true;
+        }
+      }
+      if (resume) {
+        inSelector(
+            new Runnable() {
+              public void run() {
+                next(Session.this);
+              }
+            });
+      }
+      if (again) decodePool.execute(this);
+    }
+  }
+
+  private static String referenceParameter(Element e) throws TransformerException {
+    Element copy = (Element) e.cloneNode(true);
+    copy.setAttributeNS(WSA, "wsa:IsReferenceParameter", "true");
+    Transformer t = TransformerFactory.newInstance().newTransformer();
+    t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    StringWriter out = new StringWriter();
+    t.transform(new DOMSource(copy), new StreamResult(out));
+    return out.toString();
+  }
+
+  private static String escape(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  private static ThreadFactory threads(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  public long getPullTimeout() {
+    return pullTimeout;
+  }
+
+  /**
+   * @param pullTimeout how long a PullMessages may block on the device, in milliseconds, for
+   *     devices added afterwards
+   */
+  public void setPullTimeout(long pullTimeout) {
+    this.pullTimeout = pullTimeout;
+  }
+
+  public int getMessageLimit() {
+    return messageLimit;
+  }
+
+  /** @param messageLimit maximum number of messages per response, for devices added afterwards */
+  public void setMessageLimit(int messageLimit) {
+    this.messageLimit = messageLimit;
+  }
+
+  public long getSubscriptionTime() {
+    return subscriptionTime;
+  }
+
+  /** @param subscriptionTime requested lifetime of the subscription and of every renew, in ms */
+  public void setSubscriptionTime(long subscriptionTime) {
+    this.subscriptionTime = subscriptionTime;
+  }
+
+  public long getRenewMargin() {
+    return renewMargin;
+  }
+
+  /** @param renewMargin renew when less than pull timeout plus this margin is left, in ms */
+  public void setRenewMargin(long renewMargin) {
+    this.renewMargin = renewMargin;
+  }
+
+  public long getRequestTimeout() {
+    return requestTimeout;
+  }
+
+  /**
+   * @param requestTimeout time a device has to answer, in ms, in addition to the pull timeout for
+   *     PullMessages
+   */
+  public void setRequestTimeout(long requestTimeout) {
+    this.requestTimeout = requestTimeout;
+  }
+
+  public long getMaxBackoff() {
+    return maxBackoff;
+  }
+
+  public void setMaxBackoff(long maxBackoff) {
+    this.maxBackoff = maxBackoff;
+  }
+
+  public int getMaxPendingBatches() {
+    return maxPendingBatches;
+  }
+
+  /** @param maxPendingBatches undecoded responses of a device at which it is no longer polled */
+  public void setMaxPendingBatches(int maxPendingBatches) {
+    this.maxPendingBatches = maxPendingBatches;
+  }
+
+  public double getSubscribeRate() {
+    return subscribeRate;
+  }
+
+  /** @param subscribeRate subscribes started per second over all devices, 0 for no limit */
+  public void setSubscribeRate(double subscribeRate) {
+    this.subscribeRate = subscribeRate;
+  }
+
+  public int getSubscribeBurst() {
+    return subscribeBurst;
+  }
+
+  /** @param subscribeBurst subscribes started at once after a quiet time, at least 1 */
+  public void setSubscribeBurst(int subscribeBurst) {
+    this.subscribeBurst = Math.max(1, subscribeBurst);
+  }
+
+  public int getMaxSubscribing() {
+    return maxSubscribing;
+  }
+
+  /** @param maxSubscribing subscribes in flight at once, by default one per control thread */
+  public void setMaxSubscribing(int maxSubscribing) {
+    this.maxSubscribing = maxSubscribing;
+  }
+
+  public long getAddJitter() {
+    return addJitter;
+  }
+
+  /** @param addJitter random delay of the first subscribe of an added device, up to this many ms */
+  public void setAddJitter(long addJitter) {
+    this.addJitter = addJitter;
+  }
+
+  public String[] getCriticalTopics() {
+    return criticalTopics.clone();
+  }
+
+  /**
+   * @param criticalTopics concrete topics, e.g. tns1:Device/Trigger/DigitalInput, devices whose
+   *     filter passes one of them are subscribed before the others
+   */
+  public void setCriticalTopics(String... criticalTopics) {
+    this.criticalTopics = criticalTopics.clone();
+  }
+
+  public boolean isSeekOnResubscribe() {
+    return seekOnResubscribe;
+  }
+
+  /** @param seekOnResubscribe replay missed events with Seek, if the device supports it */
+  public void setSeekOnResubscribe(boolean seekOnResubscribe) {
+    this.seekOnResubscribe = seekOnResubscribe;
+  }
+
+  public boolean isSynchronizeOnResubscribe() {
+    return synchronizeOnResubscribe;
+  }
+
+  /** @param synchronizeOnResubscribe get the current state with SetSynchronizationPoint */
+  public void setSynchronizeOnResubscribe(boolean synchronizeOnResubscribe) {
+    this.synchronizeOnResubscribe = synchronizeOnResubscribe;
+  }
+
+  public DeliveryLatency getDeliveryLatency() {
+    return deliveryLatency;
+  }
+
+  /** @param deliveryLatency records the latency of every delivered event, null for none */
+  public void setDeliveryLatency(DeliveryLatency deliveryLatency) {
+    this.deliveryLatency = deliveryLatency;
+  }
+
+  public boolean isAdaptivePull() {
+    return adaptivePull;
+  }
+
+  /**
+   * @param adaptivePull adapt timeout and message limit of every device to its events, see {@link
+   *     PullTuner}, for devices added afterwards
+   */
+  public void setAdaptivePull(boolean adaptivePull) {
+    this.adaptivePull = adaptivePull;
+  }
+
+  public long getMinPullTimeout() {
+    return minPullTimeout;
+  }
+
+  public long getMaxPullTimeout() {
+    return maxPullTimeout;
+  }
+
+  /**
+   * @param min lowest adapted pull timeout, in ms
+   * @param max highest adapted pull timeout, keep it below subscription time minus renew margin
+   */
+  public void setPullTimeoutBounds(long min, long max) {
+    this.minPullTimeout = min;
+    this.maxPullTimeout = max;
+  }
+
+  public int getMinMessageLimit() {
+    return minMessageLimit;
+  }
+
+  public int getMaxMessageLimit() {
+    return maxMessageLimit;
+  }
+
+  /**
+   * @param min lowest adapted message limit
+   * @param max highest adapted message limit
+   */
+  public void setMessageLimitBounds(int min, int max) {
+    this.minMessageLimit = min;
+    this.maxMessageLimit = max;
+  }
+
+  public GapListener getGapListener() {
+    return gapListener;
+  }
+
+  public void setGapListener(GapListener gapListener) {
+    this.gapListener = gapListener;
+  }
+}
@@ -0,0 +1,298 @@
+package de.onvif.events;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Windowed operators for bursty topics, e.g. motion or tamper events: debounce, throttle,
+ * first/last in window and count per window. Each operator is an {@link
+ * EventMultiplexer.EventListener} passing its result on to another, so they can be chained and put
+ * behind a multiplexer or a {@link PropertyStateTable}.
+ *
+ * <p>Events are grouped by key, see {@link Grouping}. The state of a key lives only while its
+ * window is open and its window is a timeout on a shared {@link TimerWheel}, so an operator with
+ * 100k active keys holds 100k small records and no scheduled task per key. Events that close a
+ * window are passed on from the wheel thread, the others from the thread calling the operator.
+ */
+public abstract class EventOperator implements EventMultiplexer.EventListener {
+
+  /** What the events of one window have in common. */
+  public enum Grouping {
+    DEVICE,
+    /** Device and topic. */
+    TOPIC,
+    /** Device, topic and Source items, e.g. one video source or rule. */
+    SOURCE
+  }
+
+  /** Receives the number of events of a closed window. */
+  public interface CountListener {
+    /** @param last the last event of the window */
+    void onCount(String deviceId, NotificationEvent last, int count);
+  }
+
+  /**
+   * Passes on the last event of a burst once no event came for the quiet period, e.g. to report a
+   * flapping input once it settled.
+   */
+  public static EventOperator debounce(
+      long quietMillis,
+      Grouping grouping,
+      TimerWheel wheel,
+      EventMultiplexer.EventListener downstream) {
+    return new Debounce(quietMillis, grouping, wheel, downstream);
+  }
+
+  /**
+   * Passes on the first event at once and then at most one event per period, the latest of the
+   * period when it ends.
+   */
+  public static EventOperator throttle(
+      long periodMillis,
+      Grouping grouping,
+      TimerWheel wheel,
+      EventMultiplexer.EventListener downstream) {
+    return new Throttle(periodMillis, grouping, wheel, downstream);
+  }
+
+  /** Passes on the first event of a window at once and drops the rest of the window. */
+  public static EventOperator firstInWindow(
+      long windowMillis,
+      Grouping grouping,
+      TimerWheel wheel,
+      EventMultiplexer.EventListener downstream) {
+    return new FirstInWindow(windowMillis, grouping, wheel, downstream);
+  }
+
+  /** Passes on the last event of a window when it ends. */
+  public static EventOperator lastInWindow(
+      long windowMillis,
+      Grouping grouping,
+      TimerWheel wheel,
+      EventMultiplexer.EventListener downstream) {
+    return new LastInWindow(windowMillis, grouping, wheel, downstream);
+  }
+
+  /** Counts the events of a window and reports the count when it ends. */
+  public static EventOperator countPerWindow(
+      long windowMillis, Grouping grouping, TimerWheel wheel, CountListener downstream) {
+    return new CountPerWindow(windowMillis, grouping, wheel, downstream);
+  }
+
+  final long period;
+  private final Grouping grouping;
+  final TimerWheel wheel;
+  final EventMultiplexer.EventListener downstream;
+  /** Open windows by key, guarded by this. */
+  final Map<Object, Window> windows = new HashMap<>();
+  private final AtomicLong dropped = new AtomicLong();
+
+  EventOperator(
+      long period,
+      Grouping grouping,
+      TimerWheel wheel,
+      EventMultiplexer.EventListener downstream) {
+    this.period = period;
+    this.grouping = grouping;
+    this.wheel = wheel;
+    this.downstream = downstream;
+  }
+
+  public void onEvents(String deviceId, List<NotificationEvent> events) {
+    List<NotificationEvent> passed = null;
+    synchronized (this) {
+      for (NotificationEvent e : events) {
+        Object key = key(deviceId, e);
+        Window w = windows.get(key);
+        boolean open = w == null;
+        if (open) {
+          w = new Window(key, deviceId);
+          windows.put(key, w);
+        }
+        w.count++;
+        if (event(w, e, open)) {
+          if (passed == null) passed = new ArrayList<>();
+          passed.add(e);
+        } else {
+          dropped.incrementAndGet();
+        }
+      }
+    }
+    if (passed != null) downstream.onEvents(deviceId, passed);
+  }
+
+  /**
+   * Applies the event to its window, under the lock of the operator.
+   *
+   * @param open true if the event opened the window
+   * @return true to pass the event on at once
+   */
+  abstract boolean event(Window w, NotificationEvent e, boolean open);
+
+  /**
+   * The window timed out, under the lock of the operator.
+   *
+   * @return the event to pass on, null for none
+   */
+  abstract NotificationEvent close(Window w);
+
+  /** Number of keys with an open window. */
+  public synchronized int getKeys() {
+    return windows.size();
+  }
+
+  /** Events not passed on when they arrived: dropped, held for the end of a window or counted. */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  private Object key(String deviceId, NotificationEvent e) {
+    switch (grouping) {
+      case DEVICE:
+        return deviceId;
+      case TOPIC:
+        return deviceId + '\u0000' + e.getTopic();
+      default:
+        StringBuilder key = new StringBuilder(deviceId).append('\u0000').append(e.getTopic());
+        for (int i = 0; i < e.getSourceCount(); i++) {
+          key.append('\u0000').append(e.getSourceName(i)).append('=').append(e.getSourceValue(i));
+        }
+        return key.toString();
+    }
+  }
+
+  void expired(Window w) {
+    NotificationEvent e;
+    synchronized (this) {
+      // rescheduled after the wheel took it, or already replaced
+      if (w.isScheduled() || windows.get(w.key) != w) return;
+      e = close(w);
+      if (!w.isScheduled()) windows.remove(w.key);
+    }
+    if (e != null) emit(w, e);
+  }
+
+  void emit(Window w, NotificationEvent e) {
+    List<NotificationEvent> list = new ArrayList<>(1);
+    list.add(e);
+    downstream.onEvents(w.deviceId, list);
+  }
+
+  /** State of one key while its window is open. */
+  final class Window extends TimerWheel.Timeout {
+    final Object key;
+    final String deviceId;
+    NotificationEvent last;
+    int count;
+
+    Window(Object key, String deviceId) {
+      this.key = key;
+      this.deviceId = deviceId;
+    }
+
+    @Override
+    protected void expire() {
+      expired(this);
+    }
+  }
+
+  private static final class Debounce extends EventOperator {
+    Debounce(long p, Grouping g, TimerWheel w, EventMultiplexer.EventListener d) {
+      super(p, g, w, d);
+    }
+
+    boolean event(Window w, NotificationEvent e, boolean open) {
+      w.last = e;
+      wheel.schedule(w, period);
+      return false;
+    }
+
+    NotificationEvent close(Window w) {
+      return w.last;
+    }
+  }
+
+  private static final class Throttle extends EventOperator {
+    Throttle(long p, Grouping g, TimerWheel w, EventMultiplexer.EventListener d) {
+      super(p, g, w, d);
+    }
+
+    boolean event(Window w, NotificationEvent e, boolean open) {
+      if (open) {
+        wheel.schedule(w, period);
+        return true;
+      }
+      w.last = e;
+      return false;
+    }
+
+    NotificationEvent close(Window w) {
+      NotificationEvent trailing = w.last;
+      if (trailing != null) {
+        // the trailing event starts the next period
+        w.last = null;
+        w.count = 1;
+        wheel.schedule(w, period);
+      }
+      return trailing;
+    }
+  }
+
+  private static final class FirstInWindow extends EventOperator {
+    FirstInWindow(long p, Grouping g, TimerWheel w, EventMultiplexer.EventListener d) {
+      super(p, g, w, d);
+    }
+
+    boolean event(Window w, NotificationEvent e, boolean open) {
+      if (open) wheel.schedule(w, period);
+      return open;
+    }
+
+    NotificationEvent close(Window w) {
+      return null;
+    }
+  }
+
+  private static final class LastInWindow extends EventOperator {
+    LastInWindow(long p, Grouping g, TimerWheel w, EventMultiplexer.EventListener d) {
+      super(p, g, w, d);
+    }
+
+    boolean event(Window w, NotificationEvent e, boolean open) {
+      if (open) wheel.schedule(w, period);
+      w.last = e;
+      return false;
+    }
+
+    NotificationEvent close(Window w) {
+      return w.last;
+    }
+  }
+
+  private static final class CountPerWindow extends EventOperator {
+    private final CountListener counts;
+
+    CountPerWindow(long p, Grouping g, TimerWheel w, CountListener counts) {
+      super(p, g, w, null);
+      this.counts = counts;
+    }
+
+    boolean event(Window w, NotificationEvent e, boolean open) {
+      if (open) wheel.schedule(w, period);
+      w.last = e;
+      return false;
+    }
+
+    NotificationEvent close(Window w) {
+      return w.last;
+    }
+
+    @Override
+    void emit(Window w, NotificationEvent e) {
+      counts.onCount(w.deviceId, e, w.count);
+    }
+  }
+}
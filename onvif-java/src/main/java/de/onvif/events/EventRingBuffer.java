@@ -0,0 +1,299 @@
+package de.onvif.events;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fans the events of one subscription per device out to several independent consumers, e.g.
+ * recording, alerting and a UI, so the application needs no subscription per consumer.
+ *
+ * <p>Used as the {@link EventMultiplexer.EventListener} of a multiplexer (or behind an operator),
+ * every event is put into a preallocated ring of slots. Producers claim slots with a CAS on the
+ * sequence and publish them by writing the sequence of the slot, there is no lock and no
+ * allocation on the way in. A producer a whole lap ahead of a preempted one waits for it to publish
+ * before writing the same slot. Every consumer has its own thread and cursor and gets the events in
+ * order, in batches of consecutive events of one device.
+ *
+ * <p>A consumer falling behind by the capacity of the ring is handled by its {@link
+ * SlowConsumerPolicy}. Only {@link SlowConsumerPolicy#BLOCK} consumers slow down the producers.
+ */
+public class EventRingBuffer implements EventMultiplexer.EventListener {
+  private static final Logger logger = LoggerFactory.getLogger(EventRingBuffer.class);
+
+  private static final AtomicLongFieldUpdater<Slot> SEQUENCE =
+      AtomicLongFieldUpdater.newUpdater(Slot.class, "sequence");
+  private static final AtomicReferenceFieldUpdater<Slot, String> DEVICE =
+      AtomicReferenceFieldUpdater.newUpdater(Slot.class, String.class, "deviceId");
+  private static final AtomicReferenceFieldUpdater<Slot, NotificationEvent> EVENT =
+      AtomicReferenceFieldUpdater.newUpdater(Slot.class, NotificationEvent.class, "event");
+
+  public enum SlowConsumerPolicy {
+    /** Producers wait until the consumer made room, no event is lost. */
+    BLOCK,
+    /**
+     * The consumer skips the events overwritten before it read them and continues with the newer
+     * half of the ring; skipped events are counted.
+     */
+    DROP_OLDEST,
+    /** The consumer is removed and its thread ends, the other consumers are not affected. */
+    DETACH
+  }
+
+  private final Slot[] slots;
+  private final int mask;
+  /** Next sequence to claim. */
+  private final AtomicLong next = new AtomicLong();
+  /** All slots below have been read by the BLOCK and DETACH consumers, a cached lower bound. */
+  private volatile long gate;
+
+  private volatile Consumer[] consumers = new Consumer[0];
+  private volatile int maxBatch = 256;
+
+  /** @param capacity number of slots, rounded up to a power of two */
+  public EventRingBuffer(int capacity) {
+    int n = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    slots = new Slot[n];
+    for (int i = 0; i < n; i++) slots[i] = new Slot();
+    mask = n - 1;
+    gate = n;
+  }
+
+  /**
+   * Adds a consumer, which gets the events published from now on on its own thread.
+   *
+   * @param name used for the thread and in logs
+   */
+  public Consumer addConsumer(
+      String name, EventMultiplexer.EventListener listener, SlowConsumerPolicy policy) {
+    Consumer c = new Consumer(name, listener, policy);
+    synchronized (this) {
+      c.cursor = next.get();
+      Consumer[] added = Arrays.copyOf(consumers, consumers.length + 1);
+      added[consumers.length] = c;
+      consumers = added;
+    }
+    c.thread.start();
+    return c;
+  }
+
+  /** Stops the consumer, it gets no more events. */
+  public void removeConsumer(Consumer c) {
+    remove(c);
+    c.closed = true;
+    LockSupport.unpark(c.thread);
+  }
+
+  /** Stops all consumers. */
+  public void close() {
+    for (Consumer c : consumers) removeConsumer(c);
+  }
+
+  public void onEvents(String deviceId, List<NotificationEvent> events) {
+    for (NotificationEvent e : events) publish(deviceId, e);
+  }
+
+  /** Puts one event into the ring, waiting for room if a BLOCK consumer is behind. */
+  public void publish(String deviceId, NotificationEvent event) {
+    long seq = claim();
+    Slot s = slots[(int) (seq & mask)];
+    // without BLOCK consumers nothing stops the claims from lapping a producer that was preempted
+    // after its claim, the slot is ours once that producer published
+    long previous = seq - slots.length;
+    for (int spins = 0; previous >= 0 && s.sequence != previous; spins++) {
+      if (spins < 100) Thread.yield();
+      else LockSupport.parkNanos(1000);
+    }
+    // a consumer reading the previous lap sees the marker and not half of the new event
+    SEQUENCE.lazySet(s, -1);
+    DEVICE.lazySet(s, deviceId);
+    EVENT.lazySet(s, event);
+    SEQUENCE.lazySet(s, seq);
+    for (Consumer c : consumers) {
+      if (c.waiting) LockSupport.unpark(c.thread);
+    }
+  }
+
+  private long claim() {
+    for (int spins = 0; ; spins++) {
+      long seq = next.get();
+      if (seq >= gate && !hasRoom(seq)) {
+        if (spins < 100) Thread.yield();
+        else LockSupport.parkNanos(50000);
+        continue;
+      }
+      if (next.compareAndSet(seq, seq + 1)) return seq;
+    }
+  }
+
+  /** True if the slot of the sequence was read by all consumers that must not miss it. */
+  private boolean hasRoom(long seq) {
+    long wrap = seq - slots.length;
+    long min = seq;
+    for (Consumer c : consumers) {
+      if (c.policy == SlowConsumerPolicy.DROP_OLDEST) continue;
+      long cursor = c.cursor;
+      if (cursor <= wrap && c.policy == SlowConsumerPolicy.DETACH) {
+        detach(c, seq);
+        continue;
+      }
+      min = Math.min(min, cursor);
+    }
+    // cursors only grow, so a stale minimum is still a lower bound
+    gate = min + slots.length;
+    return wrap < min;
+  }
+
+  private void detach(Consumer c, long seq) {
+    if (!remove(c)) return;
+    c.detached = true;
+    LockSupport.unpark(c.thread);
+    logger.warn("Consumer {} detached, {} events behind", c.name, seq - c.cursor);
+  }
+
+  private synchronized boolean remove(Consumer c) {
+    List<Consumer> remaining = new ArrayList<>(Arrays.asList(consumers));
+    if (!remaining.remove(c)) return false;
+    consumers = remaining.toArray(new Consumer[remaining.size()]);
+    return true;
+  }
+
+  /** Number of slots. */
+  public int getCapacity() {
+    return slots.length;
+  }
+
+  /** Events published. */
+  public long getPublished() {
+    return next.get();
+  }
+
+  /** Consumers currently attached. */
+  public List<Consumer> getConsumers() {
+    return Arrays.asList(consumers);
+  }
+
+  public int getMaxBatch() {
+    return maxBatch;
+  }
+
+  /** @param maxBatch most events passed to a consumer in one call */
+  public void setMaxBatch(int maxBatch) {
+    this.maxBatch = maxBatch;
+  }
+
+  private static final class Slot {
+    volatile long sequence = -1;
+    volatile String deviceId;
+    volatile NotificationEvent event;
+  }
+
+  /** One consumer reading the ring at its own cursor. */
+  public final class Consumer {
+    private final String name;
+    private final EventMultiplexer.EventListener listener;
+    private final SlowConsumerPolicy policy;
+    private final Thread thread;
+    /** Next sequence to read, written by the consumer thread only. */
+    private volatile long cursor;
+    private volatile boolean waiting;
+    private volatile boolean closed;
+    private volatile boolean detached;
+    private final AtomicLong dropped = new AtomicLong();
+
+    Consumer(String name, EventMultiplexer.EventListener listener, SlowConsumerPolicy policy) {
+      this.name = name;
+      this.listener = listener;
+      this.policy = policy;
+      thread =
+          new Thread("event-ring-" + name) {
+            public void run() {
+              consume();
+            }
+          };
+      thread.setDaemon(true);
+    }
+
+    private void consume() {
+      List<NotificationEvent> batch = new ArrayList<>();
+      String batchDevice = null;
+      while (!closed && !detached) {
+        long c = cursor;
+        Slot s = slots[(int) (c & mask)];
+        long seq = s.sequence;
+        if (seq < c) {
+          if (!batch.isEmpty()) {
+            deliver(batchDevice, batch);
+            batch = new ArrayList<>();
+          }
+          await(s, c);
+          continue;
+        }
+        if (seq == c) {
+          String deviceId = s.deviceId;
+          NotificationEvent e = s.event;
+          if (s.sequence == c) {
+            if (!batch.isEmpty() && (!deviceId.equals(batchDevice) || batch.size() >= maxBatch)) {
+              deliver(batchDevice, batch);
+              batch = new ArrayList<>();
+            }
+            batchDevice = deviceId;
+            batch.add(e);
+            cursor = c + 1;
+            continue;
+          }
+        }
+        // overwritten before we read it, only possible for DROP_OLDEST or once detached
+        if (detached) break;
+        long resume = Math.max(c + 1, next.get() - (slots.length >> 1));
+        dropped.addAndGet(resume - c);
+        cursor = resume;
+      }
+      if (!batch.isEmpty() && !closed) deliver(batchDevice, batch);
+    }
+
+    /** Parks until a producer unparks us, at most 1 ms in case the wakeup was missed. */
+    private void await(Slot s, long c) {
+      waiting = true;
+      if (s.sequence < c && !closed) LockSupport.parkNanos(this, 1000000);
+      waiting = false;
+    }
+
+    private void deliver(String deviceId, List<NotificationEvent> batch) {
+      try {
+        listener.onEvents(deviceId, batch);
+      } catch (RuntimeException e) {
+        logger.warn("Consumer {} failed", name, e);
+      }
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public SlowConsumerPolicy getPolicy() {
+      return policy;
+    }
+
+    /** Events published but not read yet. */
+    public long getLag() {
+      return Math.max(0, next.get() - cursor);
+    }
+
+    /** Events skipped with {@link SlowConsumerPolicy#DROP_OLDEST}. */
+    public long getDropped() {
+      return dropped.get();
+    }
+
+    /** True if removed by {@link SlowConsumerPolicy#DETACH}. */
+    public boolean isDetached() {
+      return detached;
+    }
+  }
+}
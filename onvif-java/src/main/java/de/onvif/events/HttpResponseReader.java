@@ -0,0 +1,181 @@
+package de.onvif.events;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Assembles one HTTP/1.1 response from the chunks a non-blocking socket delivers. Handles
+ * Content-Length, chunked transfer encoding and bodies delimited by the end of the connection.
+ * Interim 1xx responses are skipped. Not thread safe, used by the selector thread only.
+ */
+final class HttpResponseReader {
+  private byte[] buf = new byte[8192];
+  private int len;
+  private int headerEnd = -1;
+  private int status;
+  private long contentLength = -1;
+  private boolean chunked;
+  private boolean keepAlive;
+
+  private byte[] body;
+  private int bodyLength;
+  /** Position of the next chunk size line in buf. */
+  private int chunkPos;
+
+  void reset() {
+    len = 0;
+    headerEnd = -1;
+    status = 0;
+    contentLength = -1;
+    chunked = false;
+    keepAlive = false;
+    body = null;
+    bodyLength = 0;
+    chunkPos = 0;
+  }
+
+  /** True if any byte of the response was received. */
+  boolean hasBytes() {
+    return len > 0;
+  }
+
+  /**
+   * Appends what was read.
+   *
+   * @return true if the response is complete
+   */
+  boolean feed(ByteBuffer in) throws IOException {
+    int n = in.remaining();
+    if (len + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+    in.get(buf, len, n);
+    len += n;
+    return parse();
+  }
+
+  /**
+   * The connection was closed by the peer.
+   *
+   * @return true if that completed the response, i.e. the body is delimited by the end of the
+   *     connection
+   */
+  boolean endOfStream() {
+    if (headerEnd < 0 || chunked || contentLength >= 0) return false;
+    body = Arrays.copyOfRange(buf, headerEnd, len);
+    bodyLength = body.length;
+    return true;
+  }
+
+  int getStatus() {
+    return status;
+  }
+
+  /** False if the connection has to be closed after this response. */
+  boolean isKeepAlive() {
+    return keepAlive;
+  }
+
+  byte[] getBody() {
+    return body;
+  }
+
+  int getBodyLength() {
+    return bodyLength;
+  }
+
+  private boolean parse() throws IOException {
+    while (headerEnd < 0) {
+      int end = indexOf(buf, 0, len, "\r\n\r\n");
+      if (end < 0) return false;
+      parseHeaders(new String(buf, 0, end, StandardCharsets.ISO_8859_1));
+      int consumed = end + 4;
+      if (status >= 100 && status < 200) {
+        // 100 Continue and friends, the real response follows
+        System.arraycopy(buf, consumed, buf, 0, len - consumed);
+        len -= consumed;
+        continue;
+      }
+      headerEnd = consumed;
+      chunkPos = consumed;
+      if (chunked) body = new byte[4096];
+    }
+    if (chunked) return parseChunks();
+    if (contentLength < 0) return false; // read until the connection is closed
+    if (len - headerEnd < contentLength) return false;
+    body = Arrays.copyOfRange(buf, headerEnd, headerEnd + (int) contentLength);
+    bodyLength = body.length;
+    return true;
+  }
+
+  private boolean parseChunks() throws IOException {
+    while (true) {
+      int lineEnd = indexOf(buf, chunkPos, len, "\r\n");
+      if (lineEnd < 0) return false;
+      String line = new String(buf, chunkPos, lineEnd - chunkPos, StandardCharsets.ISO_8859_1);
+      int ext = line.indexOf(';');
+      int size;
+      try {
+        size = Integer.parseInt((ext >= 0 ? line.substring(0, ext) : line).trim(), 16);
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid chunk size " + line);
+      }
+      if (size == 0) {
+        // last chunk, complete once the (empty) trailer is read as well
+        return indexOf(buf, lineEnd, len, "\r\n\r\n") >= 0;
+      }
+      int dataStart = lineEnd + 2;
+      if (len < dataStart + size + 2) return false;
+      if (bodyLength + size > body.length) {
+        body = Arrays.copyOf(body, Math.max(body.length * 2, bodyLength + size));
+      }
+      System.arraycopy(buf, dataStart, body, bodyLength, size);
+      bodyLength += size;
+      chunkPos = dataStart + size + 2;
+    }
+  }
+
+  private void parseHeaders(String head) throws IOException {
+    String[] lines = head.split("\r\n");
+    String[] statusLine = lines[0].split(" ", 3);
+    if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+      throw new IOException("Not an http response: " + lines[0]);
+    }
+    try {
+      status = Integer.parseInt(statusLine[1]);
+    } catch (NumberFormatException e) {
+      throw new IOException("Not an http response: " + lines[0]);
+    }
+    keepAlive = !"HTTP/1.0".equals(statusLine[0]);
+    contentLength = -1;
+    chunked = false;
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if (colon < 0) continue;
+      String name = lines[i].substring(0, colon).trim();
+      String value = lines[i].substring(colon + 1).trim();
+      if (name.equalsIgnoreCase("Content-Length")) {
+        contentLength = Long.parseLong(value);
+      } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+        chunked = value.toLowerCase().contains("chunked");
+      } else if (name.equalsIgnoreCase("Connection")) {
+        if (value.equalsIgnoreCase("close")) keepAlive = false;
+        else if (value.equalsIgnoreCase("keep-alive")) keepAlive = true;
+      }
+    }
+    if (!chunked && contentLength < 0 && status != 204 && status != 304) keepAlive = false;
+    if (status == 204 || status == 304) contentLength = 0;
+  }
+
+  private static int indexOf(byte[] b, int from, int to, String pattern) {
+    int n = pattern.length();
+    outer:
+    for (int i = from; i <= to - n; i++) {
+      for (int j = 0; j < n; j++) {
+        if (b[i + j] != pattern.charAt(j)) continue outer;
+      }
+      return i;
+    }
+    return -1;
+  }
+}
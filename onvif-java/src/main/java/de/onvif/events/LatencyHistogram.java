@@ -0,0 +1,95 @@
+package de.onvif.events;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in microseconds in log-linear buckets: 8 buckets per power of two, so a
+ * percentile is off by less than 12.5%, from 0 up to the largest long in a fixed array of 488
+ * counters. Recording is lock-free and does not allocate.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BITS = 3;
+  private static final int SUB = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /** @param micros latency, negative values count as 0 */
+  public void record(long micros) {
+    record(micros, 1);
+  }
+
+  /** Records the latency {@code times} times, e.g. once for every event of a batch. */
+  public void record(long micros, long times) {
+    if (times <= 0) return;
+    if (micros < 0) micros = 0;
+    counts.addAndGet(bucket(micros), times);
+    count.addAndGet(times);
+    sum.addAndGet(micros * times);
+    for (long m = max.get(); micros > m && !max.compareAndSet(m, micros); m = max.get()) {}
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  /** Mean in microseconds, 0 if nothing was recorded. */
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * The latency that the fraction p of the recorded ones do not exceed, as the upper end of its
+   * bucket, 0 if nothing was recorded.
+   *
+   * @param p 0 to 1, e.g. 0.99
+   */
+  public long getPercentile(double p) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) total += snapshot[i] = counts.get(i);
+    if (total == 0) return 0;
+    long rank = Math.max(1, (long) Math.ceil(p * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) return Math.min(upper(i), max.get());
+    }
+    return max.get();
+  }
+
+  public String toString() {
+    return String.format(
+        "n=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms",
+        getCount(),
+        getMean() / 1000,
+        getPercentile(0.5) / 1000.0,
+        getPercentile(0.99) / 1000.0,
+        getMax() / 1000.0);
+  }
+
+  static int bucket(long value) {
+    if (value < SUB) return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB - 1);
+    return (exponent - SUB_BITS + 1) * SUB + sub;
+  }
+
+  /** The largest value of the bucket. */
+  static long upper(int bucket) {
+    if (bucket < SUB) return bucket;
+    int exponent = bucket / SUB + SUB_BITS - 1;
+    long sub = bucket % SUB;
+    long upper = ((SUB + sub + 1) << (exponent - SUB_BITS)) - 1;
+    return upper < 0 ? Long.MAX_VALUE : upper;
+  }
+}
@@ -0,0 +1,668 @@
+package de.onvif.events;
+
+import de.onvif.soap.OnvifDevice;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Resource;
+import javax.jws.WebService;
+import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.WebServiceContext;
+import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.wsaddressing.W3CEndpointReference;
+import javax.xml.ws.wsaddressing.W3CEndpointReferenceBuilder;
+import org.apache.cxf.BusFactory;
+import org.apache.cxf.binding.soap.Soap12;
+import org.apache.cxf.binding.soap.SoapBindingConfiguration;
+import org.apache.cxf.endpoint.Server;
+import org.apache.cxf.jaxws.JaxWsProxyFactoryBean;
+import org.apache.cxf.jaxws.JaxWsServerFactoryBean;
+import org.apache.cxf.jaxws.spi.ProviderImpl;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.transport.http_jetty.JettyHTTPServerEngineFactory;
+import org.apache.cxf.transport.http_jetty.ThreadingParameters;
+import org.apache.cxf.ws.addressing.EndpointReferenceType;
+import org.apache.cxf.ws.addressing.ReferenceParametersType;
+import org.apache.cxf.ws.addressing.WSAddressingFeature;
+import org.oasis_open.docs.wsn.b_2.FilterType;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.Notify;
+import org.oasis_open.docs.wsn.b_2.Renew;
+import org.oasis_open.docs.wsn.b_2.RenewResponse;
+import org.oasis_open.docs.wsn.b_2.Subscribe;
+import org.oasis_open.docs.wsn.b_2.SubscribeResponse;
+import org.oasis_open.docs.wsn.b_2.Unsubscribe;
+import org.oasis_open.docs.wsn.bw_2.NotificationConsumer;
+import org.oasis_open.docs.wsn.bw_2.NotificationProducer;
+import org.oasis_open.docs.wsn.bw_2.SubscriptionManager;
+import org.onvif.ver10.events.wsdl.EventService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+/**
+ * Receives WS-BaseNotification Notify messages pushed by many devices on one embedded http
+ * endpoint, a lightweight replacement for a notification broker.
+ *
+ * <p>{@link #subscribe(String, OnvifDevice, FilterType)} sends a Subscribe to the device with a
+ * consumer address unique to the subscription ({@code <address>/<token>}) and keeps the
+ * subscription renewed. Incoming messages are routed to the device by that token, or, for devices
+ * that post to another address, by the SubscriptionReference of the message.
+ *
+ * <p>Decoding happens on the bounded jetty thread pool ({@link #setMaxThreads(int)}). Every device
+ * has a bounded queue ({@link #setQueueCapacity(int)}) drained by a small dispatch pool, one batch
+ * per device at a time and round robin between devices. What happens if a queue is full is decided
+ * by the {@link OverflowPolicy}; dropped messages are counted per device.
+ */
+public class NotificationConsumerEndpoint {
+  private static final Logger logger = LoggerFactory.getLogger(NotificationConsumerEndpoint.class);
+
+  private static final QName INITIAL_TERMINATION_TIME =
+      new QName("http://docs.oasis-open.org/wsn/b-2", "InitialTerminationTime");
+
+  /** Receives the queued messages of one device, called from a dispatch thread. */
+  public interface Listener {
+    void onMessages(String deviceId, List<NotificationMessageHolderType> messages);
+  }
+
+  public enum OverflowPolicy {
+    /** Discard the oldest queued message to make room. */
+    DROP_OLDEST,
+    /** Discard the arriving message. */
+    DROP_NEWEST,
+    /**
+     * Hold the Notify request of the device until there is room, at most {@link
+     * #setBlockTimeout(long)}, then drop the arriving message. Slows down the device instead of
+     * losing events, but keeps a jetty thread busy meanwhile.
+     */
+    BLOCK
+  }
+
+  private final String address;
+  private final Listener listener;
+  private final ExecutorService dispatchPool;
+  private final ScheduledExecutorService control;
+  private final Map<String, PushSubscription> byDevice = new ConcurrentHashMap<>();
+  private final Map<String, PushSubscription> byToken = new ConcurrentHashMap<>();
+  private final Map<String, PushSubscription> byReference = new ConcurrentHashMap<>();
+  private final Map<String, DeviceQueue> queues = new ConcurrentHashMap<>();
+  private Server server;
+
+  private int maxThreads = 50;
+  private volatile int queueCapacity = 1000;
+  private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+  private volatile long blockTimeout = 1000;
+  private volatile int maxBatch = 100;
+  private volatile long subscriptionTime = 60000;
+  private volatile long renewMargin = 10000;
+  private volatile long maxBackoff = 30000;
+
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong unrouted = new AtomicLong();
+  private final AtomicLong filtered = new AtomicLong();
+  /** Dropped messages of the queues removed. */
+  private final AtomicLong droppedRemoved = new AtomicLong();
+
+  /**
+   * @param address http address the endpoint listens on, must be reachable by the devices, e.g.
+   *     http://192.168.0.10:9001/onvif-events
+   * @param dispatchThreads threads calling the listener
+   */
+  public NotificationConsumerEndpoint(String address, Listener listener, int dispatchThreads) {
+    this(address, listener, dispatchThreads, 4);
+  }
+
+  /**
+   * @param dispatchThreads threads calling the listener
+   * @param controlThreads threads subscribing and renewing, each blocks until the device answered,
+   *     so as many unreachable devices as threads delay the renewals of the others
+   */
+  public NotificationConsumerEndpoint(
+      String address, Listener listener, int dispatchThreads, int controlThreads) {
+    this.address = address.endsWith("/") ? address.substring(0, address.length() - 1) : address;
+    this.listener = listener;
+    this.dispatchPool = Executors.newFixedThreadPool(dispatchThreads, threads("notify-dispatch"));
+    this.control = Executors.newScheduledThreadPool(controlThreads, threads("notify-control"));
+  }
+
+  /** Starts the http endpoint. */
+  public synchronized void start() throws Exception {
+    if (server != null) return;
+    URL url = new URL(address);
+    ThreadingParameters threading = new ThreadingParameters();
+    threading.setMinThreads(Math.min(8, maxThreads));
+    threading.setMaxThreads(maxThreads);
+    threading.setThreadNamePrefix("notify-http");
+    new JettyHTTPServerEngineFactory(BusFactory.getDefaultBus())
+        .createJettyHTTPServerEngine(url.getPort() < 0 ? 80 : url.getPort(), url.getProtocol())
+        .setThreadingParameters(threading);
+
+    JaxWsServerFactoryBean factory = new JaxWsServerFactoryBean();
+    factory.setServiceClass(NotificationConsumer.class);
+    factory.setServiceBean(new Consumer());
+    factory.setAddress(address);
+    factory.getFeatures().add(new WSAddressingFeature());
+    // handle the one-way Notify on the jetty thread instead of the unbounded bus work queue, so
+    // BLOCK slows down the device
+    factory.getProperties(true).put(Message.ROBUST_ONEWAY, Boolean.TRUE);
+    SoapBindingConfiguration config = new SoapBindingConfiguration();
+    config.setVersion(Soap12.getInstance());
+    factory.setBindingConfig(config);
+    server = factory.create();
+  }
+
+  /** Unsubscribes all devices and stops the endpoint. */
+  public synchronized void stop() {
+    for (String deviceId : new ArrayList<>(byDevice.keySet())) unsubscribe(deviceId);
+    control.shutdownNow();
+    dispatchPool.shutdown();
+    if (server != null) {
+      server.stop();
+      server.destroy();
+      server = null;
+    }
+  }
+
+  /**
+   * Subscribes to the events of the device, the subscription is renewed until {@link
+   * #unsubscribe(String)}. If it can not be renewed, a new one is created.
+   *
+   * @param deviceId id passed to the listener
+   * @param filter topic/message filter, null for all events
+   */
+  public void subscribe(String deviceId, OnvifDevice device, FilterType filter) throws Exception {
+    PushSubscription s = new PushSubscription(deviceId, device, filter);
+    if (byDevice.putIfAbsent(deviceId, s) != null) {
+      throw new IllegalArgumentException("Device " + deviceId + " already subscribed");
+    }
+    DeviceQueue q = queues.get(deviceId);
+    if (q != null) q.reopen();
+    try {
+      s.subscribe();
+    } catch (Exception e) {
+      byDevice.remove(deviceId, s);
+      throw e;
+    }
+  }
+
+  /**
+   * Unsubscribes the device, queued messages are still delivered. Its queue and counters are
+   * removed once the queue drained.
+   */
+  public void unsubscribe(String deviceId) {
+    PushSubscription s = byDevice.remove(deviceId);
+    if (s != null) s.close();
+    DeviceQueue q = queues.get(deviceId);
+    if (q != null) q.close();
+  }
+
+  /** Consumer address the device posts to, null if not subscribed. */
+  public String getConsumerAddress(String deviceId) {
+    PushSubscription s = byDevice.get(deviceId);
+    return s == null ? null : s.consumerAddress();
+  }
+
+  /** Messages of the device dropped because its queue was full. */
+  public long getDropped(String deviceId) {
+    DeviceQueue q = queues.get(deviceId);
+    return q == null ? 0 : q.dropped.get();
+  }
+
+  /** Messages dropped for all devices. */
+  public long getDropped() {
+    long dropped = droppedRemoved.get();
+    for (DeviceQueue q : queues.values()) dropped += q.dropped.get();
+    return dropped;
+  }
+
+  /** Messages received and routed to a device. */
+  public long getReceived() {
+    return received.get();
+  }
+
+  /** Messages that could not be routed to a subscribed device. */
+  public long getUnrouted() {
+    return unrouted.get();
+  }
+
+  /** Messages discarded because their topic does not match the filter of the subscription. */
+  public long getFiltered() {
+    return filtered.get();
+  }
+
+  /** Devices with a queue: the subscribed ones and unsubscribed ones still draining. */
+  public int getQueueCount() {
+    return queues.size();
+  }
+
+  /** Messages waiting for dispatch. */
+  public int getQueued(String deviceId) {
+    DeviceQueue q = queues.get(deviceId);
+    if (q == null) return 0;
+    synchronized (q) {
+      return q.messages.size();
+    }
+  }
+
+  // --- routing
+
+  /** The endpoint implementation, called on jetty threads. */
+  @WebService(
+      targetNamespace = "http://docs.oasis-open.org/wsn/bw-2",
+      name = "NotificationConsumer",
+      endpointInterface = "org.oasis_open.docs.wsn.bw_2.NotificationConsumer")
+  public class Consumer implements NotificationConsumer {
+    @Resource WebServiceContext context;
+
+    public void notify(Notify notify) {
+      PushSubscription byPath = byToken.get(token(context.getMessageContext()));
+      Map<String, List<NotificationMessageHolderType>> routed = new HashMap<>();
+      for (NotificationMessageHolderType holder : notify.getNotificationMessage()) {
+        PushSubscription s = byPath != null ? byPath : byReference(holder);
+        if (s == null || s.closed) {
+          unrouted.incrementAndGet();
+          continue;
+        }
+        if (s.topics != null && !s.topics.matches(holder)) {
+          filtered.incrementAndGet();
+          continue;
+        }
+        List<NotificationMessageHolderType> list = routed.get(s.deviceId);
+        if (list == null) routed.put(s.deviceId, list = new ArrayList<>());
+        list.add(holder);
+      }
+      for (Map.Entry<String, List<NotificationMessageHolderType>> e : routed.entrySet()) {
+        received.addAndGet(e.getValue().size());
+        DeviceQueue q;
+        do {
+          q = queue(e.getKey());
+        } while (!q.offer(e.getValue()));
+        // unsubscribed meanwhile, do not keep a new queue for it
+        if (!byDevice.containsKey(e.getKey())) q.close();
+      }
+    }
+  }
+
+  private static String token(MessageContext context) {
+    Object path = context.get(Message.PATH_INFO);
+    if (path == null) path = context.get(Message.REQUEST_URI);
+    if (path == null) return "";
+    String p = path.toString();
+    return p.substring(p.lastIndexOf('/') + 1);
+  }
+
+  private PushSubscription byReference(NotificationMessageHolderType holder) {
+    W3CEndpointReference reference = holder.getSubscriptionReference();
+    if (reference == null) return null;
+    return byReference.get(referenceKey(ProviderImpl.convertToInternal(reference)));
+  }
+
+  /** Address and reference parameter values, identifies a subscription on its device. */
+  static String referenceKey(EndpointReferenceType epr) {
+    StringBuilder key = new StringBuilder(epr.getAddress().getValue());
+    ReferenceParametersType parameters = epr.getReferenceParameters();
+    if (parameters != null) {
+      for (Object p : parameters.getAny()) {
+        if (p instanceof Element) key.append('|').append(((Element) p).getTextContent().trim());
+      }
+    }
+    return key.toString();
+  }
+
+  private DeviceQueue queue(String deviceId) {
+    DeviceQueue q = queues.get(deviceId);
+    if (q == null) {
+      DeviceQueue created = new DeviceQueue(deviceId);
+      q = queues.putIfAbsent(deviceId, created);
+      if (q == null) q = created;
+    }
+    return q;
+  }
+
+  /** Bounded queue of one device, drained one batch at a time on the dispatch pool. */
+  private class DeviceQueue implements Runnable {
+    final String deviceId;
+    final ArrayDeque<NotificationMessageHolderType> messages = new ArrayDeque<>();
+    final AtomicLong dropped = new AtomicLong();
+    boolean scheduled;
+    /** The device was unsubscribed, remove the queue when it is empty. */
+    boolean closing;
+    /** Removed from queues, offers go to a new queue. */
+    boolean removed;
+
+    DeviceQueue(String deviceId) {
+      this.deviceId = deviceId;
+    }
+
+    /** @return false if the queue was removed and nothing was queued */
+    boolean offer(List<NotificationMessageHolderType> batch) {
+      synchronized (this) {
+        if (removed) return false;
+        for (NotificationMessageHolderType m : batch) {
+          if (messages.size() >= queueCapacity && !makeRoom()) {
+            dropped.incrementAndGet();
+            continue;
+          }
+          messages.add(m);
+        }
+        if (scheduled || messages.isEmpty()) return true;
+        scheduled = true;
+      }
+      dispatchPool.execute(this);
+      return true;
+    }
+
+    synchronized void close() {
+      closing = true;
+      if (!scheduled && messages.isEmpty()) remove();
+    }
+
+    synchronized void reopen() {
+      closing = false;
+    }
+
+    /** Called holding the lock. */
+    private void remove() {
+      removed = true;
+      if (queues.remove(deviceId, this)) droppedRemoved.addAndGet(dropped.get());
+    }
+
+    /** @return false if the arriving message has to be dropped */
+    private boolean makeRoom() {
+      switch (overflowPolicy) {
+        case DROP_OLDEST:
+          messages.poll();
+          dropped.incrementAndGet();
+          return true;
+        case BLOCK:
+          if (!scheduled) {
+            // nobody would free the queue while we wait
+            scheduled = true;
+            dispatchPool.execute(this);
+          }
+          long deadline = System.currentTimeMillis() + blockTimeout;
+          try {
+            while (messages.size() >= queueCapacity) {
+              long left = deadline - System.currentTimeMillis();
+              if (left <= 0) return false;
+              wait(left);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+          }
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    public void run() {
+      List<NotificationMessageHolderType> batch = new ArrayList<>();
+      synchronized (this) {
+        while (batch.size() < maxBatch && !messages.isEmpty()) batch.add(messages.poll());
+        notifyAll();
+      }
+      try {
+        if (!batch.isEmpty()) listener.onMessages(deviceId, batch);
+      } catch (RuntimeException e) {
+        logger.warn("Notification listener failed", e);
+      }
+      synchronized (this) {
+        if (messages.isEmpty()) {
+          scheduled = false;
+          if (closing) remove();
+          return;
+        }
+      }
+      // behind the other devices
+      dispatchPool.execute(this);
+    }
+  }
+
+  // --- subscriptions
+
+  private class PushSubscription {
+    final String deviceId;
+    final OnvifDevice device;
+    final FilterType filter;
+    /** Client side topic filter, the device may ignore the filter of the subscription. */
+    final TopicFilter topics;
+    volatile String token;
+    volatile String referenceKey;
+    volatile SubscriptionManager manager;
+    volatile ScheduledFuture<?> renewal;
+    volatile boolean closed;
+    long backoff = 1000;
+
+    PushSubscription(String deviceId, OnvifDevice device, FilterType filter) {
+      this.deviceId = deviceId;
+      this.device = device;
+      this.filter = filter;
+      this.topics = TopicFilter.of(filter);
+    }
+
+    String consumerAddress() {
+      return address + "/" + token;
+    }
+
+    synchronized void subscribe() throws Exception {
+      String eventsAddress = device.getServiceAddresses().get(OnvifDevice.SERVICE_EVENTS);
+      EventService service = new EventService();
+      JaxWsProxyFactoryBean proxyFactory =
+          device.getServiceProxy((BindingProvider) service.getNotificationProducer(), eventsAddress);
+      proxyFactory.getFeatures().add(new WSAddressingFeature());
+      NotificationProducer producer = proxyFactory.create(NotificationProducer.class);
+
+      String newToken = UUID.randomUUID().toString();
+      Subscribe request = new Subscribe();
+      request.setConsumerReference(
+          new W3CEndpointReferenceBuilder().address(address + "/" + newToken).build());
+      request.setFilter(filter);
+      request.setInitialTerminationTime(
+          new JAXBElement<>(
+              INITIAL_TERMINATION_TIME,
+              String.class,
+              PullPointSubscriptionClient.duration(subscriptionTime)));
+      byToken.put(newToken, this);
+      SubscribeResponse response;
+      try {
+        response = producer.subscribe(request);
+      } catch (Exception e) {
+        byToken.remove(newToken);
+        throw e;
+      }
+      EndpointReferenceType epr =
+          ProviderImpl.convertToInternal(response.getSubscriptionReference());
+      token = newToken;
+      referenceKey = referenceKey(epr);
+      byReference.put(referenceKey, this);
+      manager =
+          PullPointSubscriptionClient.createPort(
+              device,
+              service.getSubscriptionManager(),
+              epr.getAddress().getValue(),
+              SubscriptionManager.class,
+              epr);
+      backoff = 1000;
+      logger.debug("Subscribed " + deviceId + " for " + consumerAddress());
+      scheduleRenew(
+          response.getCurrentTime() != null && response.getTerminationTime() != null
+              ? PullPointSubscriptionClient.lifetime(
+                  response.getCurrentTime(), response.getTerminationTime())
+              : subscriptionTime);
+    }
+
+    void scheduleRenew(long lifetime) {
+      if (closed) return;
+      renewal =
+          control.schedule(
+              new Runnable() {
+                public void run() {
+                  renew();
+                }
+              },
+              Math.max(0, lifetime - renewMargin),
+              TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void renew() {
+      if (closed) return;
+      try {
+        Renew renew = new Renew();
+        renew.setTerminationTime(PullPointSubscriptionClient.duration(subscriptionTime));
+        RenewResponse response = manager.renew(renew);
+        scheduleRenew(
+            response.getCurrentTime() != null && response.getTerminationTime() != null
+                ? PullPointSubscriptionClient.lifetime(
+                    response.getCurrentTime(), response.getTerminationTime())
+                : subscriptionTime);
+      } catch (Exception e) {
+        logger.warn("Renew of " + deviceId + " failed, subscribing again", e);
+        release();
+        resubscribe();
+      }
+    }
+
+    void resubscribe() {
+      if (closed) return;
+      try {
+        subscribe();
+      } catch (Exception e) {
+        logger.warn("Subscribe of " + deviceId + " failed, retrying in " + backoff + "ms", e);
+        long delay = backoff;
+        backoff = Math.min(backoff * 2, maxBackoff);
+        control.schedule(
+            new Runnable() {
+              public void run() {
+                resubscribe();
+              }
+            },
+            delay,
+            TimeUnit.MILLISECONDS);
+      }
+    }
+
+    /** Forgets the current subscription, without unsubscribing. */
+    private void release() {
+      if (token != null) byToken.remove(token, this);
+      if (referenceKey != null) byReference.remove(referenceKey, this);
+    }
+
+    synchronized void close() {
+      closed = true;
+      ScheduledFuture<?> r = renewal;
+      if (r != null) r.cancel(false);
+      release();
+      SubscriptionManager sm = manager;
+      manager = null;
+      if (sm == null) return;
+      try {
+        sm.unsubscribe(new Unsubscribe());
+      } catch (Exception e) {
+        // the subscription terminates by itself anyway
+        logger.debug("Unsubscribe of " + deviceId + " failed", e);
+      }
+    }
+  }
+
+  private static ThreadFactory threads(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  public String getAddress() {
+    return address;
+  }
+
+  public int getMaxThreads() {
+    return maxThreads;
+  }
+
+  /** @param maxThreads size of the jetty thread pool decoding Notify requests, before start() */
+  public void setMaxThreads(int maxThreads) {
+    this.maxThreads = maxThreads;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /** @param queueCapacity messages queued per device before the overflow policy applies */
+  public void setQueueCapacity(int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  public long getBlockTimeout() {
+    return blockTimeout;
+  }
+
+  /** @param blockTimeout longest wait for room with {@link OverflowPolicy#BLOCK}, in ms */
+  public void setBlockTimeout(long blockTimeout) {
+    this.blockTimeout = blockTimeout;
+  }
+
+  public int getMaxBatch() {
+    return maxBatch;
+  }
+
+  /** @param maxBatch maximum number of messages per listener call */
+  public void setMaxBatch(int maxBatch) {
+    this.maxBatch = maxBatch;
+  }
+
+  public long getSubscriptionTime() {
+    return subscriptionTime;
+  }
+
+  /** @param subscriptionTime requested lifetime of the subscription and of every renew, in ms */
+  public void setSubscriptionTime(long subscriptionTime) {
+    this.subscriptionTime = subscriptionTime;
+  }
+
+  public long getRenewMargin() {
+    return renewMargin;
+  }
+
+  /** @param renewMargin renew this long before the subscription terminates, in ms */
+  public void setRenewMargin(long renewMargin) {
+    this.renewMargin = renewMargin;
+  }
+
+  public long getMaxBackoff() {
+    return maxBackoff;
+  }
+
+  public void setMaxBackoff(long maxBackoff) {
+    this.maxBackoff = maxBackoff;
+  }
+}
@@ -0,0 +1,300 @@
+package de.onvif.events;
+
+import de.onvif.events.NotificationEvent.PropertyOperation;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.TopicExpressionType;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Reads notifications straight from the xml of a PullMessagesResponse or Notify into {@link
+ * NotificationEvent}s, without building the DOM that JAXB creates for the {@code any} content of a
+ * message. Everything except the topic, the tt:Message attributes and the SimpleItems is skipped.
+ *
+ * <p>Not thread safe, the decoder reuses its buffers. Use one per thread.
+ */
+public final class NotificationDecoder {
+  static final String WSNT = "http://docs.oasis-open.org/wsn/b-2";
+  private static final XMLInputFactory INPUT = XMLInputFactory.newInstance();
+
+  static {
+    INPUT.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    INPUT.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  private static final int NONE = 0;
+  private static final int SOURCE = 1;
+  private static final int KEY = 2;
+  private static final int DATA = 3;
+
+  private final Items source = new Items();
+  private final Items key = new Items();
+  private final Items data = new Items();
+  private long currentTime;
+  private long terminationTime;
+
+  /**
+   * Decodes all notification messages of the soap message.
+   *
+   * @return the events in document order
+   */
+  public List<NotificationEvent> decode(byte[] xml, int offset, int length)
+      throws XMLStreamException {
+    XMLStreamReader r = INPUT.createXMLStreamReader(new ByteArrayInputStream(xml, offset, length));
+    try {
+      return decode(r);
+    } finally {
+      r.close();
+    }
+  }
+
+  /**
+   * Decodes all notification messages from the position of the reader up to the end of the
+   * document. CurrentTime and TerminationTime of a PullMessagesResponse are kept as well.
+   */
+  public List<NotificationEvent> decode(XMLStreamReader r) throws XMLStreamException {
+    List<NotificationEvent> events = new ArrayList<>();
+    currentTime = NotificationEvent.NO_TIME;
+    terminationTime = NotificationEvent.NO_TIME;
+    int event = r.getEventType();
+    while (true) {
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        String name = r.getLocalName();
+        if ("NotificationMessage".equals(name)) {
+          events.add(readMessage(r));
+        } else if ("CurrentTime".equals(name)) {
+          currentTime = parseTime(r.getElementText());
+        } else if ("TerminationTime".equals(name)) {
+          terminationTime = parseTime(r.getElementText());
+        }
+      }
+      if (!r.hasNext()) break;
+      event = r.next();
+    }
+    return events;
+  }
+
+  /** CurrentTime of the last decoded response, {@link NotificationEvent#NO_TIME} if none. */
+  public long getCurrentTime() {
+    return currentTime;
+  }
+
+  /** TerminationTime of the last decoded response, {@link NotificationEvent#NO_TIME} if none. */
+  public long getTerminationTime() {
+    return terminationTime;
+  }
+
+  /** Reads one wsnt:NotificationMessage, the reader is on its start and left on its end. */
+  private NotificationEvent readMessage(XMLStreamReader r) throws XMLStreamException {
+    String topic = null;
+    long utcTime = NotificationEvent.NO_TIME;
+    PropertyOperation operation = null;
+    source.clear();
+    key.clear();
+    data.clear();
+    int group = NONE;
+    int depth = 1;
+    while (depth > 0) {
+      int event = r.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        String name = r.getLocalName();
+        if ("SimpleItem".equals(name)) {
+          Items items = group == SOURCE ? source : group == KEY ? key : group == DATA ? data : null;
+          if (items != null) {
+            items.add(r.getAttributeValue(null, "Name"), r.getAttributeValue(null, "Value"));
+          }
+          skip(r);
+        } else if ("Topic".equals(name) && WSNT.equals(r.getNamespaceURI())) {
+          topic = r.getElementText().trim();
+          // the reader is on the end of the Topic, its declarations are still in scope
+          String prefix = TopicFilter.prefix(topic);
+          topic = TopicFilter.normalize(topic, r.getNamespaceURI(prefix.isEmpty() ? "" : prefix));
+        } else if ("Message".equals(name) && !WSNT.equals(r.getNamespaceURI())) {
+          String time = r.getAttributeValue(null, "UtcTime");
+          if (time != null) utcTime = parseTime(time);
+          operation = PropertyOperation.parse(r.getAttributeValue(null, "PropertyOperation"));
+          depth++;
+        } else if ("Source".equals(name)) {
+          group = SOURCE;
+          depth++;
+        } else if ("Key".equals(name)) {
+          group = KEY;
+          depth++;
+        } else if ("Data".equals(name)) {
+          group = DATA;
+          depth++;
+        } else if ("SubscriptionReference".equals(name)
+            || "ProducerReference".equals(name)
+            || "ElementItem".equals(name)) {
+          skip(r);
+        } else {
+          depth++;
+        }
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+        String name = r.getLocalName();
+        if ("Source".equals(name) || "Key".equals(name) || "Data".equals(name)) group = NONE;
+      }
+    }
+    return new NotificationEvent(
+        topic, utcTime, operation, source.toArray(), key.toArray(), data.toArray());
+  }
+
+  /** Skips the element the reader is on, leaves the reader on its end. */
+  private static void skip(XMLStreamReader r) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = r.next();
+      if (event == XMLStreamConstants.START_ELEMENT) depth++;
+      else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+    }
+  }
+
+  /**
+   * The same record from a message already unmarshalled by JAXB, for messages received through a
+   * CXF port.
+   */
+  public static NotificationEvent decode(NotificationMessageHolderType holder) {
+    String topic = topic(holder);
+    Object any = holder.getMessage() != null ? holder.getMessage().getAny() : null;
+    if (!(any instanceof Element)) {
+      return new NotificationEvent(topic, NotificationEvent.NO_TIME, null, null, null, null);
+    }
+    Element message = (Element) any;
+    String time = message.getAttribute("UtcTime");
+    String operation = message.getAttribute("PropertyOperation");
+    Items source = new Items();
+    Items key = new Items();
+    Items data = new Items();
+    for (Node n = message.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (!(n instanceof Element)) continue;
+      String name = n.getLocalName();
+      Items items;
+      if ("Source".equals(name)) items = source;
+      else if ("Key".equals(name)) items = key;
+      else if ("Data".equals(name)) items = data;
+      else continue;
+      for (Node item = n.getFirstChild(); item != null; item = item.getNextSibling()) {
+        if (item instanceof Element && "SimpleItem".equals(item.getLocalName())) {
+          items.add(((Element) item).getAttribute("Name"), ((Element) item).getAttribute("Value"));
+        }
+      }
+    }
+    return new NotificationEvent(
+        topic,
+        time.isEmpty() ? NotificationEvent.NO_TIME : parseTime(time),
+        operation.isEmpty() ? null : PropertyOperation.parse(operation),
+        source.toArray(),
+        key.toArray(),
+        data.toArray());
+  }
+
+  /** The concrete topic of the message, null if it has none. */
+  static String topic(NotificationMessageHolderType holder) {
+    TopicExpressionType t = holder.getTopic();
+    if (t == null) return null;
+    StringBuilder text = new StringBuilder();
+    for (Object content : t.getContent()) {
+      if (content instanceof String) text.append((String) content);
+    }
+    return text.toString().trim();
+  }
+
+  /** UtcTime of the message, {@link NotificationEvent#NO_TIME} if it has none. */
+  static long utcTime(NotificationMessageHolderType holder) {
+    Object any = holder.getMessage() != null ? holder.getMessage().getAny() : null;
+    if (!(any instanceof Element)) return NotificationEvent.NO_TIME;
+    String time = ((Element) any).getAttribute("UtcTime");
+    return time.isEmpty() ? NotificationEvent.NO_TIME : parseTime(time);
+  }
+
+  /**
+   * Parses an xsd:dateTime like 2020-01-01T12:00:00.250Z without DatatypeFactory. A time without
+   * zone is taken as UTC, as devices send UtcTime.
+   *
+   * @return ms since the epoch, {@link NotificationEvent#NO_TIME} if the text is not a time
+   */
+  static long parseTime(String text) {
+    String s = text.trim();
+    try {
+      int year = digits(s, 0, 4);
+      int month = digits(s, 5, 2);
+      int day = digits(s, 8, 2);
+      int hour = digits(s, 11, 2);
+      int minute = digits(s, 14, 2);
+      int second = digits(s, 17, 2);
+      if (s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T') {
+        return NotificationEvent.NO_TIME;
+      }
+      int i = 19;
+      long millis = 0;
+      if (i < s.length() && s.charAt(i) == '.') {
+        int scale = 100;
+        for (i++; i < s.length() && Character.isDigit(s.charAt(i)); i++) {
+          millis += (s.charAt(i) - '0') * scale;
+          scale /= 10;
+        }
+      }
+      long offset = 0;
+      if (i < s.length() && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+        offset = (digits(s, i + 1, 2) * 60 + digits(s, i + 4, 2)) * 60000L;
+        if (s.charAt(i) == '-') offset = -offset;
+      }
+      return ((daysSinceEpoch(year, month, day) * 24 + hour) * 60 + minute) * 60000L
+          + second * 1000L
+          + millis
+          - offset;
+    } catch (IndexOutOfBoundsException | NumberFormatException e) {
+      return NotificationEvent.NO_TIME;
+    }
+  }
+
+  private static int digits(String s, int from, int count) {
+    int value = 0;
+    for (int i = from; i < from + count; i++) {
+      int d = s.charAt(i) - '0';
+      if (d < 0 || d > 9) throw new NumberFormatException(s);
+      value = value * 10 + d;
+    }
+    return value;
+  }
+
+  /** Days from 1970-01-01 to the date of the proleptic gregorian calendar. */
+  private static long daysSinceEpoch(int year, int month, int day) {
+    int y = month <= 2 ? year - 1 : year;
+    int era = (y >= 0 ? y : y - 399) / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+
+  /** Growable name/value buffer. */
+  private static final class Items {
+    String[] pairs = new String[8];
+    int size;
+
+    void clear() {
+      size = 0;
+    }
+
+    void add(String name, String value) {
+      if (name == null) return;
+      if (size + 2 > pairs.length) pairs = Arrays.copyOf(pairs, pairs.length * 2);
+      pairs[size++] = name;
+      pairs[size++] = value;
+    }
+
+    String[] toArray() {
+      return size == 0 ? null : Arrays.copyOf(pairs, size);
+    }
+  }
+}
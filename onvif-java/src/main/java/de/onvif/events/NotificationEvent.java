@@ -0,0 +1,192 @@
+package de.onvif.events;
+
+import java.util.Arrays;
+
+/**
+ * One notification as a flat record: topic, UtcTime, PropertyOperation and the SimpleItems of
+ * tt:Source, tt:Key and tt:Data. The items are kept as name/value pairs in one array per group.
+ * ElementItems are not kept.
+ *
+ * <p>Created by {@link NotificationDecoder}, immutable.
+ */
+public final class NotificationEvent {
+  /** UtcTime of an event without or with an unreadable time. */
+  public static final long NO_TIME = Long.MIN_VALUE;
+
+  private static final String[] NONE = new String[0];
+
+  public enum PropertyOperation {
+    INITIALIZED,
+    CHANGED,
+    DELETED;
+
+    /** @return null for null or an unknown value */
+    public static PropertyOperation parse(String value) {
+      if (value == null) return null;
+      switch (value.trim()) {
+        case "Initialized":
+          return INITIALIZED;
+        case "Changed":
+          return CHANGED;
+        case "Deleted":
+          return DELETED;
+        default:
+          return null;
+      }
+    }
+  }
+
+  private final String topic;
+  private final long utcTime;
+  private final PropertyOperation propertyOperation;
+  private final String[] source;
+  private final String[] key;
+  private final String[] data;
+
+  /**
+   * @param source names and values of the source items, alternating: name0, value0, name1, ...
+   * @param key names and values of the key items
+   * @param data names and values of the data items
+   */
+  public NotificationEvent(
+      String topic,
+      long utcTime,
+      PropertyOperation propertyOperation,
+      String[] source,
+      String[] key,
+      String[] data) {
+    this.topic = topic;
+    this.utcTime = utcTime;
+    this.propertyOperation = propertyOperation;
+    this.source = source != null ? source : NONE;
+    this.key = key != null ? key : NONE;
+    this.data = data != null ? data : NONE;
+  }
+
+  /** Concrete topic as sent by the device, e.g. tns1:VideoSource/MotionAlarm. */
+  public String getTopic() {
+    return topic;
+  }
+
+  /** UtcTime of the message in ms since the epoch, {@link #NO_TIME} if unknown. */
+  public long getUtcTime() {
+    return utcTime;
+  }
+
+  /** Null if the event is not about a property. */
+  public PropertyOperation getPropertyOperation() {
+    return propertyOperation;
+  }
+
+  public int getSourceCount() {
+    return source.length / 2;
+  }
+
+  public String getSourceName(int i) {
+    return source[2 * i];
+  }
+
+  public String getSourceValue(int i) {
+    return source[2 * i + 1];
+  }
+
+  /** Value of the source item, null if there is none. */
+  public String getSource(String name) {
+    return value(source, name);
+  }
+
+  public int getKeyCount() {
+    return key.length / 2;
+  }
+
+  public String getKeyName(int i) {
+    return key[2 * i];
+  }
+
+  public String getKeyValue(int i) {
+    return key[2 * i + 1];
+  }
+
+  /** Value of the key item, null if there is none. */
+  public String getKey(String name) {
+    return value(key, name);
+  }
+
+  public int getDataCount() {
+    return data.length / 2;
+  }
+
+  public String getDataName(int i) {
+    return data[2 * i];
+  }
+
+  public String getDataValue(int i) {
+    return data[2 * i + 1];
+  }
+
+  /** Value of the data item, null if there is none. */
+  public String getData(String name) {
+    return value(data, name);
+  }
+
+  /** The items as stored, not copied: name0, value0, name1, ... */
+  String[] source() {
+    return source;
+  }
+
+  String[] key() {
+    return key;
+  }
+
+  String[] data() {
+    return data;
+  }
+
+  private static String value(String[] items, String name) {
+    for (int i = 0; i < items.length; i += 2) {
+      if (items[i].equals(name)) return items[i + 1];
+    }
+    return null;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof NotificationEvent)) return false;
+    NotificationEvent e = (NotificationEvent) o;
+    return utcTime == e.utcTime
+        && propertyOperation == e.propertyOperation
+        && (topic == null ? e.topic == null : topic.equals(e.topic))
+        && Arrays.equals(source, e.source)
+        && Arrays.equals(key, e.key)
+        && Arrays.equals(data, e.data);
+  }
+
+  @Override
+  public int hashCode() {
+    int h = topic == null ? 0 : topic.hashCode();
+    h = 31 * h + Long.hashCode(utcTime);
+    h = 31 * h + Arrays.hashCode(source);
+    h = 31 * h + Arrays.hashCode(key);
+    return 31 * h + Arrays.hashCode(data);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder(String.valueOf(topic));
+    s.append(' ').append(utcTime);
+    if (propertyOperation != null) s.append(' ').append(propertyOperation);
+    append(s, " source", source);
+    append(s, " key", key);
+    append(s, " data", data);
+    return s.toString();
+  }
+
+  private static void append(StringBuilder s, String group, String[] items) {
+    if (items.length == 0) return;
+    s.append(group);
+    for (int i = 0; i < items.length; i += 2) {
+      s.append(i == 0 ? " " : ", ").append(items[i]).append('=').append(items[i + 1]);
+    }
+  }
+}
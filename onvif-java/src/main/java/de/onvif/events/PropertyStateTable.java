@@ -0,0 +1,177 @@
+package de.onvif.events;
+
+import de.onvif.events.NotificationEvent.PropertyOperation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Current state of the property events of many devices, passing on only real transitions.
+ *
+ * <p>A property is identified by device, topic and its Source and Key items, its state is the
+ * event with its Data items. An Initialized or Changed event is passed on if it creates the
+ * property or changes its data, a Deleted event if the property existed. Everything else is
+ * dropped, in particular the Initialized state a device sends again after every resubscribe and
+ * events older than the current state. Events without PropertyOperation are passed on unchanged.
+ *
+ * <p>Used as the {@link EventMultiplexer.EventListener} of a multiplexer, the downstream listener
+ * gets the remaining events of a batch. Reads ({@link #snapshot(String)}, {@link #get}) do not
+ * lock and may run concurrently with updates.
+ */
+public class PropertyStateTable implements EventMultiplexer.EventListener {
+  private final EventMultiplexer.EventListener downstream;
+  private final Map<String, Map<PropertyKey, NotificationEvent>> devices =
+      new ConcurrentHashMap<>();
+
+  private final AtomicLong applied = new AtomicLong();
+  private final AtomicLong emitted = new AtomicLong();
+
+  /** @param downstream receives the transitions, null to only keep the state */
+  public PropertyStateTable(EventMultiplexer.EventListener downstream) {
+    this.downstream = downstream;
+  }
+
+  public void onEvents(String deviceId, List<NotificationEvent> events) {
+    List<NotificationEvent> transitions = new ArrayList<>(events.size());
+    for (NotificationEvent e : events) {
+      if (apply(deviceId, e)) transitions.add(e);
+    }
+    if (downstream != null && !transitions.isEmpty()) {
+      downstream.onEvents(deviceId, transitions);
+    }
+  }
+
+  /**
+   * Applies one event to the state of the device.
+   *
+   * @return true if the event is a transition (or no property event) and has to be passed on
+   */
+  public boolean apply(String deviceId, NotificationEvent event) {
+    applied.incrementAndGet();
+    PropertyOperation operation = event.getPropertyOperation();
+    if (operation == null) {
+      emitted.incrementAndGet();
+      return true;
+    }
+    Map<PropertyKey, NotificationEvent> properties = devices.get(deviceId);
+    if (properties == null) {
+      Map<PropertyKey, NotificationEvent> created = new ConcurrentHashMap<>();
+      properties = devices.putIfAbsent(deviceId, created);
+      if (properties == null) properties = created;
+    }
+    PropertyKey key = new PropertyKey(event);
+    boolean transition;
+    // updates of one property have to be ordered, reads go to the map directly
+    synchronized (properties) {
+      NotificationEvent current = properties.get(key);
+      if (current != null
+          && event.getUtcTime() != NotificationEvent.NO_TIME
+          && current.getUtcTime() != NotificationEvent.NO_TIME
+          && event.getUtcTime() < current.getUtcTime()) {
+        transition = false; // older than the state we have
+      } else if (operation == PropertyOperation.DELETED) {
+        transition = properties.remove(key) != null;
+      } else {
+        properties.put(key, event);
+        transition = current == null || !Arrays.equals(current.data(), event.data());
+      }
+    }
+    if (transition) emitted.incrementAndGet();
+    return transition;
+  }
+
+  /** Current state of the property, null if the device did not report it or deleted it. */
+  public NotificationEvent get(String deviceId, String topic, String[] source, String[] key) {
+    Map<PropertyKey, NotificationEvent> properties = devices.get(deviceId);
+    if (properties == null) return null;
+    return properties.get(new PropertyKey(topic, source, key));
+  }
+
+  /** Current state of all properties of the device. */
+  public List<NotificationEvent> snapshot(String deviceId) {
+    return snapshot(deviceId, null);
+  }
+
+  /**
+   * Current state of the properties of the device on the topics.
+   *
+   * @param topics null for all topics
+   */
+  public List<NotificationEvent> snapshot(String deviceId, TopicFilter topics) {
+    List<NotificationEvent> state = new ArrayList<>();
+    Map<PropertyKey, NotificationEvent> properties = devices.get(deviceId);
+    if (properties == null) return state;
+    for (NotificationEvent e : properties.values()) {
+      if (topics == null || topics.matches(e.getTopic())) state.add(e);
+    }
+    return state;
+  }
+
+  /** Forgets the state of the device, e.g. when it is removed. */
+  public void clear(String deviceId) {
+    devices.remove(deviceId);
+  }
+
+  public Set<String> getDeviceIds() {
+    return devices.keySet();
+  }
+
+  /** Number of properties of all devices. */
+  public int size() {
+    int size = 0;
+    for (Map<PropertyKey, NotificationEvent> properties : devices.values()) {
+      size += properties.size();
+    }
+    return size;
+  }
+
+  /** Events applied. */
+  public long getApplied() {
+    return applied.get();
+  }
+
+  /** Events passed on, transitions and events without PropertyOperation. */
+  public long getEmitted() {
+    return emitted.get();
+  }
+
+  /** Topic, Source and Key items of a property. */
+  private static final class PropertyKey {
+    private final String topic;
+    private final String[] source;
+    private final String[] key;
+    private final int hash;
+
+    PropertyKey(NotificationEvent event) {
+      this(event.getTopic(), event.source(), event.key());
+    }
+
+    PropertyKey(String topic, String[] source, String[] key) {
+      this.topic = topic != null ? topic : "";
+      this.source = source != null ? source : new String[0];
+      this.key = key != null ? key : new String[0];
+      this.hash =
+          (this.topic.hashCode() * 31 + Arrays.hashCode(this.source)) * 31
+              + Arrays.hashCode(this.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof PropertyKey)) return false;
+      PropertyKey k = (PropertyKey) o;
+      return hash == k.hash
+          && topic.equals(k.topic)
+          && Arrays.equals(source, k.source)
+          && Arrays.equals(key, k.key);
+    }
+  }
+}
@@ -0,0 +1,464 @@
+package de.onvif.events;
+
+import de.onvif.soap.OnvifDevice;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+import javax.xml.bind.JAXBElement;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.namespace.QName;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.wsaddressing.W3CEndpointReference;
+import org.apache.cxf.frontend.ClientProxy;
+import org.apache.cxf.jaxws.JaxWsProxyFactoryBean;
+import org.apache.cxf.jaxws.spi.ProviderImpl;
+import org.apache.cxf.transport.http.HTTPConduit;
+import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
+import org.apache.cxf.ws.addressing.EndpointReferenceType;
+import org.apache.cxf.ws.addressing.WSAddressingFeature;
+import org.oasis_open.docs.wsn.b_2.FilterType;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.Renew;
+import org.oasis_open.docs.wsn.b_2.RenewResponse;
+import org.oasis_open.docs.wsn.b_2.Unsubscribe;
+import org.oasis_open.docs.wsn.bw_2.SubscriptionManager;
+import org.onvif.ver10.events.wsdl.Capabilities;
+import org.onvif.ver10.events.wsdl.CreatePullPointSubscription;
+import org.onvif.ver10.events.wsdl.CreatePullPointSubscriptionResponse;
+import org.onvif.ver10.events.wsdl.EventService;
+import org.onvif.ver10.events.wsdl.PullMessages;
+import org.onvif.ver10.events.wsdl.PullMessagesFaultResponse;
+import org.onvif.ver10.events.wsdl.PullMessagesFaultResponse_Exception;
+import org.onvif.ver10.events.wsdl.PullMessagesResponse;
+import org.onvif.ver10.events.wsdl.PullPointSubscription;
+import org.onvif.ver10.events.wsdl.Seek;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives events of one device through an ONVIF PullPoint subscription.
+ *
+ * <p>{@link #start()} creates the subscription with CreatePullPointSubscription and starts a
+ * thread long-polling PullMessages with {@link #setPullTimeout(long)} and {@link
+ * #setMessageLimit(int)}. Before the subscription would terminate it is renewed, so it stays alive
+ * as long as the client runs. If the device refuses the timeout or message limit, they are lowered
+ * to the maximum the device reported. If the subscription is lost (device reboot, network
+ * failure) a new one is created after a back off. {@link #stop()} unsubscribes. With {@link
+ * #setAdaptivePull(boolean)} timeout and message limit follow the events of the device, see {@link
+ * PullTuner}.
+ *
+ * <p>A new subscription after a lost one catches up: if the device has
+ * PersistentNotificationStorage it is moved back with Seek to the UtcTime of the last message
+ * delivered, so the messages of the outage are pulled as well (the last ones may come twice), and
+ * SetSynchronizationPoint has the device send the current state of its properties right away.
+ *
+ * <p>Every non empty PullMessagesResponse is handed to the listener as is, messages are not
+ * copied or wrapped.
+ */
+public class PullPointSubscriptionClient {
+  private static final Logger logger = LoggerFactory.getLogger(PullPointSubscriptionClient.class);
+
+  private static final QName INITIAL_TERMINATION_TIME =
+      new QName("http://www.onvif.org/ver10/events/wsdl", "InitialTerminationTime");
+
+  /** Receives the messages of one PullMessagesResponse, called from the polling thread. */
+  public interface Listener {
+    void onMessages(PullPointSubscriptionClient source, List<NotificationMessageHolderType> batch);
+  }
+
+  private final OnvifDevice device;
+  private final FilterType filter;
+  private final Listener listener;
+  private final PullMessages pullRequest = new PullMessages();
+  private final PullTuner tuner = new PullTuner(20000, 100);
+
+  private long pullTimeout = 20000;
+  private int messageLimit = 100;
+  private long subscriptionTime = 60000;
+  private long renewMargin = 10000;
+  private long maxBackoff = 30000;
+  private boolean seekOnResubscribe = true;
+  private boolean synchronizeOnResubscribe = true;
+
+  private volatile boolean running;
+  private Thread thread;
+  private volatile String subscriptionAddress;
+  private volatile PullPointSubscription pullPoint;
+  private volatile SubscriptionManager manager;
+  private volatile HTTPClientPolicy pullPolicy;
+  /** Local time the subscription terminates, derived from the device clock. */
+  private volatile long terminationAt;
+  /** Newest UtcTime delivered, where a Seek after a resubscribe starts. */
+  private volatile long lastUtcTime = NotificationEvent.NO_TIME;
+  /** PersistentNotificationStorage of the device, null until asked. */
+  private Boolean persistentStorage;
+
+  /**
+   * @param device the device, its events service has to be available
+   * @param filter topic/message filter of the subscription, null for all events
+   */
+  public PullPointSubscriptionClient(OnvifDevice device, FilterType filter, Listener listener) {
+    if (device.getEvents() == null) {
+      throw new IllegalArgumentException("Device has no events service");
+    }
+    this.device = device;
+    this.filter = filter;
+    this.listener = listener;
+    setPullTimeout(pullTimeout);
+    setMessageLimit(messageLimit);
+  }
+
+  /** Subscribes and starts polling in a background thread. */
+  public synchronized void start() {
+    if (running) return;
+    running = true;
+    thread =
+        new Thread("pullpoint-" + device.getServiceAddresses().get(OnvifDevice.SERVICE_EVENTS)) {
+          public void run() {
+            loop();
+          }
+        };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops polling and unsubscribes. A subscription the background thread is still creating is
+   * unsubscribed by that thread once the device answers.
+   */
+  public synchronized void stop() {
+    if (!running) return;
+    running = false;
+    thread.interrupt();
+    unsubscribe();
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  /** Address of the current subscription (the SubscriptionReference), null if not subscribed. */
+  public String getSubscriptionAddress() {
+    return subscriptionAddress;
+  }
+
+  private void loop() {
+    long backoff = 1000;
+    boolean lost = false;
+    while (running) {
+      try {
+        if (pullPoint == null) {
+          subscribe();
+          if (!running) break;
+          if (lost) catchUp();
+          lost = false;
+        }
+        if (terminationAt - System.currentTimeMillis() < pullTimeout + renewMargin) renew();
+        pull();
+        backoff = 1000;
+      } catch (Exception e) {
+        if (!running) break;
+        if (e instanceof PullMessagesFaultResponse_Exception
+            && adjustToLimits(((PullMessagesFaultResponse_Exception) e).getFaultInfo())) {
+          continue;
+        }
+        logger.warn("PullPoint subscription " + subscriptionAddress + " failed, resubscribing", e);
+        lost = true;
+        pullPoint = null;
+        manager = null;
+        subscriptionAddress = null;
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          break;
+        }
+        backoff = Math.min(backoff * 2, maxBackoff);
+      }
+    }
+    // stop() may have come while the subscription was being created
+    unsubscribe();
+  }
+
+  private void subscribe() throws Exception {
+    CreatePullPointSubscription request = new CreatePullPointSubscription();
+    request.setFilter(filter);
+    request.setInitialTerminationTime(
+        new JAXBElement<>(INITIAL_TERMINATION_TIME, String.class, duration(subscriptionTime)));
+    CreatePullPointSubscriptionResponse response =
+        device.getEvents().createPullPointSubscription(request);
+
+    W3CEndpointReference reference = response.getSubscriptionReference();
+    EndpointReferenceType epr = ProviderImpl.convertToInternal(reference);
+    String address = epr.getAddress().getValue();
+    EventService service = new EventService();
+    PullPointSubscription pp =
+        createPort(
+            device, service.getPullPointSubscription(), address, PullPointSubscription.class, epr);
+    SubscriptionManager sm =
+        createPort(
+            device, service.getSubscriptionManager(), address, SubscriptionManager.class, epr);
+    // a long poll must not run into the receive timeout
+    pullPolicy = ((HTTPConduit) ClientProxy.getClient(pp).getConduit()).getClient();
+    pullPolicy.setReceiveTimeout(pullTimeout + 10000);
+    subscriptionAddress = address;
+    manager = sm;
+    pullPoint = pp;
+    granted(response.getCurrentTime(), response.getTerminationTime());
+    logger.debug("Subscribed " + address + ", terminates in " + remaining() + "ms");
+  }
+
+  /** Replays the messages missed while the subscription was lost, as far as the device can. */
+  private void catchUp() {
+    long from = lastUtcTime;
+    if (seekOnResubscribe && from != NotificationEvent.NO_TIME && persistentStorage()) {
+      Seek seek = new Seek();
+      GregorianCalendar c = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+      c.setTimeInMillis(from);
+      seek.setUtcTime(DatatypeHolder.FACTORY.newXMLGregorianCalendar(c));
+      try {
+        pullPoint.seek(seek);
+      } catch (RuntimeException e) {
+        logger.info("Seek of " + subscriptionAddress + " failed, events may be missing", e);
+      }
+    }
+    if (synchronizeOnResubscribe) {
+      try {
+        pullPoint.setSynchronizationPoint();
+      } catch (RuntimeException e) {
+        logger.info("SetSynchronizationPoint of " + subscriptionAddress + " failed", e);
+      }
+    }
+  }
+
+  private boolean persistentStorage() {
+    if (persistentStorage == null) {
+      try {
+        Capabilities capabilities = device.getEvents().getServiceCapabilities();
+        persistentStorage =
+            capabilities != null
+                && Boolean.TRUE.equals(capabilities.getPersistentNotificationStorage());
+      } catch (RuntimeException e) {
+        logger.debug("GetServiceCapabilities failed", e);
+        return false;
+      }
+    }
+    return persistentStorage;
+  }
+
+  /**
+   * Creates a port for the subscription, sending wsa:To and the reference parameters of the
+   * SubscriptionReference with every request, as the device needs them to find the subscription.
+   */
+  static <T> T createPort(
+      OnvifDevice device,
+      Object servicePort,
+      String address,
+      Class<T> type,
+      EndpointReferenceType epr) {
+    JaxWsProxyFactoryBean proxyFactory =
+        device.getServiceProxy((BindingProvider) servicePort, address);
+    proxyFactory.getFeatures().add(new WSAddressingFeature());
+    T port = proxyFactory.create(type);
+    ClientProxy.getClient(port).getEndpoint().getEndpointInfo().setAddress(epr);
+    return port;
+  }
+
+  private void renew() throws Exception {
+    Renew renew = new Renew();
+    renew.setTerminationTime(duration(subscriptionTime));
+    RenewResponse response = manager.renew(renew);
+    granted(response.getCurrentTime(), response.getTerminationTime());
+  }
+
+  private void pull() throws PullMessagesFaultResponse_Exception {
+    long start = System.currentTimeMillis();
+    PullMessagesResponse response = pullPoint.pullMessages(pullRequest);
+    long now = System.currentTimeMillis();
+    updateTermination(response.getCurrentTime(), response.getTerminationTime());
+    List<NotificationMessageHolderType> batch = response.getNotificationMessage();
+    long oldest = Long.MAX_VALUE;
+    for (NotificationMessageHolderType holder : batch) {
+      long utcTime = NotificationDecoder.utcTime(holder);
+      if (utcTime > lastUtcTime) lastUtcTime = utcTime;
+      if (utcTime != NotificationEvent.NO_TIME) oldest = Math.min(oldest, utcTime);
+    }
+    long lag = -1;
+    if (response.getCurrentTime() != null && oldest != Long.MAX_VALUE) {
+      lag = Math.max(0, response.getCurrentTime().toGregorianCalendar().getTimeInMillis() - oldest);
+    }
+    if (tuner.pulled(batch.size(), now - start, lag, now)) tuned();
+    if (!batch.isEmpty() && running) listener.onMessages(this, batch);
+  }
+
+  private void unsubscribe() {
+    SubscriptionManager sm = manager;
+    pullPoint = null;
+    manager = null;
+    if (sm == null) return;
+    try {
+      sm.unsubscribe(new Unsubscribe());
+    } catch (Exception e) {
+      // the subscription terminates by itself anyway
+      logger.debug("Unsubscribe of " + subscriptionAddress + " failed", e);
+    }
+    subscriptionAddress = null;
+  }
+
+  /** @return true if timeout or message limit were lowered and the pull can be retried */
+  private boolean adjustToLimits(PullMessagesFaultResponse limits) {
+    if (limits == null) return false;
+    // without MaxTimeout the device does not limit the timeout
+    long maxTimeout =
+        limits.getMaxTimeout() == null ? 0 : limits.getMaxTimeout().getTimeInMillis(new Date(0));
+    int maxLimit = limits.getMaxMessageLimit();
+    logger.info("Device limits PullMessages to " + maxTimeout + "ms/" + maxLimit + " messages");
+    if (!tuner.limit(maxTimeout, maxLimit)) return false;
+    tuned();
+    return true;
+  }
+
+  /** Takes over timeout and limit of the tuner into the PullMessages request. */
+  private void tuned() {
+    if (tuner.getPullTimeout() != pullTimeout) applyPullTimeout(tuner.getPullTimeout());
+    if (tuner.getMessageLimit() != messageLimit) applyMessageLimit(tuner.getMessageLimit());
+  }
+
+  /** The lifetime of a Subscribe or Renew, the requested one if the device does not tell. */
+  private void granted(XMLGregorianCalendar current, XMLGregorianCalendar termination) {
+    updateTermination(current, termination);
+    long lifetime =
+        current == null || termination == null ? subscriptionTime : lifetime(current, termination);
+    if (tuner.fitLifetime(lifetime - renewMargin)) tuned();
+  }
+
+  private void updateTermination(XMLGregorianCalendar current, XMLGregorianCalendar termination) {
+    if (current == null || termination == null) return;
+    terminationAt = System.currentTimeMillis() + lifetime(current, termination);
+  }
+
+  /**
+   * Time left until termination. Device times are compared with each other, the device clock may
+   * be off.
+   */
+  static long lifetime(XMLGregorianCalendar current, XMLGregorianCalendar termination) {
+    return termination.toGregorianCalendar().getTimeInMillis()
+        - current.toGregorianCalendar().getTimeInMillis();
+  }
+
+  private long remaining() {
+    return terminationAt - System.currentTimeMillis();
+  }
+
+  static String duration(long millis) {
+    return "PT" + (millis / 1000) + "S";
+  }
+
+  public long getPullTimeout() {
+    return pullTimeout;
+  }
+
+  /** @param pullTimeout how long a PullMessages may block on the device, in milliseconds */
+  public void setPullTimeout(long pullTimeout) {
+    tuner.set(pullTimeout, messageLimit);
+    applyPullTimeout(pullTimeout);
+  }
+
+  private void applyPullTimeout(long pullTimeout) {
+    this.pullTimeout = pullTimeout;
+    pullRequest.setTimeout(DatatypeHolder.FACTORY.newDuration(pullTimeout));
+    HTTPClientPolicy policy = pullPolicy;
+    if (policy != null) policy.setReceiveTimeout(pullTimeout + 10000);
+  }
+
+  public int getMessageLimit() {
+    return messageLimit;
+  }
+
+  /** @param messageLimit maximum number of messages per PullMessagesResponse */
+  public void setMessageLimit(int messageLimit) {
+    tuner.set(pullTimeout, messageLimit);
+    applyMessageLimit(messageLimit);
+  }
+
+  private void applyMessageLimit(int messageLimit) {
+    this.messageLimit = messageLimit;
+    pullRequest.setMessageLimit(messageLimit);
+  }
+
+  public long getSubscriptionTime() {
+    return subscriptionTime;
+  }
+
+  /** @param subscriptionTime requested lifetime of the subscription and of every renew, in ms */
+  public void setSubscriptionTime(long subscriptionTime) {
+    this.subscriptionTime = subscriptionTime;
+  }
+
+  public long getRenewMargin() {
+    return renewMargin;
+  }
+
+  /** @param renewMargin renew when less than pull timeout plus this margin is left, in ms */
+  public void setRenewMargin(long renewMargin) {
+    this.renewMargin = renewMargin;
+  }
+
+  public boolean isSeekOnResubscribe() {
+    return seekOnResubscribe;
+  }
+
+  /** @param seekOnResubscribe replay missed messages with Seek, if the device supports it */
+  public void setSeekOnResubscribe(boolean seekOnResubscribe) {
+    this.seekOnResubscribe = seekOnResubscribe;
+  }
+
+  public boolean isSynchronizeOnResubscribe() {
+    return synchronizeOnResubscribe;
+  }
+
+  /** @param synchronizeOnResubscribe get the current state with SetSynchronizationPoint */
+  public void setSynchronizeOnResubscribe(boolean synchronizeOnResubscribe) {
+    this.synchronizeOnResubscribe = synchronizeOnResubscribe;
+  }
+
+  /** Adapted timeout and message limit, and the event rate, fill ratio and lag of the polls. */
+  public PullTuner getPullTuner() {
+    return tuner;
+  }
+
+  /** @param adaptivePull adapt timeout and message limit to the events, see {@link PullTuner} */
+  public void setAdaptivePull(boolean adaptivePull) {
+    tuner.setAdaptive(adaptivePull);
+  }
+
+  /**
+   * @param min lowest adapted pull timeout, in ms
+   * @param max highest adapted pull timeout, keep it below subscription time minus renew margin
+   */
+  public void setPullTimeoutBounds(long min, long max) {
+    tuner.setBounds(min, max, tuner.getMinMessageLimit(), tuner.getMaxMessageLimit());
+  }
+
+  /**
+   * @param min lowest adapted message limit
+   * @param max highest adapted message limit
+   */
+  public void setMessageLimitBounds(int min, int max) {
+    tuner.setBounds(tuner.getMinPullTimeout(), tuner.getMaxPullTimeout(), min, max);
+  }
+
+  private static class DatatypeHolder {
+    static final DatatypeFactory FACTORY;
+
+    static {
+      try {
+        FACTORY = DatatypeFactory.newInstance();
+      } catch (DatatypeConfigurationException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+  }
+}
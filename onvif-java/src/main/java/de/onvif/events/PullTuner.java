@@ -0,0 +1,204 @@
+package de.onvif.events;
+
+/**
+ * Timeout and MessageLimit of the PullMessages of one device, adapted to its events, and metrics
+ * of its polls.
+ *
+ * <p>Fixed values are wrong at both ends: a quiet device answers every long poll empty when the
+ * timeout runs out, a busy one fills every batch and falls behind. With {@link
+ * #setAdaptive(boolean)} the timeout is doubled after a poll that ran out empty, up to the maximum,
+ * and the message limit is doubled after a full batch. Messages that waited in the device for more
+ * than half the timeout mean the device holds them back until the timeout, which is then halved.
+ * A limit rarely filled shrinks again. Both stay within their bounds and within the limits a device
+ * reported in a PullMessagesFaultResponse. The timeout also stays within half the lifetime the
+ * device granted less the renew margin, or the subscription would have to be renewed before every
+ * poll. Without adaptation only the metrics are kept.
+ *
+ * <p>The metrics are exponentially weighted: the event rate over about {@value #RATE_WINDOW} ms,
+ * the fill ratio and the lag over the last few polls.
+ */
+public final class PullTuner {
+  /** Time constant of the rate average, in ms. */
+  static final long RATE_WINDOW = 10000;
+  /** Weight of a poll in the fill ratio and lag averages. */
+  private static final double WEIGHT = 0.2;
+  /** Fill ratio below which the message limit shrinks. */
+  private static final double LOW_FILL = 0.1;
+  /** Lowest timeout set from the lifetime, which is rounded down to the whole seconds sent. */
+  private static final long MIN_CAP = 1000;
+
+  private volatile boolean adaptive;
+  private volatile long minPullTimeout = 1000;
+  private volatile long maxPullTimeout = 30000;
+  private volatile int minMessageLimit = 10;
+  private volatile int maxMessageLimit = 1000;
+
+  /** Highest timeout that leaves room for polls between renews, set from the granted lifetime. */
+  private volatile long lifetimeCap = Long.MAX_VALUE;
+
+  private volatile long pullTimeout;
+  private volatile int messageLimit;
+
+  private volatile double rate;
+  private volatile double fillRatio;
+  private volatile double lag;
+  private volatile long polls;
+  private long lastPoll;
+
+  PullTuner(long pullTimeout, int messageLimit) {
+    this.pullTimeout = pullTimeout;
+    this.messageLimit = messageLimit;
+  }
+
+  /**
+   * Records a PullMessagesResponse and adapts timeout and limit to it.
+   *
+   * @param messages messages in the response, before any client side filter
+   * @param elapsed time from the request to the response, in ms
+   * @param lag how long the oldest message waited, in ms of the device clock, negative if unknown
+   * @return true if timeout or message limit changed
+   */
+  synchronized boolean pulled(int messages, long elapsed, long lag, long now) {
+    long interval = Math.max(1, lastPoll == 0 ? elapsed : now - lastPoll);
+    lastPoll = now;
+    double a = 1 - Math.exp(-(double) interval / RATE_WINDOW);
+    rate += a * (messages * 1000.0 / interval - rate);
+    int limit = messageLimit;
+    long timeout = pullTimeout;
+    fillRatio += WEIGHT * (Math.min(1.0, (double) messages / limit) - fillRatio);
+    if (messages == 0) lag = 0;
+    if (lag >= 0) this.lag += WEIGHT * (lag - this.lag);
+    polls++;
+    if (!adaptive) return false;
+
+    if (messages >= limit) {
+      limit = limit * 2;
+    } else if (fillRatio < LOW_FILL) {
+      limit = limit * 3 / 4;
+    }
+    if (messages > 0 && lag > timeout / 2) {
+      timeout = timeout / 2;
+    } else if (messages == 0 && elapsed >= timeout * 3 / 4) {
+      timeout = timeout * 2;
+    }
+    limit = Math.max(minMessageLimit, Math.min(maxMessageLimit, limit));
+    timeout = Math.min(lifetimeCap, Math.max(minPullTimeout, Math.min(maxPullTimeout, timeout)));
+    if (limit == messageLimit && timeout == pullTimeout) return false;
+    messageLimit = limit;
+    pullTimeout = timeout;
+    return true;
+  }
+
+  /**
+   * Lowers timeout, limit and their maxima to what the device accepts.
+   *
+   * @return true if the timeout or the message limit were lowered and the pull can be retried
+   */
+  synchronized boolean limit(long maxTimeout, int maxLimit) {
+    boolean adjusted = false;
+    if (maxTimeout > 0) {
+      maxPullTimeout = Math.min(maxPullTimeout, maxTimeout);
+      minPullTimeout = Math.min(minPullTimeout, maxTimeout);
+      if (maxTimeout < pullTimeout) {
+        pullTimeout = maxTimeout;
+        adjusted = true;
+      }
+    }
+    if (maxLimit > 0) {
+      maxMessageLimit = Math.min(maxMessageLimit, maxLimit);
+      minMessageLimit = Math.min(minMessageLimit, maxLimit);
+      if (maxLimit < messageLimit) {
+        messageLimit = maxLimit;
+        adjusted = true;
+      }
+    }
+    return adjusted;
+  }
+
+  /**
+   * Keeps the timeout within half of the lifetime the device granted on Subscribe or Renew, less
+   * the renew margin, so that a renew is followed by polls.
+   *
+   * @param room granted lifetime less the renew margin, in ms
+   * @return true if the timeout was lowered
+   */
+  synchronized boolean fitLifetime(long room) {
+    lifetimeCap = Math.max(MIN_CAP, room / 2 / 1000 * 1000);
+    if (pullTimeout <= lifetimeCap) return false;
+    pullTimeout = lifetimeCap;
+    return true;
+  }
+
+  synchronized void set(long pullTimeout, int messageLimit) {
+    this.pullTimeout = pullTimeout;
+    this.messageLimit = messageLimit;
+  }
+
+  synchronized void setBounds(
+      long minPullTimeout, long maxPullTimeout, int minMessageLimit, int maxMessageLimit) {
+    this.minPullTimeout = minPullTimeout;
+    this.maxPullTimeout = maxPullTimeout;
+    this.minMessageLimit = minMessageLimit;
+    this.maxMessageLimit = maxMessageLimit;
+  }
+
+  public long getMinPullTimeout() {
+    return minPullTimeout;
+  }
+
+  public long getMaxPullTimeout() {
+    return maxPullTimeout;
+  }
+
+  public int getMinMessageLimit() {
+    return minMessageLimit;
+  }
+
+  public int getMaxMessageLimit() {
+    return maxMessageLimit;
+  }
+
+  void setAdaptive(boolean adaptive) {
+    this.adaptive = adaptive;
+  }
+
+  public boolean isAdaptive() {
+    return adaptive;
+  }
+
+  /** Timeout of the next PullMessages, in ms. */
+  public long getPullTimeout() {
+    return pullTimeout;
+  }
+
+  /** MessageLimit of the next PullMessages. */
+  public int getMessageLimit() {
+    return messageLimit;
+  }
+
+  /** Messages per second. */
+  public double getRate() {
+    return rate;
+  }
+
+  /** Messages per response relative to the message limit, 1 if every batch is full. */
+  public double getFillRatio() {
+    return fillRatio;
+  }
+
+  /** How long the oldest message of a response waited in the device, in ms. */
+  public double getLag() {
+    return lag;
+  }
+
+  /** PullMessagesResponses recorded. */
+  public long getPolls() {
+    return polls;
+  }
+
+  public String toString() {
+    return String.format(
+        "%.1f msg/s, fill %.2f, lag %.0f ms, timeout %d ms, limit %d",
+        rate, fillRatio, lag, pullTimeout, messageLimit);
+  }
+}
@@ -0,0 +1,510 @@
+package de.onvif.events;
+
+import de.onvif.soap.OnvifDevice;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.oasis_open.docs.wsn.b_2.FilterType;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.ObjectFactory;
+import org.oasis_open.docs.wsn.b_2.TopicExpressionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the interest of several parts of the application in the events of a device into one
+ * device subscription, since devices allow only a few.
+ *
+ * <p>Every {@link #subscribe} adds an {@link Interest} in some topics. The device is subscribed
+ * once, through an {@link EventMultiplexer} (PullPoint) or a {@link NotificationConsumerEndpoint}
+ * (Notify) using this object as listener, with the union of the topics of all interests as
+ * ConcreteSet filter. Events are routed to the interests whose topics match. The subscription ends
+ * when the last interest of the device is closed.
+ *
+ * <p>When interests come or go the union changes and the device is subscribed again, make before
+ * break: the new subscription is created while the old one keeps delivering, the old one is
+ * unsubscribed once the new one is active. Events received on both meanwhile are passed on once,
+ * equal events received on the same subscription all of them.
+ * Changes within {@link #setResizeDelay(long)} are merged into one new subscription.
+ */
+public class SharedSubscriptions
+    implements EventMultiplexer.EventListener, NotificationConsumerEndpoint.Listener {
+  private static final Logger logger = LoggerFactory.getLogger(SharedSubscriptions.class);
+
+  private static final ObjectFactory WSN = new ObjectFactory();
+  /** Events remembered to detect duplicates while two subscriptions overlap. */
+  private static final int MAX_SEEN = 10000;
+
+  /** Creates, checks and ends the subscriptions of one kind. */
+  private interface Backend {
+    void subscribe(String id, OnvifDevice device, FilterType filter) throws Exception;
+
+    boolean isActive(String id);
+
+    void unsubscribe(String id);
+  }
+
+  private final Map<String, Share> shares = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService control;
+  private volatile Backend backend;
+
+  private volatile long resizeDelay = 200;
+  private volatile long overlapGrace = 5000;
+  private volatile long retryDelay = 5000;
+
+  private final AtomicLong subscriptions = new AtomicLong();
+  private final AtomicLong duplicates = new AtomicLong();
+  private final AtomicLong stale = new AtomicLong();
+
+  public SharedSubscriptions() {
+    control =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "event-shared-subscriptions");
+                t.setDaemon(true);
+                return t;
+              }
+            });
+  }
+
+  /** Subscribes with PullPoint subscriptions of the multiplexer, created with this as listener. */
+  public void setMultiplexer(final EventMultiplexer multiplexer) {
+    backend =
+        new Backend() {
+          public void subscribe(String id, OnvifDevice device, FilterType filter) {
+            multiplexer.add(id, device, filter);
+          }
+
+          public boolean isActive(String id) {
+            EventMultiplexer.State state = multiplexer.getState(id);
+            return state == EventMultiplexer.State.POLLING
+                || state == EventMultiplexer.State.RENEWING
+                || state == EventMultiplexer.State.CATCHING_UP
+                || state == EventMultiplexer.State.PAUSED;
+          }
+
+          public void unsubscribe(String id) {
+            multiplexer.remove(id);
+          }
+        };
+  }
+
+  /** Subscribes with Notify subscriptions of the endpoint, created with this as listener. */
+  public void setEndpoint(final NotificationConsumerEndpoint endpoint) {
+    backend =
+        new Backend() {
+          public void subscribe(String id, OnvifDevice device, FilterType filter)
+              throws Exception {
+            endpoint.subscribe(id, device, filter);
+          }
+
+          public boolean isActive(String id) {
+            return endpoint.getConsumerAddress(id) != null;
+          }
+
+          public void unsubscribe(String id) {
+            endpoint.unsubscribe(id);
+          }
+        };
+  }
+
+  /**
+   * Adds an interest in events of the device, subscribing the device or widening its filter.
+   *
+   * @param deviceId id of the device, passed to the listener
+   * @param topics topics of interest, null for all events
+   * @param listener receives the matching events, called from the threads of the multiplexer or
+   *     endpoint
+   */
+  public Interest subscribe(
+      String deviceId,
+      OnvifDevice device,
+      TopicFilter topics,
+      EventMultiplexer.EventListener listener) {
+    if (backend == null) throw new IllegalStateException("No multiplexer or endpoint set");
+    Interest interest = new Interest(deviceId, topics, listener);
+    while (true) {
+      Share s = shares.get(deviceId);
+      if (s == null) {
+        Share created = new Share(deviceId, device);
+        s = shares.putIfAbsent(deviceId, created);
+        if (s == null) s = created;
+      }
+      synchronized (s) {
+        if (s.closed) continue; // the last interest just left, start over
+        Interest[] added = Arrays.copyOf(s.interests, s.interests.length + 1);
+        added[s.interests.length] = interest;
+        s.interests = added;
+        interest.share = s;
+        scheduleResize(s, resizeDelay);
+      }
+      return interest;
+    }
+  }
+
+  /** Unsubscribes all devices. */
+  public void shutdown() {
+    for (Share s : shares.values()) {
+      for (Interest i : s.interests) i.close();
+    }
+    control.shutdown();
+  }
+
+  public void onMessages(String subscriptionId, List<NotificationMessageHolderType> messages) {
+    List<NotificationEvent> events = new ArrayList<>(messages.size());
+    for (NotificationMessageHolderType m : messages) events.add(NotificationDecoder.decode(m));
+    onEvents(subscriptionId, events);
+  }
+
+  public void onEvents(String subscriptionId, List<NotificationEvent> events) {
+    int hash = subscriptionId.lastIndexOf('#');
+    Share s = hash < 0 ? null : shares.get(subscriptionId.substring(0, hash));
+    if (s == null) {
+      stale.addAndGet(events.size());
+      return;
+    }
+    long generation = Long.parseLong(subscriptionId.substring(hash + 1));
+    Interest[] interests;
+    synchronized (s) {
+      boolean overlapping =
+          (s.pending != null && s.current != null)
+              || System.currentTimeMillis() < s.overlapUntil;
+      boolean live =
+          (s.current != null && s.current.number == generation)
+              || (s.pending != null && s.pending.number == generation);
+      if (!live && !overlapping) {
+        stale.addAndGet(events.size());
+        return;
+      }
+      if (overlapping) {
+        if (s.seen == null) s.seen = new Seen();
+        List<NotificationEvent> unique = new ArrayList<>(events.size());
+        for (NotificationEvent e : events) {
+          Copies copies = s.seen.get(e);
+          if (copies == null) s.seen.put(e, copies = new Copies());
+          if (copies.duplicate(generation)) duplicates.incrementAndGet();
+          else unique.add(e);
+        }
+        events = unique;
+      } else {
+        s.seen = null;
+      }
+      interests = s.interests;
+    }
+    for (Interest i : interests) i.deliver(events);
+  }
+
+  private void scheduleResize(final Share s, long delay) {
+    if (s.resizeScheduled) return;
+    s.resizeScheduled = true;
+    control.schedule(
+        new Runnable() {
+          public void run() {
+            resize(s);
+          }
+        },
+        delay,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Subscribes with the union of the current interests, if it differs from the subscription. */
+  private void resize(Share s) {
+    List<Generation> retired = new ArrayList<>(2);
+    Generation started = null;
+    synchronized (s) {
+      s.resizeScheduled = false;
+      if (s.interests.length == 0) {
+        if (s.current != null) retired.add(s.current);
+        if (s.pending != null) retired.add(s.pending);
+        s.current = null;
+        s.pending = null;
+        s.closed = true;
+        shares.remove(s.deviceId, s);
+      } else {
+        TreeSet<String> union = union(s.interests);
+        Generation target = s.pending != null ? s.pending : s.current;
+        if (target != null && equal(target.topics, union)) return;
+        if (s.pending != null) retired.add(s.pending); // superseded before it was active
+        started = new Generation(++s.generations, union);
+        s.pending = started;
+      }
+    }
+    for (Generation g : retired) backend.unsubscribe(s.id(g));
+    if (started == null) return;
+    try {
+      backend.subscribe(s.id(started), s.device, filter(started.topics));
+      subscriptions.incrementAndGet();
+    } catch (Exception e) {
+      logger.warn("Subscribing {} failed, retrying: {}", s.deviceId, e.toString());
+      synchronized (s) {
+        if (s.pending == started) s.pending = null;
+        scheduleResize(s, retryDelay);
+      }
+      return;
+    }
+    awaitActive(s, started);
+  }
+
+  /** Switches over to the new subscription once it is active. */
+  private void awaitActive(final Share s, final Generation g) {
+    Generation old;
+    synchronized (s) {
+      if (s.pending != g) return; // superseded or closed
+      if (!backend.isActive(s.id(g))) {
+        control.schedule(
+            new Runnable() {
+              public void run() {
+                awaitActive(s, g);
+              }
+            },
+            50,
+            TimeUnit.MILLISECONDS);
+        return;
+      }
+      old = s.current;
+      s.current = g;
+      s.pending = null;
+      // events of the old subscription still in flight are checked for duplicates a while
+      if (old != null) s.overlapUntil = System.currentTimeMillis() + overlapGrace;
+    }
+    if (old != null) {
+      backend.unsubscribe(s.id(old));
+      logger.debug("{} subscribed again for {}", s.deviceId, g.topics == null ? "all" : g.topics);
+    }
+  }
+
+  /** The topics of all interests, null if one wants all events. */
+  private static TreeSet<String> union(Interest[] interests) {
+    TreeSet<String> union = new TreeSet<>();
+    for (Interest i : interests) {
+      if (i.topics == null) return null;
+      union.addAll(i.topics.getExpressions());
+    }
+    return union;
+  }
+
+  private static boolean equal(TreeSet<String> a, TreeSet<String> b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /** ConcreteSet filter of the topics, null for all events. */
+  private static FilterType filter(TreeSet<String> topics) {
+    if (topics == null) return null;
+    StringBuilder expression = new StringBuilder();
+    for (String t : topics) {
+      if (expression.length() > 0) expression.append('|');
+      expression.append(t);
+    }
+    TopicExpressionType t = new TopicExpressionType();
+    t.setDialect(TopicFilter.DIALECT_CONCRETE_SET);
+    t.getContent().add(expression.toString());
+    FilterType filter = new FilterType();
+    filter.getAny().add(WSN.createTopicExpression(t));
+    return filter;
+  }
+
+  /** Filter of the subscription of the device, null if it has none or subscribes to all events. */
+  public FilterType getFilter(String deviceId) {
+    Share s = shares.get(deviceId);
+    if (s == null) return null;
+    synchronized (s) {
+      return s.current == null ? null : filter(s.current.topics);
+    }
+  }
+
+  /** Id of the active subscription of the device in the multiplexer or endpoint, null if none. */
+  public String getSubscriptionId(String deviceId) {
+    Share s = shares.get(deviceId);
+    if (s == null) return null;
+    synchronized (s) {
+      return s.current == null ? null : s.id(s.current);
+    }
+  }
+
+  /** Number of open interests in the device. */
+  public int getInterests(String deviceId) {
+    Share s = shares.get(deviceId);
+    return s == null ? 0 : s.interests.length;
+  }
+
+  /** Device subscriptions created, including the ones replacing a subscription. */
+  public long getSubscriptions() {
+    return subscriptions.get();
+  }
+
+  /** Events dropped because both subscriptions delivered them during a switch. */
+  public long getDuplicates() {
+    return duplicates.get();
+  }
+
+  /** Events of subscriptions replaced or ended a while ago, dropped. */
+  public long getStale() {
+    return stale.get();
+  }
+
+  public long getResizeDelay() {
+    return resizeDelay;
+  }
+
+  /** @param resizeDelay how long to wait for more interest changes before subscribing again */
+  public void setResizeDelay(long resizeDelay) {
+    this.resizeDelay = resizeDelay;
+  }
+
+  public long getOverlapGrace() {
+    return overlapGrace;
+  }
+
+  /**
+   * @param overlapGrace how long after a switch events of the old subscription are still accepted
+   *     and checked for duplicates, in ms
+   */
+  public void setOverlapGrace(long overlapGrace) {
+    this.overlapGrace = overlapGrace;
+  }
+
+  public long getRetryDelay() {
+    return retryDelay;
+  }
+
+  /** @param retryDelay delay before subscribing again after a failed subscribe, in ms */
+  public void setRetryDelay(long retryDelay) {
+    this.retryDelay = retryDelay;
+  }
+
+  /** Interest of one listener in some topics of a device. */
+  public final class Interest {
+    private final String deviceId;
+    private final TopicFilter topics;
+    private final EventMultiplexer.EventListener listener;
+    private Share share;
+
+    Interest(String deviceId, TopicFilter topics, EventMultiplexer.EventListener listener) {
+      this.deviceId = deviceId;
+      this.topics = topics;
+      this.listener = listener;
+    }
+
+    public String getDeviceId() {
+      return deviceId;
+    }
+
+    /** The topics of interest, null for all. */
+    public TopicFilter getTopics() {
+      return topics;
+    }
+
+    /** Ends the interest, the device subscription is narrowed or ended. */
+    public void close() {
+      Share s = share;
+      synchronized (s) {
+        List<Interest> remaining = new ArrayList<>(Arrays.asList(s.interests));
+        if (!remaining.remove(this)) return;
+        s.interests = remaining.toArray(new Interest[remaining.size()]);
+        scheduleResize(s, s.interests.length == 0 ? 0 : resizeDelay);
+      }
+    }
+
+    void deliver(List<NotificationEvent> events) {
+      List<NotificationEvent> matching = events;
+      if (topics != null) {
+        matching = new ArrayList<>();
+        for (NotificationEvent e : events) {
+          if (topics.matches(e.getTopic())) matching.add(e);
+        }
+      }
+      if (matching.isEmpty()) return;
+      try {
+        listener.onEvents(deviceId, matching);
+      } catch (RuntimeException e) {
+        logger.warn("Listener of {} failed", deviceId, e);
+      }
+    }
+  }
+
+  /** One device subscription, replaced when the union of topics changes. */
+  private static final class Generation {
+    final long number;
+    /** Null for all topics. */
+    final TreeSet<String> topics;
+
+    Generation(long number, TreeSet<String> topics) {
+      this.number = number;
+      this.topics = topics;
+    }
+  }
+
+  /** The interests in one device and its subscriptions, guarded by itself. */
+  private static final class Share {
+    final String deviceId;
+    final OnvifDevice device;
+    volatile Interest[] interests = new Interest[0];
+    Generation current;
+    /** Created and not active yet, replaces current when it is. */
+    Generation pending;
+    long generations;
+    long overlapUntil;
+    Seen seen;
+    boolean resizeScheduled;
+    boolean closed;
+
+    Share(String deviceId, OnvifDevice device) {
+      this.deviceId = deviceId;
+      this.device = device;
+    }
+
+    String id(Generation g) {
+      return deviceId + '#' + g.number;
+    }
+  }
+
+  private static final class Seen extends LinkedHashMap<NotificationEvent, Copies> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<NotificationEvent, Copies> eldest) {
+      return size() > MAX_SEEN;
+    }
+  }
+
+  /**
+   * Copies of equal events received per generation while subscriptions overlap. Equal events may
+   * be different events, e.g. pulses within the same second, so only a copy matching one received
+   * on another generation is a duplicate. Equal events that only the old subscription received
+   * before the new one existed can still hide as many later ones of the new subscription.
+   */
+  private static final class Copies {
+    private long[] generations = new long[2];
+    private int[] counts = new int[2];
+    private int size;
+
+    /** Counts a copy received on the generation, true if another generation received it already. */
+    boolean duplicate(long generation) {
+      int own = -1;
+      int others = 0;
+      for (int i = 0; i < size; i++) {
+        if (generations[i] == generation) own = i;
+        else others = Math.max(others, counts[i]);
+      }
+      if (own < 0) {
+        if (size == generations.length) {
+          generations = Arrays.copyOf(generations, size * 2);
+          counts = Arrays.copyOf(counts, size * 2);
+        }
+        own = size++;
+        generations[own] = generation;
+      }
+      return counts[own]++ < others;
+    }
+  }
+}
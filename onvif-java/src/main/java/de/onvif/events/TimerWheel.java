@@ -0,0 +1,173 @@
+package de.onvif.events;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timer wheel for many short timeouts that are rescheduled often, e.g. one per event key.
+ *
+ * <p>Timeouts are intrusive list nodes hashed into a ring of buckets by their due tick, so
+ * scheduling, rescheduling and cancelling are O(1) and cost no allocation, and the only memory is
+ * the timeouts scheduled. A timeout fires at most one tick late. Expired timeouts run on the wheel
+ * thread, outside the lock of the wheel, so they may schedule timeouts themselves. A timeout that
+ * was rescheduled after it was taken off the wheel but before it ran still runs once; {@link
+ * Timeout#isScheduled()} tells it apart.
+ */
+public final class TimerWheel {
+  private static final Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+
+  /** A timeout, subclassed by its owner. Scheduled on one wheel at a time. */
+  public abstract static class Timeout {
+    private long due;
+    private Timeout prev;
+    private Timeout next;
+    private boolean scheduled;
+
+    /** Called on the wheel thread once the timeout is due. */
+    protected abstract void expire();
+
+    /** True if the timeout is on the wheel, i.e. (re)scheduled and not due yet. */
+    public final boolean isScheduled() {
+      return scheduled;
+    }
+  }
+
+  private final long tick;
+  private final Timeout[] buckets;
+  private final int mask;
+  private final long startNanos = System.nanoTime();
+  private final Thread thread;
+  private volatile boolean running = true;
+  private long currentTick;
+  private long manualNow = -1;
+  private int size;
+
+  /**
+   * Starts a wheel ticking on its own daemon thread.
+   *
+   * @param tickMillis resolution of the wheel
+   * @param ticksPerWheel number of buckets, rounded up to a power of two. Timeouts further away
+   *     than one turn are visited once per turn until due.
+   */
+  public TimerWheel(long tickMillis, int ticksPerWheel) {
+    this(tickMillis, ticksPerWheel, true);
+  }
+
+  /**
+   * @param start false for a wheel driven by {@link #advance(long)} only, e.g. for a replay or in
+   *     tests
+   */
+  public TimerWheel(long tickMillis, int ticksPerWheel, boolean start) {
+    this.tick = tickMillis;
+    int n = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+    this.buckets = new Timeout[n];
+    this.mask = n - 1;
+    if (!start) {
+      manualNow = 0;
+      thread = null;
+      return;
+    }
+    thread =
+        new Thread("event-timer-wheel") {
+          public void run() {
+            loop();
+          }
+        };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Current time of the wheel in ms, counted from its creation or as set by advance. */
+  public synchronized long now() {
+    return manualNow >= 0 ? manualNow : (System.nanoTime() - startNanos) / 1000000;
+  }
+
+  /** Schedules the timeout to expire after the delay, replacing an earlier schedule. */
+  public void schedule(Timeout t, long delayMillis) {
+    synchronized (this) {
+      if (t.scheduled) unlink(t);
+      long due = (now() + delayMillis + tick - 1) / tick;
+      if (due <= currentTick) due = currentTick + 1;
+      t.due = due;
+      int bucket = (int) (due & mask);
+      t.prev = null;
+      t.next = buckets[bucket];
+      if (t.next != null) t.next.prev = t;
+      buckets[bucket] = t;
+      t.scheduled = true;
+      size++;
+    }
+  }
+
+  /** @return true if the timeout was scheduled */
+  public synchronized boolean cancel(Timeout t) {
+    if (!t.scheduled) return false;
+    unlink(t);
+    return true;
+  }
+
+  /** Number of scheduled timeouts. */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Runs the timeouts due until the time, on the calling thread. For a wheel created without its
+   * own thread this also sets the time of the wheel.
+   */
+  public void advance(long nowMillis) {
+    List<Timeout> expired = new ArrayList<>();
+    synchronized (this) {
+      if (manualNow >= 0) manualNow = Math.max(manualNow, nowMillis);
+      long target = nowMillis / tick;
+      while (currentTick < target) {
+        currentTick++;
+        Timeout t = buckets[(int) (currentTick & mask)];
+        while (t != null) {
+          Timeout next = t.next;
+          if (t.due <= currentTick) {
+            unlink(t);
+            expired.add(t);
+          }
+          t = next;
+        }
+      }
+    }
+    for (Timeout t : expired) {
+      try {
+        t.expire();
+      } catch (RuntimeException e) {
+        logger.warn("Timeout failed", e);
+      }
+    }
+  }
+
+  /** Stops the wheel thread, scheduled timeouts do not expire any more. */
+  public void stop() {
+    running = false;
+    if (thread != null) thread.interrupt();
+  }
+
+  private void unlink(Timeout t) {
+    if (t.prev != null) t.prev.next = t.next;
+    else buckets[(int) (t.due & mask)] = t.next;
+    if (t.next != null) t.next.prev = t.prev;
+    t.prev = null;
+    t.next = null;
+    t.scheduled = false;
+    size--;
+  }
+
+  private void loop() {
+    while (running) {
+      try {
+        Thread.sleep(tick);
+      } catch (InterruptedException e) {
+        if (!running) return;
+      }
+      advance(now());
+    }
+  }
+}
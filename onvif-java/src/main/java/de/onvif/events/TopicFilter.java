@@ -0,0 +1,271 @@
+package de.onvif.events;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.bind.JAXBElement;
+import org.oasis_open.docs.wsn.b_2.FilterType;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.TopicExpressionType;
+import org.w3c.dom.Element;
+
+/**
+ * Client side topic filter, for devices that ignore or misinterpret the topic filter of a
+ * subscription.
+ *
+ * <p>Compiles Concrete and ConcreteSet topic expressions such as {@code
+ * tns1:VideoSource/MotionAlarm|tns1:RuleEngine//.} into a trie of topic segments. A segment ending
+ * with {@code //.} matches the topic and all topics below it. Matching a message walks the trie
+ * over the topic string without allocating.
+ *
+ * <p>Devices use {@code tns1} for the ONVIF topic namespace, but any prefix may be bound to it.
+ * Where the namespace declarations are at hand, as for a DOM filter or in {@link
+ * NotificationDecoder}, a prefix bound to the ONVIF namespace is replaced by {@code tns1}. JAXB
+ * drops the declarations, so a topic with a prefix the filter does not use is compared without the
+ * prefixes rather than dropped.
+ *
+ * <p>Immutable and thread safe once compiled.
+ */
+public final class TopicFilter {
+  public static final String DIALECT_CONCRETE_SET =
+      "http://www.onvif.org/ver10/tev/topicExpression/ConcreteSet";
+  public static final String DIALECT_CONCRETE =
+      "http://docs.oasis-open.org/wsn/t-1/TopicExpression/Concrete";
+  public static final String DIALECT_SIMPLE =
+      "http://docs.oasis-open.org/wsn/t-1/TopicExpression/Simple";
+
+  private static final String SUBTREE = "//.";
+  private static final String ONVIF_PREFIX = "tns1";
+
+  private final Node root = new Node();
+  /** The expressions without the prefix of the first segment. */
+  private final Node local = new Node();
+  private final List<String> prefixes = new ArrayList<>();
+  private final List<String> expressions = new ArrayList<>();
+
+  private TopicFilter() {}
+
+  /**
+   * @param expressions ConcreteSet expressions, each may be a union of topics separated by {@code
+   *     |}
+   * @throws IllegalArgumentException if an expression uses wildcards or other syntax of the Full
+   *     dialect
+   */
+  public static TopicFilter compile(String... expressions) {
+    return compile(Arrays.asList(expressions));
+  }
+
+  /** @see #compile(String...) */
+  public static TopicFilter compile(Collection<String> expressions) {
+    TopicFilter filter = new TopicFilter();
+    for (String expression : expressions) filter.add(expression, null);
+    return filter;
+  }
+
+  /**
+   * Filter matching the topic expressions of a subscription filter.
+   *
+   * @return null if the filter has no topic expression or one of a dialect that is not supported
+   *     here, then only the device filters
+   */
+  public static TopicFilter of(FilterType filter) {
+    if (filter == null) return null;
+    TopicFilter topics = new TopicFilter();
+    for (Object any : filter.getAny()) {
+      String dialect;
+      String expression;
+      Element context = null;
+      Object value = any instanceof JAXBElement ? ((JAXBElement<?>) any).getValue() : any;
+      if (value instanceof TopicExpressionType) {
+        TopicExpressionType t = (TopicExpressionType) value;
+        dialect = t.getDialect();
+        StringBuilder text = new StringBuilder();
+        for (Object content : t.getContent()) {
+          if (content instanceof String) text.append((String) content);
+        }
+        expression = text.toString();
+      } else if (any instanceof Element
+          && "TopicExpression".equals(((Element) any).getLocalName())) {
+        dialect = ((Element) any).getAttribute("Dialect");
+        expression = ((Element) any).getTextContent();
+        context = (Element) any;
+      } else {
+        continue;
+      }
+      if (!DIALECT_CONCRETE_SET.equals(dialect)
+          && !DIALECT_CONCRETE.equals(dialect)
+          && !DIALECT_SIMPLE.equals(dialect)) {
+        return null;
+      }
+      try {
+        topics.add(expression, context);
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+    return topics.expressions.isEmpty() ? null : topics;
+  }
+
+  /** The compiled expressions, unions split up. */
+  public List<String> getExpressions() {
+    return Collections.unmodifiableList(expressions);
+  }
+
+  /** True if a topic of the message matches. */
+  public boolean matches(NotificationMessageHolderType message) {
+    TopicExpressionType topic = message.getTopic();
+    if (topic == null) return false;
+    List<Object> content = topic.getContent();
+    for (int i = 0, n = content.size(); i < n; i++) {
+      Object o = content.get(i);
+      if (o instanceof String && matches((String) o)) return true;
+    }
+    return false;
+  }
+
+  /** True if the concrete topic, e.g. tns1:VideoSource/MotionAlarm, matches. */
+  public boolean matches(String topic) {
+    if (topic == null) return false;
+    int from = 0;
+    int end = topic.length();
+    while (from < end && topic.charAt(from) <= ' ') from++;
+    while (end > from && topic.charAt(end - 1) <= ' ') end--;
+    if (from == end) return false;
+    if (matches(root, topic, from, end)) return true;
+    // a prefix the filter does not use may still be bound to the same namespace
+    int colon = from;
+    while (colon < end && topic.charAt(colon) != ':' && topic.charAt(colon) != '/') colon++;
+    int path = colon < end && topic.charAt(colon) == ':' ? colon + 1 : from;
+    int len = path == from ? 0 : colon - from;
+    for (int i = 0, n = prefixes.size(); i < n; i++) {
+      String prefix = prefixes.get(i);
+      if (prefix.length() == len && topic.regionMatches(from, prefix, 0, len)) return false;
+    }
+    return matches(local, topic, path, end);
+  }
+
+  private static boolean matches(Node node, String topic, int from, int end) {
+    while (true) {
+      int hash = 0;
+      int to = from;
+      for (char c; to < end && (c = topic.charAt(to)) != '/'; to++) hash = 31 * hash + c;
+      node = node.child(topic, from, to, hash);
+      if (node == null) return false;
+      if (node.subtree) return true;
+      if (to == end) return node.exact;
+      from = to + 1;
+    }
+  }
+
+  /**
+   * Replaces the prefix of the topic by {@code tns1} if it is bound to the ONVIF topic namespace.
+   *
+   * @param namespace the namespace the prefix of the topic is bound to, null if not known
+   */
+  static String normalize(String topic, String namespace) {
+    if (!TopicSet.TOPIC_NS.equals(namespace)) return topic;
+    String prefix = prefix(topic);
+    if (prefix.equals(ONVIF_PREFIX)) return topic;
+    return ONVIF_PREFIX + ":" + topic.substring(prefix.isEmpty() ? 0 : prefix.length() + 1);
+  }
+
+  /** The prefix of the topic, the empty string if it has none. */
+  static String prefix(String topic) {
+    int slash = topic.indexOf('/');
+    int colon = topic.indexOf(':');
+    return colon < 0 || (slash >= 0 && slash < colon) ? "" : topic.substring(0, colon);
+  }
+
+  /** @param context element the prefixes are declared for, null to take them as written */
+  private void add(String expression, Element context) {
+    for (String part : expression.split("\\|")) {
+      String path = part.trim();
+      if (context != null) {
+        String declared = prefix(path);
+        path = normalize(path, context.lookupNamespaceURI(declared.isEmpty() ? null : declared));
+      }
+      boolean subtree = path.endsWith(SUBTREE);
+      if (subtree) path = path.substring(0, path.length() - SUBTREE.length());
+      if (path.isEmpty() || path.contains("//") || path.contains("*") || path.startsWith("/")) {
+        throw new IllegalArgumentException("Unsupported topic expression " + expression);
+      }
+      String prefix = prefix(path);
+      mark(root, path, subtree, expression);
+      String unprefixed = prefix.isEmpty() ? path : path.substring(prefix.length() + 1);
+      mark(local, unprefixed, subtree, expression);
+      if (!prefixes.contains(prefix)) prefixes.add(prefix);
+      expressions.add(part.trim());
+    }
+  }
+
+  private static void mark(Node root, String path, boolean subtree, String expression) {
+    Node node = root;
+    for (String segment : path.split("/", -1)) {
+      if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+        throw new IllegalArgumentException("Unsupported topic expression " + expression);
+      }
+      node = node.add(segment);
+    }
+    if (subtree) node.subtree = true;
+    else node.exact = true;
+  }
+
+  /** A topic segment, children in an open addressing table keyed by segment name. */
+  private static final class Node {
+    String[] names = new String[4];
+    Node[] children = new Node[4];
+    int count;
+    /** The expression ends here. */
+    boolean exact;
+    /** This topic and everything below matches. */
+    boolean subtree;
+
+    Node child(String topic, int from, int to, int hash) {
+      int len = to - from;
+      int mask = names.length - 1;
+      for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+        String name = names[i];
+        if (name == null) return null;
+        if (name.length() == len
+            && name.hashCode() == hash
+            && topic.regionMatches(from, name, 0, len)) {
+          return children[i];
+        }
+      }
+    }
+
+    Node add(String name) {
+      Node existing = child(name, 0, name.length(), name.hashCode());
+      if (existing != null) return existing;
+      if ((count + 1) * 2 > names.length) resize();
+      Node node = new Node();
+      put(name, node);
+      count++;
+      return node;
+    }
+
+    private void put(String name, Node node) {
+      int mask = names.length - 1;
+      int i = spread(name.hashCode()) & mask;
+      while (names[i] != null) i = (i + 1) & mask;
+      names[i] = name;
+      children[i] = node;
+    }
+
+    private void resize() {
+      String[] oldNames = names;
+      Node[] oldChildren = children;
+      names = new String[oldNames.length * 2];
+      children = new Node[oldNames.length * 2];
+      for (int i = 0; i < oldNames.length; i++) {
+        if (oldNames[i] != null) put(oldNames[i], oldChildren[i]);
+      }
+    }
+
+    private static int spread(int hash) {
+      return hash ^ (hash >>> 16);
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package de.onvif.events;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.oasis_open.docs.wsn.t_1.TopicSetType;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The topics a device announces in the TopicSet of GetEventPropertiesResponse, as flat records
+ * instead of the DOM tree: the concrete path of every topic (e.g. {@code
+ * tns1:RuleEngine/CellMotionDetector/Motion}), whether its messages are properties and the names
+ * and types of the SimpleItems of its Source, Key and Data. Immutable, names and types are interned
+ * so the sets of many device models share them.
+ */
+public final class TopicSet {
+  static final String TOPIC_NS = "http://www.onvif.org/ver10/topics";
+  private static final String WSTOP = "http://docs.oasis-open.org/wsn/t-1";
+  private static final String[] NONE = new String[0];
+
+  /** One topic of the set. */
+  public static final class Topic {
+    private final String path;
+    private final boolean property;
+    /** Name, type, name, type... */
+    private final String[] source;
+    private final String[] key;
+    private final String[] data;
+
+    Topic(String path, boolean property, String[] source, String[] key, String[] data) {
+      this.path = path;
+      this.property = property;
+      this.source = source;
+      this.key = key;
+      this.data = data;
+    }
+
+    /** Concrete topic path, as in the topic of a notification. */
+    public String getPath() {
+      return path;
+    }
+
+    /** True if the messages describe a property, sent with PropertyOperation. */
+    public boolean isProperty() {
+      return property;
+    }
+
+    /** Names and types of the Source items, in order. */
+    public Map<String, String> getSource() {
+      return map(source);
+    }
+
+    public Map<String, String> getKey() {
+      return map(key);
+    }
+
+    public Map<String, String> getData() {
+      return map(data);
+    }
+
+    public String toString() {
+      return path + (property ? " (property)" : "");
+    }
+
+    private static Map<String, String> map(String[] items) {
+      Map<String, String> m = new LinkedHashMap<>();
+      for (int i = 0; i < items.length; i += 2) m.put(items[i], items[i + 1]);
+      return Collections.unmodifiableMap(m);
+    }
+  }
+
+  private final List<Topic> topics;
+  private final Map<String, Topic> byPath;
+
+  TopicSet(List<Topic> topics) {
+    this.topics = Collections.unmodifiableList(new ArrayList<>(topics));
+    Map<String, Topic> m = new LinkedHashMap<>();
+    for (Topic t : topics) m.put(t.path, t);
+    this.byPath = m;
+  }
+
+  /** All topics in the order of the device. */
+  public List<Topic> getTopics() {
+    return topics;
+  }
+
+  /** The topic with the concrete path, null if the device does not announce it. */
+  public Topic get(String path) {
+    return byPath.get(path);
+  }
+
+  public int size() {
+    return topics.size();
+  }
+
+  /** Topics passing the filter. */
+  public List<Topic> matching(TopicFilter filter) {
+    List<Topic> matching = new ArrayList<>();
+    for (Topic t : topics) {
+      if (filter.matches(t.path)) matching.add(t);
+    }
+    return matching;
+  }
+
+  /** Walks the TopicSet of a GetEventPropertiesResponse, null gives an empty set. */
+  public static TopicSet parse(TopicSetType topicSet) {
+    List<Topic> topics = new ArrayList<>();
+    if (topicSet != null) {
+      for (Object any : topicSet.getAny()) {
+        if (any instanceof Element) {
+          Element root = (Element) any;
+          walk(root, prefix(root) + ":" + root.getLocalName(), topics);
+        }
+      }
+    }
+    return new TopicSet(topics);
+  }
+
+  private static void walk(Element node, String path, List<Topic> topics) {
+    Element description = null;
+    for (Node n = node.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n instanceof Element && isDescription((Element) n)) description = (Element) n;
+    }
+    if (description != null || "true".equals(node.getAttributeNS(WSTOP, "topic"))) {
+      topics.add(describe(path.intern(), description));
+    }
+    for (Node n = node.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n instanceof Element && !isDescription((Element) n)) {
+        walk((Element) n, path + "/" + n.getLocalName(), topics);
+      }
+    }
+  }
+
+  /** The tt:MessageDescription of a topic, not a child topic of that name. */
+  private static boolean isDescription(Element e) {
+    return "MessageDescription".equals(e.getLocalName()) && !TOPIC_NS.equals(e.getNamespaceURI());
+  }
+
+  private static Topic describe(String path, Element description) {
+    if (description == null) return new Topic(path, false, NONE, NONE, NONE);
+    String[] source = NONE;
+    String[] key = NONE;
+    String[] data = NONE;
+    for (Node n = description.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (!(n instanceof Element)) continue;
+      String name = n.getLocalName();
+      if ("Source".equals(name)) source = items((Element) n);
+      else if ("Key".equals(name)) key = items((Element) n);
+      else if ("Data".equals(name)) data = items((Element) n);
+    }
+    return new Topic(
+        path, "true".equals(description.getAttribute("IsProperty")), source, key, data);
+  }
+
+  private static String[] items(Element group) {
+    List<String> items = new ArrayList<>();
+    for (Node n = group.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n instanceof Element && "SimpleItemDescription".equals(n.getLocalName())) {
+        items.add(((Element) n).getAttribute("Name").intern());
+        items.add(((Element) n).getAttribute("Type").intern());
+      }
+    }
+    return items.isEmpty() ? NONE : items.toArray(new String[items.size()]);
+  }
+
+  /** The prefix of the root topic, tns1 for the ONVIF topic namespace as in notifications. */
+  private static String prefix(Element root) {
+    if (TOPIC_NS.equals(root.getNamespaceURI())) return "tns1";
+    return root.getPrefix() != null ? root.getPrefix() : "";
+  }
+
+  /**
+   * Writes the set compactly: item names and types once in a string table, every path as the
+   * length of the prefix it shares with the path before and the rest.
+   */
+  void write(DataOutput out) throws IOException {
+    Map<String, Integer> table = new LinkedHashMap<>();
+    for (Topic t : topics) {
+      for (String[] items : new String[][] {t.source, t.key, t.data}) {
+        for (String item : items) {
+          if (!table.containsKey(item)) table.put(item, table.size());
+        }
+      }
+    }
+    if (table.size() > 0xffff) throw new IOException("Too many item names and types");
+    out.writeInt(table.size());
+    for (String item : table.keySet()) out.writeUTF(item);
+    out.writeInt(topics.size());
+    String previous = "";
+    for (Topic t : topics) {
+      int common = 0;
+      int max = Math.min(0xffff, Math.min(previous.length(), t.path.length()));
+      while (common < max && previous.charAt(common) == t.path.charAt(common)) common++;
+      out.writeShort(common);
+      out.writeUTF(t.path.substring(common));
+      out.writeBoolean(t.property);
+      writeItems(out, t.source, table);
+      writeItems(out, t.key, table);
+      writeItems(out, t.data, table);
+      previous = t.path;
+    }
+  }
+
+  static TopicSet read(DataInput in) throws IOException {
+    String[] table = new String[in.readInt()];
+    for (int i = 0; i < table.length; i++) table[i] = in.readUTF().intern();
+    int size = in.readInt();
+    List<Topic> topics = new ArrayList<>(size);
+    String previous = "";
+    for (int i = 0; i < size; i++) {
+      String path = (previous.substring(0, in.readUnsignedShort()) + in.readUTF()).intern();
+      topics.add(
+          new Topic(
+              path,
+              in.readBoolean(),
+              readItems(in, table),
+              readItems(in, table),
+              readItems(in, table)));
+      previous = path;
+    }
+    return new TopicSet(topics);
+  }
+
+  private static void writeItems(DataOutput out, String[] items, Map<String, Integer> table)
+      throws IOException {
+    out.writeShort(items.length);
+    for (String item : items) out.writeShort(table.get(item));
+  }
+
+  private static String[] readItems(DataInput in, String[] table) throws IOException {
+    int n = in.readUnsignedShort();
+    if (n == 0) return NONE;
+    String[] items = new String[n];
+    for (int i = 0; i < n; i++) items[i] = table[in.readUnsignedShort()];
+    return items;
+  }
+}
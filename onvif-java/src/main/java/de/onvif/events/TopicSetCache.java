@@ -0,0 +1,192 @@
+package de.onvif.events;
+
+import de.onvif.beans.DeviceInfo;
+import de.onvif.soap.OnvifDevice;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import org.onvif.ver10.events.wsdl.EventPortType;
+import org.onvif.ver10.events.wsdl.GetEventProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link TopicSet}s shared by all devices of the same manufacturer, model and firmware.
+ *
+ * <p>GetEventProperties can take seconds and return hundreds of KB on some cameras, while devices
+ * of one model and firmware announce the same topics. The set is fetched from the first device of
+ * a model, devices of that model asking at the same time wait for it. With a directory every set
+ * is also kept in a small binary file, written atomically, so a restart does not fetch again. A
+ * device that reports neither manufacturer nor model is always asked itself.
+ */
+public class TopicSetCache {
+  private static final Logger logger = LoggerFactory.getLogger(TopicSetCache.class);
+
+  private static final int MAGIC = 0x4f4e5654;
+  private static final int VERSION = 1;
+
+  private final File dir;
+  private final ConcurrentHashMap<String, FutureTask<TopicSet>> sets = new ConcurrentHashMap<>();
+  private final AtomicLong fetches = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+
+  /** @param dir directory of the files, created if missing, null to keep the sets in memory */
+  public TopicSetCache(File dir) {
+    this.dir = dir;
+  }
+
+  /** The topics of the device, asks it for its DeviceInfo first. */
+  public TopicSet get(OnvifDevice device) {
+    return get(device.getDeviceInfo(), device.getEvents());
+  }
+
+  /**
+   * The topics of a device of the model.
+   *
+   * @param events the events service of the device, asked if the model is not known yet
+   */
+  public TopicSet get(DeviceInfo info, final EventPortType events) {
+    final String key = key(info);
+    if (key == null) return fetch(events);
+    FutureTask<TopicSet> task = sets.get(key);
+    if (task == null) {
+      FutureTask<TopicSet> created =
+          new FutureTask<>(
+              new Callable<TopicSet>() {
+                public TopicSet call() {
+                  return load(key, events);
+                }
+              });
+      task = sets.putIfAbsent(key, created);
+      if (task == null) {
+        task = created;
+        created.run();
+      }
+    }
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      // the next device of the model tries again
+      sets.remove(key, task);
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new IllegalStateException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for the topic set of " + key, e);
+    }
+  }
+
+  /** Forgets the set of the model, in memory and on disk, e.g. when its topics changed. */
+  public void invalidate(DeviceInfo info) {
+    String key = key(info);
+    if (key == null) return;
+    sets.remove(key);
+    if (dir != null) new File(dir, fileName(key)).delete();
+  }
+
+  /** GetEventProperties requests sent. */
+  public long getFetches() {
+    return fetches.get();
+  }
+
+  /** Sets read from disk. */
+  public long getLoads() {
+    return loads.get();
+  }
+
+  /** Models cached in memory. */
+  public int size() {
+    return sets.size();
+  }
+
+  private TopicSet load(String key, EventPortType events) {
+    File file = dir == null ? null : new File(dir, fileName(key));
+    if (file != null && file.exists()) {
+      try {
+        TopicSet set = read(file, key);
+        if (set != null) {
+          loads.incrementAndGet();
+          return set;
+        }
+      } catch (IOException e) {
+        logger.warn("Unreadable topic set " + file + ", fetching it again", e);
+      }
+    }
+    TopicSet set = fetch(events);
+    if (file != null) {
+      try {
+        write(file, key, set);
+      } catch (IOException e) {
+        logger.warn("Writing topic set " + file + " failed", e);
+      }
+    }
+    return set;
+  }
+
+  private TopicSet fetch(EventPortType events) {
+    fetches.incrementAndGet();
+    return TopicSet.parse(events.getEventProperties(new GetEventProperties()).getTopicSet());
+  }
+
+  /** @return null if the file belongs to another model with the same file name */
+  private static TopicSet read(File file, String key) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a topic set file");
+      }
+      if (!key.equals(in.readUTF())) return null;
+      return TopicSet.read(in);
+    } catch (RuntimeException e) {
+      throw new IOException("Corrupt topic set file", e);
+    }
+  }
+
+  private void write(File file, String key, TopicSet set) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can not create " + dir);
+    File tmp = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(key);
+      set.write(out);
+    }
+    Files.move(
+        tmp.toPath(),
+        file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** manufacturer|model|firmware, null if the device does not tell its model. */
+  static String key(DeviceInfo info) {
+    if (info == null) return null;
+    String manufacturer = nullToEmpty(info.getManufacturer()).trim();
+    String model = nullToEmpty(info.getModel()).trim();
+    if (manufacturer.isEmpty() && model.isEmpty()) return null;
+    return manufacturer + "|" + model + "|" + nullToEmpty(info.getFirmwareVersion()).trim();
+  }
+
+  private static String fileName(String key) {
+    String readable = key.replaceAll("[^A-Za-z0-9._-]", "_");
+    if (readable.length() > 100) readable = readable.substring(0, 100);
+    return readable + "-" + Integer.toHexString(key.hashCode()) + ".topics";
+  }
+
+  private static String nullToEmpty(String s) {
+    return s == null ? "" : s;
+  }
+}
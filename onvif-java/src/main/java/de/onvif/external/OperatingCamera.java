@@ -1,6 +1,10 @@
 package de.onvif.external;
 
 import de.onvif.beans.DeviceInfo;
+import de.onvif.ptz.PtzCommand;
+import de.onvif.ptz.PtzCommandChannel;
+import de.onvif.ptz.PtzMetadataCache;
+import de.onvif.ptz.PtzTemplateSender;
 import de.onvif.soap.OnvifDevice;
 import de.onvif.utils.OnvifUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -13,12 +17,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.Duration;
 import javax.xml.soap.SOAPException;
+import javax.xml.ws.BindingProvider;
+import java.io.EOFException;
 import java.io.IOException;
 import java.lang.Object;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -39,6 +48,16 @@ public class OperatingCamera {
     private static String ptzSupport = "ptzSupport";
     private static final Logger logger = LoggerFactory.getLogger(OperatingCamera.class);
     private static Map<String, Map<String, Object>> getDeviceMaps = new ConcurrentHashMap<>();
+    /**
+     * 每台设备一个命令通道：新的移动命令替换同一个 profile 还没发送的，停止命令优先，每台设备同时只有一个请求，
+     * 一台慢的摄像头不会挡住其他摄像头。按 PTZ 服务地址区分，getDevice 重新创建的代理还用原来的通道
+     */
+    private static Map<Object, PtzCommandChannel> ptzChannels = new ConcurrentHashMap<>();
+    private static volatile boolean templatePtz = false;
+    /**
+     * 预置位、节点和配置缓存，按IP区分；注册到 EventMultiplexer 后预置位事件也会让它失效
+     */
+    private static final PtzMetadataCache ptzMetadata = new PtzMetadataCache();
 
 
     /**
@@ -117,7 +136,7 @@ public class OperatingCamera {
     }
 
 
-    public static synchronized Map<String, Object> executeContinuousMove(BaseInfo baseInfo, String direction) throws DatatypeConfigurationException {
+    public static Map<String, Object> executeContinuousMove(BaseInfo baseInfo, String direction) throws DatatypeConfigurationException {
         Map<String, Object> map = new HashMap<>();
         if (getDeviceMaps.get(baseInfo.getIpAddress()) != null) {
             map = getDeviceMaps.get(baseInfo.getIpAddress());
@@ -127,25 +146,27 @@ public class OperatingCamera {
         if (map.get(onvifDevice) == null) {
             map = getDevice(baseInfo);
         }
-        if (map.get(onvifDevice) != null) {
-            OnvifDevice device = (OnvifDevice) map.get(onvifDevice);
-            DeviceInfo deviceInfo = device.getDeviceInfo();
-            if (StringUtils.isNoneBlank(deviceInfo.toString())) {
-                map.put(onLineOrOffLine, "1");
-            } else {
-                map.put(onLineOrOffLine, "0");
-            }
-        } else {
+        OnvifDevice device = (OnvifDevice) map.get(onvifDevice);
+        if (device == null) {
             map.put(onLineOrOffLine, "0");
         }
 
+        PTZ ptz = (PTZ) map.get("ptz");
+        if (ptz == null) {
+            return noSupport();
+        }
         try {
-            return executeContinuousMove((PTZ) map.get("ptz"), map.get("profileToken_0").toString(), direction, baseInfo.getTimeOut(), baseInfo.getSpeed(), null);
+            PtzCommand command = move(channel(ptz, device), map.get("profileToken_0").toString(), direction, baseInfo.getTimeOut(), baseInfo.getSpeed());
+            // 摇杆每次调用不再发 GetDeviceInformation，在线状态取自这次命令的结果；被替换的命令没有结果
+            if (device != null && command.getState() != PtzCommand.State.SUPERSEDED) {
+                synchronized (map) {
+                    map.put(onLineOrOffLine, answered(command) ? "1" : "0");
+                }
+            }
+            return result(command);
         } catch (InterruptedException interruptedException) {
             interruptedException.printStackTrace();
-            Map<String, Object> map1 = new HashMap<>();
-            map1.put(ptzSupport, "noSupport");
-            return map1;
+            return noSupport();
         }
     }
 
@@ -153,87 +174,203 @@ public class OperatingCamera {
      * ContinuousMove 进行封装，第一个是默认移动速度和移动时间
      * 默认速度0.1 默认移动时间是1000毫秒
      */
-    public static synchronized Map<String, Object> executeContinuousMove(PTZ ptz, String profileToken, String direction)
+    public static Map<String, Object> executeContinuousMove(PTZ ptz, String profileToken, String direction)
             throws InterruptedException, DatatypeConfigurationException {
-        return executeContinuousMove(ptz, profileToken, direction, DatatypeFactory.newInstance().newDuration(1000), 0.1f);
+        if (ptz == null) {
+            return noSupport();
+        }
+        return result(move(channel(ptz, null), profileToken, direction, 1000L, 0.1f));
     }
 
-    public static synchronized Map<String, Object> executeContinuousMove(PTZ ptz, String profileToken, String direction, Long timeout, Float speedValue, Boolean boolen) throws InterruptedException, DatatypeConfigurationException {
-        return executeContinuousMove(ptz, profileToken, direction, DatatypeFactory.newInstance().newDuration(timeout), speedValue);
+    public static Map<String, Object> executeContinuousMove(PTZ ptz, String profileToken, String direction, Long timeout, Float speedValue, Boolean boolen) throws InterruptedException, DatatypeConfigurationException {
+        if (ptz == null) {
+            return noSupport();
+        }
+        return result(move(channel(ptz, null), profileToken, direction, timeout, speedValue));
     }
 
-    public static synchronized Map<String, Object> executeContinuousMove(PTZ ptz, String profileToken, String direction, Duration timeout, Float speedValue) throws InterruptedException {
-        Map<String, Object> map = new HashMap<>();
-        PTZSpeed speed = new PTZSpeed();
-        Vector2D xy = new Vector2D();
-        xy.setSpace("http://www.onvif.org/ver10/tptz/PanTiltSpaces/PositionGenericSpace");
+    /**
+     * 移动命令交给设备的命令通道，只等这台设备：被后来的命令替换的也算支持
+     */
+    public static Map<String, Object> executeContinuousMove(PTZ ptz, String profileToken, String direction, Duration timeout, Float speedValue) throws InterruptedException {
+        if (ptz == null) {
+            return noSupport();
+        }
+        long timeoutMillis = timeout == null ? 0 : timeout.getTimeInMillis(new Date(0));
+        return result(move(channel(ptz, null), profileToken, direction, timeoutMillis, speedValue));
+    }
 
-        //ZOOM
-        Vector1D zoom1D = new Vector1D();
-        zoom1D.setSpace("http://www.onvif.org/ver10/tptz/ZoomSpaces/PositionGenericSpace");
+    /**
+     * 摇杆每秒几十次调用，这里不创建 PTZSpeed/Duration 对象，也不打 info 日志
+     */
+    private static PtzCommand move(PtzCommandChannel channel, String profileToken, String direction, Long timeout, Float speedValue) throws InterruptedException {
+        float speed = speedValue;
+        float x = 0f;
+        float y = 0f;
+        float zoom = 0f;
         switch (direction) {
             case "PTZ_CMD_LEFT":
-                logger.info("摄像头向左");
-                xy.setX(-(speedValue));
-                xy.setY(0f);
+                x = -speed;
                 break;
             case "PTZ_CMD_RIGHT":
-                logger.info("摄像头向右");
-                xy.setX(speedValue);
-                xy.setY(0f);
+                x = speed;
                 break;
             case "PTZ_CMD_UP":
-                logger.info("摄像头向上");
-                xy.setX(0f);
-                xy.setY(speedValue);
+                y = speed;
                 break;
             case "PTZ_CMD_DOWN":
-                logger.info("摄像头向下");
-                xy.setX(0f);
-                xy.setY(-(speedValue));
+                y = -speed;
                 break;
             case "PTZ_CMD_LEFTUP":
-                xy.setX(-(speedValue));
-                xy.setY(speedValue);
+                x = -speed;
+                y = speed;
                 break;
             case "PTZ_CMD_LEFTDOWN":
-                xy.setX(-(speedValue));
-                xy.setY(-(speedValue));
+                x = -speed;
+                y = -speed;
                 break;
             case "PTZ_CMD_RIGHTUP":
-                xy.setX(speedValue);
-                xy.setY(speedValue);
+                x = speed;
+                y = speed;
                 break;
             case "PTZ_CMD_RIGHTDOWN":
-                xy.setX(speedValue);
-                xy.setY(-(speedValue));
+                x = speed;
+                y = -speed;
                 break;
             case "PTZ_CMD_ZOOM_IN":
-                xy.setX(0f);
-                xy.setY(0f);
-                zoom1D.setX(speedValue);
+                zoom = speed;
                 break;
             //缩小
             case "PTZ_CMD_ZOOM_OUT":
-                xy.setX(0f);
-                xy.setY(0f);
-                zoom1D.setX(-(speedValue));
+                zoom = -speed;
                 break;
             default:
                 break;
         }
-        speed.setPanTilt(xy);
-        speed.setZoom(zoom1D);
-        try {
-            ptz.continuousMove(profileToken, speed, timeout);
-            map.put(ptzSupport, "support");
-            return map;
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (logger.isDebugEnabled()) {
+            logger.debug("ContinuousMove " + profileToken + " " + direction + " speed " + speed);
+        }
+        PtzCommand command = channel.move(profileToken, x, y, zoom, timeout == null ? 0 : timeout);
+        command.await();
+        return command;
+    }
+
+    /**
+     * 停止，排在还没发送的移动命令前面，还没发送的移动命令不再发送
+     */
+    public static Map<String, Object> executeStop(PTZ ptz, String profileToken) throws InterruptedException {
+        if (ptz == null) {
+            return noSupport();
+        }
+        return result(stop(channel(ptz, null), profileToken));
+    }
+
+    private static PtzCommand stop(PtzCommandChannel channel, String profileToken) throws InterruptedException {
+        PtzCommand command = channel.stop(profileToken, true, true);
+        command.await();
+        return command;
+    }
+
+    public static Map<String, Object> executeStop(BaseInfo baseInfo) throws InterruptedException {
+        Map<String, Object> map = getDeviceMaps.get(baseInfo.getIpAddress());
+        if (map == null || map.get(onvifDevice) == null) {
+            map = getDevice(baseInfo);
+        }
+        if (map.get("ptz") == null) {
+            return noSupport();
+        }
+        return result(stop(channel((PTZ) map.get("ptz"), (OnvifDevice) map.get(onvifDevice)), map.get("profileToken_0").toString()));
+    }
+
+    /**
+     * 打开 templatePtz 并且知道设备时，用预先序列化好的报文发送（只支持 http 地址）
+     */
+    static PtzCommandChannel channel(PTZ ptz, OnvifDevice device) {
+        Object key = channelKey(ptz);
+        PtzCommandChannel channel = ptzChannels.get(key);
+        if (channel == null) {
+            PtzCommandChannel created = new PtzCommandChannel(sender(ptz, device));
+            channel = ptzChannels.putIfAbsent(key, created);
+            if (channel == null) {
+                channel = created;
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * PTZ 服务地址，不是 JAX-WS 代理时用代理本身
+     */
+    private static Object channelKey(PTZ ptz) {
+        if (ptz instanceof BindingProvider) {
+            Object address = ((BindingProvider) ptz).getRequestContext().get(BindingProvider.ENDPOINT_ADDRESS_PROPERTY);
+            if (address != null) {
+                return address;
+            }
+        }
+        return ptz;
+    }
+
+    private static PtzCommandChannel.Sender sender(PTZ ptz, OnvifDevice device) {
+        if (templatePtz && device != null) {
+            try {
+                return new PtzTemplateSender(device);
+            } catch (Exception e) {
+                logger.warn("PTZ templates not usable for " + device.getServiceAddresses().get(OnvifDevice.SERVICE_PTZ) + ", sending with JAXB", e);
+            }
+        }
+        return PtzCommandChannel.sender(ptz);
+    }
+
+    public static boolean isTemplatePtz() {
+        return templatePtz;
+    }
+
+    /**
+     * 低延迟模式：ContinuousMove/Stop 不经过 JAXB，只对以后新建的命令通道有效
+     */
+    public static void setTemplatePtz(boolean templatePtz) {
+        OperatingCamera.templatePtz = templatePtz;
+    }
+
+    public static PtzMetadataCache getPtzMetadata() {
+        return ptzMetadata;
+    }
+
+    /**
+     * 没有PTZ的摄像头（固定枪机）
+     */
+    private static Map<String, Object> noSupport() {
+        Map<String, Object> map = new HashMap<>();
+        map.put(ptzSupport, "noSupport");
+        return map;
+    }
+
+    private static Map<String, Object> result(PtzCommand command) {
+        Map<String, Object> map = new HashMap<>();
+        if (command.getState() == PtzCommand.State.FAILED) {
+            logger.warn(command + " failed", command.getError());
             map.put(ptzSupport, "noSupport");
-            return map;
+        } else {
+            map.put(ptzSupport, "support");
         }
+        return map;
+    }
 
+    /**
+     * 设备有回应就算在线，包括 SOAP Fault；连不上、超时、连接被断开算离线
+     */
+    private static boolean answered(PtzCommand command) {
+        if (command.getState() != PtzCommand.State.FAILED) {
+            return true;
+        }
+        for (Throwable t = command.getError(); t != null; t = t.getCause()) {
+            if (t instanceof SocketException || t instanceof SocketTimeoutException
+                    || t instanceof UnknownHostException || t instanceof EOFException) {
+                return false;
+            }
+        }
+        return true;
     }
 
     //复位键，默认第一个预设就是复位
@@ -250,9 +387,9 @@ public class OperatingCamera {
         if (map.get(onvifDevice) != null) {
             OnvifDevice device = (OnvifDevice) map.get(onvifDevice);
             PTZ ptz = device.getPtz();
-            String profileToken = map.get("profileToken_0").toString();
-            List<PTZPreset> presets = ptz.getPresets(profileToken);
             if (ptz != null) {
+                String profileToken = map.get("profileToken_0").toString();
+                List<PTZPreset> presets = ptzMetadata.getPresets(baseInfo.getIpAddress(), ptz, profileToken);
                 map.put(onLineOrOffLine, "1");
                 if (presets != null && !presets.isEmpty()) {
                     if (!presets.isEmpty()) {
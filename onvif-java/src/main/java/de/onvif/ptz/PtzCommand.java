@@ -0,0 +1,101 @@
+package de.onvif.ptz;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** A ContinuousMove or Stop queued on a {@link PtzCommandChannel}, and its outcome. */
+public final class PtzCommand {
+  public enum State {
+    QUEUED,
+    SENDING,
+    /** The device accepted the command. */
+    DONE,
+    FAILED,
+    /** Replaced by a later command before it was sent, never sent. */
+    SUPERSEDED
+  }
+
+  final boolean stop;
+  final String profileToken;
+  /** Velocities of a move, generic spaces from -1 to 1. */
+  final float x;
+  final float y;
+  final float zoom;
+  /** Timeout of a move in ms, 0 for none. */
+  final long timeout;
+  /** What a stop stops. */
+  final boolean stopPanTilt;
+  final boolean stopZoom;
+
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile State state = State.QUEUED;
+  private volatile Exception error;
+
+  private PtzCommand(
+      boolean stop,
+      String profileToken,
+      float x,
+      float y,
+      float zoom,
+      long timeout,
+      boolean stopPanTilt,
+      boolean stopZoom) {
+    this.stop = stop;
+    this.profileToken = profileToken;
+    this.x = x;
+    this.y = y;
+    this.zoom = zoom;
+    this.timeout = timeout;
+    this.stopPanTilt = stopPanTilt;
+    this.stopZoom = stopZoom;
+  }
+
+  static PtzCommand move(String profileToken, float x, float y, float zoom, long timeout) {
+    return new PtzCommand(false, profileToken, x, y, zoom, timeout, false, false);
+  }
+
+  static PtzCommand stop(String profileToken, boolean panTilt, boolean zoom) {
+    return new PtzCommand(true, profileToken, 0, 0, 0, 0, panTilt, zoom);
+  }
+
+  public boolean isStop() {
+    return stop;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  /** Why the device did not accept the command, null unless {@link State#FAILED}. */
+  public Exception getError() {
+    return error;
+  }
+
+  /** Waits until the command was sent or superseded. */
+  public State await() throws InterruptedException {
+    done.await();
+    return state;
+  }
+
+  /** @return the state, still QUEUED or SENDING if the time ran out */
+  public State await(long timeout, TimeUnit unit) throws InterruptedException {
+    done.await(timeout, unit);
+    return state;
+  }
+
+  void sending() {
+    state = State.SENDING;
+  }
+
+  void complete(State state, Exception error) {
+    this.error = error;
+    this.state = state;
+    done.countDown();
+  }
+
+  public String toString() {
+    if (stop) return "Stop " + profileToken + " " + state;
+    return String.format(
+        "ContinuousMove %s (%.2f, %.2f, %.2f) %s", profileToken, x, y, zoom, state);
+  }
+}
@@ -0,0 +1,269 @@
+package de.onvif.ptz;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import org.onvif.ver10.schema.PTZSpeed;
+import org.onvif.ver10.schema.Vector1D;
+import org.onvif.ver10.schema.Vector2D;
+import org.onvif.ver20.ptz.wsdl.PTZ;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the ContinuousMove and Stop commands of one device, one at a time.
+ *
+ * <p>A joystick produces velocities faster than a slow camera answers them, and only the last one
+ * matters: a move replaces the move of the same profile still waiting to be sent, whose {@link
+ * PtzCommand} ends as {@link PtzCommand.State#SUPERSEDED}. A stop replaces the waiting move of its
+ * profile and is sent before the next move. Moves of other profiles, e.g. the other heads of a
+ * multi-sensor camera, are kept and sent in turn. At most one request is in flight per device, on
+ * a thread of the executor, so a camera that takes seconds to answer only delays its own commands.
+ */
+public class PtzCommandChannel {
+  private static final Logger logger = LoggerFactory.getLogger(PtzCommandChannel.class);
+
+  private static final String PAN_TILT_VELOCITY =
+      "http://www.onvif.org/ver10/tptz/PanTiltSpaces/VelocityGenericSpace";
+  private static final String ZOOM_VELOCITY =
+      "http://www.onvif.org/ver10/tptz/ZoomSpaces/VelocityGenericSpace";
+
+  /** Threads of the channels created without an executor, one per device sending. */
+  private static final ExecutorService SHARED =
+      Executors.newCachedThreadPool(
+          new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "ptz-command-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+
+  /** Sends a command to the device, blocking until it answered. */
+  public interface Sender {
+    /**
+     * @param x pan velocity, generic space from -1 to 1
+     * @param y tilt velocity
+     * @param zoom zoom velocity
+     * @param timeout ms after which the device stops by itself, 0 for none
+     */
+    void continuousMove(String profileToken, float x, float y, float zoom, long timeout)
+        throws Exception;
+
+    void stop(String profileToken, boolean panTilt, boolean zoom) throws Exception;
+  }
+
+  private final Sender sender;
+  private final Executor executor;
+  private final Runnable drain =
+      new Runnable() {
+        public void run() {
+          drain();
+        }
+      };
+
+  /** Commands waiting, moves by profile token, guarded by this. */
+  private final Map<String, PtzCommand> pendingMoves = new LinkedHashMap<>();
+
+  private final ArrayDeque<PtzCommand> pendingStops = new ArrayDeque<>(2);
+  private boolean draining;
+
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong superseded = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  /** Sends through the PTZ port of the device, on the shared threads. */
+  public PtzCommandChannel(PTZ ptz) {
+    this(sender(ptz), SHARED);
+  }
+
+  /** Sends with the sender, like a {@link PtzTemplateSender}, on the shared threads. */
+  public PtzCommandChannel(Sender sender) {
+    this(sender, SHARED);
+  }
+
+  public PtzCommandChannel(Sender sender, Executor executor) {
+    this.sender = sender;
+    this.executor = executor;
+  }
+
+  /**
+   * Queues a ContinuousMove, replacing the move of the profile waiting to be sent.
+   *
+   * @param x pan velocity, generic space from -1 to 1
+   * @param y tilt velocity
+   * @param zoom zoom velocity
+   * @param timeout ms after which the device stops by itself, 0 for none
+   */
+  public PtzCommand move(String profileToken, float x, float y, float zoom, long timeout) {
+    PtzCommand command = PtzCommand.move(profileToken, x, y, zoom, timeout);
+    PtzCommand replaced;
+    synchronized (this) {
+      // behind the moves of the other profiles
+      replaced = pendingMoves.remove(profileToken);
+      pendingMoves.put(profileToken, command);
+    }
+    supersede(replaced);
+    schedule();
+    return command;
+  }
+
+  /** Queues a Stop ahead of any move, the waiting move of the profile is dropped. */
+  public PtzCommand stop(String profileToken, boolean panTilt, boolean zoom) {
+    PtzCommand replacedMove;
+    PtzCommand replacedStop = null;
+    PtzCommand command;
+    synchronized (this) {
+      replacedMove = pendingMoves.remove(profileToken);
+      for (Iterator<PtzCommand> i = pendingStops.iterator(); i.hasNext(); ) {
+        PtzCommand waiting = i.next();
+        if (waiting.profileToken.equals(profileToken)) {
+          // one stop for both
+          panTilt |= waiting.stopPanTilt;
+          zoom |= waiting.stopZoom;
+          replacedStop = waiting;
+          i.remove();
+        }
+      }
+      command = PtzCommand.stop(profileToken, panTilt, zoom);
+      pendingStops.add(command);
+    }
+    supersede(replacedMove);
+    supersede(replacedStop);
+    schedule();
+    return command;
+  }
+
+  /** Commands accepted by the device. */
+  public long getSent() {
+    return sent.get();
+  }
+
+  /** Commands replaced before they were sent. */
+  public long getSuperseded() {
+    return superseded.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  private void supersede(PtzCommand command) {
+    if (command == null) return;
+    superseded.incrementAndGet();
+    command.complete(PtzCommand.State.SUPERSEDED, null);
+  }
+
+  private void schedule() {
+    synchronized (this) {
+      if (draining) return;
+      draining = true;
+    }
+    try {
+      executor.execute(drain);
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        draining = false;
+      }
+      fail(new IllegalStateException("PTZ command executor shut down", e));
+    }
+  }
+
+  /** Sends the waiting commands, stops first, until none is left. */
+  private void drain() {
+    while (true) {
+      PtzCommand command;
+      synchronized (this) {
+        command = pendingStops.poll();
+        if (command == null && !pendingMoves.isEmpty()) {
+          Iterator<PtzCommand> moves = pendingMoves.values().iterator();
+          command = moves.next();
+          moves.remove();
+        }
+        if (command == null) {
+          draining = false;
+          return;
+        }
+      }
+      command.sending();
+      try {
+        if (command.stop) {
+          sender.stop(command.profileToken, command.stopPanTilt, command.stopZoom);
+        } else {
+          sender.continuousMove(
+              command.profileToken, command.x, command.y, command.zoom, command.timeout);
+        }
+        sent.incrementAndGet();
+        command.complete(PtzCommand.State.DONE, null);
+      } catch (Exception e) {
+        logger.debug(command + " failed", e);
+        failed.incrementAndGet();
+        command.complete(PtzCommand.State.FAILED, e);
+      }
+    }
+  }
+
+  private void fail(Exception e) {
+    List<PtzCommand> dropped = new ArrayList<>();
+    synchronized (this) {
+      dropped.addAll(pendingStops);
+      dropped.addAll(pendingMoves.values());
+      pendingStops.clear();
+      pendingMoves.clear();
+    }
+    for (PtzCommand c : dropped) {
+      failed.incrementAndGet();
+      c.complete(PtzCommand.State.FAILED, e);
+    }
+  }
+
+  /** Sends through a PTZ port, velocities in the generic velocity spaces. */
+  public static Sender sender(final PTZ ptz) {
+    return new Sender() {
+      public void continuousMove(String profileToken, float x, float y, float zoom, long timeout) {
+        Vector2D panTilt = new Vector2D();
+        panTilt.setSpace(PAN_TILT_VELOCITY);
+        panTilt.setX(x);
+        panTilt.setY(y);
+        Vector1D z = new Vector1D();
+        z.setSpace(ZOOM_VELOCITY);
+        z.setX(zoom);
+        PTZSpeed speed = new PTZSpeed();
+        speed.setPanTilt(panTilt);
+        speed.setZoom(z);
+        ptz.continuousMove(
+            profileToken, speed, timeout > 0 ? DatatypeHolder.FACTORY.newDuration(timeout) : null);
+      }
+
+      public void stop(String profileToken, boolean panTilt, boolean zoom) {
+        ptz.stop(profileToken, panTilt, zoom);
+      }
+    };
+  }
+
+  private static class DatatypeHolder {
+    static final DatatypeFactory FACTORY;
+
+    static {
+      try {
+        FACTORY = DatatypeFactory.newInstance();
+      } catch (DatatypeConfigurationException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,254 @@
+package de.onvif.ptz;
+
+import de.onvif.events.EventMultiplexer;
+import de.onvif.events.NotificationEvent;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.ws.Holder;
+import org.onvif.ver10.schema.PTZConfiguration;
+import org.onvif.ver10.schema.PTZConfigurationOptions;
+import org.onvif.ver10.schema.PTZNode;
+import org.onvif.ver10.schema.PTZPreset;
+import org.onvif.ver10.schema.PresetTour;
+import org.onvif.ver20.ptz.wsdl.PTZ;
+
+/**
+ * Presets, preset tours, nodes, configurations and configuration options of PTZ devices, fetched
+ * once per device and kept until they change.
+ *
+ * <p>Every dialog with a PTZ control asks for the same lists, which do not change unless somebody
+ * edits them. Lookups of one device and kind asking at the same time wait for a single request.
+ * Presets and tours of a device are dropped after {@link #setPreset} and {@link #removePreset}
+ * through this cache and on tns1:PTZController/PTZPresets events, when registered as {@link
+ * EventMultiplexer.EventListener}. Everything is fetched again after {@link #setMaxAge(long)}, for
+ * changes made by other clients of cameras that send no events. The lists returned are shared and
+ * unmodifiable, the other objects must not be changed either.
+ */
+public class PtzMetadataCache implements EventMultiplexer.EventListener {
+  private static final String PRESETS_TOPIC = "PTZController/PTZPresets";
+
+  private final Map<String, Device> devices = new ConcurrentHashMap<>();
+  private volatile long maxAge = 10 * 60 * 1000;
+
+  private final AtomicLong fetches = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /** The presets of the profile. */
+  public List<PTZPreset> getPresets(String deviceId, final PTZ ptz, final String profileToken) {
+    return get(
+        device(deviceId).presets,
+        profileToken,
+        new Callable<List<PTZPreset>>() {
+          public List<PTZPreset> call() {
+            return unmodifiable(ptz.getPresets(profileToken));
+          }
+        });
+  }
+
+  /** The preset tours of the profile. */
+  public List<PresetTour> getPresetTours(
+      String deviceId, final PTZ ptz, final String profileToken) {
+    return get(
+        device(deviceId).tours,
+        profileToken,
+        new Callable<List<PresetTour>>() {
+          public List<PresetTour> call() {
+            return unmodifiable(ptz.getPresetTours(profileToken));
+          }
+        });
+  }
+
+  public List<PTZNode> getNodes(String deviceId, final PTZ ptz) {
+    return get(
+        device(deviceId).nodes,
+        "",
+        new Callable<List<PTZNode>>() {
+          public List<PTZNode> call() {
+            return unmodifiable(ptz.getNodes());
+          }
+        });
+  }
+
+  public List<PTZConfiguration> getConfigurations(String deviceId, final PTZ ptz) {
+    return get(
+        device(deviceId).configurations,
+        "",
+        new Callable<List<PTZConfiguration>>() {
+          public List<PTZConfiguration> call() {
+            return unmodifiable(ptz.getConfigurations());
+          }
+        });
+  }
+
+  public PTZConfigurationOptions getConfigurationOptions(
+      String deviceId, final PTZ ptz, final String configurationToken) {
+    return get(
+        device(deviceId).options,
+        configurationToken,
+        new Callable<PTZConfigurationOptions>() {
+          public PTZConfigurationOptions call() {
+            return ptz.getConfigurationOptions(configurationToken);
+          }
+        });
+  }
+
+  /**
+   * Sets a preset on the device and drops its cached presets and tours.
+   *
+   * @param presetToken the preset to overwrite, null for a new one
+   * @return the token of the preset
+   */
+  public String setPreset(
+      String deviceId, PTZ ptz, String profileToken, String presetName, String presetToken) {
+    Holder<String> token = new Holder<>(presetToken);
+    try {
+      ptz.setPreset(profileToken, presetName, token);
+    } finally {
+      invalidatePresets(deviceId);
+    }
+    return token.value;
+  }
+
+  /** Removes a preset from the device and drops its cached presets and tours. */
+  public void removePreset(String deviceId, PTZ ptz, String profileToken, String presetToken) {
+    try {
+      ptz.removePreset(profileToken, presetToken);
+    } finally {
+      invalidatePresets(deviceId);
+    }
+  }
+
+  /** Drops the presets of a device whose presets changed. */
+  public void onEvents(String deviceId, List<NotificationEvent> events) {
+    for (NotificationEvent event : events) {
+      if (isPresetsTopic(event.getTopic())) {
+        invalidatePresets(deviceId);
+        return;
+      }
+    }
+  }
+
+  /** Forgets the presets and preset tours of all profiles of the device. */
+  public void invalidatePresets(String deviceId) {
+    Device d = devices.get(deviceId);
+    if (d == null) return;
+    invalidations.incrementAndGet();
+    d.presets.clear();
+    d.tours.clear();
+  }
+
+  /** Forgets everything about the device, e.g. when it was removed or reconfigured. */
+  public void invalidate(String deviceId) {
+    if (devices.remove(deviceId) != null) invalidations.incrementAndGet();
+  }
+
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  /** ms an answer is used before it is fetched again, default 10 minutes. */
+  public void setMaxAge(long maxAge) {
+    this.maxAge = maxAge;
+  }
+
+  /** Requests sent to devices. */
+  public long getFetches() {
+    return fetches.get();
+  }
+
+  /** Lookups answered from the cache, including those that waited for a fetch of another. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  /** Number of devices cached. */
+  public int size() {
+    return devices.size();
+  }
+
+  /** True for tns1:PTZController/PTZPresets and the topics below it, whatever the prefix. */
+  static boolean isPresetsTopic(String topic) {
+    if (topic == null) return false;
+    int start = topic.indexOf(':') + 1;
+    if (!topic.startsWith(PRESETS_TOPIC, start)) return false;
+    int end = start + PRESETS_TOPIC.length();
+    return topic.length() == end || topic.charAt(end) == '/';
+  }
+
+  private Device device(String deviceId) {
+    Device d = devices.get(deviceId);
+    if (d == null) {
+      Device created = new Device();
+      d = devices.putIfAbsent(deviceId, created);
+      if (d == null) d = created;
+    }
+    return d;
+  }
+
+  private <T> T get(Map<String, Entry<T>> entries, String key, Callable<T> fetch) {
+    if (key == null) key = "";
+    Entry<T> entry = entries.get(key);
+    long now = System.currentTimeMillis();
+    if (entry != null && now - entry.createdAt > maxAge) {
+      entries.remove(key, entry);
+      entry = null;
+    }
+    boolean fetched = false;
+    if (entry == null) {
+      Entry<T> created = new Entry<>(fetch, now);
+      entry = entries.putIfAbsent(key, created);
+      if (entry == null) {
+        entry = created;
+        fetched = true;
+        fetches.incrementAndGet();
+        created.task.run();
+      }
+    }
+    if (!fetched) hits.incrementAndGet();
+    try {
+      return entry.task.get();
+    } catch (ExecutionException e) {
+      // the next lookup asks again
+      entries.remove(key, entry);
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new IllegalStateException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for PTZ metadata " + key, e);
+    }
+  }
+
+  private static <T> List<T> unmodifiable(List<T> list) {
+    return list == null ? Collections.<T>emptyList() : Collections.unmodifiableList(list);
+  }
+
+  private static final class Entry<T> {
+    final FutureTask<T> task;
+    final long createdAt;
+
+    Entry(Callable<T> fetch, long createdAt) {
+      this.task = new FutureTask<>(fetch);
+      this.createdAt = createdAt;
+    }
+  }
+
+  /** The answers of one device, by profile or configuration token. */
+  private static final class Device {
+    final Map<String, Entry<List<PTZPreset>>> presets = new ConcurrentHashMap<>();
+    final Map<String, Entry<List<PresetTour>>> tours = new ConcurrentHashMap<>();
+    final Map<String, Entry<List<PTZNode>>> nodes = new ConcurrentHashMap<>();
+    final Map<String, Entry<List<PTZConfiguration>>> configurations = new ConcurrentHashMap<>();
+    final Map<String, Entry<PTZConfigurationOptions>> options = new ConcurrentHashMap<>();
+  }
+}
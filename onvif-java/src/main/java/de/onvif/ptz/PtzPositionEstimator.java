@@ -0,0 +1,453 @@
+package de.onvif.ptz;
+
+import java.util.Arrays;
+import java.util.List;
+import org.onvif.ver10.schema.FloatRange;
+import org.onvif.ver10.schema.MoveStatus;
+import org.onvif.ver10.schema.PTZConfigurationOptions;
+import org.onvif.ver10.schema.PTZMoveStatus;
+import org.onvif.ver10.schema.PTZSpaces;
+import org.onvif.ver10.schema.PTZStatus;
+import org.onvif.ver10.schema.PTZVector;
+import org.onvif.ver10.schema.Space1DDescription;
+import org.onvif.ver10.schema.Space2DDescription;
+
+/**
+ * Estimates the position of one PTZ profile between status polls, for overlays drawn at the frame
+ * rate.
+ *
+ * <p>The estimate starts at the position of the last {@link PTZStatus} and moves with the velocity
+ * of the last ContinuousMove until its timeout or a Stop, scaled by the speed of the camera at
+ * full velocity. That speed is learned from the statuses that arrive while a move runs, the first
+ * one replacing {@link #setFullSpeed}. Without a move of ours and a camera reporting MOVING, e.g.
+ * on a tour or moved by someone else, it moves with the speed seen between the last two statuses.
+ * A new status replaces the estimate; the difference to the old one fades out over {@link
+ * #setCorrectionTime(long)} so the overlay does not jump. Velocities and positions are kept in the
+ * ranges of {@link #setLimits(PTZConfigurationOptions)}.
+ *
+ * <p>Feed it the statuses as {@link PtzStatusTracker.Listener} and the commands through {@link
+ * #track(PtzCommandChannel.Sender)}. {@link #estimate(long)} takes no lock and may be called from
+ * any thread. Positions and velocities are in the generic spaces.
+ */
+public final class PtzPositionEstimator implements PtzStatusTracker.Listener {
+  private static final String GENERIC_POSITION = "PositionGenericSpace";
+  private static final String GENERIC_VELOCITY = "VelocityGenericSpace";
+  private static final int PAN = 0;
+  private static final int TILT = 1;
+  private static final int ZOOM = 2;
+  /** Weight of a new speed measurement. */
+  private static final float LEARNING = 0.3f;
+  /** ms a camera may still report IDLE after a move was sent. */
+  private static final long IDLE_GRACE = 1000;
+
+  /** The position at a time and how it changes from there, replaced as a whole. */
+  private static final class Track {
+    final long time;
+    final float[] position;
+    /** Units per ms from time on, until until. */
+    final float[] velocity;
+    final long until;
+    /** Old estimate minus position at time, fading out. */
+    final float[] correction;
+    final long correctionTime;
+    final float[] min;
+    final float[] max;
+    final boolean wrapPan;
+
+    Track(
+        long time,
+        float[] position,
+        float[] velocity,
+        long until,
+        float[] correction,
+        long correctionTime,
+        float[] min,
+        float[] max,
+        boolean wrapPan) {
+      this.time = time;
+      this.position = position;
+      this.velocity = velocity;
+      this.until = until;
+      this.correction = correction;
+      this.correctionTime = correctionTime;
+      this.min = min;
+      this.max = max;
+      this.wrapPan = wrapPan;
+    }
+
+    /** This track with another velocity. */
+    Track moving(float[] velocity, long until) {
+      return new Track(
+          time, position, velocity, until, correction, correctionTime, min, max, wrapPan);
+    }
+  }
+
+  /** A position estimate. */
+  public static final class Estimate {
+    private final float pan;
+    private final float tilt;
+    private final float zoom;
+    private final boolean moving;
+
+    Estimate(float pan, float tilt, float zoom, boolean moving) {
+      this.pan = pan;
+      this.tilt = tilt;
+      this.zoom = zoom;
+      this.moving = moving;
+    }
+
+    public float getPan() {
+      return pan;
+    }
+
+    public float getTilt() {
+      return tilt;
+    }
+
+    public float getZoom() {
+      return zoom;
+    }
+
+    /** True if the estimate changes with time. */
+    public boolean isMoving() {
+      return moving;
+    }
+
+    public String toString() {
+      return String.format("(%.4f, %.4f, %.4f)%s", pan, tilt, zoom, moving ? " moving" : "");
+    }
+  }
+
+  private volatile Track track;
+
+  // guarded by this
+  private final float[] min = {-1, -1, 0};
+  private final float[] max = {1, 1, 1};
+  private final float[] velocityMin = {-1, -1, -1};
+  private final float[] velocityMax = {1, 1, 1};
+  /** Units per ms at full velocity, per axis. */
+  private final float[] fullSpeed = {0.5f / 1000, 0.5f / 1000, 0.5f / 1000};
+  /** Speed measurements per axis since the full speed was set. */
+  private final int[] measurements = new int[3];
+
+  private boolean wrapPan;
+  private long correctionTime = 200;
+  /** The velocity commanded, full speed 1, since commandedAt until commandedUntil. */
+  private final float[] commanded = new float[3];
+  private long commandedAt;
+  private long commandedUntil;
+  /** The last status, NaN before the first. */
+  private final float[] statusPosition = {Float.NaN, Float.NaN, Float.NaN};
+  private long statusAt;
+  private long statuses;
+
+  public PtzPositionEstimator() {
+    track =
+        new Track(
+            0, new float[3], new float[3], 0, new float[3], 0, min.clone(), max.clone(), false);
+  }
+
+  /**
+   * Takes the position ranges and the continuous velocity ranges of the node, the generic spaces if
+   * it has them.
+   */
+  public synchronized void setLimits(PTZConfigurationOptions options) {
+    PTZSpaces spaces = options == null ? null : options.getSpaces();
+    if (spaces == null) return;
+    Space2DDescription position =
+        space2D(spaces.getAbsolutePanTiltPositionSpace(), GENERIC_POSITION);
+    if (position != null) {
+      range(position.getXRange(), PAN, min, max);
+      range(position.getYRange(), TILT, min, max);
+    }
+    Space1DDescription zoom = space1D(spaces.getAbsoluteZoomPositionSpace(), GENERIC_POSITION);
+    if (zoom != null) range(zoom.getXRange(), ZOOM, min, max);
+    Space2DDescription velocity =
+        space2D(spaces.getContinuousPanTiltVelocitySpace(), GENERIC_VELOCITY);
+    if (velocity != null) {
+      range(velocity.getXRange(), PAN, velocityMin, velocityMax);
+      range(velocity.getYRange(), TILT, velocityMin, velocityMax);
+    }
+    Space1DDescription zoomVelocity =
+        space1D(spaces.getContinuousZoomVelocitySpace(), GENERIC_VELOCITY);
+    if (zoomVelocity != null) range(zoomVelocity.getXRange(), ZOOM, velocityMin, velocityMax);
+    rebuild();
+  }
+
+  /**
+   * Speed of the camera at full velocity until it was measured, in units of the position space per
+   * second. Default 0.5 on every axis.
+   */
+  public synchronized void setFullSpeed(float pan, float tilt, float zoom) {
+    fullSpeed[PAN] = pan / 1000;
+    fullSpeed[TILT] = tilt / 1000;
+    fullSpeed[ZOOM] = zoom / 1000;
+    Arrays.fill(measurements, 0);
+    rebuild();
+  }
+
+  /** Speed at full velocity as learned, units per second, pan, tilt and zoom. */
+  public synchronized float[] getFullSpeed() {
+    return new float[] {fullSpeed[PAN] * 1000, fullSpeed[TILT] * 1000, fullSpeed[ZOOM] * 1000};
+  }
+
+  /** True for a dome turning endlessly, pan then wraps around its range instead of stopping. */
+  public synchronized void setWrapPan(boolean wrapPan) {
+    this.wrapPan = wrapPan;
+    rebuild();
+  }
+
+  /** ms over which the estimate moves to a new status, default 200, 0 to jump. */
+  public synchronized void setCorrectionTime(long correctionTime) {
+    this.correctionTime = correctionTime;
+  }
+
+  /** Statuses taken. */
+  public synchronized long getStatuses() {
+    return statuses;
+  }
+
+  /**
+   * A ContinuousMove was sent.
+   *
+   * @param x pan velocity, generic space from -1 to 1
+   * @param timeout ms after which the device stops by itself, 0 for none
+   * @param time local time in ms the move was sent
+   */
+  public synchronized void moved(float x, float y, float zoom, long timeout, long time) {
+    Track old = track;
+    commanded[PAN] = clamp(x, velocityMin[PAN], velocityMax[PAN]);
+    commanded[TILT] = clamp(y, velocityMin[TILT], velocityMax[TILT]);
+    commanded[ZOOM] = clamp(zoom, velocityMin[ZOOM], velocityMax[ZOOM]);
+    commandedAt = time;
+    commandedUntil = timeout > 0 ? time + timeout : Long.MAX_VALUE;
+    float[] position = new float[3];
+    position(old, time, position);
+    track = track(time, position, old, time);
+  }
+
+  /** A Stop was sent. */
+  public synchronized void stopped(boolean panTilt, boolean zoom, long time) {
+    Track old = track;
+    if (panTilt) commanded[PAN] = commanded[TILT] = 0;
+    if (zoom) commanded[ZOOM] = 0;
+    float[] position = new float[3];
+    position(old, time, position);
+    track = track(time, position, old, time);
+  }
+
+  /** Takes a status, with the time it arrived. */
+  public void onStatus(String deviceId, String profileToken, PTZStatus status) {
+    status(status, System.currentTimeMillis());
+  }
+
+  /**
+   * Takes a status: the estimate restarts from its position, and the speed at full velocity is
+   * measured if a move ran since the status before.
+   *
+   * @param time local time in ms the status was received
+   */
+  public synchronized void status(PTZStatus status, long time) {
+    PTZVector p = status.getPosition();
+    if (p == null) return;
+    float[] position = new float[3];
+    position(track, time, position); // axes the status lacks
+    if (p.getPanTilt() != null) {
+      position[PAN] = p.getPanTilt().getX();
+      position[TILT] = p.getPanTilt().getY();
+    }
+    if (p.getZoom() != null) position[ZOOM] = p.getZoom().getX();
+    boolean cameraMoving = isMoving(status);
+    float elapsed = time - statusAt;
+    boolean measured = statuses > 0 && elapsed > 0;
+    boolean ours = commandedUntil > time && commanded(PAN) + commanded(TILT) + commanded(ZOOM) > 0;
+    // learn the full speed if our move ran all the time since the last status
+    if (measured && ours && commandedAt <= statusAt && cameraMoving) {
+      for (int axis = PAN; axis <= ZOOM; axis++) {
+        float v = commanded[axis];
+        float moved = difference(axis, statusPosition[axis], position[axis]);
+        if (Math.abs(v) < 0.05f || moved == 0 || Math.signum(moved) != Math.signum(v)) continue;
+        float speed = Math.abs(moved / elapsed / v);
+        // the first measurement replaces the guess
+        float weight = measurements[axis]++ == 0 ? 1 : LEARNING;
+        fullSpeed[axis] += weight * (speed - fullSpeed[axis]);
+      }
+    }
+    float[] observed = new float[3];
+    if (measured && !ours && cameraMoving) {
+      // moved by others, keep on at the speed seen
+      for (int axis = PAN; axis <= ZOOM; axis++) {
+        observed[axis] = difference(axis, statusPosition[axis], position[axis]) / elapsed;
+      }
+    }
+    System.arraycopy(position, 0, statusPosition, 0, 3);
+    statusAt = time;
+    statuses++;
+    Track old = track;
+    Track updated = track(time, position, old, time);
+    if (ours && !cameraMoving && time - commandedAt > IDLE_GRACE) {
+      // the camera does not move as told, e.g. at an end stop
+      updated = updated.moving(new float[3], time);
+    } else if (!ours) {
+      // for two poll intervals at most
+      long until = cameraMoving ? time + 2 * (long) Math.max(elapsed, 200) : time;
+      updated = updated.moving(observed, until);
+    }
+    track = updated;
+  }
+
+  /**
+   * The estimated position at the time.
+   *
+   * @param time local time in ms, usually now
+   */
+  public Estimate estimate(long time) {
+    Track t = track;
+    float pan = axis(t, time, PAN, true);
+    float tilt = axis(t, time, TILT, true);
+    float zoom = axis(t, time, ZOOM, true);
+    return new Estimate(pan, tilt, zoom, changing(t, time, pan, tilt, zoom));
+  }
+
+  /** Wraps the sender so the commands it sends move the estimate. */
+  public PtzCommandChannel.Sender track(final PtzCommandChannel.Sender sender) {
+    return new PtzCommandChannel.Sender() {
+      public void continuousMove(String profileToken, float x, float y, float zoom, long timeout)
+          throws Exception {
+        sender.continuousMove(profileToken, x, y, zoom, timeout);
+        moved(x, y, zoom, timeout, System.currentTimeMillis());
+      }
+
+      public void stop(String profileToken, boolean panTilt, boolean zoom) throws Exception {
+        sender.stop(profileToken, panTilt, zoom);
+        stopped(panTilt, zoom, System.currentTimeMillis());
+      }
+    };
+  }
+
+  private float commanded(int axis) {
+    return Math.abs(commanded[axis]);
+  }
+
+  /** Distance from a to b on the axis, the short way round on a wrapping pan. */
+  private float difference(int axis, float a, float b) {
+    float d = b - a;
+    if (axis == PAN && wrapPan) {
+      float range = max[PAN] - min[PAN];
+      if (d > range / 2) d -= range;
+      else if (d < -range / 2) d += range;
+    }
+    return d;
+  }
+
+  /** A track from the position at time, with our commanded velocity and the old estimate faded. */
+  private Track track(long time, float[] position, Track old, long now) {
+    float[] correction = new float[3];
+    if (correctionTime > 0 && statuses > 0) {
+      for (int axis = PAN; axis <= ZOOM; axis++) {
+        correction[axis] = difference(axis, position[axis], axis(old, now, axis, true));
+      }
+    }
+    float[] velocity = new float[3];
+    for (int axis = PAN; axis <= ZOOM; axis++) {
+      velocity[axis] = commanded[axis] * fullSpeed[axis];
+    }
+    return new Track(
+        time,
+        position,
+        velocity,
+        commandedUntil > time ? commandedUntil : time,
+        correction,
+        correctionTime,
+        min.clone(),
+        max.clone(),
+        wrapPan);
+  }
+
+  /** The track again from its start, after a setting changed. */
+  private void rebuild() {
+    Track old = track;
+    float[] velocity = new float[3];
+    for (int axis = PAN; axis <= ZOOM; axis++) velocity[axis] = commanded[axis] * fullSpeed[axis];
+    track =
+        new Track(
+            old.time,
+            old.position,
+            velocity,
+            old.until,
+            old.correction,
+            old.correctionTime,
+            min.clone(),
+            max.clone(),
+            wrapPan);
+  }
+
+  /** Writes the position of the track at the time into into, without the correction. */
+  private static void position(Track t, long time, float[] into) {
+    for (int axis = PAN; axis <= ZOOM; axis++) into[axis] = axis(t, time, axis, false);
+  }
+
+  /** The position of the track on the axis at the time, with the fading correction if corrected. */
+  private static float axis(Track t, long time, int axis, boolean corrected) {
+    long end = Math.min(Math.max(time, t.time), t.until);
+    float p = t.position[axis] + t.velocity[axis] * (end - t.time);
+    if (corrected) p += t.correction[axis] * fade(t, time);
+    if (axis == PAN && t.wrapPan) {
+      float range = t.max[PAN] - t.min[PAN];
+      return t.min[PAN] + ((p - t.min[PAN]) % range + range) % range;
+    }
+    return clamp(p, t.min[axis], t.max[axis]);
+  }
+
+  /** Share of the correction left at the time, from 1 to 0. */
+  private static float fade(Track t, long time) {
+    if (t.correctionTime <= 0 || time >= t.time + t.correctionTime) return 0;
+    return 1 - Math.max(0, time - t.time) / (float) t.correctionTime;
+  }
+
+  /** True if the estimate changes at the time: moving and not at an end stop, or correcting. */
+  private static boolean changing(Track t, long time, float pan, float tilt, float zoom) {
+    if (fade(t, time) > 0) return true;
+    if (time >= t.until) return false;
+    return changing(t, PAN, pan) || changing(t, TILT, tilt) || changing(t, ZOOM, zoom);
+  }
+
+  private static boolean changing(Track t, int axis, float p) {
+    float v = t.velocity[axis];
+    if (v == 0) return false;
+    if (axis == PAN && t.wrapPan) return true;
+    return v < 0 ? p > t.min[axis] : p < t.max[axis];
+  }
+
+  private static float clamp(float v, float min, float max) {
+    return v < min ? min : v > max ? max : v;
+  }
+
+  private static boolean isMoving(PTZStatus status) {
+    PTZMoveStatus move = status.getMoveStatus();
+    if (move == null) return true; // unknown, trust the positions
+    return move.getPanTilt() == MoveStatus.MOVING || move.getZoom() == MoveStatus.MOVING;
+  }
+
+  private static void range(FloatRange range, int axis, float[] min, float[] max) {
+    if (range == null || range.getMax() <= range.getMin()) return;
+    min[axis] = range.getMin();
+    max[axis] = range.getMax();
+  }
+
+  private static Space2DDescription space2D(List<Space2DDescription> spaces, String generic) {
+    if (spaces == null || spaces.isEmpty()) return null;
+    for (Space2DDescription s : spaces) {
+      if (s.getURI() != null && s.getURI().endsWith(generic)) return s;
+    }
+    return spaces.get(0);
+  }
+
+  private static Space1DDescription space1D(List<Space1DDescription> spaces, String generic) {
+    if (spaces == null || spaces.isEmpty()) return null;
+    for (Space1DDescription s : spaces) {
+      if (s.getURI() != null && s.getURI().endsWith(generic)) return s;
+    }
+    return spaces.get(0);
+  }
+}
@@ -0,0 +1,371 @@
+package de.onvif.ptz;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.onvif.ver10.schema.MoveStatus;
+import org.onvif.ver10.schema.PTZMoveStatus;
+import org.onvif.ver10.schema.PTZStatus;
+import org.onvif.ver10.schema.PTZVector;
+import org.onvif.ver20.ptz.wsdl.PTZ;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls GetStatus of the PTZ profiles somebody watches, once for all watchers.
+ *
+ * <p>Every {@link #subscribe} adds a {@link Subscription} to the status of a profile. The profile
+ * is polled while it has subscriptions: every {@link #setMovingInterval(long)} while the camera
+ * reports MOVING or its position changed since the last poll, every {@link
+ * #setIdleInterval(long)} otherwise. Subscribers are called when position, move status or error
+ * change; {@link #getStatus} answers from the last poll. With several viewers on one dome this is
+ * one request every two seconds instead of several per second. {@link #moving} polls at once when
+ * we move the camera ourselves, e.g. from {@link PtzCommandChannel}.
+ */
+public class PtzStatusTracker {
+  private static final Logger logger = LoggerFactory.getLogger(PtzStatusTracker.class);
+
+  /** Receives the changes of the status, called from a poll thread. */
+  public interface Listener {
+    void onStatus(String deviceId, String profileToken, PTZStatus status);
+  }
+
+  /** Asks the device for the status of a profile, blocking until it answered. */
+  public interface Poller {
+    PTZStatus getStatus(String profileToken) throws Exception;
+  }
+
+  private final Map<String, Tracked> tracked = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService control;
+  private final ExecutorService polls;
+
+  private volatile long movingInterval = 200;
+  private volatile long idleInterval = 2000;
+
+  private final AtomicLong polled = new AtomicLong();
+  private final AtomicLong changes = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  public PtzStatusTracker() {
+    control =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ptz-status-control");
+                t.setDaemon(true);
+                return t;
+              }
+            });
+    // one thread per profile polling, a camera taking seconds only delays itself
+    polls =
+        Executors.newCachedThreadPool(
+            new ThreadFactory() {
+              private final AtomicInteger count = new AtomicInteger();
+
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ptz-status-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              }
+            });
+  }
+
+  /** Watches a profile through the PTZ port of its device. */
+  public Subscription subscribe(
+      String deviceId, PTZ ptz, String profileToken, Listener listener) {
+    return subscribe(deviceId, poller(ptz), profileToken, listener);
+  }
+
+  /**
+   * Adds a subscription to the status of the profile, which is polled from now on. The listener is
+   * called at once with the last status, if there is one.
+   *
+   * @param deviceId id of the device, the profile is shared with other subscriptions of it
+   */
+  public Subscription subscribe(
+      String deviceId, Poller poller, String profileToken, Listener listener) {
+    String key = key(deviceId, profileToken);
+    Subscription subscription = new Subscription(listener);
+    while (true) {
+      Tracked t = tracked.get(key);
+      if (t == null) {
+        Tracked created = new Tracked(key, deviceId, profileToken, poller);
+        t = tracked.putIfAbsent(key, created);
+        if (t == null) t = created;
+      }
+      PTZStatus last;
+      synchronized (t) {
+        if (t.closed) continue; // the last subscription just left, start over
+        Subscription[] added = Arrays.copyOf(t.subscriptions, t.subscriptions.length + 1);
+        added[t.subscriptions.length] = subscription;
+        t.subscriptions = added;
+        subscription.tracked = t;
+        if (t.next == null && !t.polling) schedule(t, 0);
+        last = t.status;
+      }
+      if (last != null) subscription.deliver(last);
+      return subscription;
+    }
+  }
+
+  /**
+   * The status of the last poll of the profile, without a request. It is the same object as long as
+   * nothing changed.
+   *
+   * @return null if the profile is not watched or was not polled yet
+   */
+  public PTZStatus getStatus(String deviceId, String profileToken) {
+    Tracked t = tracked.get(key(deviceId, profileToken));
+    return t == null ? null : t.status;
+  }
+
+  /** Local time in ms of the last successful poll of the profile, 0 if none. */
+  public long getUpdatedAt(String deviceId, String profileToken) {
+    Tracked t = tracked.get(key(deviceId, profileToken));
+    return t == null ? 0 : t.updatedAt;
+  }
+
+  /** True while the profile is polled at the moving interval. */
+  public boolean isMoving(String deviceId, String profileToken) {
+    Tracked t = tracked.get(key(deviceId, profileToken));
+    return t != null && t.moving;
+  }
+
+  /** The camera was told to move: polls the profile at once, if it is watched. */
+  public void moving(String deviceId, String profileToken) {
+    Tracked t = tracked.get(key(deviceId, profileToken));
+    if (t == null) return;
+    synchronized (t) {
+      t.moving = true;
+      if (t.closed || t.polling) return;
+      if (t.next != null) {
+        if (t.next.getDelay(TimeUnit.MILLISECONDS) <= 0) return;
+        t.next.cancel(false);
+      }
+      schedule(t, 0);
+    }
+  }
+
+  /** Stops polling. */
+  public void shutdown() {
+    control.shutdownNow();
+    polls.shutdownNow();
+  }
+
+  public long getMovingInterval() {
+    return movingInterval;
+  }
+
+  /** ms between polls while the camera moves, default 200. */
+  public void setMovingInterval(long movingInterval) {
+    this.movingInterval = movingInterval;
+  }
+
+  public long getIdleInterval() {
+    return idleInterval;
+  }
+
+  /** ms between polls while the camera stands still or does not answer, default 2000. */
+  public void setIdleInterval(long idleInterval) {
+    this.idleInterval = idleInterval;
+  }
+
+  /** GetStatus requests sent. */
+  public long getPolls() {
+    return polled.get();
+  }
+
+  /** Polls whose status differed from the one before. */
+  public long getChanges() {
+    return changes.get();
+  }
+
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /** Number of profiles polled. */
+  public int getTracked() {
+    return tracked.size();
+  }
+
+  private static String key(String deviceId, String profileToken) {
+    return deviceId + '|' + profileToken;
+  }
+
+  /** Called holding the lock of t. */
+  private void schedule(final Tracked t, long delay) {
+    try {
+      t.next =
+          control.schedule(
+              new Runnable() {
+                public void run() {
+                  start(t);
+                }
+              },
+              delay,
+              TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      t.next = null; // shut down
+    }
+  }
+
+  private void start(final Tracked t) {
+    synchronized (t) {
+      t.next = null;
+      if (t.closed || t.polling) return;
+      t.polling = true;
+    }
+    try {
+      polls.execute(
+          new Runnable() {
+            public void run() {
+              poll(t);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      synchronized (t) {
+        t.polling = false;
+      }
+    }
+  }
+
+  private void poll(Tracked t) {
+    PTZStatus status = null;
+    try {
+      polled.incrementAndGet();
+      status = t.poller.getStatus(t.profileToken);
+    } catch (Exception e) {
+      failures.incrementAndGet();
+      logger.debug("GetStatus of " + t.key + " failed", e);
+    }
+    boolean changed = false;
+    Subscription[] subscriptions;
+    synchronized (t) {
+      t.polling = false;
+      if (status != null) {
+        changed = t.status == null || !same(t.status, status);
+        t.moving = isMoving(status) || t.status != null && !samePosition(t.status, status);
+        if (changed) t.status = status;
+        t.updatedAt = System.currentTimeMillis();
+      } else {
+        t.moving = false;
+      }
+      subscriptions = t.subscriptions;
+      if (!t.closed && t.next == null) schedule(t, t.moving ? movingInterval : idleInterval);
+    }
+    if (!changed) return;
+    changes.incrementAndGet();
+    for (Subscription s : subscriptions) s.deliver(status);
+  }
+
+  private static boolean isMoving(PTZStatus status) {
+    PTZMoveStatus move = status.getMoveStatus();
+    return move != null
+        && (move.getPanTilt() == MoveStatus.MOVING || move.getZoom() == MoveStatus.MOVING);
+  }
+
+  /** Same position, move status and error, the time of the status does not count. */
+  private static boolean same(PTZStatus a, PTZStatus b) {
+    if (!samePosition(a, b) || !Objects.equals(a.getError(), b.getError())) return false;
+    PTZMoveStatus ma = a.getMoveStatus();
+    PTZMoveStatus mb = b.getMoveStatus();
+    if (ma == null || mb == null) return ma == mb;
+    return ma.getPanTilt() == mb.getPanTilt() && ma.getZoom() == mb.getZoom();
+  }
+
+  private static boolean samePosition(PTZStatus a, PTZStatus b) {
+    PTZVector pa = a.getPosition();
+    PTZVector pb = b.getPosition();
+    if (pa == null || pb == null) return pa == pb;
+    if (pa.getPanTilt() == null || pb.getPanTilt() == null) {
+      if (pa.getPanTilt() != pb.getPanTilt()) return false;
+    } else if (pa.getPanTilt().getX() != pb.getPanTilt().getX()
+        || pa.getPanTilt().getY() != pb.getPanTilt().getY()) {
+      return false;
+    }
+    if (pa.getZoom() == null || pb.getZoom() == null) return pa.getZoom() == pb.getZoom();
+    return pa.getZoom().getX() == pb.getZoom().getX();
+  }
+
+  /** Polls through a PTZ port. */
+  public static Poller poller(final PTZ ptz) {
+    return new Poller() {
+      public PTZStatus getStatus(String profileToken) {
+        return ptz.getStatus(profileToken);
+      }
+    };
+  }
+
+  /** A subscription to the status of one profile. */
+  public final class Subscription {
+    private final Listener listener;
+    private Tracked tracked;
+
+    Subscription(Listener listener) {
+      this.listener = listener;
+    }
+
+    /** The status of the last poll, null if there was none yet. */
+    public PTZStatus getStatus() {
+      return tracked.status;
+    }
+
+    /** Ends the subscription, the profile is no longer polled after the last one. */
+    public void close() {
+      Tracked t = tracked;
+      synchronized (t) {
+        List<Subscription> remaining = new ArrayList<>(Arrays.asList(t.subscriptions));
+        if (!remaining.remove(this)) return;
+        t.subscriptions = remaining.toArray(new Subscription[remaining.size()]);
+        if (t.subscriptions.length > 0) return;
+        t.closed = true;
+        if (t.next != null) t.next.cancel(false);
+        t.next = null;
+        PtzStatusTracker.this.tracked.remove(t.key, t);
+      }
+    }
+
+    void deliver(PTZStatus status) {
+      try {
+        listener.onStatus(tracked.deviceId, tracked.profileToken, status);
+      } catch (RuntimeException e) {
+        logger.warn("Listener of {} failed", tracked.key, e);
+      }
+    }
+  }
+
+  /** A watched profile, guarded by itself. */
+  private static final class Tracked {
+    final String key;
+    final String deviceId;
+    final String profileToken;
+    final Poller poller;
+    volatile Subscription[] subscriptions = new Subscription[0];
+    volatile PTZStatus status;
+    volatile long updatedAt;
+    volatile boolean moving;
+    ScheduledFuture<?> next;
+    boolean polling;
+    boolean closed;
+
+    Tracked(String key, String deviceId, String profileToken, Poller poller) {
+      this.key = key;
+      this.deviceId = deviceId;
+      this.profileToken = profileToken;
+      this.poller = poller;
+    }
+  }
+}
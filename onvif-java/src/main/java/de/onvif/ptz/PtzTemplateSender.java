@@ -0,0 +1,523 @@
+package de.onvif.ptz;
+
+import de.onvif.soap.OnvifDevice;
+import de.onvif.soap.SecurityHeaderTemplate;
+import de.onvif.soap.SimpleSecurityHandler;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends ContinuousMove and Stop without JAXB: the envelope of every profile is serialized once and
+ * a command only writes the velocities, the timeout and a fresh security header into a reused
+ * buffer, which goes out over a kept-alive connection. Sending allocates nothing once the profile
+ * was seen, so a joystick at 50 Hz on many cameras does not feed the garbage collector.
+ *
+ * <p>Only plain http addresses are supported, and only the UsernameToken of {@link
+ * SimpleSecurityHandler}, not HTTP digest authentication. Use {@link PtzCommandChannel#sender(
+ * org.onvif.ver20.ptz.wsdl.PTZ)} for other devices. Thread safe, commands are sent one at a time.
+ */
+public final class PtzTemplateSender implements PtzCommandChannel.Sender {
+  private static final Logger logger = LoggerFactory.getLogger(PtzTemplateSender.class);
+
+  private static final String MOVE_ACTION = "http://www.onvif.org/ver20/ptz/wsdl/ContinuousMove";
+  private static final String STOP_ACTION = "http://www.onvif.org/ver20/ptz/wsdl/Stop";
+  private static final String PAN_TILT_VELOCITY =
+      "http://www.onvif.org/ver10/tptz/PanTiltSpaces/VelocityGenericSpace";
+  private static final String ZOOM_VELOCITY =
+      "http://www.onvif.org/ver10/tptz/ZoomSpaces/VelocityGenericSpace";
+  private static final byte[] ENVELOPE_START =
+      ascii(
+          "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+              + "<env:Envelope xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\""
+              + " xmlns:tptz=\"http://www.onvif.org/ver20/ptz/wsdl\""
+              + " xmlns:tt=\"http://www.onvif.org/ver10/schema\"><env:Header>");
+  private static final byte[] MOVE_Y = ascii("\" y=\"");
+  private static final byte[] MOVE_ZOOM =
+      ascii("\"/><tt:Zoom space=\"" + ZOOM_VELOCITY + "\" x=\"");
+  private static final byte[] MOVE_VELOCITY_END = ascii("\"/></tptz:Velocity>");
+  private static final byte[] MOVE_TIMEOUT = ascii("<tptz:Timeout>PT");
+  private static final byte[] MOVE_TIMEOUT_END = ascii("S</tptz:Timeout>");
+  private static final byte[] MOVE_END =
+      ascii("</tptz:ContinuousMove></env:Body></env:Envelope>");
+  private static final byte[] STOP_ZOOM = ascii("</tptz:PanTilt><tptz:Zoom>");
+  private static final byte[] STOP_END =
+      ascii("</tptz:Zoom></tptz:Stop></env:Body></env:Envelope>");
+  private static final byte[] TRUE = ascii("true");
+  private static final byte[] FALSE = ascii("false");
+  private static final byte[] CONTENT_LENGTH = ascii("content-length:");
+  private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding:");
+  private static final byte[] CONNECTION = ascii("connection:");
+  private static final byte[] CLOSE = ascii("close");
+  private static final byte[] CHUNKED = ascii("chunked");
+  /** Room for the velocities, the timeout and the end of the envelope. */
+  private static final int VALUES_LENGTH = 256;
+
+  private final String host;
+  private final int port;
+  private final SecurityHeaderTemplate security;
+  /** Request lines and headers up to the Content-Length value. */
+  private final byte[] moveHead;
+
+  private final byte[] stopHead;
+  /** The requests are written from here on, their head right aligned before it. */
+  private final int bodyAt;
+
+  /** Envelopes of the profiles, guarded by this like everything below. */
+  private final Map<String, Profile> profiles = new HashMap<>();
+
+  private byte[] buf;
+  private byte[] response = new byte[4096];
+  private int responseLength;
+  private int bodyStart;
+  private Socket socket;
+  private InputStream in;
+  private OutputStream out;
+
+  private volatile int connectTimeout = 5000;
+  private volatile int readTimeout = 10000;
+  private long requests;
+  private long connects;
+
+  /** Sends to the PTZ service of the device, with its credentials. */
+  public PtzTemplateSender(OnvifDevice device) throws MalformedURLException {
+    this(ptzAddress(device), device.getSecurityHandler());
+  }
+
+  /**
+   * @param address http address of the PTZ service
+   * @param security adds the credentials, null for none
+   */
+  public PtzTemplateSender(URL address, SimpleSecurityHandler security) {
+    if (!"http".equalsIgnoreCase(address.getProtocol())) {
+      throw new IllegalArgumentException("Only http PTZ addresses are supported: " + address);
+    }
+    host = address.getHost();
+    port = address.getPort() < 0 ? address.getDefaultPort() : address.getPort();
+    String path = address.getFile().isEmpty() ? "/" : address.getFile();
+    String hostHeader = address.getPort() < 0 ? host : host + ":" + port;
+    this.security = security == null ? null : security.createSecurityHeaderTemplate();
+    moveHead = head(path, hostHeader, MOVE_ACTION);
+    stopHead = head(path, hostHeader, STOP_ACTION);
+    // the head, its Content-Length and the blank line
+    bodyAt = Math.max(moveHead.length, stopHead.length) + 10 + 4;
+    int headerLength = this.security == null ? 0 : this.security.length();
+    buf = new byte[bodyAt + ENVELOPE_START.length + headerLength + 512 + VALUES_LENGTH];
+  }
+
+  private static String ptzAddress(OnvifDevice device) {
+    String address = device.getServiceAddresses().get(OnvifDevice.SERVICE_PTZ);
+    if (address == null) throw new IllegalArgumentException("The device has no PTZ service");
+    return address;
+  }
+
+  private PtzTemplateSender(String address, SimpleSecurityHandler security)
+      throws MalformedURLException {
+    this(new URL(address), security);
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /** ms to wait for the connection, default 5000. */
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  /** ms to wait for a response, default 10000. */
+  public void setReadTimeout(int readTimeout) {
+    this.readTimeout = readTimeout;
+  }
+
+  /** Commands sent, including failed ones. */
+  public synchronized long getRequests() {
+    return requests;
+  }
+
+  /** Connections opened, one unless the device closed the connection. */
+  public synchronized long getConnects() {
+    return connects;
+  }
+
+  public synchronized void continuousMove(
+      String profileToken, float x, float y, float zoom, long timeout) throws IOException {
+    Profile profile = profile(profileToken);
+    int at = start(profile.move);
+    at = decimal(x, at);
+    at = put(MOVE_Y, at);
+    at = decimal(y, at);
+    at = put(MOVE_ZOOM, at);
+    at = decimal(zoom, at);
+    at = put(MOVE_VELOCITY_END, at);
+    if (timeout > 0) {
+      at = put(MOVE_TIMEOUT, at);
+      at = seconds(timeout, at);
+      at = put(MOVE_TIMEOUT_END, at);
+    }
+    at = put(MOVE_END, at);
+    send(moveHead, at, "ContinuousMove");
+  }
+
+  public synchronized void stop(String profileToken, boolean panTilt, boolean zoom)
+      throws IOException {
+    Profile profile = profile(profileToken);
+    int at = start(profile.stop);
+    at = put(panTilt ? TRUE : FALSE, at);
+    at = put(STOP_ZOOM, at);
+    at = put(zoom ? TRUE : FALSE, at);
+    at = put(STOP_END, at);
+    send(stopHead, at, "Stop");
+  }
+
+  /** Closes the connection, the next command opens a new one. */
+  public synchronized void close() {
+    if (socket == null) return;
+    try {
+      socket.close();
+    } catch (IOException e) {
+      logger.debug("Closing the PTZ connection to " + host + " failed", e);
+    }
+    socket = null;
+    in = null;
+    out = null;
+  }
+
+  private Profile profile(String profileToken) {
+    Profile profile = profiles.get(profileToken);
+    if (profile == null) {
+      profile = new Profile(profileToken);
+      profiles.put(profileToken, profile);
+      int needed =
+          bodyAt
+              + ENVELOPE_START.length
+              + (security == null ? 0 : security.length())
+              + Math.max(profile.move.length, profile.stop.length)
+              + VALUES_LENGTH;
+      if (needed > buf.length) buf = Arrays.copyOf(buf, needed);
+    }
+    return profile;
+  }
+
+  /** Writes the envelope up to the first value. */
+  private int start(byte[] profileStart) {
+    int at = put(ENVELOPE_START, bodyAt);
+    if (security != null) at = security.write(buf, at, System.currentTimeMillis());
+    return put(profileStart, at);
+  }
+
+  private int put(byte[] bytes, int at) {
+    System.arraycopy(bytes, 0, buf, at, bytes.length);
+    return at + bytes.length;
+  }
+
+  /** Writes the value with at most four decimals. */
+  private int decimal(float value, int at) {
+    if (Float.isNaN(value) || Float.isInfinite(value)) {
+      throw new IllegalArgumentException("Velocity " + value);
+    }
+    long scaled = Math.round(Math.abs((double) value) * 10000);
+    if (value < 0 && scaled != 0) buf[at++] = '-';
+    at = digits(scaled / 10000, at);
+    int fraction = (int) (scaled % 10000);
+    buf[at++] = '.';
+    int digits = 4;
+    while (digits > 1 && fraction % 10 == 0) {
+      fraction /= 10;
+      digits--;
+    }
+    for (int i = at + digits - 1; i >= at; i--) {
+      buf[i] = (byte) ('0' + fraction % 10);
+      fraction /= 10;
+    }
+    return at + digits;
+  }
+
+  /** Writes ms as seconds of an xs:duration, like 1.5 for 1500. */
+  private int seconds(long millis, int at) {
+    at = digits(millis / 1000, at);
+    int fraction = (int) (millis % 1000);
+    if (fraction == 0) return at;
+    buf[at++] = '.';
+    int digits = 3;
+    while (fraction % 10 == 0) {
+      fraction /= 10;
+      digits--;
+    }
+    for (int i = at + digits - 1; i >= at; i--) {
+      buf[i] = (byte) ('0' + fraction % 10);
+      fraction /= 10;
+    }
+    return at + digits;
+  }
+
+  private int digits(long value, int at) {
+    int count = 1;
+    for (long v = value / 10; v > 0; v /= 10) count++;
+    for (int i = at + count - 1; i >= at; i--) {
+      buf[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    return at + count;
+  }
+
+  /** Puts the head before the envelope ending at end and sends the request. */
+  private void send(byte[] head, int end, String command) throws IOException {
+    int length = end - bodyAt;
+    int at = bodyAt - 4;
+    buf[at] = '\r';
+    buf[at + 1] = '\n';
+    buf[at + 2] = '\r';
+    buf[at + 3] = '\n';
+    do {
+      buf[--at] = (byte) ('0' + length % 10);
+      length /= 10;
+    } while (length > 0);
+    at -= head.length;
+    System.arraycopy(head, 0, buf, at, head.length);
+    requests++;
+
+    boolean reused = socket != null;
+    int status;
+    try {
+      status = exchange(at, end);
+    } catch (IOException e) {
+      close();
+      // a kept-alive connection the device closed in the meantime
+      if (!reused || e instanceof SocketTimeoutException) throw e;
+      logger.debug("PTZ connection to " + host + " lost, reconnecting", e);
+      try {
+        status = exchange(at, end);
+      } catch (IOException again) {
+        close();
+        throw again;
+      }
+    }
+    if (status != 200) {
+      throw new IOException(command + " failed with HTTP " + status + ": " + faultReason());
+    }
+  }
+
+  private int exchange(int from, int to) throws IOException {
+    if (socket == null) connect();
+    out.write(buf, from, to - from);
+    return readResponse();
+  }
+
+  private void connect() throws IOException {
+    Socket s = new Socket();
+    try {
+      s.setTcpNoDelay(true);
+      s.setSoTimeout(readTimeout);
+      s.connect(new InetSocketAddress(host, port), connectTimeout);
+      in = s.getInputStream();
+      out = s.getOutputStream();
+    } catch (IOException e) {
+      s.close();
+      throw e;
+    }
+    socket = s;
+    connects++;
+  }
+
+  /**
+   * Reads a response into response, interim 1xx responses are skipped.
+   *
+   * @return the status
+   */
+  private int readResponse() throws IOException {
+    responseLength = 0;
+    int headerEnd;
+    int status;
+    while (true) {
+      headerEnd = 0;
+      int line;
+      do {
+        line = headerEnd;
+        headerEnd = lineEnd(line);
+      } while (headerEnd - line != 2);
+      status = status();
+      if (status >= 200) break;
+      // drop the interim response
+      System.arraycopy(response, headerEnd, response, 0, responseLength - headerEnd);
+      responseLength -= headerEnd;
+    }
+    long contentLength = header(CONTENT_LENGTH, headerEnd);
+    boolean keepAlive = response[7] == '1' && header(CONNECTION, headerEnd) != -2;
+    if (header(TRANSFER_ENCODING, headerEnd) == -2) {
+      int at = headerEnd;
+      while (true) {
+        int next = lineEnd(at);
+        int size = hex(at, next - 2);
+        if (size == 0) {
+          // trailers up to the blank line
+          while (next - at != 2) {
+            at = next;
+            next = lineEnd(at);
+          }
+          break;
+        }
+        fill(next + size + 2);
+        at = next + size + 2;
+      }
+    } else if (contentLength >= 0) {
+      fill(headerEnd + (int) contentLength);
+    } else {
+      while (read()) {}
+      keepAlive = false;
+    }
+    bodyStart = headerEnd;
+    if (!keepAlive) close();
+    return status;
+  }
+
+  /** Reads until the line starting at from is complete, returns the offset after its CRLF. */
+  private int lineEnd(int from) throws IOException {
+    int i = from;
+    while (true) {
+      for (; i + 1 < responseLength; i++) {
+        if (response[i] == '\r' && response[i + 1] == '\n') return i + 2;
+      }
+      if (!read()) throw new EOFException("PTZ connection closed in a response");
+    }
+  }
+
+  private void fill(int length) throws IOException {
+    while (responseLength < length) {
+      if (!read()) throw new EOFException("PTZ connection closed in a response");
+    }
+  }
+
+  /** Reads what is available, false at the end of the stream. */
+  private boolean read() throws IOException {
+    if (responseLength == response.length) response = Arrays.copyOf(response, response.length * 2);
+    int n = in.read(response, responseLength, response.length - responseLength);
+    if (n < 0) return false;
+    responseLength += n;
+    return true;
+  }
+
+  /** The status of the status line, like 200 of HTTP/1.1 200 OK. */
+  private int status() throws IOException {
+    int space = 0;
+    while (space < responseLength && response[space] != ' ') space++;
+    if (space + 4 > responseLength) throw new IOException("Bad PTZ response");
+    int status = 0;
+    for (int i = space + 1; i < space + 4; i++) status = status * 10 + (response[i] - '0');
+    return status;
+  }
+
+  /**
+   * The header among the headers before end.
+   *
+   * @return the number of a Content-Length, -2 for a chunked Transfer-Encoding or a Connection
+   *     close, -1 if there is no such header
+   */
+  private long header(byte[] name, int end) {
+    int line = 0;
+    while (line < end) {
+      int next = line;
+      while (next + 1 < end && !(response[next] == '\r' && response[next + 1] == '\n')) next++;
+      if (startsWithIgnoreCase(line, next, name)) {
+        int at = line + name.length;
+        while (at < next && response[at] == ' ') at++;
+        if (name == CONTENT_LENGTH) {
+          long value = 0;
+          for (; at < next && response[at] >= '0' && response[at] <= '9'; at++) {
+            value = value * 10 + (response[at] - '0');
+          }
+          return value;
+        }
+        byte[] value = name == CONNECTION ? CLOSE : CHUNKED;
+        return startsWithIgnoreCase(at, next, value) ? -2 : -1;
+      }
+      line = next + 2;
+    }
+    return -1;
+  }
+
+  private boolean startsWithIgnoreCase(int at, int end, byte[] prefix) {
+    if (end - at < prefix.length) return false;
+    for (int i = 0; i < prefix.length; i++) {
+      if (Character.toLowerCase(response[at + i]) != prefix[i]) return false;
+    }
+    return true;
+  }
+
+  private int hex(int from, int to) throws IOException {
+    int value = 0;
+    for (int i = from; i < to; i++) {
+      int digit = Character.digit(response[i], 16);
+      if (digit < 0) break; // chunk extensions
+      value = value * 16 + digit;
+    }
+    return value;
+  }
+
+  /** The text of the SOAP fault of the last response, for the exception only. */
+  private String faultReason() {
+    String body =
+        new String(response, bodyStart, responseLength - bodyStart, StandardCharsets.UTF_8);
+    int text = body.indexOf(":Text");
+    if (text < 0) text = body.indexOf("<Text");
+    int start = text < 0 ? -1 : body.indexOf('>', text);
+    int end = start < 0 ? -1 : body.indexOf('<', start);
+    if (end < 0) return body.length() > 200 ? body.substring(0, 200) : body;
+    return body.substring(start + 1, end);
+  }
+
+  private static byte[] head(String path, String host, String action) {
+    return ascii(
+        "POST "
+            + path
+            + " HTTP/1.1\r\nHost: "
+            + host
+            + "\r\nContent-Type: application/soap+xml; charset=utf-8; action=\""
+            + action
+            + "\"\r\nContent-Length: ");
+  }
+
+  private static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static String escape(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  /** The envelopes of a profile after the security header, up to their first value. */
+  private static final class Profile {
+    final byte[] move;
+    final byte[] stop;
+
+    Profile(String profileToken) {
+      String token = "<tptz:ProfileToken>" + escape(profileToken) + "</tptz:ProfileToken>";
+      move =
+          ("</env:Header><env:Body><tptz:ContinuousMove>"
+                  + token
+                  + "<tptz:Velocity><tt:PanTilt space=\""
+                  + PAN_TILT_VELOCITY
+                  + "\" x=\"")
+              .getBytes(StandardCharsets.UTF_8);
+      stop =
+          ("</env:Header><env:Body><tptz:Stop>" + token + "<tptz:PanTilt>")
+              .getBytes(StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -6,7 +6,10 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 import javax.xml.soap.SOAPException;
@@ -51,6 +54,12 @@ public class OnvifDevice {
   private static final Logger logger = LoggerFactory.getLogger(OnvifDevice.class);
   private static final String DEVICE_SERVICE = "/onvif/device_service";
 
+  public static final String SERVICE_DEVICE = "device";
+  public static final String SERVICE_MEDIA = "media";
+  public static final String SERVICE_PTZ = "ptz";
+  public static final String SERVICE_IMAGING = "imaging";
+  public static final String SERVICE_EVENTS = "events";
+
   private final URL url; // Example http://host:port, https://host, http://host, http://ip_address
 
   private Device device;
@@ -58,6 +67,7 @@ public class OnvifDevice {
   private PTZ ptz;
   private ImagingPort imaging;
   private EventPortType events;
+  private Map<String, String> serviceAddresses;
 
   private static boolean verbose = false; // enable/disable logging of SOAP messages
   final SimpleSecurityHandler securityHandler;
@@ -119,6 +129,20 @@ public class OnvifDevice {
     this(hostIp, null, null);
   }
 
+  /**
+   * Initializes an Onvif device from service addresses remembered from an earlier connect (see
+   * {@link #getServiceAddresses()}), without asking the device for its capabilities again.
+   *
+   * @param serviceAddresses service XAddrs by name: device, media, ptz, imaging, events
+   */
+  public OnvifDevice(URL url, String user, String password, Map<String, String> serviceAddresses)
+      throws ConnectException {
+    this.url = cleanURL(url);
+    securityHandler =
+        !user.isEmpty() && !password.isEmpty() ? new SimpleSecurityHandler(user, password) : null;
+    initServices(serviceAddresses);
+  }
+
   /**
    * Initalizes the addresses used for SOAP messages and to get the internal IP, if given IP is a
    * proxy.
@@ -141,31 +165,58 @@ public class OnvifDevice {
       throw new ConnectException("Capabilities not reachable.");
     }
 
+    Map<String, String> addresses = new LinkedHashMap<>();
+    addresses.put(SERVICE_DEVICE, url.toString() + DEVICE_SERVICE);
     if (capabilities.getMedia() != null && capabilities.getMedia().getXAddr() != null) {
+      addresses.put(SERVICE_MEDIA, capabilities.getMedia().getXAddr());
+    }
+    if (capabilities.getPTZ() != null && capabilities.getPTZ().getXAddr() != null) {
+      addresses.put(SERVICE_PTZ, capabilities.getPTZ().getXAddr());
+    }
+    if (capabilities.getImaging() != null && capabilities.getImaging().getXAddr() != null) {
+      addresses.put(SERVICE_IMAGING, capabilities.getImaging().getXAddr());
+    }
+    if (capabilities.getEvents() != null && capabilities.getEvents().getXAddr() != null) {
+      addresses.put(SERVICE_EVENTS, capabilities.getEvents().getXAddr());
+    }
+    initServices(addresses);
+  }
+
+  private void initServices(Map<String, String> addresses) {
+    this.serviceAddresses = Collections.unmodifiableMap(new LinkedHashMap<>(addresses));
+
+    if (this.device == null) {
+      String deviceAddr = addresses.get(SERVICE_DEVICE);
+      if (deviceAddr == null) deviceAddr = url.toString() + DEVICE_SERVICE;
+      BindingProvider deviceServicePort =
+          (BindingProvider) new DeviceService(null, DeviceService.SERVICE).getDevicePort();
+      this.device = getServiceProxy(deviceServicePort, deviceAddr).create(Device.class);
+    }
+
+    if (addresses.get(SERVICE_MEDIA) != null) {
       this.media = new MediaService().getMediaPort();
       this.media =
-          getServiceProxy((BindingProvider) media, capabilities.getMedia().getXAddr())
+          getServiceProxy((BindingProvider) media, addresses.get(SERVICE_MEDIA))
               .create(Media.class);
     }
 
-    if (capabilities.getPTZ() != null && capabilities.getPTZ().getXAddr() != null) {
+    if (addresses.get(SERVICE_PTZ) != null) {
       this.ptz = new PtzService().getPtzPort();
       this.ptz =
-          getServiceProxy((BindingProvider) ptz, capabilities.getPTZ().getXAddr())
-              .create(PTZ.class);
+          getServiceProxy((BindingProvider) ptz, addresses.get(SERVICE_PTZ)).create(PTZ.class);
     }
 
-    if (capabilities.getImaging() != null && capabilities.getImaging().getXAddr() != null) {
+    if (addresses.get(SERVICE_IMAGING) != null) {
       this.imaging = new ImagingService().getImagingPort();
       this.imaging =
-          getServiceProxy((BindingProvider) imaging, capabilities.getImaging().getXAddr())
+          getServiceProxy((BindingProvider) imaging, addresses.get(SERVICE_IMAGING))
               .create(ImagingPort.class);
     }
 
-    if (capabilities.getEvents() != null && capabilities.getEvents().getXAddr() != null) {
+    if (addresses.get(SERVICE_EVENTS) != null) {
       this.events = new EventService().getEventPort();
       this.events =
-          getServiceProxy((BindingProvider) events, capabilities.getEvents().getXAddr())
+          getServiceProxy((BindingProvider) events, addresses.get(SERVICE_EVENTS))
               .create(EventPortType.class);
     }
   }
@@ -260,6 +311,16 @@ public class OnvifDevice {
     return events;
   }
 
+  /** Service XAddrs resolved at connect time, by name (device, media, ptz, imaging, events). */
+  public Map<String, String> getServiceAddresses() {
+    return serviceAddresses;
+  }
+
+  /** Adds the UsernameToken to requests, null if the device is used without credentials. */
+  public SimpleSecurityHandler getSecurityHandler() {
+    return securityHandler;
+  }
+
   public DateTime getDate() {
     return device.getSystemDateAndTime().getLocalDateTime();
   }
@@ -0,0 +1,168 @@
+package de.onvif.soap;
+
+import static org.apache.wss4j.common.WSS4JConstants.BASE64_ENCODING;
+import static org.apache.wss4j.common.WSS4JConstants.PASSWORD_DIGEST;
+import static org.apache.wss4j.common.WSS4JConstants.WSSE_NS;
+import static org.apache.wss4j.common.WSS4JConstants.WSU_NS;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import org.apache.commons.codec.digest.MessageDigestAlgorithms;
+
+/**
+ * The wsse:Security header of {@link SimpleSecurityHandler#createSecurityHeader()} serialized once,
+ * for requests sent many times a second. Nonce, creation time and digest have a fixed length, so
+ * {@link #write} only patches them into a copy of the template, without allocating. Not thread
+ * safe, one per sending thread.
+ */
+public final class SecurityHeaderTemplate {
+  private static final int NONCE_BYTES = 16;
+  /** Base64 lengths of the nonce and of the SHA-1 digest. */
+  private static final int NONCE_LENGTH = 24;
+  private static final int DIGEST_LENGTH = 28;
+  /** yyyy-MM-ddTHH:mm:ssZ */
+  private static final int CREATED_LENGTH = 20;
+
+  private final byte[] template;
+  private final int digestAt;
+  private final int nonceAt;
+  private final int createdAt;
+  private final byte[] password;
+
+  private final MessageDigest sha1;
+  /**
+   * Nonces are the SHA-1 of a random seed and a counter: SecureRandom allocates twice the bytes it
+   * returns on every call.
+   */
+  private final MessageDigest nonceDigest;
+
+  private final byte[] seed = new byte[20];
+  private final byte[] counter = new byte[8];
+  private long count;
+
+  private final Base64.Encoder base64 = Base64.getEncoder();
+  private final byte[] nonceBlock = new byte[20];
+  private final byte[] nonce = new byte[NONCE_BYTES];
+  private final byte[] digest = new byte[20];
+  private final byte[] nonceText = new byte[NONCE_LENGTH];
+  private final byte[] digestText = new byte[DIGEST_LENGTH];
+  private final byte[] created = new byte[CREATED_LENGTH];
+  /** Second the created text is of. */
+  private long createdSecond = Long.MIN_VALUE;
+
+  SecurityHeaderTemplate(String username, String password) {
+    try {
+      sha1 = MessageDigest.getInstance(MessageDigestAlgorithms.SHA_1);
+      nonceDigest = MessageDigest.getInstance(MessageDigestAlgorithms.SHA_1);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    new SecureRandom().nextBytes(seed);
+    this.password = password.getBytes(StandardCharsets.UTF_8);
+    String start =
+        "<wsse:Security xmlns:wsse=\""
+            + WSSE_NS
+            + "\" xmlns:wsu=\""
+            + WSU_NS
+            + "\"><wsse:UsernameToken><wsse:Username>"
+            + SimpleSecurityHandler.escape(username)
+            + "</wsse:Username><wsse:Password Type=\""
+            + PASSWORD_DIGEST
+            + "\">";
+    String nonceStart = "</wsse:Password><wsse:Nonce EncodingType=\"" + BASE64_ENCODING + "\">";
+    String createdStart = "</wsse:Nonce><wsu:Created>";
+    String end = "</wsu:Created></wsse:UsernameToken></wsse:Security>";
+    byte[] startBytes = start.getBytes(StandardCharsets.UTF_8);
+    digestAt = startBytes.length;
+    nonceAt = digestAt + DIGEST_LENGTH + nonceStart.length();
+    createdAt = nonceAt + NONCE_LENGTH + createdStart.length();
+    template = new byte[createdAt + CREATED_LENGTH + end.length()];
+    System.arraycopy(startBytes, 0, template, 0, startBytes.length);
+    ascii(nonceStart, template, digestAt + DIGEST_LENGTH);
+    ascii(createdStart, template, nonceAt + NONCE_LENGTH);
+    ascii(end, template, createdAt + CREATED_LENGTH);
+  }
+
+  /** Bytes {@link #write} writes, the same for every call. */
+  public int length() {
+    return template.length;
+  }
+
+  /**
+   * Writes the header with a new nonce and a creation time of now.
+   *
+   * @param now the time in ms
+   * @return the offset after the header
+   */
+  public int write(byte[] dst, int offset, long now) {
+    long n = ++count;
+    for (int i = 0; i < counter.length; i++, n >>>= 8) counter[i] = (byte) n;
+    long second = Math.floorDiv(now, 1000);
+    if (second != createdSecond) {
+      created(second);
+      createdSecond = second;
+    }
+    try {
+      nonceDigest.update(seed);
+      nonceDigest.update(counter);
+      nonceDigest.digest(nonceBlock, 0, nonceBlock.length);
+      System.arraycopy(nonceBlock, 0, nonce, 0, NONCE_BYTES);
+      sha1.update(nonce);
+      sha1.update(created);
+      sha1.update(password);
+      sha1.digest(digest, 0, digest.length);
+    } catch (DigestException e) {
+      throw new IllegalStateException(e);
+    }
+    base64.encode(digest, digestText);
+    base64.encode(nonce, nonceText);
+    System.arraycopy(template, 0, dst, offset, template.length);
+    System.arraycopy(digestText, 0, dst, offset + digestAt, DIGEST_LENGTH);
+    System.arraycopy(nonceText, 0, dst, offset + nonceAt, NONCE_LENGTH);
+    System.arraycopy(created, 0, dst, offset + createdAt, CREATED_LENGTH);
+    return offset + template.length;
+  }
+
+  /** Formats the UTC time of the epoch second like yyyy-MM-ddTHH:mm:ssZ into created. */
+  private void created(long second) {
+    long days = Math.floorDiv(second, 86400);
+    int secondOfDay = (int) Math.floorMod(second, 86400);
+    // civil date of the day, see Howard Hinnant's days_from_civil inverse
+    long z = days + 719468;
+    long era = Math.floorDiv(z, 146097);
+    long dayOfEra = z - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long mp = (5 * dayOfYear + 2) / 153;
+    int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+    int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+    int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+    digits(year, 4, 0);
+    created[4] = '-';
+    digits(month, 2, 5);
+    created[7] = '-';
+    digits(day, 2, 8);
+    created[10] = 'T';
+    digits(secondOfDay / 3600, 2, 11);
+    created[13] = ':';
+    digits(secondOfDay / 60 % 60, 2, 14);
+    created[16] = ':';
+    digits(secondOfDay % 60, 2, 17);
+    created[19] = 'Z';
+  }
+
+  private void digits(int value, int count, int at) {
+    for (int i = at + count - 1; i >= at; i--) {
+      created[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+
+  private static void ascii(String s, byte[] dst, int offset) {
+    for (int i = 0; i < s.length(); i++) dst[offset + i] = (byte) s.charAt(i);
+  }
+}
@@ -14,11 +14,13 @@ import static org.apache.wss4j.common.WSS4JConstants.WSSE_PREFIX;
 import static org.apache.wss4j.common.WSS4JConstants.WSU_NS;
 import static org.apache.wss4j.common.WSS4JConstants.WSU_PREFIX;
 
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.Random;
 import java.util.Set;
@@ -126,6 +128,55 @@ public class SimpleSecurityHandler implements SOAPHandler<SOAPMessageContext> {
     String encoded = Base64.encodeBase64String(encryptedRaw);
     return encoded;
   }
+
+  /**
+   * The wsse:Security header as xml text, for requests written without SAAJ. Every call uses a new
+   * nonce and creation time, so the token can be sent with any number of requests.
+   */
+  public String createSecurityHeader() {
+    byte[] nonceBytes = new byte[16];
+    rnd.nextBytes(nonceBytes);
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+    String created = sdf.format(new Date());
+    String digest;
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance(MessageDigestAlgorithms.SHA_1);
+      sha1.update(nonceBytes);
+      sha1.update(created.getBytes(StandardCharsets.UTF_8));
+      sha1.update(password.getBytes(StandardCharsets.UTF_8));
+      digest = Base64.encodeBase64String(sha1.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    return "<wsse:Security xmlns:wsse=\""
+        + WSSE_NS
+        + "\" xmlns:wsu=\""
+        + WSU_NS
+        + "\"><wsse:UsernameToken><wsse:Username>"
+        + escape(username)
+        + "</wsse:Username><wsse:Password Type=\""
+        + PASSWORD_DIGEST
+        + "\">"
+        + digest
+        + "</wsse:Password><wsse:Nonce EncodingType=\""
+        + BASE64_ENCODING
+        + "\">"
+        + Base64.encodeBase64String(nonceBytes)
+        + "</wsse:Nonce><wsu:Created>"
+        + created
+        + "</wsu:Created></wsse:UsernameToken></wsse:Security>";
+  }
+
+  /** The same header as a template for requests sent many times a second. */
+  public SecurityHeaderTemplate createSecurityHeaderTemplate() {
+    return new SecurityHeaderTemplate(username, password);
+  }
+
+  static String escape(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
   // Other required methods on interface need no guts
   private static byte[] sha1(String s) throws NoSuchAlgorithmException {
     MessageDigest SHA1 = MessageDigest.getInstance(MessageDigestAlgorithms.SHA_1);
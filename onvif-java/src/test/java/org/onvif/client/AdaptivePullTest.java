@@ -0,0 +1,127 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.EventMultiplexer;
+import de.onvif.events.NotificationEvent;
+import de.onvif.events.PullTuner;
+import de.onvif.soap.OnvifDevice;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EventMultiplexer with adaptive PullMessages on a quiet and a busy camera of
+ * SimulatedEventService. The quiet one is polled with ever longer timeouts up to what the
+ * subscription lifetime leaves, without renewing before every poll, the busy one gets larger
+ * batches until the device refuses the message limit. Reports the metrics of
+ * both against the polls a fixed timeout would have needed.
+ *
+ * <p>Arguments: [seconds], default 12.
+ */
+public class AdaptivePullTest {
+  private static final Logger LOG = LoggerFactory.getLogger(AdaptivePullTest.class);
+
+  private static final String MOTION = "tns1:VideoSource/MotionAlarm";
+  private static final int DEVICE_LIMIT = 300;
+
+  public static void main(String[] args) throws Exception {
+    int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+    SimulatedEventService service = new SimulatedEventService("http://localhost:9011/onvif");
+    service.maxMessageLimit = DEVICE_LIMIT;
+    service.omitMaxTimeout = true; // MaxTimeout is optional in the fault
+    service.start();
+    OnvifDevice device =
+        new OnvifDevice(
+            new URL("http://localhost:9011"),
+            "",
+            "",
+            Collections.singletonMap(OnvifDevice.SERVICE_EVENTS, service.getEventsAddress()));
+
+    final AtomicLong received = new AtomicLong();
+    EventMultiplexer multiplexer =
+        new EventMultiplexer(
+            new EventMultiplexer.EventListener() {
+              public void onEvents(String deviceId, List<NotificationEvent> events) {
+                received.addAndGet(events.size());
+              }
+            },
+            1,
+            2);
+    multiplexer.setPullTimeout(1000);
+    multiplexer.setMessageLimit(20);
+    multiplexer.setAdaptivePull(true);
+    multiplexer.setPullTimeoutBounds(1000, 30000);
+    // (10 s lifetime - 2 s margin) / 2 caps the timeout at 4 s or, rounded down, 3 s
+    multiplexer.setSubscriptionTime(10000);
+    multiplexer.setRenewMargin(2000);
+    multiplexer.setMessageLimitBounds(10, 1000);
+
+    multiplexer.add("quiet", device, null);
+    awaitSubscriptions(service, 1);
+    List<String> ids = new ArrayList<>(service.getSubscriptionIds());
+    multiplexer.add("busy", device, null);
+    awaitSubscriptions(service, 2);
+    List<String> busyIds = new ArrayList<>(service.getSubscriptionIds());
+    busyIds.removeAll(ids);
+    String busy = busyIds.get(0);
+
+    long published = 0;
+    long end = System.currentTimeMillis() + seconds * 1000L;
+    while (System.currentTimeMillis() < end) {
+      for (int i = 0; i < 400; i++) {
+        long now = System.currentTimeMillis();
+        service.publish(busy, SimulatedEventService.message(MOTION, "Value", "" + i, now));
+        published++;
+      }
+      Thread.sleep(100);
+    }
+    long deadline = System.currentTimeMillis() + 10000;
+    while (received.get() < published && System.currentTimeMillis() < deadline) Thread.sleep(50);
+    assertTrue(received.get() == published, received + " of " + published + " events received");
+
+    PullTuner quiet = multiplexer.getPullTuner("quiet");
+    PullTuner loaded = multiplexer.getPullTuner("busy");
+    long timeout = quiet.getPullTimeout();
+    assertTrue(timeout >= 3000 && timeout <= 4000, "quiet camera polled with " + quiet);
+    assertTrue(quiet.getRate() == 0 && quiet.getFillRatio() == 0, "quiet camera " + quiet);
+    assertTrue(service.renews.get() < 2 * seconds, service.renews + " renews in " + seconds + " s");
+    assertTrue(loaded.getPullTimeout() == 1000, "busy camera polled with " + loaded);
+    assertTrue(loaded.getMessageLimit() >= 160, "busy camera limit " + loaded);
+    assertTrue(loaded.getMessageLimit() <= DEVICE_LIMIT, "device limit ignored " + loaded);
+    assertTrue(loaded.getRate() > 1000, "busy camera rate " + loaded);
+    assertTrue(loaded.getLag() < 1000, "busy camera lag " + loaded);
+
+    String report =
+        String.format(
+            "quiet: %d polls in %d s (%d with a fixed timeout), %s%n"
+                + "busy: %d polls for %d events, %s",
+            quiet.getPolls(),
+            seconds,
+            seconds,
+            quiet,
+            loaded.getPolls(),
+            published,
+            loaded);
+    printReport(report);
+
+    multiplexer.shutdown(2000);
+    service.stop();
+    LOG.info("AdaptivePullTest passed");
+    System.exit(0); // the embedded jetty keeps the jvm alive otherwise
+  }
+
+  private static void awaitSubscriptions(SimulatedEventService service, int count)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (service.getSubscriptionCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    assertTrue(service.getSubscriptionCount() == count, "not subscribed");
+  }
+}
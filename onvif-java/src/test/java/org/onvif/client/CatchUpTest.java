@@ -0,0 +1,209 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.EventMultiplexer;
+import de.onvif.events.NotificationDecoder;
+import de.onvif.events.NotificationEvent;
+import de.onvif.events.NotificationEvent.PropertyOperation;
+import de.onvif.events.PullPointSubscriptionClient;
+import de.onvif.soap.OnvifDevice;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A camera of SimulatedEventService with PersistentNotificationStorage loses its subscriptions
+ * while events go on. EventMultiplexer and PullPointSubscriptionClient subscribe again, Seek back
+ * to the last message they got and receive every event of the outage plus the current state from
+ * SetSynchronizationPoint. A camera without storage can not seek and its outage is reported as a
+ * gap.
+ */
+public class CatchUpTest {
+  private static final Logger LOG = LoggerFactory.getLogger(CatchUpTest.class);
+
+  private static final String MOTION = "tns1:VideoSource/MotionAlarm";
+  private static final long T0 = 1600000000000L;
+
+  public static void main(String[] args) throws Exception {
+    SimulatedEventService service = new SimulatedEventService("http://localhost:9009/onvif");
+    service.persistentStorage = true;
+    service.start();
+    OnvifDevice device =
+        new OnvifDevice(
+            new URL("http://localhost:9009"),
+            "",
+            "",
+            Collections.singletonMap(OnvifDevice.SERVICE_EVENTS, service.getEventsAddress()));
+
+    final Collector multiplexed = new Collector();
+    final List<String> gaps = new ArrayList<>();
+    EventMultiplexer multiplexer =
+        new EventMultiplexer(
+            new EventMultiplexer.EventListener() {
+              public void onEvents(String deviceId, List<NotificationEvent> events) {
+                if (deviceId.equals("camera")) multiplexed.add(events);
+              }
+            },
+            1,
+            2);
+    multiplexer.setPullTimeout(1000);
+    multiplexer.setGapListener(
+        new EventMultiplexer.GapListener() {
+          public void onGap(String deviceId, long from, long to) {
+            synchronized (gaps) {
+              gaps.add(deviceId);
+            }
+          }
+        });
+    multiplexer.add("camera", device, null);
+
+    final Collector pulled = new Collector();
+    PullPointSubscriptionClient client =
+        new PullPointSubscriptionClient(
+            device,
+            null,
+            new PullPointSubscriptionClient.Listener() {
+              public void onMessages(
+                  PullPointSubscriptionClient source, List<NotificationMessageHolderType> batch) {
+                List<NotificationEvent> events = new ArrayList<>();
+                for (NotificationMessageHolderType m : batch) {
+                  events.add(NotificationDecoder.decode(m));
+                }
+                pulled.add(events);
+              }
+            });
+    client.setPullTimeout(1000);
+    client.start();
+    awaitSubscriptions(service, 2);
+
+    for (int i = 0; i < 10; i++) publish(service, i);
+    multiplexed.await(10);
+    pulled.await(10);
+
+    // the camera forgets its subscriptions, events go on into its storage only
+    service.reboot();
+    for (int i = 10; i < 20; i++) publish(service, i);
+    multiplexed.await(20);
+    pulled.await(20);
+    multiplexed.awaitInitialized();
+    pulled.awaitInitialized();
+
+    multiplexed.check("multiplexer");
+    pulled.check("client");
+    assertTrue(service.seeks.get() == 2, "seeks " + service.seeks);
+    assertTrue(
+        service.synchronizationPoints.get() == 2, "synchronized " + service.synchronizationPoints);
+    assertTrue(multiplexer.getSeeks() == 1, "multiplexer seeks " + multiplexer.getSeeks());
+    assertTrue(multiplexer.getGaps() == 0, "gap reported although the camera could seek");
+
+    // a camera without storage: the outage is a gap, SetSynchronizationPoint is still sent
+    client.stop();
+    service.persistentStorage = false;
+    multiplexer.add("plain", device, null);
+    awaitSubscriptions(service, 2);
+    publish(service, 20);
+    multiplexed.await(21);
+    service.reboot();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (multiplexer.getGaps() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+    synchronized (gaps) {
+      assertTrue(gaps.equals(Collections.singletonList("plain")), "gaps of " + gaps);
+    }
+    deadline = System.currentTimeMillis() + 10000;
+    while (service.synchronizationPoints.get() < 4 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertTrue(
+        service.synchronizationPoints.get() == 4, "synchronized " + service.synchronizationPoints);
+    assertTrue(multiplexer.getSeeks() == 2, "multiplexer seeks " + multiplexer.getSeeks());
+
+    String report =
+        String.format(
+            "multiplexer got %d events, client %d events, %d seeks, %d synchronization points,"
+                + " %d gaps",
+            multiplexed.size(),
+            pulled.size(),
+            service.seeks.get(),
+            service.synchronizationPoints.get(),
+            multiplexer.getGaps());
+    printReport(report);
+
+    multiplexer.shutdown(2000);
+    service.stop();
+    LOG.info("CatchUpTest passed");
+    System.exit(0); // the embedded jetty keeps the jvm alive otherwise
+  }
+
+  private static void publish(SimulatedEventService service, int i) throws Exception {
+    service.publish(SimulatedEventService.message(MOTION, "Value", "" + i, T0 + i * 1000L));
+  }
+
+  private static void awaitSubscriptions(SimulatedEventService service, int count)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (service.getSubscriptionCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    assertTrue(service.getSubscriptionCount() == count, "not subscribed");
+  }
+
+  /** Changed values and Initialized events received. */
+  private static final class Collector {
+    private final List<Integer> changed = new ArrayList<>();
+    private final List<Integer> initialized = new ArrayList<>();
+
+    synchronized void add(List<NotificationEvent> events) {
+      for (NotificationEvent e : events) {
+        int value = Integer.parseInt(e.getData("Value"));
+        if (e.getPropertyOperation() == PropertyOperation.INITIALIZED) initialized.add(value);
+        else changed.add(value);
+      }
+    }
+
+    synchronized int size() {
+      return changed.size() + initialized.size();
+    }
+
+    /** Waits for the Changed value count - 1. */
+    void await(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 15000;
+      while (System.currentTimeMillis() < deadline) {
+        synchronized (this) {
+          if (changed.contains(count - 1)) return;
+        }
+        Thread.sleep(20);
+      }
+      assertTrue(false, "value " + (count - 1) + " not received");
+    }
+
+    void awaitInitialized() throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 15000;
+      while (System.currentTimeMillis() < deadline) {
+        synchronized (this) {
+          if (!initialized.isEmpty()) return;
+        }
+        Thread.sleep(20);
+      }
+      assertTrue(false, "no Initialized event");
+    }
+
+    /** Values 0..19 in order, the last one before the outage may come again after the Seek. */
+    synchronized void check(String name) {
+      int nines = Collections.frequency(changed, 9);
+      assertTrue(nines == 1 || nines == 2, name + " got " + changed);
+      List<Integer> values = new ArrayList<>(changed);
+      values.removeAll(Collections.singleton(9));
+      assertTrue(values.size() == 19, name + " got " + changed);
+      for (int i = 0; i < values.size(); i++) {
+        assertTrue(values.get(i) == (i < 9 ? i : i + 1), name + " got " + changed);
+      }
+      assertTrue(initialized.equals(Collections.singletonList(19)), name + " got " + initialized);
+    }
+  }
+}
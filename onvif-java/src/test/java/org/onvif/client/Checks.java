@@ -0,0 +1,30 @@
+package org.onvif.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Assertions and result lines of the tests and benchmarks in this package, which are programs run
+ * with main() against simulated devices. A failed check ends the program with exit code 1, as the
+ * embedded servers would keep the jvm alive after an exception.
+ */
+final class Checks {
+  private static final Logger LOG = LoggerFactory.getLogger(Checks.class);
+
+  private Checks() {}
+
+  /** Logs and prints the message and exits with 1 unless the condition holds. */
+  static void assertTrue(boolean condition, String message) {
+    if (!condition) {
+      LOG.error(message);
+      System.err.println(message);
+      System.exit(1);
+    }
+  }
+
+  /** Logs and prints the measurements of a run, one or more lines. */
+  static void printReport(String report) {
+    LOG.info(report);
+    System.out.print(report.endsWith("\n") ? report : report + System.lineSeparator());
+  }
+}
@@ -0,0 +1,108 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.DeliveryLatency;
+import de.onvif.events.DeliveryLatency.Stage;
+import de.onvif.events.EventMultiplexer;
+import de.onvif.events.LatencyHistogram;
+import de.onvif.events.NotificationEvent;
+import de.onvif.soap.OnvifDevice;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DeliveryLatency on EventMultiplexer with a camera of SimulatedEventService whose clock runs five
+ * minutes ahead and whose events reach its event service 50 ms after their UtcTime. The offset is
+ * found from the CurrentTime of the responses, so the device stage shows the 50 ms instead of
+ * minus five minutes. Reports all stages per device and per topic.
+ *
+ * <p>Arguments: [events], default 300.
+ */
+public class DeliveryLatencyTest {
+  private static final Logger LOG = LoggerFactory.getLogger(DeliveryLatencyTest.class);
+
+  private static final String MOTION = "tns1:VideoSource/MotionAlarm";
+  private static final String INPUT = "tns1:Device/Trigger/DigitalInput";
+  private static final long OFFSET = 5 * 60 * 1000;
+  private static final long CAMERA_DELAY = 50;
+
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+    SimulatedEventService service = new SimulatedEventService("http://localhost:9012/onvif");
+    service.clockOffset = OFFSET;
+    service.start();
+    OnvifDevice device =
+        new OnvifDevice(
+            new URL("http://localhost:9012"),
+            "",
+            "",
+            Collections.singletonMap(OnvifDevice.SERVICE_EVENTS, service.getEventsAddress()));
+
+    final AtomicLong received = new AtomicLong();
+    EventMultiplexer multiplexer =
+        new EventMultiplexer(
+            new EventMultiplexer.EventListener() {
+              public void onEvents(String deviceId, List<NotificationEvent> events) {
+                received.addAndGet(events.size());
+              }
+            },
+            1,
+            1);
+    DeliveryLatency latency = new DeliveryLatency();
+    multiplexer.setDeliveryLatency(latency);
+    multiplexer.setPullTimeout(2000);
+    multiplexer.add("camera", device, null);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (service.getSubscriptionCount() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+
+    for (int i = 0; i < count; i++) {
+      long utcTime = System.currentTimeMillis() + OFFSET - CAMERA_DELAY;
+      String topic = i % 3 == 0 ? INPUT : MOTION;
+      service.publish(SimulatedEventService.message(topic, "Value", "" + i, utcTime));
+      Thread.sleep(10);
+    }
+    deadline = System.currentTimeMillis() + 10000;
+    while (received.get() < count && System.currentTimeMillis() < deadline) Thread.sleep(20);
+    assertTrue(received.get() == count, received + " of " + count + " events received");
+
+    long offset = latency.getClockOffset("camera");
+    assertTrue(Math.abs(offset - OFFSET) < 100, "clock offset " + offset);
+    LatencyHistogram device1 = latency.getDevice("camera", Stage.DEVICE);
+    LatencyHistogram total = latency.getDevice("camera", Stage.TOTAL);
+    assertTrue(device1.getCount() == count && total.getCount() == count, "events timed");
+    long median = device1.getPercentile(0.5) / 1000;
+    assertTrue(median >= CAMERA_DELAY - 5 && median < 500, "device stage median " + median + "ms");
+    assertTrue(total.getMean() >= device1.getMean(), "total below device stage");
+    for (Stage stage : new Stage[] {Stage.QUEUE, Stage.DECODE, Stage.DISPATCH}) {
+      long n = latency.getDevice("camera", stage).getCount();
+      assertTrue(n == count, stage + " timed " + n + " events");
+    }
+    long inputs = latency.getTopic(INPUT, Stage.TOTAL).getCount();
+    long motions = latency.getTopic(MOTION, Stage.TOTAL).getCount();
+    assertTrue(inputs == (count + 2) / 3 && inputs + motions == count, "events per topic");
+
+    StringBuilder report =
+        new StringBuilder(
+            String.format("%d events, clock offset %d ms (actual %d ms)%n", count, offset, OFFSET));
+    for (Stage stage : Stage.values()) {
+      report.append(String.format("camera %-8s %s%n", stage, latency.getDevice("camera", stage)));
+    }
+    for (String topic : new String[] {MOTION, INPUT}) {
+      report.append(String.format("%s total %s%n", topic, latency.getTopic(topic, Stage.TOTAL)));
+    }
+    printReport(report.toString());
+
+    multiplexer.shutdown(2000);
+    service.stop();
+    LOG.info("DeliveryLatencyTest passed");
+    System.exit(0); // the embedded jetty keeps the jvm alive otherwise
+  }
+}
@@ -0,0 +1,179 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.discovery.DeviceOnboarding;
+import de.onvif.discovery.DiscoveredDevice;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Races the XAddrs of a device advertising a hanging, a refused and a live address: the live one
+ * wins within about one stagger delay instead of after the timeout of the hanging one. An attempt
+ * timeout set after the first race applies to the next one.
+ */
+public class DeviceOnboardingTest {
+  private static final Logger LOG = LoggerFactory.getLogger(DeviceOnboardingTest.class);
+  private static final long STAGGER = 250;
+
+  public static void main(String[] args) throws Exception {
+    Service slow = new Service(9016, false);
+    Service live = new Service(9017, true);
+    slow.start();
+    live.start();
+    ServerSocket closed = new ServerSocket(0);
+    int deadPort = closed.getLocalPort();
+    closed.close();
+    String slowAddr = "http://127.0.0.1:9016/onvif/device_service";
+    String deadAddr = "http://127.0.0.1:" + deadPort + "/onvif/device_service";
+    String liveAddr = "http://127.0.0.1:9017/onvif/device_service";
+
+    DeviceOnboarding onboarding = new DeviceOnboarding("", "", 1);
+    onboarding.setStaggerDelay(STAGGER);
+    try {
+      // the first race creates the shared proxy, which takes longer than a stagger
+      assertTrue(
+          onboarding.race(device(liveAddr)).equals(new URL(liveAddr)), "live XAddr not used");
+
+      long start = System.nanoTime();
+      URL winner = onboarding.race(device(slowAddr, deadAddr, liveAddr));
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue(winner.equals(new URL(liveAddr)), "won by " + winner);
+      assertTrue(elapsed < 2 * STAGGER, "live XAddr won after " + elapsed + "ms");
+
+      onboarding.setAttemptTimeout(500);
+      slow.held.clear();
+      try {
+        onboarding.race(device(slowAddr));
+        assertTrue(false, "hanging XAddr won");
+      } catch (ConnectException expected) {
+        // nothing answered
+      }
+      Long held = slow.held.poll(5000, TimeUnit.MILLISECONDS);
+      assertTrue(held != null && held < 1500, "hanging attempt held for " + held + "ms");
+      printReport(
+          String.format(
+              "live XAddr won after %d ms (stagger %d ms), hanging attempt gave up after %d ms",
+              elapsed, STAGGER, held));
+    } finally {
+      onboarding.shutdown();
+      slow.stop();
+      live.stop();
+    }
+    LOG.info("DeviceOnboardingTest passed");
+    System.exit(0);
+  }
+
+  private static DiscoveredDevice device(String... xAddrs) {
+    return new DiscoveredDevice(
+        "urn:uuid:race",
+        Collections.singletonList("NetworkVideoTransmitter"),
+        Collections.<String>emptyList(),
+        Arrays.asList(xAddrs),
+        1);
+  }
+
+  /**
+   * Answers every request with an empty GetSystemDateAndTimeResponse, or never answers and records
+   * how long the client held the connection.
+   */
+  private static final class Service implements Runnable {
+    private final ServerSocket server;
+    private final boolean answer;
+    final BlockingQueue<Long> held = new LinkedBlockingQueue<>();
+
+    Service(int port, boolean answer) throws IOException {
+      server = new ServerSocket(port);
+      this.answer = answer;
+    }
+
+    void start() {
+      Thread t = new Thread(this, "device-service");
+      t.setDaemon(true);
+      t.start();
+    }
+
+    void stop() throws IOException {
+      server.close();
+    }
+
+    public void run() {
+      while (!server.isClosed()) {
+        try {
+          final Socket socket = server.accept();
+          Thread t =
+              new Thread(
+                  new Runnable() {
+                    public void run() {
+                      serve(socket);
+                    }
+                  },
+                  "device-connection");
+          t.setDaemon(true);
+          t.start();
+        } catch (IOException e) {
+          return;
+        }
+      }
+    }
+
+    private void serve(Socket socket) {
+      long accepted = System.currentTimeMillis();
+      try (Socket s = socket) {
+        InputStream in = s.getInputStream();
+        OutputStream out = s.getOutputStream();
+        byte[] buf = new byte[65536];
+        int length = 0;
+        while (true) {
+          int n = in.read(buf, length, buf.length - length);
+          if (n < 0) break;
+          length += n;
+          if (!answer || !complete(buf, length)) continue;
+          byte[] content =
+              ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><env:Envelope"
+                      + " xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\""
+                      + " xmlns:tds=\"http://www.onvif.org/ver10/device/wsdl\"><env:Body>"
+                      + "<tds:GetSystemDateAndTimeResponse/></env:Body></env:Envelope>")
+                  .getBytes(StandardCharsets.UTF_8);
+          String headers =
+              "HTTP/1.1 200 OK\r\nContent-Type: application/soap+xml; charset=utf-8"
+                  + "\r\nContent-Length: "
+                  + content.length
+                  + "\r\n\r\n";
+          out.write(headers.getBytes(StandardCharsets.ISO_8859_1));
+          out.write(content);
+          out.flush();
+          length = 0;
+        }
+      } catch (IOException e) {
+        LOG.debug("Device connection failed", e);
+      }
+      if (!answer) held.add(System.currentTimeMillis() - accepted);
+    }
+
+    /** True once headers and body of the request are in the buffer. */
+    private static boolean complete(byte[] buf, int length) {
+      String request = new String(buf, 0, length, StandardCharsets.ISO_8859_1);
+      int headerEnd = request.indexOf("\r\n\r\n");
+      if (headerEnd < 0) return false;
+      int at = request.toLowerCase().indexOf("content-length:") + 15;
+      if (at < 15) return false;
+      int contentLength = Integer.parseInt(request.substring(at, request.indexOf('\r', at)).trim());
+      return length >= headerEnd + 4 + contentLength;
+    }
+  }
+}
@@ -1,11 +1,20 @@
 package org.onvif.client;
 
+import de.onvif.discovery.DeviceDiscovery;
+import de.onvif.discovery.DeviceOnboarding;
+import de.onvif.discovery.DiscoveredDevice;
+import de.onvif.discovery.DiscoveryCache;
 import de.onvif.discovery.OnvifDiscovery;
+import de.onvif.soap.OnvifDevice;
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,7 +66,69 @@ public class DiscoverAndTest {
     return out.toString();
   }
 
-  public static void main(String[] args) {
+  /**
+   * Like discoverAndTest, but races all XAddrs of every discovered device and onboards up to 8
+   * devices in parallel, so dead addresses don't cost a connect timeout each.
+   */
+  public static String discoverAndOnboard(String user, String password)
+      throws InterruptedException {
+    String sep = "\n";
+    StringBuffer out = new StringBuffer();
+    Collection<DiscoveredDevice> devices = DeviceDiscovery.discoverWsProbeMatches();
+    DeviceOnboarding onboarding = new DeviceOnboarding(user, password, 8);
+    try {
+      Map<String, OnvifDevice> onboarded = onboarding.onboardAll(devices);
+      for (Map.Entry<String, OnvifDevice> e : onboarded.entrySet()) {
+        out.append(e.getKey() + "->" + TestDevice.inspect(e.getValue()) + sep);
+      }
+      out.append(
+          "devices found:" + devices.size() + " onboarded=" + onboarded.size() + sep);
+    } finally {
+      onboarding.shutdown();
+    }
+    return out.toString();
+  }
+
+  /**
+   * Discovers devices but only connects to the ones that are new or whose MetadataVersion changed
+   * since the last run, everything else is taken from the cache file.
+   */
+  public static String discoverCached(String user, String password, File cacheFile)
+      throws IOException {
+    String sep = "\n";
+    StringBuffer out = new StringBuffer();
+    DiscoveryCache cache = new DiscoveryCache(cacheFile);
+    cache.load();
+    Collection<DiscoveredDevice> devices = DeviceDiscovery.discoverWsProbeMatches();
+    final DeviceOnboarding onboarding = new DeviceOnboarding(user, password, 8);
+    final String u = user, p = password;
+    try {
+      List<DiscoveryCache.Entry> inspected =
+          cache.refresh(
+              devices,
+              new DiscoveryCache.Inspector() {
+                public DiscoveryCache.Entry inspect(DiscoveredDevice d) throws Exception {
+                  URL xAddr = onboarding.race(d);
+                  return DiscoveryCache.harvest(d, xAddr, new OnvifDevice(xAddr, u, p));
+                }
+              });
+      cache.save();
+      for (DiscoveryCache.Entry e : cache.getEntries()) {
+        out.append(e.getDiscovered().getEndpointReference() + "->" + e.getInspected() + sep);
+      }
+      out.append(
+          "devices found:" + devices.size() + " inspected=" + inspected.size() + sep);
+    } finally {
+      onboarding.shutdown();
+    }
+    return out.toString();
+  }
+
+  /**
+   * Arguments: [user] [password] [onboard | cached [file]], onboard races the XAddrs of every
+   * device, cached only connects to devices that are not in the cache file or changed.
+   */
+  public static void main(String[] args) throws InterruptedException, IOException {
     // get user and password.. we will ignore device host
     String user = "";
     String password = "";
@@ -69,6 +140,14 @@ public class DiscoverAndTest {
           "Warning: No password for discover and test... run with common user password as arguments");
     }
     // OnvifDevice.setVerbose(true);
-    LOG.info(discoverAndTest(user, password));
+    String mode = args.length > 2 ? args[2] : "";
+    if (mode.equals("onboard")) {
+      LOG.info(discoverAndOnboard(user, password));
+    } else if (mode.equals("cached")) {
+      File cacheFile = new File(args.length > 3 ? args[3] : "discovery-cache.txt");
+      LOG.info(discoverCached(user, password, cacheFile));
+    } else {
+      LOG.info(discoverAndTest(user, password));
+    }
   }
 }
@@ -0,0 +1,202 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+
+import de.onvif.discovery.DiscoveredDevice;
+import de.onvif.discovery.DiscoveryProxyClient;
+import de.onvif.discovery.DiscoveryScheduler;
+import de.onvif.discovery.DiscoveryScheduler.ChangeType;
+import de.onvif.discovery.DiscoveryScheduler.DeviceChange;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.soap.SOAPFaultException;
+import org.apache.cxf.binding.soap.Soap12;
+import org.apache.cxf.binding.soap.SoapBindingConfiguration;
+import org.apache.cxf.endpoint.Server;
+import org.apache.cxf.jaxws.JaxWsServerFactoryBean;
+import org.onvif.ver10.network.wsdl.DiscoveryLookupPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmlsoap.schemas.ws._2004._08.addressing.AttributedURI;
+import org.xmlsoap.schemas.ws._2004._08.addressing.EndpointReferenceType;
+import org.xmlsoap.schemas.ws._2005._04.discovery.ProbeMatchType;
+import org.xmlsoap.schemas.ws._2005._04.discovery.ProbeMatchesType;
+import org.xmlsoap.schemas.ws._2005._04.discovery.ProbeType;
+import org.xmlsoap.schemas.ws._2005._04.discovery.ScopesType;
+
+/**
+ * Runs DiscoveryProxyClient against a local stand-in discovery proxy built from the generated
+ * DiscoveryLookupPort, sweeps its sites with DiscoveryScheduler, checks that a fault of the proxy
+ * is thrown, then stops the proxy to show the multicast fallback and its end once the proxy is
+ * back.
+ */
+public class DiscoveryProxyTest {
+  private static final Logger LOG = LoggerFactory.getLogger(DiscoveryProxyTest.class);
+
+  static final String SITE_A = "onvif://www.onvif.org/location/site/a";
+  static final String SITE_B = "onvif://www.onvif.org/location/site/b";
+
+  /**
+   * Stand-in proxy knowing 250 cameras per site. From generation 1 on camera a-0 got a new IP,
+   * b-249 is gone and a-250 is new.
+   */
+  public static class StandInProxy implements DiscoveryLookupPort {
+    int probes = 0;
+    volatile int generation = 0;
+    volatile boolean faulting;
+
+    public ProbeMatchesType probe(ProbeType parameters) {
+      probes++;
+      if (faulting) throw new IllegalStateException("proxy database unavailable");
+      List<String> scopes =
+          parameters.getScopes() != null ? parameters.getScopes().getValue() : null;
+      ProbeMatchesType matches = new ProbeMatchesType();
+      for (String site : Arrays.asList(SITE_A, SITE_B)) {
+        for (int i = 0; i < 251; i++) {
+          boolean changed = generation > 0;
+          if (i == 250 && !(changed && site.equals(SITE_A))) continue;
+          if (i == 249 && changed && site.equals(SITE_B)) continue;
+          int host = i == 0 && changed && site.equals(SITE_A) ? 251 : i;
+          DiscoveredDevice d =
+              new DiscoveredDevice(
+                  "urn:uuid:" + site.charAt(site.length() - 1) + "-" + i,
+                  Arrays.asList("NetworkVideoTransmitter"),
+                  Arrays.asList(site + "/cam" + i),
+                  Arrays.asList(
+                      "http://10.0."
+                          + (site.equals(SITE_A) ? 1 : 2)
+                          + "."
+                          + host
+                          + "/onvif/device_service"),
+                  1);
+          if (d.matchesScopes(scopes)) matches.getProbeMatch().add(toMatch(d));
+        }
+      }
+      return matches;
+    }
+  }
+
+  static ProbeMatchType toMatch(DiscoveredDevice d) {
+    ProbeMatchType m = new ProbeMatchType();
+    EndpointReferenceType epr = new EndpointReferenceType();
+    AttributedURI address = new AttributedURI();
+    address.setValue(d.getEndpointReference());
+    epr.setAddress(address);
+    m.setEndpointReference(epr);
+    m.getTypes().add(DiscoveryProxyClient.NETWORK_VIDEO_TRANSMITTER);
+    ScopesType scopes = new ScopesType();
+    scopes.getValue().addAll(d.getScopes());
+    m.setScopes(scopes);
+    m.getXAddrs().addAll(d.getXAddrs());
+    m.setMetadataVersion(d.getMetadataVersion());
+    return m;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String address = "http://localhost:9002/onvif/discovery";
+    StandInProxy impl = new StandInProxy();
+    JaxWsServerFactoryBean factory = new JaxWsServerFactoryBean();
+    factory.setServiceClass(DiscoveryLookupPort.class);
+    factory.setServiceBean(impl);
+    factory.setAddress(address);
+    SoapBindingConfiguration config = new SoapBindingConfiguration();
+    config.setVersion(Soap12.getInstance());
+    factory.setBindingConfig(config);
+    Server server = factory.create();
+
+    DiscoveryProxyClient client =
+        new DiscoveryProxyClient(new URL(address), Arrays.asList(SITE_A, SITE_B));
+    List<DiscoveredDevice> devices = client.discover();
+    LOG.info("found " + devices.size() + " devices in " + impl.probes + " probes");
+    assertTrue(devices.size() == 500, "expected 500 devices, got " + devices.size());
+    assertTrue(client.isLastFromProxy(), "expected answer from proxy");
+
+    client.discover();
+    assertTrue(impl.probes == 2, "second lookup should be cached, probes=" + impl.probes);
+
+    List<DiscoveredDevice> page =
+        client.getPage(Arrays.asList(DiscoveryProxyClient.NETWORK_VIDEO_TRANSMITTER), 4, 100);
+    LOG.info("last page starts with " + page.get(0));
+    assertTrue(page.size() == 100, "expected full page");
+
+    // one sweep per site, only the differences are published
+    DiscoveryScheduler scheduler = new DiscoveryScheduler(2);
+    scheduler.setMissesBeforeRemoval(1);
+    final List<DeviceChange> feed = new CopyOnWriteArrayList<>();
+    scheduler.addListener(
+        new DiscoveryScheduler.ChangeListener() {
+          public void changed(String sweep, List<DeviceChange> changes) {
+            LOG.info(sweep + ": " + changes.size() + " changes");
+            feed.addAll(changes);
+          }
+        });
+    long day = 24 * 3600 * 1000;
+    scheduler.schedule(DiscoveryScheduler.site("a", new URL(address), SITE_A), day);
+    scheduler.schedule(DiscoveryScheduler.site("b", new URL(address), SITE_B), day);
+    scheduler.sweepNow("a");
+    scheduler.sweepNow("b");
+    assertTrue(feed.size() == 500, "expected 500 ADDED, got " + feed.size());
+    feed.clear();
+    scheduler.sweepNow("a");
+    assertTrue(feed.isEmpty(), "unchanged site should publish nothing");
+    impl.generation = 1;
+    scheduler.sweepNow("a");
+    scheduler.sweepNow("b");
+    LOG.info("changes: " + feed);
+    assertTrue(feed.size() == 3, "expected 3 changes, got " + feed);
+    assertTrue(
+        feed.get(0).getType() == ChangeType.ADDED
+            && feed.get(0).getDevice().getEndpointReference().equals("urn:uuid:a-250"),
+        "a-250 added");
+    assertTrue(
+        feed.get(1).getType() == ChangeType.MOVED
+            && feed.get(1).getDevice().getXAddrs().get(0).contains("10.0.1.251"),
+        "a-0 moved");
+    assertTrue(
+        feed.get(2).getType() == ChangeType.REMOVED
+            && feed.get(2).getDevice().getEndpointReference().equals("urn:uuid:b-249"),
+        "b-249 removed");
+
+    // while the proxy is down a site sweep fails, its devices are not missed
+    server.stop();
+    feed.clear();
+    try {
+      scheduler.sweepNow("a");
+      assertTrue(false, "site sweep succeeded without the proxy");
+    } catch (WebServiceException expected) {
+    }
+    assertTrue(feed.isEmpty(), "proxy outage published " + feed);
+    assertTrue(scheduler.getDevices("a").size() == 251, "devices of site a forgotten");
+    server.start();
+    scheduler.shutdown();
+
+    // a fault of a reachable proxy is no reason for multicast
+    impl.faulting = true;
+    client.invalidate();
+    try {
+      client.discover();
+      assertTrue(false, "fault of the proxy swallowed");
+    } catch (SOAPFaultException expected) {
+    }
+    impl.faulting = false;
+
+    server.stop();
+    client.setRetryInterval(1000);
+    client.invalidate();
+    devices = client.discover();
+    LOG.info("proxy stopped, multicast found " + devices.size() + " devices");
+    assertTrue(!client.isLastFromProxy(), "expected multicast fallback");
+    // multicast results are not kept once the proxy is to be asked again
+    server.start();
+    Thread.sleep(1100);
+    assertTrue(client.discover().size() == 500, "proxy not asked again after the retry interval");
+    assertTrue(client.isLastFromProxy(), "multicast result cached past the retry interval");
+    server.stop();
+    server.destroy();
+    LOG.info("DiscoveryProxyTest passed");
+    System.exit(0); // the embedded jetty keeps the jvm alive otherwise
+  }
+}
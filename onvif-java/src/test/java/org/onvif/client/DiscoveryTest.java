@@ -1,18 +1,72 @@
 package org.onvif.client;
 
+import static org.onvif.client.Checks.assertTrue;
+
+import de.onvif.discovery.DeviceDiscovery;
+import de.onvif.discovery.DiscoveredDevice;
 import de.onvif.discovery.OnvifDiscovery;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class DiscoveryTest {
   private static final Logger LOG = LoggerFactory.getLogger(DiscoveryTest.class);
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws SocketException {
+    checkScopeLinkLocal();
+    checkMerge();
     Collection<URL> urls = OnvifDiscovery.discoverOnvifURLs();
     for (URL u : urls) {
       LOG.info(u.toString());
     }
   }
+
+  private static void checkScopeLinkLocal() throws SocketException {
+    NetworkInterface from = NetworkInterface.getNetworkInterfaces().nextElement();
+    String linkLocal = "http://[fe80::1]/onvif/device_service";
+    String scoped = "http://[fe80::1%" + from.getIndex() + "]/onvif/device_service";
+    assertTrue(DeviceDiscovery.scopeLinkLocal(linkLocal, from).equals(scoped), "zone id added");
+    assertTrue(
+        DeviceDiscovery.scopeLinkLocal(scoped, from).equals(scoped), "zone id added twice");
+    assertTrue(
+        DeviceDiscovery.scopeLinkLocal(linkLocal, null).equals(linkLocal),
+        "zone id without an interface");
+    for (String unscoped :
+        Arrays.asList(
+            "http://192.168.0.120/onvif/device_service",
+            "http://[2001:db8::1]/onvif/device_service",
+            "http://[fe80::1/onvif/device_service")) {
+      assertTrue(
+          DeviceDiscovery.scopeLinkLocal(unscoped, from).equals(unscoped), "changed " + unscoped);
+    }
+  }
+
+  private static void checkMerge() {
+    DiscoveredDevice v4 = device(1, "http://192.168.0.120/onvif/device_service");
+    DiscoveredDevice v6 = device(1, "http://[fe80::1%2]/onvif/device_service");
+    DiscoveredDevice newer = device(2, "http://192.168.0.121/onvif/device_service");
+    assertTrue(DeviceDiscovery.merge(null, v4) == v4, "first answer");
+    assertTrue(
+        DeviceDiscovery.merge(v4, v6)
+            .getXAddrs()
+            .equals(Arrays.asList(v4.getXAddrs().get(0), v6.getXAddrs().get(0))),
+        "XAddrs of the same MetadataVersion not merged");
+    assertTrue(DeviceDiscovery.merge(v4, v4) == v4, "repeated answer");
+    assertTrue(DeviceDiscovery.merge(v4, newer) == newer, "newer MetadataVersion ignored");
+    assertTrue(DeviceDiscovery.merge(newer, v6) == newer, "older MetadataVersion taken");
+  }
+
+  private static DiscoveredDevice device(long metadataVersion, String xAddr) {
+    return new DiscoveredDevice(
+        "urn:uuid:dual-stack",
+        Collections.singletonList("NetworkVideoTransmitter"),
+        Collections.<String>emptyList(),
+        Collections.singletonList(xAddr),
+        metadataVersion);
+  }
 }
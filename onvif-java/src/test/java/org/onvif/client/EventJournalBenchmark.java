@@ -0,0 +1,184 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.EventJournal;
+import de.onvif.events.NotificationEvent;
+import de.onvif.events.NotificationEvent.PropertyOperation;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends motion events of 100 cameras to an EventJournal and reports append throughput, bytes per
+ * event and the latency of range reads of one camera. Checks that reads return exactly the events
+ * appended, that reopening recovers everything up to a torn last record and that retention deletes
+ * old segments.
+ *
+ * <p>Arguments: [events], default 1000000.
+ */
+public class EventJournalBenchmark {
+  private static final Logger LOG = LoggerFactory.getLogger(EventJournalBenchmark.class);
+
+  private static final int DEVICES = 100;
+  private static final long BASE = 1600000000000L;
+  private static final String[] TOPICS = {
+    "tns1:RuleEngine/CellMotionDetector/Motion",
+    "tns1:VideoSource/MotionAlarm",
+    "tns1:RuleEngine/TamperDetector/Tamper",
+    "tns1:Device/Trigger/DigitalInput"
+  };
+
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    File dir = Files.createTempDirectory("event-journal").toFile();
+    try {
+      run(dir, count);
+    } finally {
+      File[] files = dir.listFiles();
+      if (files != null) for (File f : files) f.delete();
+      dir.delete();
+    }
+  }
+
+  private static void run(File dir, int count) throws Exception {
+    EventJournal journal = new EventJournal(dir, 16 * 1024 * 1024, Long.MAX_VALUE);
+    // one event per ms, round robin over the cameras
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) journal.append(device(i), BASE + i, event(i));
+    long appendNanos = System.nanoTime() - start;
+    journal.flush();
+    long bytes = journal.getSize();
+
+    // a 10 s window of one camera holds 100 of its events
+    Random random = new Random(1);
+    int reads = 2000;
+    long readNanos = 0;
+    for (int r = 0; r < reads; r++) {
+      int d = random.nextInt(DEVICES);
+      long from = BASE + random.nextInt(count - 10000);
+      long t = System.nanoTime();
+      List<NotificationEvent> events = journal.read("camera-" + d, from, from + 9999);
+      readNanos += System.nanoTime() - t;
+      int first = (int) (from - BASE);
+      first += (d - first % DEVICES + DEVICES) % DEVICES;
+      assertTrue(events.size() == 100, "read " + events.size() + " events of 100");
+      for (int k = 0; k < events.size(); k++) {
+        assertTrue(events.get(k).equals(event(first + k * DEVICES)), "wrong event " + k);
+      }
+    }
+    final AtomicLong all = new AtomicLong();
+    journal.read(
+        null,
+        BASE + 5000,
+        BASE + 5999,
+        new EventJournal.Visitor() {
+          public boolean visit(String deviceId, long time, NotificationEvent event) {
+            int i = (int) (time - BASE);
+            assertTrue(deviceId.equals(device(i)) && event.equals(event(i)), "record " + i);
+            all.incrementAndGet();
+            return true;
+          }
+        });
+    assertTrue(all.get() == 1000, "read " + all + " records of all cameras");
+    int segments = journal.getSegments();
+    journal.close();
+
+    // tear the last record as a crash in the middle of an append would
+    File[] files = dir.listFiles();
+    Arrays.sort(files);
+    tearLastRecord(files[files.length - 1]);
+    start = System.nanoTime();
+    journal = new EventJournal(dir, 16 * 1024 * 1024, Long.MAX_VALUE);
+    long recoverNanos = System.nanoTime() - start;
+    assertTrue(journal.getSegments() == segments, "segments lost");
+    assertTrue(count(journal) == count - 1, "recovered " + count(journal) + " of " + (count - 1));
+    journal.append(device(count - 1), BASE + count - 1, event(count - 1));
+    List<NotificationEvent> last = journal.read(device(count - 1), BASE + count - 1, Long.MAX_VALUE);
+    assertTrue(last.size() == 1 && last.get(0).equals(event(count - 1)), "append after recovery");
+    assertTrue(count(journal) == count, "records after recovery");
+
+    // keep the last 100 s only
+    journal.setRetention(100000);
+    journal.applyRetention();
+    assertTrue(journal.getSegments() < segments, "no segment deleted");
+    assertTrue(dir.listFiles().length == journal.getSegments(), "segment files left");
+    assertTrue(journal.read("camera-0", BASE, BASE + 1000).isEmpty(), "expired events read");
+    assertTrue(journal.read("camera-0", BASE + count - 1000, BASE + count).size() == 10, "recent");
+    journal.close();
+
+    String report =
+        String.format(
+            "%d events: append %.0f ns/event (%.0f/s), %.1f bytes/event in %d segments,"
+                + " read of 100 events of one camera %.0f us, recovery %.0f ms",
+            count,
+            (double) appendNanos / count,
+            count * 1e9 / appendNanos,
+            (double) bytes / count,
+            segments,
+            readNanos / 1000.0 / reads,
+            recoverNanos / 1e6);
+    printReport(report);
+    LOG.info("EventJournalBenchmark passed");
+  }
+
+  private static String device(int i) {
+    return "camera-" + (i % DEVICES);
+  }
+
+  private static NotificationEvent event(int i) {
+    int d = i % DEVICES;
+    return new NotificationEvent(
+        TOPICS[(i / DEVICES) % TOPICS.length],
+        BASE + i - 40,
+        PropertyOperation.CHANGED,
+        new String[] {
+          "VideoSourceConfigurationToken", "VideoSource_" + (d % 4),
+          "Rule", "MyMotionDetectorRule"
+        },
+        null,
+        new String[] {"IsMotion", (i / DEVICES) % 2 == 0 ? "true" : "false"});
+  }
+
+  private static long count(EventJournal journal) {
+    final AtomicLong n = new AtomicLong();
+    journal.read(
+        null,
+        Long.MIN_VALUE,
+        Long.MAX_VALUE,
+        new EventJournal.Visitor() {
+          public boolean visit(String deviceId, long time, NotificationEvent event) {
+            n.incrementAndGet();
+            return true;
+          }
+        });
+    return n.get();
+  }
+
+  /** Flips a byte in the payload of the last record: records are length, CRC32, payload. */
+  private static void tearLastRecord(File segment) throws Exception {
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      long offset = 16;
+      long last = -1;
+      while (offset + 8 <= raf.length()) {
+        raf.seek(offset);
+        int length = raf.readInt();
+        if (length <= 0) break;
+        last = offset;
+        offset += 8 + length;
+      }
+      assertTrue(last > 0, "no record in " + segment);
+      raf.seek(last + 12);
+      int b = raf.read();
+      raf.seek(last + 12);
+      raf.write(b ^ 0xff);
+    }
+  }
+}
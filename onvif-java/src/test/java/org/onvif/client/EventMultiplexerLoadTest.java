@@ -0,0 +1,192 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.EventMultiplexer;
+import de.onvif.events.NotificationEvent;
+import de.onvif.soap.OnvifDevice;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Load test of EventMultiplexer: many PullPoint subscriptions on SimulatedEventService, events
+ * published round robin at a fixed rate. Reports throughput and delivery latency (publish to
+ * listener) and checks that nothing is lost, subscriptions are renewed and unsubscribed and the
+ * multiplexer runs on its fixed threads only.
+ *
+ * <p>Arguments: [devices] [seconds] [events per second] [messages|events], default 500 20 300
+ * messages. With events the multiplexer delivers NotificationEvents instead of JAXB messages.
+ */
+public class EventMultiplexerLoadTest {
+  private static final Logger LOG = LoggerFactory.getLogger(EventMultiplexerLoadTest.class);
+
+  public static void main(String[] args) throws Exception {
+    int devices = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int rate = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+    boolean events = args.length > 3 && args[3].equals("events");
+
+    SimulatedEventService service = new SimulatedEventService("http://localhost:9004/onvif");
+    service.setMaxThreads(devices + 100);
+    service.start();
+    OnvifDevice device =
+        new OnvifDevice(
+            new URL("http://localhost:9004"),
+            "",
+            "",
+            Collections.singletonMap(OnvifDevice.SERVICE_EVENTS, service.getEventsAddress()));
+
+    final long[] latencies = new long[seconds * rate + rate];
+    final AtomicInteger received = new AtomicInteger();
+    final AtomicLong outOfOrder = new AtomicLong();
+    EventMultiplexer multiplexer;
+    if (events) {
+      multiplexer =
+          new EventMultiplexer(
+              new EventMultiplexer.EventListener() {
+                public void onEvents(String deviceId, List<NotificationEvent> batch) {
+                  long now = System.nanoTime();
+                  long previous = 0;
+                  for (NotificationEvent event : batch) {
+                    long sent = Long.parseLong(event.getData("Sent"));
+                    if (sent < previous) outOfOrder.incrementAndGet();
+                    previous = sent;
+                    int i = received.getAndIncrement();
+                    if (i < latencies.length) latencies[i] = now - sent;
+                  }
+                }
+              },
+              2,
+              4);
+    } else {
+      multiplexer =
+          new EventMultiplexer(
+              new EventMultiplexer.Listener() {
+                public void onMessages(String deviceId, List<NotificationMessageHolderType> batch) {
+                  long now = System.nanoTime();
+                  long previous = 0;
+                  for (NotificationMessageHolderType holder : batch) {
+                    long sent = Long.parseLong(value((Element) holder.getMessage().getAny()));
+                    if (sent < previous) outOfOrder.incrementAndGet();
+                    previous = sent;
+                    int i = received.getAndIncrement();
+                    if (i < latencies.length) latencies[i] = now - sent;
+                  }
+                }
+              },
+              2,
+              4);
+    }
+    long pullTimeout = 5000;
+    long subscriptionTime = 20000;
+    long renewMargin = 5000;
+    multiplexer.setPullTimeout(pullTimeout);
+    multiplexer.setSubscriptionTime(subscriptionTime);
+    multiplexer.setRenewMargin(renewMargin);
+
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < devices; i++) multiplexer.add("camera-" + i, device, null);
+    long deadline = System.currentTimeMillis() + 120000;
+    while (polling(multiplexer) < devices && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);
+    }
+    assertTrue(polling(multiplexer) == devices, "not all devices polling");
+    LOG.info(devices + " devices polling after " + (System.currentTimeMillis() - start) + "ms");
+    int threads = multiplexerThreads();
+    assertTrue(threads <= 1 + 2 + 4, "multiplexer uses " + threads + " threads");
+
+    List<String> ids = service.getSubscriptionIds();
+    int published = 0;
+    long begin = System.currentTimeMillis();
+    long end = begin + seconds * 1000L;
+    while (System.currentTimeMillis() < end) {
+      long due = (System.currentTimeMillis() - begin) * rate / 1000;
+      while (published < due) {
+        String id = ids.get(published % ids.size());
+        service.publish(
+            id,
+            SimulatedEventService.message(
+                "tns1:Device/Trigger/DigitalInput", "Sent", "" + System.nanoTime()));
+        published++;
+      }
+      Thread.sleep(5);
+    }
+    deadline = System.currentTimeMillis() + 30000;
+    while (received.get() < published && System.currentTimeMillis() < deadline) Thread.sleep(50);
+    long elapsed = System.currentTimeMillis() - begin;
+
+    // one Renew per renew period, not one more for every response decoded late
+    long period = subscriptionTime - renewMargin - pullTimeout;
+    long maxRenews = devices * ((System.currentTimeMillis() - start) / period + 1);
+
+    int n = Math.min(received.get(), latencies.length);
+    long[] sorted = Arrays.copyOf(latencies, n);
+    Arrays.sort(sorted);
+    String report =
+        String.format(
+            "%d devices, %d events published, %d received, %.0f events/s, %d polls,"
+                + " latency p50 %.1fms p99 %.1fms max %.1fms, %d renews (at most %d),"
+                + " %d failures",
+            devices,
+            published,
+            received.get(),
+            received.get() * 1000.0 / elapsed,
+            multiplexer.getPolls(),
+            percentile(sorted, 0.50) / 1e6,
+            percentile(sorted, 0.99) / 1e6,
+            (n > 0 ? sorted[n - 1] : 0) / 1e6,
+            service.renews.get(),
+            maxRenews,
+            multiplexer.getFailures());
+    printReport(report);
+    assertTrue(received.get() == published, "lost events");
+    assertTrue(outOfOrder.get() == 0, "events of a device out of order");
+    assertTrue(service.renews.get() >= devices, "subscriptions not renewed");
+    assertTrue(service.renews.get() <= maxRenews, service.renews + " renews, at most " + maxRenews);
+    assertTrue(service.missingReference.get() == 0, "reference parameters not sent");
+    assertTrue(multiplexer.getFailures() == 0, "subscriptions lost");
+
+    multiplexer.shutdown(10000);
+    assertTrue(service.getSubscriptionCount() == 0, "subscriptions left after shutdown");
+    assertTrue(service.unsubscribes.get() == devices, "not unsubscribed");
+    LOG.info("EventMultiplexerLoadTest passed");
+    service.stop();
+    System.exit(0); // the embedded jetty keeps the jvm alive otherwise
+  }
+
+  private static int polling(EventMultiplexer multiplexer) {
+    int n = 0;
+    for (String id : multiplexer.getDeviceIds()) {
+      if (multiplexer.getState(id) == EventMultiplexer.State.POLLING) n++;
+    }
+    return n;
+  }
+
+  private static int multiplexerThreads() {
+    int n = 0;
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.getName().startsWith("event-")) n++;
+    }
+    return n;
+  }
+
+  private static String value(Element message) {
+    NodeList items = message.getElementsByTagNameNS("*", "SimpleItem");
+    return ((Element) items.item(0)).getAttribute("Value");
+  }
+
+  private static long percentile(long[] sorted, double p) {
+    if (sorted.length == 0) return 0;
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+  }
+}
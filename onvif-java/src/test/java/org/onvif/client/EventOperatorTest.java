@@ -0,0 +1,187 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.EventMultiplexer;
+import de.onvif.events.EventOperator;
+import de.onvif.events.EventOperator.Grouping;
+import de.onvif.events.NotificationEvent;
+import de.onvif.events.TimerWheel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The windowed EventOperators on a TimerWheel driven by hand, then 100k keys through a debounce and
+ * a count per window, checking that all windows close and no state is left behind.
+ */
+public class EventOperatorTest {
+  private static final Logger LOG = LoggerFactory.getLogger(EventOperatorTest.class);
+
+  private static final List<String> out = Collections.synchronizedList(new ArrayList<String>());
+
+  private static final EventMultiplexer.EventListener COLLECT =
+      new EventMultiplexer.EventListener() {
+        public void onEvents(String deviceId, List<NotificationEvent> events) {
+          for (NotificationEvent e : events) out.add(e.getData("Id"));
+        }
+      };
+
+  public static void main(String[] args) throws Exception {
+    TimerWheel wheel = new TimerWheel(10, 512, false);
+
+    EventOperator debounce = EventOperator.debounce(100, Grouping.SOURCE, wheel, COLLECT);
+    send(debounce, wheel, 0, "a", "1");
+    send(debounce, wheel, 50, "a", "2");
+    send(debounce, wheel, 90, "a", "3");
+    send(debounce, wheel, 90, "b", "4");
+    wheel.advance(180);
+    assertOut("debounce before quiet period");
+    wheel.advance(200);
+    assertOut("debounce", "3", "4");
+    assertTrue(debounce.getKeys() == 0, "debounce keeps keys");
+
+    EventOperator throttle = EventOperator.throttle(100, Grouping.SOURCE, wheel, COLLECT);
+    send(throttle, wheel, 1000, "a", "1");
+    send(throttle, wheel, 1010, "a", "2");
+    send(throttle, wheel, 1020, "a", "3");
+    assertOut("throttle leading", "1");
+    wheel.advance(1110);
+    assertOut("throttle trailing", "3");
+    send(throttle, wheel, 1150, "a", "4");
+    assertOut("throttle within the next period");
+    wheel.advance(1220);
+    assertOut("throttle second trailing", "4");
+    wheel.advance(1400);
+    assertTrue(throttle.getKeys() == 0, "throttle keeps keys");
+
+    EventOperator first = EventOperator.firstInWindow(100, Grouping.TOPIC, wheel, COLLECT);
+    send(first, wheel, 2000, "a", "1");
+    send(first, wheel, 2050, "b", "2"); // same topic, other source
+    wheel.advance(2110);
+    send(first, wheel, 2120, "a", "3");
+    assertOut("first in window", "1", "3");
+
+    EventOperator last = EventOperator.lastInWindow(100, Grouping.DEVICE, wheel, COLLECT);
+    send(last, wheel, 3000, "a", "1");
+    send(last, wheel, 3050, "b", "2");
+    assertOut("last in window before the end");
+    wheel.advance(3110);
+    assertOut("last in window", "2");
+
+    final AtomicLong counted = new AtomicLong();
+    final AtomicLong windows = new AtomicLong();
+    EventOperator.CountListener counter =
+        new EventOperator.CountListener() {
+          public void onCount(String deviceId, NotificationEvent lastEvent, int count) {
+            counted.addAndGet(count);
+            windows.incrementAndGet();
+          }
+        };
+    EventOperator count = EventOperator.countPerWindow(100, Grouping.SOURCE, wheel, counter);
+    for (int i = 0; i < 5; i++) send(count, wheel, 4000 + i * 10, "a", "" + i);
+    wheel.advance(4110);
+    assertTrue(counted.get() == 5 && windows.get() == 1, "count " + counted + " in " + windows);
+
+    // 100k keys, each with a burst of 10 events
+    int keys = 100000;
+    int burst = 10;
+    counted.set(0);
+    windows.set(0);
+    out.clear();
+    final AtomicLong debounced = new AtomicLong();
+    EventOperator debounceMany =
+        EventOperator.debounce(
+            500,
+            Grouping.SOURCE,
+            wheel,
+            new EventMultiplexer.EventListener() {
+              public void onEvents(String deviceId, List<NotificationEvent> events) {
+                debounced.addAndGet(events.size());
+              }
+            });
+    EventOperator countMany = EventOperator.countPerWindow(1000, Grouping.SOURCE, wheel, counter);
+    long time = 10000;
+    wheel.advance(time);
+    Runtime rt = Runtime.getRuntime();
+    System.gc();
+    long heapBefore = rt.totalMemory() - rt.freeMemory();
+    long start = System.nanoTime();
+    for (int round = 0; round < burst; round++) {
+      for (int k = 0; k < keys; k++) {
+        List<NotificationEvent> e = Collections.singletonList(event("s" + k, "" + round));
+        String device = "camera-" + (k % 100);
+        debounceMany.onEvents(device, e);
+        countMany.onEvents(device, e);
+      }
+      time += 20;
+      wheel.advance(time);
+    }
+    long elapsed = System.nanoTime() - start;
+    assertTrue(debounceMany.getKeys() == keys && countMany.getKeys() == keys, "keys missing");
+    System.gc();
+    long heapActive = rt.totalMemory() - rt.freeMemory();
+    wheel.advance(time + 2000);
+    assertTrue(debounced.get() == keys, "debounced " + debounced.get() + " of " + keys);
+    assertTrue(counted.get() == (long) keys * burst, "counted " + counted.get());
+    assertTrue(windows.get() == keys, "count windows " + windows.get());
+    assertTrue(debounceMany.getKeys() == 0 && countMany.getKeys() == 0, "keys left");
+    assertTrue(wheel.size() == 0, "timeouts left " + wheel.size());
+
+    // the same on a wheel with its own thread
+    TimerWheel ticking = new TimerWheel(5, 256);
+    out.clear();
+    EventOperator realtime = EventOperator.debounce(50, Grouping.SOURCE, ticking, COLLECT);
+    for (int i = 0; i < 5; i++) {
+      realtime.onEvents("camera", Collections.singletonList(event("a", "" + i)));
+      Thread.sleep(10);
+    }
+    Thread.sleep(200);
+    assertOut("debounce on the wheel thread", "4");
+    ticking.stop();
+
+    String report =
+        String.format(
+            "%d keys x %d events through debounce and count per window: %.0f ns/event,"
+                + " %.0f bytes per active key",
+            keys,
+            burst,
+            elapsed / (2.0 * keys * burst),
+            (heapActive - heapBefore) / (2.0 * keys));
+    printReport(report);
+    LOG.info("EventOperatorTest passed");
+  }
+
+  private static void send(
+      EventOperator operator, TimerWheel wheel, long time, String source, String id) {
+    wheel.advance(time);
+    operator.onEvents("camera", Collections.singletonList(event(source, id)));
+  }
+
+  private static NotificationEvent event(String source, String id) {
+    return new NotificationEvent(
+        "tns1:VideoSource/MotionAlarm",
+        NotificationEvent.NO_TIME,
+        null,
+        new String[] {"Source", source},
+        null,
+        new String[] {"Id", id});
+  }
+
+  private static void assertOut(String what, String... expected) {
+    List<String> actual;
+    synchronized (out) {
+      actual = new ArrayList<>(out);
+      out.clear();
+    }
+    // windows closing on the same tick are passed on in no particular order
+    Collections.sort(actual);
+    List<String> e = new ArrayList<>();
+    Collections.addAll(e, expected);
+    assertTrue(actual.equals(e), what + ": " + actual + " instead of " + e);
+  }
+}
@@ -0,0 +1,166 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.EventMultiplexer;
+import de.onvif.events.EventRingBuffer;
+import de.onvif.events.EventRingBuffer.SlowConsumerPolicy;
+import de.onvif.events.NotificationEvent;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EventRingBuffer with several producers (devices) and consumers: BLOCK consumers get every event
+ * in order, a slow DROP_OLDEST consumer skips events but never sees one twice or out of order, a
+ * slow DETACH consumer is removed without slowing down the others. Then many producers lap a
+ * tiny ring read by a DROP_OLDEST consumer only, which must neither stall nor see a slot written
+ * by two producers at once.
+ */
+public class EventRingBufferTest {
+  private static final Logger LOG = LoggerFactory.getLogger(EventRingBufferTest.class);
+
+  public static void main(String[] args) throws Exception {
+    int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    final int events = args.length > 1 ? Integer.parseInt(args[1]) : 250000;
+    long total = (long) producers * events;
+
+    EventRingBuffer ring = new EventRingBuffer(4096);
+    Checker recording = new Checker(0);
+    Checker alerting = new Checker(0);
+    Checker ui = new Checker(1);
+    Checker stuck = new Checker(1);
+    EventRingBuffer.Consumer r = ring.addConsumer("recording", recording, SlowConsumerPolicy.BLOCK);
+    EventRingBuffer.Consumer a = ring.addConsumer("alerting", alerting, SlowConsumerPolicy.BLOCK);
+    EventRingBuffer.Consumer u = ring.addConsumer("ui", ui, SlowConsumerPolicy.DROP_OLDEST);
+    EventRingBuffer.Consumer s = ring.addConsumer("stuck", stuck, SlowConsumerPolicy.DETACH);
+
+    long start = System.nanoTime();
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      threads[p] = new Producer(ring, "camera-" + p, events);
+      threads[p].start();
+    }
+    for (Thread t : threads) t.join();
+    while (recording.received.get() < total || alerting.received.get() < total) {
+      Thread.sleep(10);
+    }
+    long elapsed = System.nanoTime() - start;
+    while (ui.received.get() + u.getDropped() < total) Thread.sleep(10);
+    ring.close();
+
+    assertTrue(recording.errors.get() == 0 && alerting.errors.get() == 0, "BLOCK out of order");
+    assertTrue(recording.received.get() == total, "recording got " + recording.received);
+    assertTrue(ui.errors.get() == 0, "DROP_OLDEST out of order or duplicated");
+    assertTrue(u.getDropped() > 0, "slow ui consumer dropped nothing");
+    assertTrue(
+        ui.received.get() + u.getDropped() == total,
+        "ui events lost: " + ui.received + " received, " + u.getDropped() + " dropped");
+    assertTrue(s.isDetached(), "stuck consumer not detached");
+    assertTrue(stuck.errors.get() == 0, "DETACH out of order");
+    assertTrue(!r.isDetached() && !a.isDetached(), "BLOCK consumer detached");
+    assertTrue(ring.getPublished() == total, "published " + ring.getPublished());
+
+    String report =
+        String.format(
+            "%d producers x %d events to 2 BLOCK consumers: %.0f ns/event;"
+                + " slow DROP_OLDEST consumer got %d and dropped %d, DETACH consumer got %d",
+            producers,
+            events,
+            (double) elapsed / total,
+            ui.received.get(),
+            u.getDropped(),
+            stuck.received.get());
+    printReport(report);
+    checkLapping(producers * 4, events / 10);
+    LOG.info("EventRingBufferTest passed");
+  }
+
+  /** Nothing holds the producers back, a preempted one is lapped by the others. */
+  private static void checkLapping(int producers, int events) throws InterruptedException {
+    EventRingBuffer ring = new EventRingBuffer(2);
+    Checker checker = new Checker(0);
+    EventRingBuffer.Consumer c =
+        ring.addConsumer("lapped", checker, SlowConsumerPolicy.DROP_OLDEST);
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      threads[p] = new Producer(ring, "camera-" + p, events);
+      threads[p].start();
+    }
+    for (Thread t : threads) t.join();
+    long total = (long) producers * events;
+    long deadline = System.currentTimeMillis() + 10000;
+    while (checker.received.get() + c.getDropped() < total
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    ring.close();
+    assertTrue(checker.torn.get() == 0, checker.torn + " events of another device");
+    assertTrue(
+        checker.received.get() + c.getDropped() == total,
+        "lapped consumer stalled: "
+            + checker.received
+            + " received, "
+            + c.getDropped()
+            + " dropped");
+  }
+
+  private static final class Producer extends Thread {
+    private final EventRingBuffer ring;
+    private final String deviceId;
+    private final int events;
+
+    Producer(EventRingBuffer ring, String deviceId, int events) {
+      this.ring = ring;
+      this.deviceId = deviceId;
+      this.events = events;
+    }
+
+    public void run() {
+      for (int i = 0; i < events; i++) {
+        // the sequence of the device travels in the time of the event
+        ring.publish(deviceId, new NotificationEvent(deviceId, i, null, null, null, null));
+      }
+    }
+  }
+
+  /** Checks that the events of every device come in order, optionally slowly. */
+  private static final class Checker implements EventMultiplexer.EventListener {
+    private final long sleepMillis;
+    private final Map<String, Long> last = new HashMap<>();
+    final AtomicLong received = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    /** Events delivered as events of another device, the topic is the device of the producer. */
+    final AtomicLong torn = new AtomicLong();
+
+    Checker(long sleepMillis) {
+      this.sleepMillis = sleepMillis;
+    }
+
+    public void onEvents(String deviceId, List<NotificationEvent> events) {
+      Long previous = last.get(deviceId);
+      long expected = previous == null ? 0 : previous + 1;
+      for (NotificationEvent e : events) {
+        if (!e.getTopic().equals(deviceId)) torn.incrementAndGet();
+        // BLOCK consumers see every event, the others at least no older or repeated ones
+        if (sleepMillis == 0 ? e.getUtcTime() != expected : e.getUtcTime() < expected) {
+          errors.incrementAndGet();
+        }
+        expected = e.getUtcTime() + 1;
+      }
+      last.put(deviceId, expected - 1);
+      received.addAndGet(events.size());
+      if (sleepMillis > 0) {
+        try {
+          Thread.sleep(sleepMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,229 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.NotificationConsumerEndpoint;
+import de.onvif.soap.OnvifDevice;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import org.apache.cxf.binding.soap.Soap12;
+import org.apache.cxf.binding.soap.SoapBindingConfiguration;
+import org.apache.cxf.jaxws.JaxWsProxyFactoryBean;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.Notify;
+import org.oasis_open.docs.wsn.bw_2.NotificationConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Push subscriptions of three devices on SimulatedEventService delivered to one
+ * NotificationConsumerEndpoint: routing by consumer address and by SubscriptionReference, renew,
+ * the overflow policies of a device whose listener is stuck, renewals beside a device hanging in
+ * Renew and unsubscribe.
+ */
+public class NotificationConsumerTest {
+  private static final Logger LOG = LoggerFactory.getLogger(NotificationConsumerTest.class);
+
+  private static final Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+  private static volatile CountDownLatch stuck = new CountDownLatch(0);
+
+  public static void main(String[] args) throws Exception {
+    SimulatedEventService service = new SimulatedEventService("http://localhost:9005/onvif");
+    service.start();
+    OnvifDevice device =
+        new OnvifDevice(
+            new URL("http://localhost:9005"),
+            "",
+            "",
+            Collections.singletonMap(OnvifDevice.SERVICE_EVENTS, service.getEventsAddress()));
+
+    NotificationConsumerEndpoint endpoint =
+        new NotificationConsumerEndpoint(
+            "http://localhost:9006/notify",
+            new NotificationConsumerEndpoint.Listener() {
+              public void onMessages(String deviceId, List<NotificationMessageHolderType> batch) {
+                if (deviceId.equals("camera-slow")) {
+                  try {
+                    stuck.await();
+                  } catch (InterruptedException e) {
+                    return;
+                  }
+                }
+                List<Integer> list = list(deviceId);
+                for (NotificationMessageHolderType holder : batch) {
+                  synchronized (list) {
+                    list.add(Integer.parseInt(value((Element) holder.getMessage().getAny())));
+                  }
+                }
+              }
+            },
+            2);
+    endpoint.setMaxThreads(10);
+    endpoint.setQueueCapacity(10);
+    endpoint.setOverflowPolicy(NotificationConsumerEndpoint.OverflowPolicy.DROP_OLDEST);
+    endpoint.setSubscriptionTime(3000);
+    endpoint.setRenewMargin(1500);
+    endpoint.start();
+    for (String id : new String[] {"camera-a", "camera-b", "camera-slow"}) {
+      endpoint.subscribe(id, device, null);
+    }
+    assertTrue(service.getSubscriptionCount() == 3, "not subscribed");
+
+    // one device stuck in its listener, the others keep going
+    stuck = new CountDownLatch(1);
+    for (int i = 0; i < 50; i++) service.publish(message(i));
+    awaitSize("camera-a", 50);
+    awaitSize("camera-b", 50);
+    assertTrue(inOrder(list("camera-a"), 0, 50), "camera-a out of order");
+    assertTrue(inOrder(list("camera-b"), 0, 50), "camera-b out of order");
+    assertTrue(endpoint.getDropped("camera-a") == 0, "camera-a dropped messages");
+    long dropped = endpoint.getDropped("camera-slow");
+    assertTrue(dropped > 0, "nothing dropped for the stuck device");
+    stuck.countDown();
+    awaitSize("camera-slow", (int) (50 - dropped));
+    List<Integer> slow = list("camera-slow");
+    // DROP_OLDEST keeps the newest messages
+    assertTrue(slow.get(slow.size() - 1) == 49, "newest message of camera-slow dropped");
+    printReport("DROP_OLDEST: " + dropped + " of 50 dropped");
+
+    // BLOCK holds the Notify of the device until the listener catches up
+    endpoint.setOverflowPolicy(NotificationConsumerEndpoint.OverflowPolicy.BLOCK);
+    endpoint.setBlockTimeout(10000);
+    String slowId = service.getSubscriptionId(endpoint.getConsumerAddress("camera-slow"));
+    assertTrue(slowId != null, "consumer address unknown to the device");
+    stuck = new CountDownLatch(1);
+    final CountDownLatch release = stuck;
+    new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(1000);
+        } catch (InterruptedException e) {
+          // release now
+        }
+        release.countDown();
+      }
+    }.start();
+    list("camera-slow").clear();
+    long publishStart = System.currentTimeMillis();
+    for (int i = 0; i < 50; i++) service.publish(slowId, message(i));
+    long blocked = System.currentTimeMillis() - publishStart;
+    awaitSize("camera-slow", 50);
+    assertTrue(endpoint.getDropped("camera-slow") == dropped, "BLOCK dropped messages");
+    assertTrue(inOrder(list("camera-slow"), 0, 50), "camera-slow out of order");
+    assertTrue(blocked >= 500, "device was not slowed down");
+    printReport("BLOCK: device held for " + blocked + "ms, nothing dropped");
+
+    // a Notify to the base address is routed by its SubscriptionReference
+    NotificationConsumer direct = consumer(endpoint.getAddress());
+    String bId = service.getSubscriptionId(endpoint.getConsumerAddress("camera-b"));
+    NotificationMessageHolderType holder = message(1000);
+    holder.setSubscriptionReference(service.getSubscriptionReference(bId));
+    Notify notify = new Notify();
+    notify.getNotificationMessage().add(holder);
+    notify.getNotificationMessage().add(message(1001));
+    direct.notify(notify);
+    awaitSize("camera-b", 51);
+    assertTrue(list("camera-b").get(50) == 1000, "not routed by SubscriptionReference");
+    assertTrue(endpoint.getUnrouted() == 1, "unrouted message not counted");
+
+    // subscriptions are renewed
+    Thread.sleep(4000);
+    assertTrue(service.renews.get() >= 6, "subscriptions not renewed: " + service.renews.get());
+    assertTrue(service.notifyFailures.get() == 0, "Notify failed");
+    service.publish(message(2000));
+    awaitSize("camera-a", 51);
+
+    // a device hanging in Renew delays only its own renewals
+    SimulatedEventService hung = new SimulatedEventService("http://localhost:9015/onvif");
+    hung.start();
+    OnvifDevice hungDevice =
+        new OnvifDevice(
+            new URL("http://localhost:9015"),
+            "",
+            "",
+            Collections.singletonMap(OnvifDevice.SERVICE_EVENTS, hung.getEventsAddress()));
+    endpoint.subscribe("camera-hung", hungDevice, null);
+    hung.renewDelay = 5000;
+    int renewsBefore = service.renews.get();
+    Thread.sleep(4000);
+    int renewsBeside = service.renews.get() - renewsBefore;
+    assertTrue(renewsBeside >= 6, renewsBeside + " renews beside a hanging device");
+    service.publish(message(3000));
+    awaitSize("camera-a", 52);
+
+    // the queue of an unsubscribed device goes once it drained
+    int queues = endpoint.getQueueCount();
+    endpoint.unsubscribe("camera-a");
+    assertTrue(endpoint.getQueueCount() == queues - 1, "queue kept after unsubscribe");
+
+    endpoint.stop();
+    hung.stop();
+    assertTrue(endpoint.getQueueCount() == 0, endpoint.getQueueCount() + " queues after stop");
+    assertTrue(service.getSubscriptionCount() == 0, "subscriptions left after stop");
+    assertTrue(service.unsubscribes.get() == 3, "not unsubscribed");
+    String report =
+        String.format(
+            "received %d, dropped %d, unrouted %d, renews %d",
+            endpoint.getReceived(),
+            endpoint.getDropped(),
+            endpoint.getUnrouted(),
+            service.renews.get());
+    printReport(report);
+    LOG.info("NotificationConsumerTest passed");
+    service.stop();
+    System.exit(0); // the embedded jetty keeps the jvm alive otherwise
+  }
+
+  private static NotificationMessageHolderType message(int i) throws Exception {
+    return SimulatedEventService.message("tns1:Device/Trigger/DigitalInput", "Count", "" + i);
+  }
+
+  private static NotificationConsumer consumer(String address) {
+    JaxWsProxyFactoryBean factory = new JaxWsProxyFactoryBean();
+    factory.setServiceClass(NotificationConsumer.class);
+    factory.setAddress(address);
+    SoapBindingConfiguration config = new SoapBindingConfiguration();
+    config.setVersion(Soap12.getInstance());
+    factory.setBindingConfig(config);
+    return factory.create(NotificationConsumer.class);
+  }
+
+  private static List<Integer> list(String deviceId) {
+    List<Integer> list = received.get(deviceId);
+    if (list == null) {
+      received.putIfAbsent(deviceId, Collections.synchronizedList(new ArrayList<Integer>()));
+      list = received.get(deviceId);
+    }
+    return list;
+  }
+
+  private static void awaitSize(String deviceId, int size) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (list(deviceId).size() < size && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    assertTrue(
+        list(deviceId).size() == size,
+        deviceId + " received " + list(deviceId).size() + " instead of " + size);
+  }
+
+  private static boolean inOrder(List<Integer> list, int first, int count) {
+    for (int i = 0; i < count; i++) {
+      if (list.get(i) != first + i) return false;
+    }
+    return true;
+  }
+
+  private static String value(Element message) {
+    NodeList items = message.getElementsByTagNameNS("*", "SimpleItem");
+    return ((Element) items.item(0)).getAttribute("Value");
+  }
+}
@@ -0,0 +1,209 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.NotificationDecoder;
+import de.onvif.events.NotificationEvent;
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBIntrospector;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.onvif.ver10.events.wsdl.PullMessagesResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes a PullMessagesResponse of 100 motion events into NotificationEvents, once with
+ * NotificationDecoder and once the JAXB way (unmarshal, then walk the DOM of every message). Checks
+ * both agree and reports the time and allocation per message.
+ *
+ * <p>Arguments: [seconds per run], default 3.
+ */
+public class NotificationDecoderBenchmark {
+  private static final Logger LOG = LoggerFactory.getLogger(NotificationDecoderBenchmark.class);
+
+  static volatile Object sink;
+
+  public static void main(String[] args) throws Exception {
+    long seconds = args.length > 0 ? Long.parseLong(args[0]) : 3;
+    int count = 100;
+    byte[] body = response(count).getBytes(StandardCharsets.UTF_8);
+
+    final NotificationDecoder decoder = new NotificationDecoder();
+    final XMLInputFactory input = XMLInputFactory.newInstance();
+    final Unmarshaller unmarshaller =
+        JAXBContext.newInstance(PullMessagesResponse.class).createUnmarshaller();
+
+    List<NotificationEvent> streamed = decoder.decode(body, 0, body.length);
+    List<NotificationEvent> viaDom = viaJaxb(body, input, unmarshaller);
+    assertTrue(streamed.size() == count, "decoded " + streamed.size() + " of " + count);
+    assertTrue(streamed.equals(viaDom), "decoders disagree");
+    NotificationEvent first = streamed.get(0);
+    assertTrue(
+        first.getTopic().equals("tns1:RuleEngine/CellMotionDetector/Motion"), "topic");
+    assertTrue(first.getPropertyOperation() == NotificationEvent.PropertyOperation.CHANGED, "op");
+    assertTrue(first.getSource("Rule").equals("MyMotionDetectorRule"), "source item");
+    assertTrue(first.getSourceCount() == 3, "source items");
+    assertTrue(first.getData("IsMotion").equals("true"), "data item");
+    assertTrue(
+        first.getUtcTime()
+            == DatatypeFactory.newInstance()
+                .newXMLGregorianCalendar("2020-01-01T12:00:00.000Z")
+                .toGregorianCalendar()
+                .getTimeInMillis(),
+        "UtcTime " + first.getUtcTime());
+    assertTrue(
+        decoder.getTerminationTime() - decoder.getCurrentTime() == 60000, "termination time");
+    byte[] aliased = response(1).replace("tns1", "ev").getBytes(StandardCharsets.UTF_8);
+    String topic = decoder.decode(aliased, 0, aliased.length).get(0).getTopic();
+    assertTrue(topic.equals("tns1:RuleEngine/CellMotionDetector/Motion"), "prefix " + topic);
+    checkTimes();
+
+    Runnable stax =
+        new Runnable() {
+          public void run() {
+            try {
+              sink = decoder.decode(body, 0, body.length);
+            } catch (Exception e) {
+              throw new IllegalStateException(e);
+            }
+          }
+        };
+    Runnable jaxb =
+        new Runnable() {
+          public void run() {
+            try {
+              sink = viaJaxb(body, input, unmarshaller);
+            } catch (Exception e) {
+              throw new IllegalStateException(e);
+            }
+          }
+        };
+    run(stax, 1); // warm up
+    run(jaxb, 1);
+    double[] streamedCost = run(stax, seconds);
+    double[] jaxbCost = run(jaxb, seconds);
+
+    String report =
+        String.format(
+            "%d messages per response: NotificationDecoder %.2f us/message %.0f bytes/message,"
+                + " JAXB and DOM %.2f us/message %.0f bytes/message",
+            count,
+            streamedCost[0] / count / 1000,
+            streamedCost[1] / count,
+            jaxbCost[0] / count / 1000,
+            jaxbCost[1] / count);
+    printReport(report);
+    assertTrue(streamedCost[0] < jaxbCost[0], "NotificationDecoder is slower than JAXB");
+    LOG.info("NotificationDecoderBenchmark passed");
+  }
+
+  /** What consumers did so far: JAXB unmarshals the message into DOM, then the DOM is walked. */
+  private static List<NotificationEvent> viaJaxb(
+      byte[] body, XMLInputFactory input, Unmarshaller unmarshaller) throws Exception {
+    XMLStreamReader r = input.createXMLStreamReader(new ByteArrayInputStream(body));
+    while (!(r.next() == XMLStreamConstants.START_ELEMENT && "Body".equals(r.getLocalName()))) {
+      // skip the header
+    }
+    r.nextTag();
+    PullMessagesResponse response =
+        (PullMessagesResponse) JAXBIntrospector.getValue(unmarshaller.unmarshal(r));
+    r.close();
+    List<NotificationEvent> events = new ArrayList<>();
+    for (NotificationMessageHolderType holder : response.getNotificationMessage()) {
+      events.add(NotificationDecoder.decode(holder));
+    }
+    return events;
+  }
+
+  /** @return ns and bytes allocated per run */
+  private static double[] run(Runnable decode, long seconds) {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long bytes = threads.getThreadAllocatedBytes(thread);
+    long start = System.nanoTime();
+    long end = start + seconds * 1000000000L;
+    long runs = 0;
+    while (System.nanoTime() < end) {
+      decode.run();
+      runs++;
+    }
+    long elapsed = System.nanoTime() - start;
+    return new double[] {
+      elapsed / (double) runs, (threads.getThreadAllocatedBytes(thread) - bytes) / (double) runs
+    };
+  }
+
+  private static void checkTimes() throws Exception {
+    DatatypeFactory datatypes = DatatypeFactory.newInstance();
+    String[] times = {
+      "2020-01-01T12:00:00Z",
+      "2021-02-28T23:59:59.5Z",
+      "2024-02-29T00:00:00.123456Z",
+      "2019-06-30T08:15:00+02:00",
+      "1999-12-31T20:00:00-05:30",
+    };
+    NotificationDecoder decoder = new NotificationDecoder();
+    for (String time : times) {
+      String xml =
+          "<wsnt:Notify xmlns:wsnt=\"http://docs.oasis-open.org/wsn/b-2\""
+              + " xmlns:tt=\"http://www.onvif.org/ver10/schema\"><wsnt:NotificationMessage>"
+              + "<wsnt:Topic>tns1:Device/Trigger/DigitalInput</wsnt:Topic><wsnt:Message>"
+              + "<tt:Message UtcTime=\""
+              + time
+              + "\"/></wsnt:Message></wsnt:NotificationMessage></wsnt:Notify>";
+      byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+      long parsed = decoder.decode(bytes, 0, bytes.length).get(0).getUtcTime();
+      long expected =
+          datatypes.newXMLGregorianCalendar(time).toGregorianCalendar().getTimeInMillis();
+      assertTrue(parsed == expected, time + " parsed as " + parsed + " instead of " + expected);
+    }
+  }
+
+  private static String response(int count) {
+    StringBuilder s =
+        new StringBuilder(
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<env:Envelope xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\""
+                + " xmlns:wsa=\"http://www.w3.org/2005/08/addressing\""
+                + " xmlns:tev=\"http://www.onvif.org/ver10/events/wsdl\""
+                + " xmlns:wsnt=\"http://docs.oasis-open.org/wsn/b-2\""
+                + " xmlns:tt=\"http://www.onvif.org/ver10/schema\""
+                + " xmlns:tns1=\"http://www.onvif.org/ver10/topics\"><env:Header>"
+                + "<wsa:Action>http://www.onvif.org/ver10/events/wsdl/PullPointSubscription/"
+                + "PullMessagesResponse</wsa:Action></env:Header><env:Body>"
+                + "<tev:PullMessagesResponse><tev:CurrentTime>2020-01-01T12:00:00Z"
+                + "</tev:CurrentTime><tev:TerminationTime>2020-01-01T12:01:00Z"
+                + "</tev:TerminationTime>");
+    for (int i = 0; i < count; i++) {
+      s.append(
+          "<wsnt:NotificationMessage><wsnt:SubscriptionReference>"
+              + "<wsa:Address>http://192.168.0.120/onvif/Subscription?Idx=0</wsa:Address>"
+              + "</wsnt:SubscriptionReference><wsnt:Topic Dialect=\"http://www.onvif.org/ver10/"
+              + "tev/topicExpression/ConcreteSet\">tns1:RuleEngine/CellMotionDetector/Motion"
+              + "</wsnt:Topic><wsnt:ProducerReference><wsa:Address>"
+              + "http://192.168.0.120/onvif/event</wsa:Address></wsnt:ProducerReference>"
+              + "<wsnt:Message><tt:Message UtcTime=\"2020-01-01T12:00:00.000Z\""
+              + " PropertyOperation=\"Changed\"><tt:Source>"
+              + "<tt:SimpleItem Name=\"VideoSourceConfigurationToken\" Value=\"VideoSource_1\"/>"
+              + "<tt:SimpleItem Name=\"VideoAnalyticsConfigurationToken\""
+              + " Value=\"VideoAnalytics_1\"/>"
+              + "<tt:SimpleItem Name=\"Rule\" Value=\"MyMotionDetectorRule\"/></tt:Source>"
+              + "<tt:Data><tt:SimpleItem Name=\"IsMotion\" Value=\""
+              + (i % 2 == 0)
+              + "\"/></tt:Data></tt:Message></wsnt:Message></wsnt:NotificationMessage>");
+    }
+    return s.append("</tev:PullMessagesResponse></env:Body></env:Envelope>").toString();
+  }
+}
@@ -0,0 +1,168 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.EventMultiplexer;
+import de.onvif.events.NotificationEvent;
+import de.onvif.events.NotificationEvent.PropertyOperation;
+import de.onvif.events.PropertyStateTable;
+import de.onvif.events.TopicFilter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PropertyStateTable: Initialized replays after a resubscribe and unchanged Changed events are
+ * dropped, real transitions and plain events are passed on, snapshots show the current state, also
+ * while several devices are updated concurrently.
+ */
+public class PropertyStateTableTest {
+  private static final Logger LOG = LoggerFactory.getLogger(PropertyStateTableTest.class);
+
+  private static final String MOTION = "tns1:VideoSource/MotionAlarm";
+  private static final String INPUT = "tns1:Device/Trigger/DigitalInput";
+
+  public static void main(String[] args) throws Exception {
+    final AtomicLong downstream = new AtomicLong();
+    final List<NotificationEvent> last = new ArrayList<>();
+    PropertyStateTable table =
+        new PropertyStateTable(
+            new EventMultiplexer.EventListener() {
+              public void onEvents(String deviceId, List<NotificationEvent> events) {
+                downstream.addAndGet(events.size());
+                synchronized (last) {
+                  last.clear();
+                  last.addAll(events);
+                }
+              }
+            });
+
+    // initial state of 100 sources
+    List<NotificationEvent> initial = new ArrayList<>();
+    for (int i = 0; i < 100; i++) initial.add(motion(PropertyOperation.INITIALIZED, i, "false", 1));
+    table.onEvents("camera-1", initial);
+    assertTrue(downstream.get() == 100, "initial state not passed on");
+    assertTrue(table.snapshot("camera-1").size() == 100, "snapshot of the initial state");
+
+    // the replay after a resubscribe is no transition
+    List<NotificationEvent> replay = new ArrayList<>();
+    for (int i = 0; i < 100; i++) replay.add(motion(PropertyOperation.INITIALIZED, i, "false", 2));
+    table.onEvents("camera-1", replay);
+    assertTrue(downstream.get() == 100, "replayed state passed on");
+
+    // Changed without change, with change, a plain event
+    List<NotificationEvent> batch = new ArrayList<>();
+    batch.add(motion(PropertyOperation.CHANGED, 1, "false", 3));
+    batch.add(motion(PropertyOperation.CHANGED, 2, "true", 3));
+    batch.add(new NotificationEvent(INPUT, 3000, null, null, null, data("LogicalState", "true")));
+    table.onEvents("camera-1", batch);
+    assertTrue(downstream.get() == 102, "transitions: " + (downstream.get() - 100));
+    assertTrue(last.size() == 2 && last.get(0).getSource("Source").equals("2"), "wrong transition");
+    NotificationEvent state = table.get("camera-1", MOTION, source(2), null);
+    assertTrue(state != null && state.getData("State").equals("true"), "state not updated");
+
+    // an older event does not overwrite the state
+    table.onEvents("camera-1", list(motion(PropertyOperation.CHANGED, 2, "false", 1)));
+    assertTrue(downstream.get() == 102, "stale event passed on");
+    assertTrue(
+        table.get("camera-1", MOTION, source(2), null).getData("State").equals("true"),
+        "stale event applied");
+
+    // Deleted once
+    table.onEvents("camera-1", list(motion(PropertyOperation.DELETED, 3, null, 4)));
+    table.onEvents("camera-1", list(motion(PropertyOperation.DELETED, 3, null, 5)));
+    assertTrue(downstream.get() == 103, "Deleted passed on " + (downstream.get() - 102));
+    assertTrue(table.get("camera-1", MOTION, source(3), null) == null, "not deleted");
+    assertTrue(table.snapshot("camera-1").size() == 99, "snapshot after delete");
+    assertTrue(
+        table.snapshot("camera-1", TopicFilter.compile("tns1:Device//.")).isEmpty(),
+        "plain events are no state");
+
+    // devices updated concurrently, while snapshots are read
+    final PropertyStateTable concurrent = new PropertyStateTable(null);
+    final int devices = 8;
+    final int sources = 500;
+    final int rounds = 20;
+    Thread[] writers = new Thread[devices];
+    for (int d = 0; d < devices; d++) {
+      final String id = "camera-" + d;
+      writers[d] =
+          new Thread() {
+            public void run() {
+              long time = 0;
+              for (int round = 0; round < rounds; round++) {
+                List<NotificationEvent> events = new ArrayList<>();
+                for (int i = 0; i < sources; i++) {
+                  // every round replays the state, every fifth round changes it
+                  String value = "" + (round / 5);
+                  events.add(motion(PropertyOperation.INITIALIZED, i, value, ++time));
+                }
+                concurrent.onEvents(id, events);
+              }
+            }
+          };
+      writers[d].start();
+    }
+    int snapshots = 0;
+    while (alive(writers)) {
+      for (int d = 0; d < devices; d++) {
+        assertTrue(concurrent.snapshot("camera-" + d).size() <= sources, "snapshot too large");
+      }
+      snapshots++;
+    }
+    assertTrue(concurrent.size() == devices * sources, "properties " + concurrent.size());
+    long expected = (long) devices * sources * (rounds / 5);
+    assertTrue(
+        concurrent.getEmitted() == expected,
+        "emitted " + concurrent.getEmitted() + " instead of " + expected);
+    for (int d = 0; d < devices; d++) {
+      for (NotificationEvent e : concurrent.snapshot("camera-" + d)) {
+        assertTrue(e.getData("State").equals("" + (rounds - 1) / 5), "last state lost");
+      }
+    }
+    String report =
+        String.format(
+            "%d events applied, %d passed on (%.1f%%), %d concurrent snapshots",
+            concurrent.getApplied(),
+            concurrent.getEmitted(),
+            100.0 * concurrent.getEmitted() / concurrent.getApplied(),
+            snapshots);
+    printReport(report);
+    LOG.info("PropertyStateTableTest passed");
+  }
+
+  private static NotificationEvent motion(
+      PropertyOperation operation, int source, String state, long time) {
+    return new NotificationEvent(
+        MOTION,
+        time * 1000,
+        operation,
+        source(source),
+        null,
+        state == null ? null : data("State", state));
+  }
+
+  private static String[] source(int i) {
+    return new String[] {"Source", "" + i};
+  }
+
+  private static String[] data(String name, String value) {
+    return new String[] {name, value};
+  }
+
+  private static List<NotificationEvent> list(NotificationEvent e) {
+    List<NotificationEvent> list = new ArrayList<>();
+    list.add(e);
+    return list;
+  }
+
+  private static boolean alive(Thread[] threads) {
+    for (Thread t : threads) {
+      if (t.isAlive()) return true;
+    }
+    return false;
+  }
+}
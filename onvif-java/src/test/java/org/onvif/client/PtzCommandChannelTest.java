@@ -0,0 +1,152 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.ptz.PtzCommand;
+import de.onvif.ptz.PtzCommandChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PtzCommandChannel with simulated cameras: a joystick at 50 Hz on a camera answering in 200 ms
+ * only sends the latest velocity, never two requests at once, a stop overtakes a waiting move, the
+ * moves of two profiles of one camera do not replace each other, and a fast camera keeps answering
+ * in milliseconds while a fleet of slow ones is busy. Reports the commands sent and superseded and
+ * the latency of the fast camera.
+ *
+ * <p>Arguments: [slow cameras], default 50.
+ */
+public class PtzCommandChannelTest {
+  private static final Logger LOG = LoggerFactory.getLogger(PtzCommandChannelTest.class);
+
+  public static void main(String[] args) throws Exception {
+    int slowCameras = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    ExecutorService executor = Executors.newCachedThreadPool();
+
+    // joystick on a slow camera
+    Camera slow = new Camera(200);
+    PtzCommandChannel channel = new PtzCommandChannel(slow, executor);
+    List<PtzCommand> commands = new ArrayList<>();
+    for (int i = 1; i <= 100; i++) {
+      commands.add(channel.move("profile", i / 100f, 0, 0, 1000));
+      Thread.sleep(20);
+    }
+    PtzCommand last = commands.get(commands.size() - 1);
+    assertTrue(last.await(5, TimeUnit.SECONDS) == PtzCommand.State.DONE, "last move " + last);
+    assertTrue(slow.maxInFlight.get() == 1, slow.maxInFlight + " requests in flight");
+    assertTrue(slow.last().equals("profile move 1.00"), "camera moves with " + slow.last());
+    int sent = 0;
+    int superseded = 0;
+    for (PtzCommand c : commands) {
+      PtzCommand.State state = c.await(1, TimeUnit.SECONDS);
+      if (state == PtzCommand.State.DONE) sent++;
+      else if (state == PtzCommand.State.SUPERSEDED) superseded++;
+      else assertTrue(false, "command " + c);
+    }
+    assertTrue(sent == slow.received.size() && sent <= 15, sent + " of 100 moves sent");
+    assertTrue(sent + superseded == 100, "commands lost");
+
+    // a stop overtakes the waiting move
+    slow.received.clear();
+    PtzCommand moving = channel.move("profile", 0.5f, 0, 0, 1000);
+    Thread.sleep(50);
+    PtzCommand waiting = channel.move("profile", 0.7f, 0, 0, 1000);
+    PtzCommand stop = channel.stop("profile", true, true);
+    assertTrue(stop.await(5, TimeUnit.SECONDS) == PtzCommand.State.DONE, "stop " + stop);
+    assertTrue(waiting.getState() == PtzCommand.State.SUPERSEDED, "waiting move " + waiting);
+    assertTrue(moving.getState() == PtzCommand.State.DONE, "move in flight " + moving);
+    List<String> expected = Arrays.asList("profile move 0.50", "profile stop");
+    assertTrue(slow.received.equals(expected), "camera got " + slow.received);
+
+    // two heads of one camera, stopping one keeps the move of the other
+    slow.received.clear();
+    channel.move("head1", 0.1f, 0, 0, 1000);
+    Thread.sleep(50);
+    PtzCommand head2 = channel.move("head2", 0.2f, 0, 0, 1000);
+    PtzCommand head1 = channel.move("head1", 0.3f, 0, 0, 1000);
+    stop = channel.stop("head1", true, true);
+    assertTrue(head2.await(5, TimeUnit.SECONDS) == PtzCommand.State.DONE, "other head " + head2);
+    assertTrue(head1.getState() == PtzCommand.State.SUPERSEDED, "stopped head " + head1);
+    expected = Arrays.asList("head1 move 0.10", "head1 stop", "head2 move 0.20");
+    assertTrue(slow.received.equals(expected), "camera got " + slow.received);
+
+    // a fast camera while many slow ones are busy
+    List<PtzCommandChannel> fleet = new ArrayList<>();
+    for (int i = 0; i < slowCameras; i++) {
+      fleet.add(new PtzCommandChannel(new Camera(500), executor));
+    }
+    PtzCommandChannel fast = new PtzCommandChannel(new Camera(1), executor);
+    List<Long> latencies = new ArrayList<>();
+    for (int tick = 0; tick < 50; tick++) {
+      for (PtzCommandChannel c : fleet) c.move("profile", 0.1f, 0, 0, 1000);
+      long start = System.nanoTime();
+      PtzCommand c = fast.move("profile", 0.1f, 0, 0, 1000);
+      assertTrue(c.await(5, TimeUnit.SECONDS) == PtzCommand.State.DONE, "fast camera " + c);
+      latencies.add((System.nanoTime() - start) / 1000);
+      Thread.sleep(20);
+    }
+    Collections.sort(latencies);
+    long p50 = latencies.get(latencies.size() / 2);
+    long max = latencies.get(latencies.size() - 1);
+    assertTrue(max < 100000, "fast camera waited " + max + "us behind the slow ones");
+
+    String report =
+        String.format(
+            "slow camera: %d of 100 moves sent, %d superseded; fast camera beside %d busy ones:"
+                + " p50 %.2f ms, max %.2f ms (one global lock: up to %d ms)",
+            sent,
+            superseded,
+            slowCameras,
+            p50 / 1000.0,
+            max / 1000.0,
+            slowCameras * 500);
+    printReport(report);
+    executor.shutdownNow();
+    LOG.info("PtzCommandChannelTest passed");
+  }
+
+  /** Answers every command after a delay and records it. */
+  private static final class Camera implements PtzCommandChannel.Sender {
+    final long delay;
+    final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+
+    Camera(long delay) {
+      this.delay = delay;
+    }
+
+    public void continuousMove(String profileToken, float x, float y, float zoom, long timeout)
+        throws InterruptedException {
+      handle(String.format("%s move %.2f", profileToken, x));
+    }
+
+    public void stop(String profileToken, boolean panTilt, boolean zoom)
+        throws InterruptedException {
+      handle(profileToken + " stop");
+    }
+
+    private void handle(String command) throws InterruptedException {
+      int n = inFlight.incrementAndGet();
+      maxInFlight.set(Math.max(maxInFlight.get(), n));
+      Thread.sleep(delay);
+      received.add(command);
+      inFlight.decrementAndGet();
+    }
+
+    String last() {
+      synchronized (received) {
+        return received.get(received.size() - 1);
+      }
+    }
+  }
+}
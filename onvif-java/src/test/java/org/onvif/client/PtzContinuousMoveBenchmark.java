@@ -0,0 +1,340 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.external.OperatingCamera;
+import de.onvif.ptz.PtzCommandChannel;
+import de.onvif.ptz.PtzTemplateSender;
+import de.onvif.soap.OnvifDevice;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.onvif.ver10.schema.PTZSpeed;
+import org.onvif.ver10.schema.Vector1D;
+import org.onvif.ver10.schema.Vector2D;
+import org.onvif.ver20.ptz.wsdl.PTZ;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Sends ContinuousMove to a simulated PTZ service three ways: as OperatingCamera did (a
+ * DatatypeFactory lookup and new PTZSpeed per command, marshalled by JAXB), through the JAXB
+ * sender of PtzCommandChannel, and with PtzTemplateSender. Checks the template requests parse with
+ * the right values and a valid password digest, survive a closed connection and report faults,
+ * then reports the CPU time and allocation of the sending thread per command.
+ *
+ * <p>Arguments: [commands per run], default 300.
+ */
+public class PtzContinuousMoveBenchmark {
+  private static final Logger LOG = LoggerFactory.getLogger(PtzContinuousMoveBenchmark.class);
+
+  private static final String USER = "admin";
+  private static final String PASSWORD = "secret";
+
+  public static void main(String[] args) throws Exception {
+    int commands = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+    final PtzService service = new PtzService(9013);
+    service.start();
+    String address = "http://localhost:9013/onvif/ptz_service";
+    OnvifDevice device =
+        new OnvifDevice(
+            new URL("http://localhost:9013"),
+            USER,
+            PASSWORD,
+            Collections.singletonMap(OnvifDevice.SERVICE_PTZ, address));
+    final PTZ ptz = device.getPtz();
+    final PtzCommandChannel.Sender jaxb = PtzCommandChannel.sender(ptz);
+    final PtzTemplateSender template = new PtzTemplateSender(device);
+
+    // what the template sends
+    template.continuousMove("Profile_1", -0.25f, 1f, 0.0001f, 1500);
+    Element move = service.lastRequest();
+    assertTrue(move.getLocalName().equals("ContinuousMove"), "sent " + move.getLocalName());
+    assertTrue(text(move, "ProfileToken").equals("Profile_1"), "profile token");
+    Element panTilt = child(move, "PanTilt");
+    Element zoom = child(move, "Zoom");
+    assertTrue(
+        panTilt.getAttribute("x").equals("-0.25") && panTilt.getAttribute("y").equals("1.0"),
+        "pan tilt " + panTilt.getAttribute("x") + " " + panTilt.getAttribute("y"));
+    assertTrue(zoom.getAttribute("x").equals("0.0001"), "zoom " + zoom.getAttribute("x"));
+    assertTrue(text(move, "Timeout").equals("PT1.5S"), "timeout " + text(move, "Timeout"));
+    assertTrue(service.digestValid, "password digest");
+    template.continuousMove("Profile_1", 0.5f, 0f, 0f, 0);
+    assertTrue(child(service.lastRequest(), "Timeout") == null, "timeout sent for 0");
+    template.stop("Profile_1", true, false);
+    Element stop = service.lastRequest();
+    assertTrue(
+        stop.getLocalName().equals("Stop")
+            && text(stop, "PanTilt").equals("true")
+            && text(stop, "Zoom").equals("false"),
+        "stop");
+    // the service closes the connection after this one, the next command reconnects
+    template.continuousMove("drop", 0.1f, 0f, 0f, 1000);
+    template.continuousMove("Profile_1", 0.1f, 0f, 0f, 1000);
+    assertTrue(template.getConnects() == 2, template.getConnects() + " connections");
+    try {
+      template.continuousMove("bad", 0.1f, 0f, 0f, 1000);
+      assertTrue(false, "fault not reported");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("No such profile"), "fault " + e.getMessage());
+    }
+    // a camera without PTZ is reported as not supporting it, not with a NullPointerException
+    Object stopped = OperatingCamera.executeStop((PTZ) null, "Profile_1").get("ptzSupport");
+    Object moved =
+        OperatingCamera.executeContinuousMove((PTZ) null, "Profile_1", "left").get("ptzSupport");
+    assertTrue("noSupport".equals(stopped) && "noSupport".equals(moved), "no PTZ");
+    jaxb.continuousMove("Profile_1", -0.25f, 1f, 0f, 1500);
+    String timeout = text(service.lastRequest(), "Timeout");
+    assertTrue(
+        DatatypeFactory.newInstance().newDuration(timeout).getTimeInMillis(new Date(0)) == 1500,
+        "JAXB timeout " + timeout);
+
+    Command legacy =
+        new Command() {
+          public void send(float x) throws Exception {
+            // OperatingCamera before: a factory lookup and new speed objects per command
+            Vector2D panTilt = new Vector2D();
+            panTilt.setX(x);
+            panTilt.setY(0f);
+            Vector1D zoom = new Vector1D();
+            PTZSpeed speed = new PTZSpeed();
+            speed.setPanTilt(panTilt);
+            speed.setZoom(zoom);
+            ptz.continuousMove("Profile_1", speed, DatatypeFactory.newInstance().newDuration(1000));
+          }
+        };
+    Command viaJaxb =
+        new Command() {
+          public void send(float x) throws Exception {
+            jaxb.continuousMove("Profile_1", x, 0f, 0f, 1000);
+          }
+        };
+    Command viaTemplate =
+        new Command() {
+          public void send(float x) throws Exception {
+            template.continuousMove("Profile_1", x, 0f, 0f, 1000);
+          }
+        };
+    service.parse = false;
+    long connects = template.getConnects();
+    run(legacy, commands); // warm up
+    run(viaJaxb, commands);
+    run(viaTemplate, commands);
+    double[] legacyCost = run(legacy, commands);
+    double[] jaxbCost = run(viaJaxb, commands);
+    double[] templateCost = run(viaTemplate, commands);
+    assertTrue(template.getConnects() == connects, "template connection not kept alive");
+
+    String report =
+        String.format(
+            "ContinuousMove per command, CPU and allocation of the sending thread:%n"
+                + "  OperatingCamera before  %7.1f us %8.0f bytes%n"
+                + "  JAXB sender             %7.1f us %8.0f bytes%n"
+                + "  PtzTemplateSender       %7.1f us %8.0f bytes%n",
+            legacyCost[0] / 1000,
+            legacyCost[1],
+            jaxbCost[0] / 1000,
+            jaxbCost[1],
+            templateCost[0] / 1000,
+            templateCost[1]);
+    printReport(report);
+    assertTrue(templateCost[0] < jaxbCost[0], "templates take more CPU than JAXB");
+    assertTrue(templateCost[1] < 16, templateCost[1] + " bytes allocated per template command");
+
+    template.close();
+    service.stop();
+    LOG.info("PtzContinuousMoveBenchmark passed");
+  }
+
+  private interface Command {
+    void send(float x) throws Exception;
+  }
+
+  /** @return CPU ns and bytes allocated per command */
+  private static double[] run(Command command, int commands) throws Exception {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long bytes = threads.getThreadAllocatedBytes(thread);
+    long cpu = threads.getCurrentThreadCpuTime();
+    for (int i = 0; i < commands; i++) {
+      command.send((i % 200 - 100) / 100f);
+    }
+    return new double[] {
+      (threads.getCurrentThreadCpuTime() - cpu) / (double) commands,
+      (threads.getThreadAllocatedBytes(thread) - bytes) / (double) commands
+    };
+  }
+
+  private static Element child(Element parent, String localName) {
+    return (Element) parent.getElementsByTagNameNS("*", localName).item(0);
+  }
+
+  private static String text(Element parent, String localName) {
+    return child(parent, localName).getTextContent();
+  }
+
+  /**
+   * Answers ContinuousMove and Stop over kept-alive connections, a fault for the profile "bad",
+   * and closes the connection after a request for the profile "drop".
+   */
+  private static final class PtzService implements Runnable {
+    private final ServerSocket server;
+    /** Parse and check the requests, off while measuring. */
+    volatile boolean parse = true;
+
+    private volatile Element last;
+    volatile boolean digestValid;
+
+    PtzService(int port) throws IOException {
+      server = new ServerSocket(port);
+    }
+
+    void start() {
+      Thread t = new Thread(this, "ptz-service");
+      t.setDaemon(true);
+      t.start();
+    }
+
+    void stop() throws IOException {
+      server.close();
+    }
+
+    Element lastRequest() {
+      return last;
+    }
+
+    public void run() {
+      while (!server.isClosed()) {
+        try {
+          final Socket socket = server.accept();
+          Thread t =
+              new Thread(
+                  new Runnable() {
+                    public void run() {
+                      serve(socket);
+                    }
+                  },
+                  "ptz-connection");
+          t.setDaemon(true);
+          t.start();
+        } catch (IOException e) {
+          return;
+        }
+      }
+    }
+
+    private void serve(Socket socket) {
+      try (Socket s = socket) {
+        InputStream in = s.getInputStream();
+        OutputStream out = s.getOutputStream();
+        byte[] buf = new byte[65536];
+        while (true) {
+          int length = 0;
+          int headerEnd;
+          while ((headerEnd = headerEnd(buf, length)) < 0) {
+            int n = in.read(buf, length, buf.length - length);
+            if (n < 0) return;
+            length += n;
+          }
+          String head = new String(buf, 0, headerEnd, StandardCharsets.ISO_8859_1);
+          int at = head.toLowerCase().indexOf("content-length:") + 15;
+          int contentLength = Integer.parseInt(head.substring(at, head.indexOf('\r', at)).trim());
+          while (length < headerEnd + contentLength) {
+            int n = in.read(buf, length, buf.length - length);
+            if (n < 0) return;
+            length += n;
+          }
+          String body = new String(buf, headerEnd, contentLength, StandardCharsets.UTF_8);
+          String response;
+          String status = "200 OK";
+          if (body.contains(">bad<")) {
+            status = "500 Internal Server Error";
+            response =
+                "<env:Fault><env:Code><env:Value>env:Sender</env:Value></env:Code><env:Reason>"
+                    + "<env:Text xml:lang=\"en\">No such profile</env:Text></env:Reason>"
+                    + "</env:Fault>";
+          } else if (body.contains("ContinuousMove")) {
+            response = "<tptz:ContinuousMoveResponse/>";
+          } else {
+            response = "<tptz:StopResponse/>";
+          }
+          if (parse) check(buf, headerEnd, contentLength);
+          byte[] content =
+              ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><env:Envelope"
+                      + " xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\""
+                      + " xmlns:tptz=\"http://www.onvif.org/ver20/ptz/wsdl\"><env:Body>"
+                      + response
+                      + "</env:Body></env:Envelope>")
+                  .getBytes(StandardCharsets.UTF_8);
+          String headers =
+              "HTTP/1.1 "
+                  + status
+                  + "\r\nContent-Type: application/soap+xml; charset=utf-8\r\nContent-Length: "
+                  + content.length
+                  + "\r\n\r\n";
+          out.write(headers.getBytes(StandardCharsets.ISO_8859_1));
+          out.write(content);
+          out.flush();
+          if (body.contains(">drop<")) return;
+        }
+      } catch (Exception e) {
+        LOG.warn("PTZ service connection failed", e);
+      }
+    }
+
+    private void check(byte[] buf, int offset, int length) throws Exception {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setNamespaceAware(true);
+      Document doc =
+          factory.newDocumentBuilder().parse(new ByteArrayInputStream(buf, offset, length));
+      Element envelope = doc.getDocumentElement();
+      Element body = child(envelope, "Body");
+      Element request = (Element) body.getFirstChild();
+      Element password = child(envelope, "Password");
+      if (password != null) {
+        byte[] nonce = Base64.getDecoder().decode(text(envelope, "Nonce"));
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        sha1.update(nonce);
+        sha1.update(text(envelope, "Created").getBytes(StandardCharsets.UTF_8));
+        sha1.update(PASSWORD.getBytes(StandardCharsets.UTF_8));
+        byte[] digest = Base64.getDecoder().decode(password.getTextContent());
+        long created =
+            DatatypeFactory.newInstance()
+                .newXMLGregorianCalendar(text(envelope, "Created"))
+                .toGregorianCalendar()
+                .getTimeInMillis();
+        digestValid =
+            Arrays.equals(digest, sha1.digest())
+                && text(envelope, "Username").equals(USER)
+                && Math.abs(created - System.currentTimeMillis()) < 2000;
+      }
+      last = request;
+    }
+
+    private static int headerEnd(byte[] buf, int length) {
+      for (int i = 3; i < length; i++) {
+        if (buf[i - 3] == '\r' && buf[i - 2] == '\n' && buf[i - 1] == '\r' && buf[i] == '\n') {
+          return i + 1;
+        }
+      }
+      return -1;
+    }
+  }
+}
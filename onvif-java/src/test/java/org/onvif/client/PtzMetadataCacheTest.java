@@ -0,0 +1,199 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.NotificationEvent;
+import de.onvif.ptz.PtzMetadataCache;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.ws.Holder;
+import org.onvif.ver10.schema.PTZConfiguration;
+import org.onvif.ver10.schema.PTZConfigurationOptions;
+import org.onvif.ver10.schema.PTZNode;
+import org.onvif.ver10.schema.PTZPreset;
+import org.onvif.ver10.schema.PresetTour;
+import org.onvif.ver20.ptz.wsdl.PTZ;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PtzMetadataCache against a simulated PTZ service answering in 30 ms. Eight dialogs opening at
+ * once fetch every list once, presets are fetched again after SetPreset and RemovePreset through
+ * the cache and after a PTZPresets event but not after other events, a failed request is not
+ * kept, and answers expire after the max age. Reports the requests against asking the device on
+ * every dialog.
+ */
+public class PtzMetadataCacheTest {
+  private static final Logger LOG = LoggerFactory.getLogger(PtzMetadataCacheTest.class);
+
+  private static final int DIALOGS = 8;
+  private static final int OPENS = 50;
+
+  public static void main(String[] args) throws Exception {
+    final Dome dome = new Dome();
+    final PTZ ptz = dome.ptz();
+    final PtzMetadataCache cache = new PtzMetadataCache();
+
+    // dialogs opening at the same time, then opened again and again
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] dialogs = new Thread[DIALOGS];
+    long begin = System.nanoTime();
+    for (int i = 0; i < dialogs.length; i++) {
+      dialogs[i] =
+          new Thread() {
+            public void run() {
+              try {
+                start.await();
+                for (int n = 0; n < OPENS; n++) open(cache, ptz);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+          };
+      dialogs[i].start();
+    }
+    start.countDown();
+    for (Thread t : dialogs) t.join();
+    double ms = (System.nanoTime() - begin) / 1e6;
+    int lookups = DIALOGS * OPENS * 5;
+    assertTrue(dome.requests.get() == 5, dome.requests + " requests for " + lookups + " lookups");
+    assertTrue(cache.getFetches() == 5, cache.getFetches() + " fetches");
+    assertTrue(cache.getHits() == lookups - 5, cache.getHits() + " hits");
+
+    List<PTZPreset> presets = cache.getPresets("dome", ptz, "Profile_1");
+    assertTrue(presets.size() == 2, presets.size() + " presets");
+    try {
+      presets.clear();
+      assertTrue(false, "cached presets modifiable");
+    } catch (UnsupportedOperationException expected) {
+    }
+
+    // our own SetPreset and RemovePreset
+    String token = cache.setPreset("dome", ptz, "Profile_1", "Door", null);
+    presets = cache.getPresets("dome", ptz, "Profile_1");
+    assertTrue(presets.size() == 3 && token.equals(presets.get(2).getToken()), "new preset unseen");
+    cache.removePreset("dome", ptz, "Profile_1", token);
+    presets = cache.getPresets("dome", ptz, "Profile_1");
+    assertTrue(presets.size() == 2, "removed preset still cached");
+    int afterOwn = dome.requests.get();
+
+    // presets changed by somebody else, announced by an event
+    dome.addPreset("Gate");
+    cache.onEvents("dome", Arrays.asList(event("tns1:VideoSource/MotionAlarm")));
+    cache.onEvents("other", Arrays.asList(event("tns1:PTZController/PTZPresets/Invoked")));
+    assertTrue(cache.getPresets("dome", ptz, "Profile_1").size() == 2, "invalidated by others");
+    cache.onEvents("dome", Arrays.asList(event("tt:PTZController/PTZPresets/Reached")));
+    assertTrue(cache.getPresets("dome", ptz, "Profile_1").size() == 3, "event did not invalidate");
+    cache.getNodes("dome", ptz);
+    cache.getConfigurationOptions("dome", ptz, "PTZConf_1");
+    assertTrue(dome.requests.get() == afterOwn + 1, "event dropped more than the presets");
+
+    // a failure is not kept
+    dome.failing = true;
+    try {
+      cache.getConfigurationOptions("dome", ptz, "PTZConf_2");
+      assertTrue(false, "failure not passed on");
+    } catch (IllegalStateException expected) {
+    }
+    dome.failing = false;
+    assertTrue(cache.getConfigurationOptions("dome", ptz, "PTZConf_2") != null, "failure kept");
+
+    // max age
+    cache.setMaxAge(50);
+    Thread.sleep(100);
+    int beforeExpiry = dome.requests.get();
+    cache.getNodes("dome", ptz);
+    assertTrue(dome.requests.get() == beforeExpiry + 1, "expired nodes not fetched again");
+
+    String report =
+        String.format(
+            "%d dialogs opened %d times each: %d requests in %.0f ms, %d without the cache"
+                + " (%.1f s at 30 ms each)",
+            DIALOGS,
+            OPENS,
+            5,
+            ms,
+            lookups,
+            lookups * 0.03);
+    printReport(report);
+    LOG.info("PtzMetadataCacheTest passed");
+  }
+
+  /** What a PTZ dialog asks for when it opens. */
+  private static void open(PtzMetadataCache cache, PTZ ptz) {
+    cache.getPresets("dome", ptz, "Profile_1");
+    cache.getPresetTours("dome", ptz, "Profile_1");
+    cache.getNodes("dome", ptz);
+    cache.getConfigurations("dome", ptz);
+    cache.getConfigurationOptions("dome", ptz, "PTZConf_1");
+  }
+
+  private static NotificationEvent event(String topic) {
+    return new NotificationEvent(topic, NotificationEvent.NO_TIME, null, null, null, null);
+  }
+
+  /** The metadata requests of a PTZ service, everything else is not supported. */
+  private static final class Dome implements InvocationHandler {
+    final AtomicInteger requests = new AtomicInteger();
+    private final List<PTZPreset> presets = new ArrayList<>();
+    private int nextToken = 1;
+    volatile boolean failing;
+
+    Dome() {
+      addPreset("Home");
+      addPreset("Parking");
+    }
+
+    PTZ ptz() {
+      return (PTZ)
+          Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {PTZ.class}, this);
+    }
+
+    synchronized String addPreset(String name) {
+      PTZPreset preset = new PTZPreset();
+      preset.setName(name);
+      preset.setToken("Preset_" + nextToken++);
+      presets.add(preset);
+      return preset.getToken();
+    }
+
+    @SuppressWarnings("unchecked")
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      requests.incrementAndGet();
+      Thread.sleep(30);
+      if (failing) throw new IllegalStateException("device busy");
+      String name = method.getName();
+      synchronized (this) {
+        if (name.equals("getPresets")) return new ArrayList<>(presets);
+        if (name.equals("setPreset")) {
+          ((Holder<String>) args[2]).value = addPreset((String) args[1]);
+          return null;
+        }
+        if (name.equals("removePreset")) {
+          for (PTZPreset p : presets) {
+            if (p.getToken().equals(args[1])) {
+              presets.remove(p);
+              break;
+            }
+          }
+          return null;
+        }
+      }
+      if (name.equals("getPresetTours")) return Collections.singletonList(new PresetTour());
+      if (name.equals("getNodes")) return Collections.singletonList(new PTZNode());
+      if (name.equals("getConfigurations")) {
+        return Collections.singletonList(new PTZConfiguration());
+      }
+      if (name.equals("getConfigurationOptions")) return new PTZConfigurationOptions();
+      throw new UnsupportedOperationException(name);
+    }
+  }
+}
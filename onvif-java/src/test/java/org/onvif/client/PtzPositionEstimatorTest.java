@@ -0,0 +1,179 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.ptz.PtzPositionEstimator;
+import de.onvif.ptz.PtzPositionEstimator.Estimate;
+import org.onvif.ver10.schema.FloatRange;
+import org.onvif.ver10.schema.MoveStatus;
+import org.onvif.ver10.schema.PTZConfigurationOptions;
+import org.onvif.ver10.schema.PTZMoveStatus;
+import org.onvif.ver10.schema.PTZSpaces;
+import org.onvif.ver10.schema.PTZStatus;
+import org.onvif.ver10.schema.PTZVector;
+import org.onvif.ver10.schema.Space1DDescription;
+import org.onvif.ver10.schema.Space2DDescription;
+import org.onvif.ver10.schema.Vector1D;
+import org.onvif.ver10.schema.Vector2D;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PtzPositionEstimator at 30 frames per second against a simulated dome polled every 500 ms, on a
+ * simulated clock. The dome pans at 0.8 per second at full velocity, the estimator starts at 0.5
+ * and learns it; statuses arrive 20 ms after their position. Checks the estimate stays close
+ * between polls, does not jump at a poll, stops at a Stop and at the end of the range, and follows
+ * a move of somebody else. Reports the error
+ * against drawing the last polled position and the cost of an estimate.
+ */
+public class PtzPositionEstimatorTest {
+  private static final Logger LOG = LoggerFactory.getLogger(PtzPositionEstimatorTest.class);
+
+  private static final float SPEED = 0.8f / 1000;
+  private static final long POLL = 500;
+  private static final long FRAME = 33;
+  /** ms the position of a status is old when it arrives. */
+  private static final long LATENCY = 20;
+
+  public static void main(String[] args) throws Exception {
+    PtzPositionEstimator estimator = new PtzPositionEstimator();
+    estimator.setLimits(options());
+    estimator.status(status(0, false), 0);
+
+    // pan at a quarter of full velocity from 100 ms on, polled every 500 ms
+    estimator.moved(0.25f, 0, 0, 0, 100);
+    double estimateError = 0;
+    double holdError = 0;
+    double maxError = 0;
+    int frames = 0;
+    float held = 0;
+    long nextPoll = POLL;
+    for (long t = 100; t <= 4000; t += FRAME) {
+      while (nextPoll <= t) {
+        float before = estimator.estimate(nextPoll).getPan();
+        PTZStatus s = status(pan(nextPoll - LATENCY, 100, 0.25f), true);
+        estimator.status(s, nextPoll);
+        float after = estimator.estimate(nextPoll).getPan();
+        assertTrue(Math.abs(after - before) < 1e-4, "jump at a poll " + before + " " + after);
+        held = s.getPosition().getPanTilt().getX();
+        nextPoll += POLL;
+      }
+      Estimate e = estimator.estimate(t);
+      assertTrue(e.isMoving(), "estimate not moving at " + t);
+      if (t >= 2000) {
+        double error = Math.abs(e.getPan() - pan(t, 100, 0.25f));
+        estimateError += error;
+        holdError += Math.abs(held - pan(t, 100, 0.25f));
+        maxError = Math.max(maxError, error);
+        frames++;
+      }
+    }
+    float learned = estimator.getFullSpeed()[0];
+    assertTrue(Math.abs(learned - 0.8f) < 0.04f, "learned full speed " + learned);
+    assertTrue(maxError < 0.01, "max error " + maxError);
+    estimateError /= frames;
+    holdError /= frames;
+    assertTrue(estimateError * 10 < holdError, "estimate " + estimateError + " hold " + holdError);
+
+    // a Stop holds the position
+    estimator.stopped(true, true, 4000);
+    float stoppedAt = estimator.estimate(4300).getPan();
+    Estimate later = estimator.estimate(5000);
+    assertTrue(later.getPan() == stoppedAt && !later.isMoving(), "moving after stop " + later);
+
+    // full velocity for a long time ends at the end of the range
+    estimator.moved(1, 0, 0, 0, 5000);
+    Estimate end = estimator.estimate(60000);
+    assertTrue(end.getPan() == 1f && !end.isMoving(), "beyond the range " + end);
+    estimator.stopped(true, true, 60000);
+    estimator.status(status(1, false), 60000);
+
+    // moved by somebody else: the speed between two polls carries on
+    estimator.status(status(0.9f, true), 60500);
+    estimator.status(status(0.8f, true), 61000);
+    float between = estimator.estimate(61250).getPan();
+    assertTrue(Math.abs(between - 0.75f) < 0.001f, "external move estimated at " + between);
+    estimator.status(status(0.7f, false), 61500);
+    assertTrue(!estimator.estimate(62500).isMoving(), "still moving after IDLE");
+
+    // cost per frame
+    int n = 10000000;
+    long start = System.nanoTime();
+    float sink = 0;
+    for (int i = 0; i < n; i++) sink += estimator.estimate(61500 + i % 1000).getPan();
+    double ns = (System.nanoTime() - start) / (double) n;
+
+    String report =
+        String.format(
+            "pan at 30 fps, polled every %d ms: mean error %.5f (max %.5f) estimated, %.5f"
+                + " drawing the last poll; full speed learned %.3f/s (actual 0.8); estimate"
+                + " %.1f ns%s",
+            POLL,
+            estimateError,
+            maxError,
+            holdError,
+            learned,
+            ns,
+            sink == 0 ? "" : "");
+    printReport(report);
+    LOG.info("PtzPositionEstimatorTest passed");
+  }
+
+  /** Pan of the dome at the time, moving from since at the velocity. */
+  private static float pan(long time, long since, float velocity) {
+    return Math.min(1, (time - since) * SPEED * velocity);
+  }
+
+  private static PTZStatus status(float pan, boolean moving) {
+    Vector2D panTilt = new Vector2D();
+    panTilt.setX(pan);
+    Vector1D zoom = new Vector1D();
+    PTZVector position = new PTZVector();
+    position.setPanTilt(panTilt);
+    position.setZoom(zoom);
+    PTZMoveStatus move = new PTZMoveStatus();
+    move.setPanTilt(moving ? MoveStatus.MOVING : MoveStatus.IDLE);
+    move.setZoom(MoveStatus.IDLE);
+    PTZStatus status = new PTZStatus();
+    status.setPosition(position);
+    status.setMoveStatus(move);
+    return status;
+  }
+
+  private static PTZConfigurationOptions options() {
+    PTZSpaces spaces = new PTZSpaces();
+    spaces
+        .getAbsolutePanTiltPositionSpace()
+        .add(
+            space2D(
+                "http://www.onvif.org/ver10/tptz/PanTiltSpaces/PositionGenericSpace", -1, 1));
+    spaces
+        .getContinuousPanTiltVelocitySpace()
+        .add(
+            space2D(
+                "http://www.onvif.org/ver10/tptz/PanTiltSpaces/VelocityGenericSpace", -1, 1));
+    Space1DDescription zoom = new Space1DDescription();
+    zoom.setURI("http://www.onvif.org/ver10/tptz/ZoomSpaces/PositionGenericSpace");
+    zoom.setXRange(range(0, 1));
+    spaces.getAbsoluteZoomPositionSpace().add(zoom);
+    PTZConfigurationOptions options = new PTZConfigurationOptions();
+    options.setSpaces(spaces);
+    return options;
+  }
+
+  private static Space2DDescription space2D(String uri, float min, float max) {
+    Space2DDescription space = new Space2DDescription();
+    space.setURI(uri);
+    space.setXRange(range(min, max));
+    space.setYRange(range(min, max));
+    return space;
+  }
+
+  private static FloatRange range(float min, float max) {
+    FloatRange range = new FloatRange();
+    range.setMin(min);
+    range.setMax(max);
+    return range;
+  }
+}
@@ -0,0 +1,135 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.ptz.PtzStatusTracker;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.onvif.ver10.schema.MoveStatus;
+import org.onvif.ver10.schema.PTZMoveStatus;
+import org.onvif.ver10.schema.PTZStatus;
+import org.onvif.ver10.schema.PTZVector;
+import org.onvif.ver10.schema.Vector1D;
+import org.onvif.ver10.schema.Vector2D;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PtzStatusTracker with three viewers on a simulated dome that stands still, pans for two seconds
+ * and stands still again. The viewers share one poll, fast only while the dome moves, all see its
+ * final position, and polling stops with the last viewer. Reports the GetStatus requests against
+ * three viewers polling on their own at 5 Hz.
+ */
+public class PtzStatusTrackerTest {
+  private static final Logger LOG = LoggerFactory.getLogger(PtzStatusTrackerTest.class);
+
+  public static void main(String[] args) throws Exception {
+    final Dome dome = new Dome();
+    PtzStatusTracker tracker = new PtzStatusTracker();
+    List<Viewer> viewers = new ArrayList<>();
+    List<PtzStatusTracker.Subscription> subscriptions = new ArrayList<>();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 3; i++) {
+      Viewer viewer = new Viewer();
+      viewers.add(viewer);
+      subscriptions.add(tracker.subscribe("dome", dome, "Profile_1", viewer));
+    }
+    assertTrue(tracker.getTracked() == 1, tracker.getTracked() + " profiles polled");
+    Thread.sleep(1000);
+    long idlePolls = tracker.getPolls();
+    assertTrue(idlePolls <= 2, idlePolls + " polls while idle");
+
+    dome.move(2000);
+    tracker.moving("dome", "Profile_1");
+    Thread.sleep(300);
+    assertTrue(tracker.isMoving("dome", "Profile_1"), "not polling fast while moving");
+    Thread.sleep(3200);
+    long elapsed = System.currentTimeMillis() - start;
+    long polls = tracker.getPolls();
+    assertTrue(!tracker.isMoving("dome", "Profile_1"), "still polling fast");
+    PTZStatus cached = tracker.getStatus("dome", "Profile_1");
+    float pan = cached.getPosition().getPanTilt().getX();
+    assertTrue(Math.abs(pan - 0.5f) < 0.001f, "cached pan " + pan);
+    for (Viewer v : viewers) {
+      assertTrue(v.last() == cached, "viewer did not get the last status");
+      assertTrue(v.statuses.size() == viewers.get(0).statuses.size(), "viewers differ");
+    }
+    // 2 s moving at 200 ms, the rest at 2000 ms
+    assertTrue(polls >= 8 && polls <= 20, polls + " polls");
+    long changes = tracker.getChanges();
+
+    for (PtzStatusTracker.Subscription s : subscriptions) s.close();
+    assertTrue(tracker.getTracked() == 0, "profile still tracked");
+    long closedAt = tracker.getPolls();
+    Thread.sleep(2500);
+    assertTrue(tracker.getPolls() == closedAt, "polled without subscribers");
+
+    long alone = viewers.size() * 5 * elapsed / 1000;
+    String report =
+        String.format(
+            "%d viewers for %.1f s: %d GetStatus shared (%d while idle 1 s, %d changes"
+                + " published), %d polling on their own at 5 Hz",
+            viewers.size(),
+            elapsed / 1000.0,
+            polls,
+            idlePolls,
+            changes,
+            alone);
+    printReport(report);
+    tracker.shutdown();
+    LOG.info("PtzStatusTrackerTest passed");
+  }
+
+  /** Pans at 0.25 per second while moving, answers in 20 ms. */
+  private static final class Dome implements PtzStatusTracker.Poller {
+    private float pan;
+    private long movingSince;
+    private long movingUntil;
+
+    synchronized void move(long duration) {
+      movingSince = System.currentTimeMillis();
+      movingUntil = movingSince + duration;
+    }
+
+    public PTZStatus getStatus(String profileToken) throws InterruptedException {
+      Thread.sleep(20);
+      long now = System.currentTimeMillis();
+      boolean moving;
+      float x;
+      synchronized (this) {
+        moving = now < movingUntil;
+        x = pan + (Math.min(now, movingUntil) - movingSince) * 0.25f / 1000;
+        if (movingUntil == 0) x = pan;
+      }
+      Vector2D panTilt = new Vector2D();
+      panTilt.setX(x);
+      Vector1D zoom = new Vector1D();
+      PTZVector position = new PTZVector();
+      position.setPanTilt(panTilt);
+      position.setZoom(zoom);
+      PTZMoveStatus move = new PTZMoveStatus();
+      move.setPanTilt(moving ? MoveStatus.MOVING : MoveStatus.IDLE);
+      move.setZoom(MoveStatus.IDLE);
+      PTZStatus status = new PTZStatus();
+      status.setPosition(position);
+      status.setMoveStatus(move);
+      return status;
+    }
+  }
+
+  private static final class Viewer implements PtzStatusTracker.Listener {
+    final List<PTZStatus> statuses = Collections.synchronizedList(new ArrayList<PTZStatus>());
+
+    public void onStatus(String deviceId, String profileToken, PTZStatus status) {
+      statuses.add(status);
+    }
+
+    PTZStatus last() {
+      synchronized (statuses) {
+        return statuses.get(statuses.size() - 1);
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+
+import de.onvif.events.PullPointSubscriptionClient;
+import de.onvif.soap.OnvifDevice;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs PullPointSubscriptionClient against SimulatedEventService: messages arrive in batches, the
+ * subscription is renewed before it terminates, a too high message limit is lowered to what the
+ * service accepts and stop() unsubscribes, also while the subscription is still being created.
+ */
+public class PullPointTest {
+  private static final Logger LOG = LoggerFactory.getLogger(PullPointTest.class);
+
+  public static void main(String[] args) throws Exception {
+    SimulatedEventService service = new SimulatedEventService("http://localhost:9003/onvif");
+    service.maxMessageLimit = 50;
+    service.omitMaxTimeout = true;
+    service.start();
+
+    OnvifDevice device =
+        new OnvifDevice(
+            new URL("http://localhost:9003"),
+            "",
+            "",
+            Collections.singletonMap(OnvifDevice.SERVICE_EVENTS, service.getEventsAddress()));
+
+    final AtomicInteger received = new AtomicInteger();
+    final AtomicInteger batches = new AtomicInteger();
+    PullPointSubscriptionClient client =
+        new PullPointSubscriptionClient(
+            device,
+            null,
+            new PullPointSubscriptionClient.Listener() {
+              public void onMessages(
+                  PullPointSubscriptionClient source, List<NotificationMessageHolderType> batch) {
+                received.addAndGet(batch.size());
+                batches.incrementAndGet();
+              }
+            });
+    client.setPullTimeout(1000);
+    client.setMessageLimit(100); // more than the service accepts
+    client.setSubscriptionTime(4000);
+    client.setRenewMargin(1000);
+    client.start();
+
+    waitFor(client, 5000);
+    for (int i = 0; i < 500; i++) {
+      service.publish(
+          SimulatedEventService.message("tns1:Device/Trigger/DigitalInput", "LogicalState", "" + (i % 2 == 0)));
+    }
+    long deadline = System.currentTimeMillis() + 10000;
+    while (received.get() < 500 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+    LOG.info("received " + received + " messages in " + batches + " batches");
+    assertTrue(received.get() == 500, "expected 500 messages, got " + received);
+    assertTrue(client.getMessageLimit() == 50, "message limit not lowered");
+    assertTrue(batches.get() >= 10, "batches larger than the limit");
+
+    Thread.sleep(6000); // longer than the subscription time
+    LOG.info("renews: " + service.renews + ", pulls: " + service.pulls);
+    assertTrue(service.renews.get() >= 2, "subscription was not renewed");
+    assertTrue(service.missingReference.get() == 0, "reference parameters not sent");
+    assertTrue(service.getSubscriptionCount() == 1, "subscription was lost");
+
+    client.stop();
+    assertTrue(service.unsubscribes.get() == 1, "not unsubscribed");
+    assertTrue(service.getSubscriptionCount() == 0, "subscription still alive");
+
+    // stopped before the device answers CreatePullPointSubscription
+    service.createDelay = 1000;
+    PullPointSubscriptionClient stopped =
+        new PullPointSubscriptionClient(
+            device,
+            null,
+            new PullPointSubscriptionClient.Listener() {
+              public void onMessages(
+                  PullPointSubscriptionClient source, List<NotificationMessageHolderType> batch) {}
+            });
+    stopped.start();
+    Thread.sleep(200);
+    stopped.stop();
+    deadline = System.currentTimeMillis() + 5000;
+    while (service.unsubscribes.get() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertTrue(service.created.size() == 2, service.created.size() + " subscriptions created");
+    assertTrue(service.getSubscriptionCount() == 0, "subscription created during stop() leaked");
+    LOG.info("PullPointTest passed");
+    service.stop();
+    System.exit(0); // the embedded jetty keeps the jvm alive otherwise
+  }
+
+  private static void waitFor(PullPointSubscriptionClient client, long timeout)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (client.getSubscriptionAddress() == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertTrue(client.getSubscriptionAddress() != null, "not subscribed");
+  }
+}
@@ -0,0 +1,179 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.EventMultiplexer;
+import de.onvif.events.NotificationEvent;
+import de.onvif.events.TopicFilter;
+import de.onvif.soap.OnvifDevice;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
+import org.oasis_open.docs.wsn.b_2.FilterType;
+import org.oasis_open.docs.wsn.b_2.TopicExpressionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Many cameras of SimulatedEventService lose their subscriptions at once, like after a reboot of
+ * the switch they hang off. The multiplexer subscribes them again no faster than the subscribe
+ * rate, cameras with a critical topic first, and reports one gap per camera around the outage.
+ *
+ * <p>Arguments: [devices], default 200.
+ */
+public class ResubscribeStormTest {
+  private static final Logger LOG = LoggerFactory.getLogger(ResubscribeStormTest.class);
+
+  private static final String INPUT = "tns1:Device/Trigger/DigitalInput";
+  private static final String MOTION = "tns1:VideoSource/MotionAlarm";
+  private static final int RATE = 20;
+  private static final int BURST = 5;
+
+  public static void main(String[] args) throws Exception {
+    int devices = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    int critical = devices / 8;
+
+    SimulatedEventService service = new SimulatedEventService("http://localhost:9008/onvif");
+    service.setMaxThreads(devices + 100);
+    service.start();
+    OnvifDevice device =
+        new OnvifDevice(
+            new URL("http://localhost:9008"),
+            "",
+            "",
+            Collections.singletonMap(OnvifDevice.SERVICE_EVENTS, service.getEventsAddress()));
+
+    final List<String> order = new ArrayList<>();
+    final Map<String, long[]> gaps = new HashMap<>();
+    EventMultiplexer multiplexer =
+        new EventMultiplexer(
+            new EventMultiplexer.EventListener() {
+              public void onEvents(String deviceId, List<NotificationEvent> events) {}
+            },
+            2,
+            4);
+    multiplexer.setPullTimeout(1000);
+    multiplexer.setSubscribeRate(RATE);
+    multiplexer.setSubscribeBurst(BURST);
+    multiplexer.setCriticalTopics(INPUT);
+    multiplexer.setGapListener(
+        new EventMultiplexer.GapListener() {
+          public void onGap(String deviceId, long from, long to) {
+            synchronized (order) {
+              order.add(deviceId);
+              assertTrue(gaps.put(deviceId, new long[] {from, to}) == null, "two gaps " + deviceId);
+            }
+          }
+        });
+
+    // the critical cameras are added last, admission puts them first only when they queue
+    FilterType motion = filter(MOTION);
+    FilterType input = filter(INPUT);
+    for (int i = 0; i < devices; i++) {
+      multiplexer.add("camera-" + i, device, i < devices - critical ? motion : input);
+    }
+    awaitPolling(multiplexer, devices);
+    checkRate(new ArrayList<>(service.created), "initial");
+
+    service.created.clear();
+    long reboot = System.currentTimeMillis();
+    service.reboot();
+    long deadline = System.currentTimeMillis() + 120000;
+    while (multiplexer.getGaps() < devices && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);
+    }
+    awaitPolling(multiplexer, devices);
+    long recovered = System.currentTimeMillis() - reboot;
+
+    assertTrue(gaps.size() == devices, gaps.size() + " gaps of " + devices);
+    for (Map.Entry<String, long[]> e : gaps.entrySet()) {
+      long[] gap = e.getValue();
+      // the last pull of the lost subscription may still have been answered after the reboot
+      assertTrue(gap[0] > reboot - 2000 && gap[0] < reboot + 2000, "gap start " + e.getKey());
+      assertTrue(gap[1] > gap[0] && gap[1] > reboot, "gap end " + e.getKey());
+    }
+    List<Long> created = new ArrayList<>(service.created);
+    assertTrue(created.size() == devices, created.size() + " subscribes of " + devices);
+    int maxPerSecond = checkRate(created, "resubscribe");
+
+    int lastCritical = 0;
+    synchronized (order) {
+      for (int i = 0; i < order.size(); i++) {
+        int n = Integer.parseInt(order.get(i).substring("camera-".length()));
+        if (n >= devices - critical) lastCritical = i;
+      }
+    }
+    assertTrue(lastCritical < devices / 2, "last critical camera resubscribed " + lastCritical);
+
+    String report =
+        String.format(
+            "%d cameras resubscribed in %d ms, at most %d subscribes/s (limit %d, burst %d),"
+                + " %d critical cameras within the first %d, %d failures",
+            devices,
+            recovered,
+            maxPerSecond,
+            RATE,
+            BURST,
+            critical,
+            lastCritical + 1,
+            multiplexer.getFailures());
+    printReport(report);
+
+    multiplexer.shutdown(5000);
+    service.stop();
+    LOG.info("ResubscribeStormTest passed");
+    System.exit(0); // the embedded jetty keeps the jvm alive otherwise
+  }
+
+  /** @return the most subscribes started within one second */
+  private static int checkRate(List<Long> created, String phase) {
+    Collections.sort(created);
+    int max = 0;
+    for (int i = 0, j = 0; i < created.size(); i++) {
+      while (created.get(i) - created.get(j) >= 1000) j++;
+      max = Math.max(max, i - j + 1);
+    }
+    // times are taken by the device, allow for scheduling delays between admission and request
+    assertTrue(max <= RATE + BURST + 2, phase + ": " + max + " subscribes within one second");
+    return max;
+  }
+
+  private static void awaitPolling(EventMultiplexer multiplexer, int devices)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 120000;
+    while (polling(multiplexer) < devices && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);
+    }
+    assertTrue(polling(multiplexer) == devices, "not all devices polling");
+  }
+
+  private static int polling(EventMultiplexer multiplexer) {
+    int n = 0;
+    for (String id : multiplexer.getDeviceIds()) {
+      EventMultiplexer.State state = multiplexer.getState(id);
+      if (state == EventMultiplexer.State.POLLING || state == EventMultiplexer.State.RENEWING) n++;
+    }
+    return n;
+  }
+
+  private static FilterType filter(String topic) {
+    TopicExpressionType t = new TopicExpressionType();
+    t.setDialect(TopicFilter.DIALECT_CONCRETE_SET);
+    t.getContent().add(topic);
+    FilterType filter = new FilterType();
+    filter
+        .getAny()
+        .add(
+            new JAXBElement<>(
+                new QName("http://docs.oasis-open.org/wsn/b-2", "TopicExpression"),
+                TopicExpressionType.class,
+                t));
+    return filter;
+  }
+}
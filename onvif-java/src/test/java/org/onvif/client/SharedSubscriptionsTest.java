@@ -0,0 +1,213 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.EventMultiplexer;
+import de.onvif.events.NotificationEvent;
+import de.onvif.events.SharedSubscriptions;
+import de.onvif.events.TopicFilter;
+import de.onvif.soap.OnvifDevice;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SharedSubscriptions on SimulatedEventService: three interests in different topics of one camera
+ * share one PullPoint subscription. While events are published continuously an interest is added
+ * and one is closed; the remaining listeners get every event of their topics exactly once across
+ * the switches, equal events sent during a switch are not taken for duplicates, and the last close
+ * unsubscribes the camera.
+ */
+public class SharedSubscriptionsTest {
+  private static final Logger LOG = LoggerFactory.getLogger(SharedSubscriptionsTest.class);
+
+  private static final String MOTION = "tns1:VideoSource/MotionAlarm";
+  private static final String INPUT = "tns1:Device/Trigger/DigitalInput";
+  private static final String LINE = "tns1:RuleEngine/LineDetector/Crossed";
+  /** Sent with the same content, like motion pulses within one second. */
+  private static final String PULSE = "tns1:VideoSource/GlobalSceneChange/ImagingService";
+
+  public static void main(String[] args) throws Exception {
+    final SimulatedEventService service = new SimulatedEventService("http://localhost:9007/onvif");
+    service.start();
+    OnvifDevice device =
+        new OnvifDevice(
+            new URL("http://localhost:9007"),
+            "",
+            "",
+            Collections.singletonMap(OnvifDevice.SERVICE_EVENTS, service.getEventsAddress()));
+
+    SharedSubscriptions shared = new SharedSubscriptions();
+    EventMultiplexer multiplexer = new EventMultiplexer(shared, 2, 2);
+    multiplexer.setPullTimeout(500);
+    shared.setMultiplexer(multiplexer);
+    shared.setResizeDelay(100);
+    shared.setOverlapGrace(2000);
+
+    Collector motion = new Collector(MOTION);
+    Collector input = new Collector(INPUT);
+    Collector line = new Collector(LINE);
+    SharedSubscriptions.Interest motionInterest =
+        shared.subscribe("camera", device, TopicFilter.compile(MOTION), motion);
+    SharedSubscriptions.Interest inputInterest =
+        shared.subscribe("camera", device, TopicFilter.compile("tns1:Device//."), input);
+    final AtomicInteger pulses = new AtomicInteger();
+    SharedSubscriptions.Interest pulseInterest =
+        shared.subscribe(
+            "camera",
+            device,
+            TopicFilter.compile(PULSE),
+            new EventMultiplexer.EventListener() {
+              public void onEvents(String deviceId, List<NotificationEvent> events) {
+                pulses.addAndGet(events.size());
+              }
+            });
+    waitFor(shared, "camera", 5000);
+    String first = shared.getSubscriptionId("camera");
+    assertTrue(service.getSubscriptionCount() == 1, "subscribed " + service.getSubscriptionCount());
+
+    final AtomicInteger published = new AtomicInteger();
+    final AtomicBoolean stop = new AtomicBoolean();
+    Thread publisher =
+        new Thread() {
+          public void run() {
+            try {
+              for (int i = 0; !stop.get(); i++) {
+                service.publish(SimulatedEventService.message(MOTION, "Value", "" + i));
+                service.publish(SimulatedEventService.message(INPUT, "Value", "" + i));
+                service.publish(SimulatedEventService.message(LINE, "Value", "" + i));
+                published.set(i + 1);
+                Thread.sleep(2);
+              }
+            } catch (Exception e) {
+              LOG.error("publishing failed", e);
+            }
+          }
+        };
+    publisher.start();
+
+    Thread.sleep(500);
+    SharedSubscriptions.Interest lineInterest =
+        shared.subscribe("camera", device, TopicFilter.compile("tns1:RuleEngine//."), line);
+    String second = awaitSwitch(shared, first);
+    // equal events within the overlap are all delivered
+    for (int i = 0; i < 3; i++) {
+      service.publish(SimulatedEventService.message(PULSE, "State", "true"));
+    }
+    Thread.sleep(500);
+    inputInterest.close();
+    String third = awaitSwitch(shared, second);
+    Thread.sleep(500);
+    stop.set(true);
+    publisher.join();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (motion.size() < published.get() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+
+    motion.check(0, published.get());
+    input.check(0, input.max() + 1);
+    line.check(line.min(), published.get());
+    assertTrue(pulses.get() == 3, pulses + " of 3 equal events");
+    assertTrue(input.max() < published.get() - 1, "closed interest still gets events");
+    assertTrue(service.getSubscriptionCount() == 1, "old subscriptions left");
+    assertTrue(shared.getSubscriptions() == 3, "subscribed " + shared.getSubscriptions() + "x");
+    String report =
+        String.format(
+            "%d events per topic, subscriptions %s -> %s -> %s, %d duplicates dropped,"
+                + " %d stale, input %d..%d, line %d..%d",
+            published.get(),
+            first,
+            second,
+            third,
+            shared.getDuplicates(),
+            shared.getStale(),
+            input.min(),
+            input.max(),
+            line.min(),
+            line.max());
+    printReport(report);
+
+    motionInterest.close();
+    lineInterest.close();
+    pulseInterest.close();
+    deadline = System.currentTimeMillis() + 5000;
+    while (service.getSubscriptionCount() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertTrue(service.getSubscriptionCount() == 0, "not unsubscribed");
+    assertTrue(shared.getInterests("camera") == 0, "interests left");
+
+    multiplexer.shutdown(2000);
+    shared.shutdown();
+    service.stop();
+    LOG.info("SharedSubscriptionsTest passed");
+    System.exit(0); // the embedded jetty keeps the jvm alive otherwise
+  }
+
+  private static void waitFor(SharedSubscriptions shared, String deviceId, long timeout)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (shared.getSubscriptionId(deviceId) == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    assertTrue(shared.getSubscriptionId(deviceId) != null, "not subscribed");
+  }
+
+  private static String awaitSwitch(SharedSubscriptions shared, String previous)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (previous.equals(shared.getSubscriptionId("camera"))
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    String id = shared.getSubscriptionId("camera");
+    assertTrue(!previous.equals(id), "filter not resized");
+    return id;
+  }
+
+  /** Values received on one topic. */
+  private static final class Collector implements EventMultiplexer.EventListener {
+    private final String topic;
+    private final List<Integer> values = new ArrayList<>();
+
+    Collector(String topic) {
+      this.topic = topic;
+    }
+
+    public synchronized void onEvents(String deviceId, List<NotificationEvent> events) {
+      for (NotificationEvent e : events) {
+        assertTrue(topic.equals(e.getTopic()), "routed " + e.getTopic() + " to " + topic);
+        values.add(Integer.valueOf(e.getData("Value")));
+      }
+    }
+
+    synchronized int size() {
+      return values.size();
+    }
+
+    synchronized int min() {
+      return values.isEmpty() ? -1 : Collections.min(values);
+    }
+
+    synchronized int max() {
+      return values.isEmpty() ? -1 : Collections.max(values);
+    }
+
+    /** Every value from..to-1 exactly once. */
+    synchronized void check(int from, int to) {
+      List<Integer> sorted = new ArrayList<>(values);
+      Collections.sort(sorted);
+      assertTrue(sorted.size() == to - from, topic + ": " + sorted.size() + " of " + (to - from));
+      for (int i = 0; i < sorted.size(); i++) {
+        assertTrue(sorted.get(i) == from + i, topic + ": missing or duplicate " + (from + i));
+      }
+    }
+  }
+}
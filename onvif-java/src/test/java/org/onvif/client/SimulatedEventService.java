@@ -0,0 +1,547 @@
+package org.onvif.client;
+
+import java.net.URL;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Resource;
+import javax.jws.WebMethod;
+import javax.jws.WebParam;
+import javax.jws.WebResult;
+import javax.jws.WebService;
+import javax.jws.soap.SOAPBinding;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.Duration;
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.ws.Action;
+import javax.xml.ws.WebServiceContext;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.wsaddressing.W3CEndpointReference;
+import javax.xml.ws.wsaddressing.W3CEndpointReferenceBuilder;
+import org.apache.cxf.BusFactory;
+import org.apache.cxf.binding.soap.Soap12;
+import org.apache.cxf.binding.soap.SoapBindingConfiguration;
+import org.apache.cxf.endpoint.Server;
+import org.apache.cxf.headers.Header;
+import org.apache.cxf.jaxws.JaxWsProxyFactoryBean;
+import org.apache.cxf.jaxws.JaxWsServerFactoryBean;
+import org.apache.cxf.jaxws.spi.ProviderImpl;
+import org.apache.cxf.transport.http_jetty.JettyHTTPServerEngineFactory;
+import org.apache.cxf.transport.http_jetty.ThreadingParameters;
+import org.apache.cxf.ws.addressing.WSAddressingFeature;
+import org.oasis_open.docs.wsn.b_2.GetCurrentMessage;
+import org.oasis_open.docs.wsn.b_2.GetCurrentMessageResponse;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.Notify;
+import org.oasis_open.docs.wsn.b_2.Renew;
+import org.oasis_open.docs.wsn.b_2.RenewResponse;
+import org.oasis_open.docs.wsn.b_2.Subscribe;
+import org.oasis_open.docs.wsn.b_2.SubscribeResponse;
+import org.oasis_open.docs.wsn.b_2.TopicExpressionType;
+import org.oasis_open.docs.wsn.b_2.Unsubscribe;
+import org.oasis_open.docs.wsn.b_2.UnsubscribeResponse;
+import org.oasis_open.docs.wsn.bw_2.NotificationConsumer;
+import org.oasis_open.docs.wsn.bw_2.NotificationProducer;
+import org.oasis_open.docs.wsn.bw_2.SubscriptionManager;
+import org.oasis_open.docs.wsn.t_1.TopicSetType;
+import org.onvif.ver10.events.wsdl.Capabilities;
+import org.onvif.ver10.events.wsdl.CreatePullPointSubscription;
+import org.onvif.ver10.events.wsdl.CreatePullPointSubscriptionResponse;
+import org.onvif.ver10.events.wsdl.EventPortType;
+import org.onvif.ver10.events.wsdl.GetEventProperties;
+import org.onvif.ver10.events.wsdl.GetEventPropertiesResponse;
+import org.onvif.ver10.events.wsdl.PullMessages;
+import org.onvif.ver10.events.wsdl.PullMessagesFaultResponse;
+import org.onvif.ver10.events.wsdl.PullMessagesFaultResponse_Exception;
+import org.onvif.ver10.events.wsdl.PullMessagesResponse;
+import org.onvif.ver10.events.wsdl.PullPointSubscription;
+import org.onvif.ver10.events.wsdl.Seek;
+import org.onvif.ver10.events.wsdl.SeekResponse;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Local stand-in for the event service of a device: CreatePullPointSubscription, PullMessages,
+ * Subscribe, Renew and Unsubscribe, with subscriptions told apart by a reference parameter like real
+ * devices do. Events are injected with {@link #publish(NotificationMessageHolderType)}, queued for
+ * pull point subscriptions and sent as Notify to the consumer of push subscriptions. Seek and
+ * SetSynchronizationPoint work on the published messages, see {@link #persistentStorage}.
+ */
+public class SimulatedEventService {
+  static final String NS = "http://www.onvif.org/ver10/events/wsdl";
+  static final String WSN = "http://docs.oasis-open.org/wsn/b-2";
+  static final QName SUBSCRIPTION_ID = new QName("urn:onvif-java:simulated", "SubscriptionId");
+  private static final DocumentBuilderFactory DOCUMENTS = DocumentBuilderFactory.newInstance();
+
+  /**
+   * PullPoint and SubscriptionManager share one address, as on most devices. The operations of
+   * SubscriptionManager are declared again, its class level BARE binding is not inherited.
+   */
+  @WebService(targetNamespace = NS, name = "PullPointSubscription")
+  public interface SubscriptionEndpoint extends PullPointSubscription, SubscriptionManager {
+    @WebMethod(operationName = "Renew")
+    @Action(
+        input = "http://docs.oasis-open.org/wsn/bw-2/SubscriptionManager/RenewRequest",
+        output = "http://docs.oasis-open.org/wsn/bw-2/SubscriptionManager/RenewResponse")
+    @SOAPBinding(parameterStyle = SOAPBinding.ParameterStyle.BARE)
+    @WebResult(name = "RenewResponse", targetNamespace = WSN, partName = "RenewResponse")
+    RenewResponse renew(
+        @WebParam(partName = "RenewRequest", name = "Renew", targetNamespace = WSN)
+            Renew renewRequest);
+
+    @WebMethod(operationName = "Unsubscribe")
+    @Action(
+        input = "http://docs.oasis-open.org/wsn/bw-2/SubscriptionManager/UnsubscribeRequest",
+        output = "http://docs.oasis-open.org/wsn/bw-2/SubscriptionManager/UnsubscribeResponse")
+    @SOAPBinding(parameterStyle = SOAPBinding.ParameterStyle.BARE)
+    @WebResult(name = "UnsubscribeResponse", targetNamespace = WSN, partName = "UnsubscribeResponse")
+    UnsubscribeResponse unsubscribe(
+        @WebParam(partName = "UnsubscribeRequest", name = "Unsubscribe", targetNamespace = WSN)
+            Unsubscribe unsubscribeRequest);
+  }
+
+  /** Event service and NotificationProducer share the device's events address. */
+  @WebService(targetNamespace = NS, name = "EventPortType")
+  public interface EventEndpoint extends EventPortType, NotificationProducer {
+    @WebMethod(operationName = "Subscribe")
+    @Action(
+        input = "http://docs.oasis-open.org/wsn/bw-2/NotificationProducer/SubscribeRequest",
+        output = "http://docs.oasis-open.org/wsn/bw-2/NotificationProducer/SubscribeResponse")
+    @SOAPBinding(parameterStyle = SOAPBinding.ParameterStyle.BARE)
+    @WebResult(name = "SubscribeResponse", targetNamespace = WSN, partName = "SubscribeResponse")
+    SubscribeResponse subscribe(
+        @WebParam(partName = "SubscribeRequest", name = "Subscribe", targetNamespace = WSN)
+            Subscribe subscribeRequest);
+
+    @WebMethod(operationName = "GetCurrentMessage")
+    @Action(
+        input = "http://docs.oasis-open.org/wsn/bw-2/NotificationProducer/GetCurrentMessageRequest",
+        output =
+            "http://docs.oasis-open.org/wsn/bw-2/NotificationProducer/GetCurrentMessageResponse")
+    @SOAPBinding(parameterStyle = SOAPBinding.ParameterStyle.BARE)
+    @WebResult(
+        name = "GetCurrentMessageResponse",
+        targetNamespace = WSN,
+        partName = "GetCurrentMessageResponse")
+    GetCurrentMessageResponse getCurrentMessage(
+        @WebParam(
+                partName = "GetCurrentMessageRequest",
+                name = "GetCurrentMessage",
+                targetNamespace = WSN)
+            GetCurrentMessage getCurrentMessageRequest);
+  }
+
+  static class Subscription {
+    final String id;
+    final LinkedBlockingQueue<NotificationMessageHolderType> queue = new LinkedBlockingQueue<>();
+    volatile long terminationAt;
+    W3CEndpointReference reference;
+    /** Set for push subscriptions. */
+    NotificationConsumer consumer;
+    String consumerAddress;
+
+    Subscription(String id, long terminationAt) {
+      this.id = id;
+      this.terminationAt = terminationAt;
+    }
+  }
+
+  private final String baseAddress;
+  private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+  private final AtomicInteger nextId = new AtomicInteger();
+  private final List<Server> servers = new ArrayList<>();
+  private final DatatypeFactory datatypes;
+
+  final AtomicInteger renews = new AtomicInteger();
+  final AtomicInteger unsubscribes = new AtomicInteger();
+  final AtomicInteger notifyFailures = new AtomicInteger();
+  final AtomicLong pulls = new AtomicLong();
+  final AtomicInteger missingReference = new AtomicInteger();
+  /** Times of the CreatePullPointSubscription requests, in ms. */
+  final ConcurrentLinkedQueue<Long> created = new ConcurrentLinkedQueue<>();
+  volatile int maxMessageLimit = 1000;
+  final AtomicInteger seeks = new AtomicInteger();
+  final AtomicInteger synchronizationPoints = new AtomicInteger();
+  final AtomicInteger eventProperties = new AtomicInteger();
+  /** Added to the times the device sends, like a clock running ahead, in ms. */
+  volatile long clockOffset;
+  /** Returned by GetEventProperties. */
+  volatile TopicSetType topicSet;
+  /** ms Renew takes to answer, like a device that hangs. */
+  volatile long renewDelay;
+  /** ms CreatePullPointSubscription takes to answer. */
+  volatile long createDelay;
+  /** Leaves MaxTimeout out of the PullMessagesFaultResponse, it is optional. */
+  volatile boolean omitMaxTimeout;
+  /** Announces PersistentNotificationStorage, published messages are kept for Seek. */
+  volatile boolean persistentStorage;
+  private final List<NotificationMessageHolderType> history = new ArrayList<>();
+  /** Last message of every topic, sent again as Initialized on SetSynchronizationPoint. */
+  private final Map<String, NotificationMessageHolderType> current = new ConcurrentHashMap<>();
+
+  /** @param baseAddress e.g. http://localhost:9003/onvif */
+  public SimulatedEventService(String baseAddress) throws Exception {
+    this.baseAddress = baseAddress;
+    this.datatypes = DatatypeFactory.newInstance();
+  }
+
+  public String getEventsAddress() {
+    return baseAddress + "/events";
+  }
+
+  public String getSubscriptionAddress() {
+    return baseAddress + "/subscription";
+  }
+
+  /**
+   * Sets the size of the jetty thread pool before {@link #start()}, every pending PullMessages
+   * holds a thread of the service.
+   */
+  public void setMaxThreads(int maxThreads) throws Exception {
+    URL url = new URL(baseAddress);
+    ThreadingParameters threading = new ThreadingParameters();
+    threading.setMinThreads(Math.min(8, maxThreads));
+    threading.setMaxThreads(maxThreads);
+    new JettyHTTPServerEngineFactory(BusFactory.getDefaultBus())
+        .createJettyHTTPServerEngine(url.getPort(), url.getProtocol())
+        .setThreadingParameters(threading);
+  }
+
+  public void start() {
+    servers.add(publish(EventEndpoint.class, new Events(), getEventsAddress()));
+    servers.add(
+        publish(SubscriptionEndpoint.class, new Subscriptions(), getSubscriptionAddress()));
+  }
+
+  public void stop() {
+    for (Server s : servers) {
+      s.stop();
+      s.destroy();
+    }
+    servers.clear();
+  }
+
+  /** Forgets all subscriptions like a rebooted device, pending PullMessages still return. */
+  public void reboot() {
+    subscriptions.clear();
+  }
+
+  /** Delivers the message to every live subscription. */
+  public void publish(NotificationMessageHolderType message) {
+    if (persistentStorage) {
+      synchronized (history) {
+        history.add(message);
+      }
+    }
+    current.put((String) message.getTopic().getContent().get(0), message);
+    for (Subscription s : subscriptions.values()) deliver(s, message);
+  }
+
+  /** Delivers the message to one subscription, false if it does not exist. */
+  public boolean publish(String subscriptionId, NotificationMessageHolderType message) {
+    Subscription s = subscriptions.get(subscriptionId);
+    if (s == null) return false;
+    deliver(s, message);
+    return true;
+  }
+
+  /** Reference returned to the subscriber, null if the subscription does not exist. */
+  public W3CEndpointReference getSubscriptionReference(String subscriptionId) {
+    Subscription s = subscriptions.get(subscriptionId);
+    return s == null ? null : s.reference;
+  }
+
+  /** Id of the push subscription sending to the address, null if none. */
+  public String getSubscriptionId(String consumerAddress) {
+    for (Subscription s : subscriptions.values()) {
+      if (consumerAddress.equals(s.consumerAddress)) return s.id;
+    }
+    return null;
+  }
+
+  private void deliver(Subscription s, NotificationMessageHolderType message) {
+    if (s.consumer == null) {
+      s.queue.add(message);
+      return;
+    }
+    NotificationMessageHolderType copy = new NotificationMessageHolderType();
+    copy.setSubscriptionReference(s.reference);
+    copy.setTopic(message.getTopic());
+    copy.setProducerReference(message.getProducerReference());
+    copy.setMessage(message.getMessage());
+    Notify notify = new Notify();
+    notify.getNotificationMessage().add(copy);
+    try {
+      s.consumer.notify(notify);
+    } catch (RuntimeException e) {
+      notifyFailures.incrementAndGet();
+    }
+  }
+
+  public List<String> getSubscriptionIds() {
+    return new ArrayList<>(subscriptions.keySet());
+  }
+
+  public int getSubscriptionCount() {
+    return subscriptions.size();
+  }
+
+  private Server publish(Class<?> type, Object impl, String address) {
+    JaxWsServerFactoryBean factory = new JaxWsServerFactoryBean();
+    factory.setServiceClass(type);
+    factory.setServiceBean(impl);
+    factory.setAddress(address);
+    factory.getFeatures().add(new WSAddressingFeature());
+    SoapBindingConfiguration config = new SoapBindingConfiguration();
+    config.setVersion(Soap12.getInstance());
+    factory.setBindingConfig(config);
+    return factory.create();
+  }
+
+  /** A message on the given topic carrying one simple item. */
+  public static NotificationMessageHolderType message(String topic, String name, String value)
+      throws Exception {
+    return message(topic, name, value, 1577836800000L);
+  }
+
+  /** @param utcTime UtcTime of the message, in ms since the epoch */
+  public static NotificationMessageHolderType message(
+      String topic, String name, String value, long utcTime) throws Exception {
+    Document doc = DOCUMENTS.newDocumentBuilder().newDocument();
+    String tt = "http://www.onvif.org/ver10/schema";
+    Element msg = doc.createElementNS(tt, "tt:Message");
+    msg.setAttribute("UtcTime", Instant.ofEpochMilli(utcTime).toString());
+    msg.setAttribute("PropertyOperation", "Changed");
+    Element data = doc.createElementNS(tt, "tt:Data");
+    Element item = doc.createElementNS(tt, "tt:SimpleItem");
+    item.setAttribute("Name", name);
+    item.setAttribute("Value", value);
+    data.appendChild(item);
+    msg.appendChild(data);
+    NotificationMessageHolderType holder = new NotificationMessageHolderType();
+    TopicExpressionType t = new TopicExpressionType();
+    t.setDialect("http://www.onvif.org/ver10/tev/topicExpression/ConcreteSet");
+    t.getContent().add(topic);
+    holder.setTopic(t);
+    NotificationMessageHolderType.Message m = new NotificationMessageHolderType.Message();
+    m.setAny(msg);
+    holder.setMessage(m);
+    return holder;
+  }
+
+  private XMLGregorianCalendar time(long millis) {
+    GregorianCalendar c = new GregorianCalendar();
+    c.setTimeInMillis(millis + clockOffset);
+    return datatypes.newXMLGregorianCalendar(c);
+  }
+
+  private long lifetime(String requested) {
+    if (requested == null || requested.isEmpty()) return 60000;
+    Duration d = datatypes.newDuration(requested);
+    return d.getTimeInMillis(new java.util.Date(0));
+  }
+
+  private Subscription create(String requested) {
+    long now = System.currentTimeMillis();
+    Subscription s = new Subscription("" + nextId.incrementAndGet(), now + lifetime(requested));
+    Element ref;
+    try {
+      Document doc = DOCUMENTS.newDocumentBuilder().newDocument();
+      ref = doc.createElementNS(SUBSCRIPTION_ID.getNamespaceURI(), "sim:SubscriptionId");
+      ref.setTextContent(s.id);
+    } catch (Exception e) {
+      throw new WebServiceException(e);
+    }
+    s.reference =
+        new W3CEndpointReferenceBuilder()
+            .address(getSubscriptionAddress())
+            .referenceParameter(ref)
+            .build();
+    return s;
+  }
+
+  public class Events implements EventEndpoint {
+    public GetEventPropertiesResponse getEventProperties(GetEventProperties parameters) {
+      eventProperties.incrementAndGet();
+      GetEventPropertiesResponse response = new GetEventPropertiesResponse();
+      response.setTopicSet(topicSet);
+      return response;
+    }
+
+    public CreatePullPointSubscriptionResponse createPullPointSubscription(
+        CreatePullPointSubscription parameters) {
+      created.add(System.currentTimeMillis());
+      if (createDelay > 0) {
+        try {
+          Thread.sleep(createDelay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      Subscription s =
+          create(
+              parameters.getInitialTerminationTime() != null
+                  ? parameters.getInitialTerminationTime().getValue()
+                  : null);
+      subscriptions.put(s.id, s);
+      CreatePullPointSubscriptionResponse response = new CreatePullPointSubscriptionResponse();
+      response.setSubscriptionReference(s.reference);
+      response.setCurrentTime(time(System.currentTimeMillis()));
+      response.setTerminationTime(time(s.terminationAt));
+      return response;
+    }
+
+    public SubscribeResponse subscribe(Subscribe subscribeRequest) {
+      Subscription s =
+          create(
+              subscribeRequest.getInitialTerminationTime() != null
+                  ? subscribeRequest.getInitialTerminationTime().getValue()
+                  : null);
+      s.consumerAddress =
+          ProviderImpl.convertToInternal(subscribeRequest.getConsumerReference())
+              .getAddress()
+              .getValue();
+      JaxWsProxyFactoryBean factory = new JaxWsProxyFactoryBean();
+      factory.setServiceClass(NotificationConsumer.class);
+      factory.setAddress(s.consumerAddress);
+      SoapBindingConfiguration config = new SoapBindingConfiguration();
+      config.setVersion(Soap12.getInstance());
+      factory.setBindingConfig(config);
+      s.consumer = factory.create(NotificationConsumer.class);
+      subscriptions.put(s.id, s);
+      SubscribeResponse response = new SubscribeResponse();
+      response.setSubscriptionReference(s.reference);
+      response.setCurrentTime(time(System.currentTimeMillis()));
+      response.setTerminationTime(time(s.terminationAt));
+      return response;
+    }
+
+    public GetCurrentMessageResponse getCurrentMessage(GetCurrentMessage request) {
+      throw new WebServiceException("No current message");
+    }
+
+    public Capabilities getServiceCapabilities() {
+      Capabilities capabilities = new Capabilities();
+      capabilities.setPersistentNotificationStorage(persistentStorage);
+      return capabilities;
+    }
+  }
+
+  public class Subscriptions implements SubscriptionEndpoint {
+    @Resource WebServiceContext context;
+
+    private Subscription lookup() {
+      @SuppressWarnings("unchecked")
+      List<Header> headers = (List<Header>) context.getMessageContext().get(Header.HEADER_LIST);
+      if (headers != null) {
+        for (Header h : headers) {
+          if (SUBSCRIPTION_ID.equals(h.getName())) {
+            Subscription s = subscriptions.get(((Element) h.getObject()).getTextContent());
+            if (s == null) throw new WebServiceException("Unknown subscription");
+            if (s.terminationAt < System.currentTimeMillis()) {
+              subscriptions.remove(s.id);
+              throw new WebServiceException("Subscription terminated");
+            }
+            return s;
+          }
+        }
+      }
+      missingReference.incrementAndGet();
+      throw new WebServiceException("Missing subscription reference");
+    }
+
+    public PullMessagesResponse pullMessages(PullMessages parameters)
+        throws PullMessagesFaultResponse_Exception {
+      Subscription s = lookup();
+      pulls.incrementAndGet();
+      if (parameters.getMessageLimit() > maxMessageLimit) {
+        PullMessagesFaultResponse limits = new PullMessagesFaultResponse();
+        if (!omitMaxTimeout) limits.setMaxTimeout(datatypes.newDuration(60000));
+        limits.setMaxMessageLimit(maxMessageLimit);
+        throw new PullMessagesFaultResponse_Exception("Limits exceeded", limits);
+      }
+      PullMessagesResponse response = new PullMessagesResponse();
+      try {
+        NotificationMessageHolderType first =
+            s.queue.poll(
+                parameters.getTimeout().getTimeInMillis(new java.util.Date(0)),
+                TimeUnit.MILLISECONDS);
+        if (first != null) {
+          response.getNotificationMessage().add(first);
+          s.queue.drainTo(response.getNotificationMessage(), parameters.getMessageLimit() - 1);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      long now = System.currentTimeMillis();
+      response.setCurrentTime(time(now));
+      response.setTerminationTime(time(s.terminationAt));
+      return response;
+    }
+
+    /** Queues the kept messages from the time on, the messages queued so far are among them. */
+    public SeekResponse seek(Seek parameters) {
+      Subscription s = lookup();
+      seeks.incrementAndGet();
+      long from = parameters.getUtcTime().toGregorianCalendar().getTimeInMillis();
+      synchronized (history) {
+        s.queue.clear();
+        for (NotificationMessageHolderType m : history) {
+          String time = ((Element) m.getMessage().getAny()).getAttribute("UtcTime");
+          if (Instant.parse(time).toEpochMilli() >= from) s.queue.add(m);
+        }
+      }
+      return new SeekResponse();
+    }
+
+    public void setSynchronizationPoint() {
+      Subscription s = lookup();
+      synchronizationPoints.incrementAndGet();
+      for (NotificationMessageHolderType m : current.values()) {
+        Element msg = (Element) ((Element) m.getMessage().getAny()).cloneNode(true);
+        msg.setAttribute("PropertyOperation", "Initialized");
+        NotificationMessageHolderType copy = new NotificationMessageHolderType();
+        copy.setTopic(m.getTopic());
+        NotificationMessageHolderType.Message content = new NotificationMessageHolderType.Message();
+        content.setAny(msg);
+        copy.setMessage(content);
+        s.queue.add(copy);
+      }
+    }
+
+    public RenewResponse renew(Renew renewRequest) {
+      Subscription s = lookup();
+      if (renewDelay > 0) {
+        try {
+          Thread.sleep(renewDelay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      long now = System.currentTimeMillis();
+      s.terminationAt = now + lifetime(renewRequest.getTerminationTime());
+      renews.incrementAndGet();
+      RenewResponse response = new RenewResponse();
+      response.setCurrentTime(time(now));
+      response.setTerminationTime(time(s.terminationAt));
+      return response;
+    }
+
+    public UnsubscribeResponse unsubscribe(Unsubscribe unsubscribeRequest) {
+      Subscription s = lookup();
+      subscriptions.remove(s.id);
+      unsubscribes.incrementAndGet();
+      return new UnsubscribeResponse();
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.events.TopicFilter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.oasis_open.docs.wsn.b_2.FilterType;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.TopicExpressionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+/**
+ * Matches notification topics against a set of 100 ConcreteSet expressions, with TopicFilter and
+ * with a linear scan over the expressions. Checks both agree, reports ns per message and verifies
+ * TopicFilter does not allocate.
+ *
+ * <p>Arguments: [seconds per run], default 3.
+ */
+public class TopicFilterBenchmark {
+  private static final Logger LOG = LoggerFactory.getLogger(TopicFilterBenchmark.class);
+
+  private static final String[] ROOTS = {
+    "tns1:VideoSource",
+    "tns1:RuleEngine",
+    "tns1:Device",
+    "tns1:VideoAnalytics",
+    "tns1:PTZController",
+    "tns1:Monitoring",
+    "tns1:RecordingConfig",
+    "tnsaxis:CameraApplicationPlatform"
+  };
+  private static final String[] LEAVES = {
+    "MotionAlarm", "SignalLoss", "ImageTooBlurry", "GlobalSceneChange/ImagingService",
+    "CellMotionDetector/Motion", "FieldDetector/ObjectsInside", "LineDetector/Crossed",
+    "Trigger/DigitalInput", "Trigger/Relay", "PTZPresets/Reached", "ProcessorUsage",
+    "HardwareFailure/StorageFailure", "VMD/Camera1ProfileANY", "TamperDetector/Tamper"
+  };
+
+  static volatile int sink;
+
+  public static void main(String[] args) throws Exception {
+    long seconds = args.length > 0 ? Long.parseLong(args[0]) : 3;
+    Random random = new Random(42);
+
+    List<String> expressions = new ArrayList<>();
+    while (expressions.size() < 100) {
+      String root = ROOTS[random.nextInt(ROOTS.length)];
+      int kind = random.nextInt(10);
+      String e;
+      String leaf = root + "/" + LEAVES[random.nextInt(LEAVES.length)];
+      if (kind == 0) e = root + "//.";
+      else if (kind < 3) e = leaf + "//.";
+      else if (kind < 5) e = leaf + "/Sensor" + random.nextInt(50) + "|" + leaf;
+      else e = leaf + "/Channel" + random.nextInt(50);
+      if (!expressions.contains(e)) expressions.add(e);
+    }
+    TopicFilter filter = TopicFilter.compile(expressions);
+    LinearFilter linear = new LinearFilter(filter.getExpressions());
+
+    NotificationMessageHolderType[] messages = new NotificationMessageHolderType[1024];
+    for (int i = 0; i < messages.length; i++) {
+      String topic =
+          ROOTS[random.nextInt(ROOTS.length)] + "/" + LEAVES[random.nextInt(LEAVES.length)];
+      int suffix = random.nextInt(3);
+      if (suffix == 1) topic += "/Sensor" + random.nextInt(60);
+      else if (suffix == 2) topic += "/Channel" + random.nextInt(60);
+      messages[i] = holder(topic);
+    }
+
+    int matching = 0;
+    for (NotificationMessageHolderType m : messages) {
+      boolean expected = linear.matches(m);
+      assertTrue(filter.matches(m) == expected, "mismatch on " + topic(m));
+      if (expected) matching++;
+    }
+    checkSemantics();
+
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+
+    run(filter, null, messages, 1); // warm up
+    run(null, linear, messages, 1);
+    long bytes = threads.getThreadAllocatedBytes(thread);
+    long[] trie = run(filter, null, messages, seconds);
+    double trieBytes = (threads.getThreadAllocatedBytes(thread) - bytes) / (double) trie[1];
+    long[] scan = run(null, linear, messages, seconds);
+
+    String report =
+        String.format(
+            "%d expressions (%d topics), %d of %d messages matching: TopicFilter %.1f ns/message"
+                + " (%.3f bytes allocated), linear scan %.1f ns/message",
+            expressions.size(),
+            filter.getExpressions().size(),
+            matching,
+            messages.length,
+            trie[0] / (double) trie[1],
+            trieBytes,
+            scan[0] / (double) scan[1]);
+    printReport(report);
+    assertTrue(trieBytes < 0.01, "TopicFilter allocates");
+    LOG.info("TopicFilterBenchmark passed");
+  }
+
+  /**
+   * Runs either filter over the messages.
+   *
+   * @return elapsed ns and number of messages matched
+   */
+  private static long[] run(
+      TopicFilter filter,
+      LinearFilter linear,
+      NotificationMessageHolderType[] messages,
+      long seconds) {
+    long end = System.nanoTime() + seconds * 1000000000L;
+    long start = System.nanoTime();
+    long ops = 0;
+    int hits = 0;
+    while (System.nanoTime() < end) {
+      for (int round = 0; round < 100; round++) {
+        for (NotificationMessageHolderType m : messages) {
+          if (filter != null ? filter.matches(m) : linear.matches(m)) hits++;
+        }
+      }
+      ops += 100 * messages.length;
+    }
+    sink = hits;
+    return new long[] {System.nanoTime() - start, ops};
+  }
+
+  private static void checkSemantics() throws Exception {
+    TopicFilter f =
+        TopicFilter.compile(
+            "tns1:RuleEngine//.", "tns1:VideoSource/MotionAlarm | tns1:Device/Trigger/Relay");
+    assertTrue(f.matches("tns1:RuleEngine"), "//. includes the topic itself");
+    assertTrue(f.matches("tns1:RuleEngine/CellMotionDetector/Motion"), "//. includes children");
+    assertTrue(f.matches(" tns1:VideoSource/MotionAlarm\n"), "whitespace around the topic");
+    assertTrue(!f.matches("tns1:VideoSource"), "parent of a concrete topic");
+    assertTrue(!f.matches("tns1:VideoSource/MotionAlarm/Extra"), "child of a concrete topic");
+    assertTrue(!f.matches("tns1:RuleEngineX"), "prefix of a segment");
+    assertTrue(f.matches("tns1:Device/Trigger/Relay"), "second part of a union");
+    // JAXB drops the declaration of a prefix the filter does not use
+    assertTrue(f.matches("ns0:VideoSource/MotionAlarm"), "other prefix for the same topic");
+    assertTrue(!f.matches("ns0:VideoSource/SignalLoss"), "other prefix for another topic");
+
+    FilterType filterType = new FilterType();
+    TopicExpressionType t = new TopicExpressionType();
+    t.setDialect(TopicFilter.DIALECT_CONCRETE_SET);
+    t.getContent().add("tns1:RuleEngine//.");
+    filterType
+        .getAny()
+        .add(
+            new JAXBElement<>(
+                new QName("http://docs.oasis-open.org/wsn/b-2", "TopicExpression"),
+                TopicExpressionType.class,
+                t));
+    TopicFilter fromFilter = TopicFilter.of(filterType);
+    assertTrue(fromFilter != null && fromFilter.matches(holder("tns1:RuleEngine/X")), "of()");
+    Element expression =
+        DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder()
+            .newDocument()
+            .createElementNS("http://docs.oasis-open.org/wsn/b-2", "wsnt:TopicExpression");
+    expression.setAttributeNS(
+        "http://www.w3.org/2000/xmlns/", "xmlns:ev", "http://www.onvif.org/ver10/topics");
+    expression.setAttribute("Dialect", TopicFilter.DIALECT_CONCRETE_SET);
+    expression.setTextContent("ev:VideoSource/MotionAlarm");
+    FilterType domFilter = new FilterType();
+    domFilter.getAny().add(expression);
+    TopicFilter aliased = TopicFilter.of(domFilter);
+    assertTrue(
+        aliased != null
+            && aliased.matches("tns1:VideoSource/MotionAlarm")
+            && !aliased.matches("tnsaxis:VideoSource/MotionAlarm/Other"),
+        "prefix bound to the ONVIF namespace");
+    t.setDialect("http://docs.oasis-open.org/wsn/t-1/TopicExpression/Full");
+    assertTrue(TopicFilter.of(filterType) == null, "Full dialect is left to the device");
+    try {
+      TopicFilter.compile("tns1:RuleEngine/*");
+      assertTrue(false, "wildcard accepted");
+    } catch (IllegalArgumentException expected) {
+      // Full dialect
+    }
+  }
+
+  private static NotificationMessageHolderType holder(String topic) {
+    NotificationMessageHolderType holder = new NotificationMessageHolderType();
+    TopicExpressionType t = new TopicExpressionType();
+    t.setDialect(TopicFilter.DIALECT_CONCRETE_SET);
+    t.getContent().add(topic);
+    holder.setTopic(t);
+    return holder;
+  }
+
+  private static String topic(NotificationMessageHolderType m) {
+    return (String) m.getTopic().getContent().get(0);
+  }
+
+  /** What filtering looks like without a compiled filter: every expression is tried in turn. */
+  static class LinearFilter {
+    final String[] paths;
+    final boolean[] subtree;
+
+    LinearFilter(List<String> expressions) {
+      paths = new String[expressions.size()];
+      subtree = new boolean[expressions.size()];
+      for (int i = 0; i < paths.length; i++) {
+        String e = expressions.get(i);
+        subtree[i] = e.endsWith("//.");
+        paths[i] = subtree[i] ? e.substring(0, e.length() - 3) : e;
+      }
+    }
+
+    boolean matches(NotificationMessageHolderType m) {
+      String topic = topic(m).trim();
+      for (int i = 0; i < paths.length; i++) {
+        if (topic.equals(paths[i])) return true;
+        if (subtree[i] && topic.startsWith(paths[i] + "/")) return true;
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package org.onvif.client;
+
+import static org.onvif.client.Checks.assertTrue;
+import static org.onvif.client.Checks.printReport;
+
+import de.onvif.beans.DeviceInfo;
+import de.onvif.events.TopicFilter;
+import de.onvif.events.TopicSet;
+import de.onvif.events.TopicSetCache;
+import de.onvif.soap.OnvifDevice;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.oasis_open.docs.wsn.t_1.TopicSetType;
+import org.onvif.ver10.events.wsdl.EventPortType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * TopicSetCache on SimulatedEventService with a large TopicSet: cameras of one model connecting at
+ * the same time fetch it once, another firmware is fetched again, a new cache reads it from disk
+ * without asking the device. Reports the time of a fetch, of a cached get and of a load from disk
+ * and the size of the TopicSet XML against its file.
+ *
+ * <p>Arguments: [generated topics], default 2000.
+ */
+public class TopicSetCacheTest {
+  private static final Logger LOG = LoggerFactory.getLogger(TopicSetCacheTest.class);
+
+  private static final String MOTION = "tns1:RuleEngine/CellMotionDetector/Motion";
+  private static final String INPUT = "tns1:Device/Trigger/DigitalInput";
+
+  public static void main(String[] args) throws Exception {
+    int generated = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    String xml = topicSet(generated);
+    SimulatedEventService service = new SimulatedEventService("http://localhost:9010/onvif");
+    service.topicSet = parse(xml);
+    service.start();
+    OnvifDevice device =
+        new OnvifDevice(
+            new URL("http://localhost:9010"),
+            "",
+            "",
+            Collections.singletonMap(OnvifDevice.SERVICE_EVENTS, service.getEventsAddress()));
+    final EventPortType events = device.getEvents();
+    final DeviceInfo model = new DeviceInfo("Acme", "Cam 2000", "1.0.3", "serial-1", "hw");
+    File dir = Files.createTempDirectory("topic-sets").toFile();
+    try {
+      final TopicSetCache cache = new TopicSetCache(dir);
+      final AtomicReference<TopicSet> first = new AtomicReference<>();
+      Thread[] cameras = new Thread[8];
+      long start = System.nanoTime();
+      for (int i = 0; i < cameras.length; i++) {
+        final DeviceInfo info = new DeviceInfo("Acme", "Cam 2000", "1.0.3", "serial-" + i, "hw");
+        cameras[i] =
+            new Thread() {
+              public void run() {
+                TopicSet set = cache.get(info, events);
+                if (!first.compareAndSet(null, set)) {
+                  assertTrue(first.get() == set, "cameras of one model got different sets");
+                }
+              }
+            };
+        cameras[i].start();
+      }
+      for (Thread t : cameras) t.join();
+      long fetchNanos = System.nanoTime() - start;
+      assertTrue(cache.getFetches() == 1, "fetched " + cache.getFetches() + "x");
+      assertTrue(service.eventProperties.get() == 1, "asked " + service.eventProperties + "x");
+
+      TopicSet set = first.get();
+      assertTrue(set.size() == generated + 2, "parsed " + set.size() + " topics");
+      assertTrue(set.get("tns1:RuleEngine") == null, "topic made of an inner node");
+      TopicSet.Topic motion = set.get(MOTION);
+      assertTrue(motion != null && motion.isProperty(), "motion topic");
+      String source = "VideoSourceConfigurationToken";
+      assertTrue(
+          motion.getSource().keySet().equals(Collections.singleton(source)),
+          "motion source " + motion.getSource());
+      assertTrue("xs:boolean".equals(motion.getData().get("IsMotion")), "motion data");
+      TopicSet.Topic input = set.get(INPUT);
+      assertTrue(input != null && input.getKey().containsKey("InputToken"), "input topic");
+      assertTrue(set.matching(TopicFilter.compile("tns1:RuleEngine//.")).size() == 1, "matching");
+
+      int gets = 100000;
+      start = System.nanoTime();
+      for (int i = 0; i < gets; i++) assertTrue(cache.get(model, events) == set, "cached get");
+      long getNanos = System.nanoTime() - start;
+
+      DeviceInfo newer = new DeviceInfo("Acme", "Cam 2000", "1.1.0", "serial-1", "hw");
+      assertTrue(cache.get(newer, events) != set, "new firmware shares the set");
+      assertTrue(cache.getFetches() == 2, "new firmware not fetched");
+
+      TopicSetCache restarted = new TopicSetCache(dir);
+      start = System.nanoTime();
+      TopicSet loaded = restarted.get(model, events);
+      long loadNanos = System.nanoTime() - start;
+      assertTrue(restarted.getFetches() == 0 && restarted.getLoads() == 1, "not loaded from disk");
+      assertTrue(loaded.getTopics().toString().equals(set.getTopics().toString()), "loaded set");
+      assertTrue(loaded.get(MOTION).getData().equals(motion.getData()), "loaded items");
+      assertTrue(service.eventProperties.get() == 2, "asked " + service.eventProperties + "x");
+
+      DeviceInfo unknown = new DeviceInfo("", "", "", "", "");
+      restarted.get(unknown, events);
+      restarted.get(unknown, events);
+      assertTrue(restarted.getFetches() == 2, "devices without a model share a set");
+
+      long fileBytes = 0;
+      for (File f : dir.listFiles()) fileBytes = Math.max(fileBytes, f.length());
+      restarted.invalidate(model);
+      restarted.get(model, events);
+      assertTrue(restarted.getFetches() == 3, "invalidated set not fetched again");
+
+      String report =
+          String.format(
+              "%d topics: fetch %.1f ms for 8 cameras, cached get %.0f ns, load from disk %.1f ms,"
+                  + " TopicSet %d KB as XML, %d KB on disk",
+              set.size(),
+              fetchNanos / 1e6,
+              (double) getNanos / gets,
+              loadNanos / 1e6,
+              xml.length() / 1024,
+              fileBytes / 1024);
+      printReport(report);
+    } finally {
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+    }
+    service.stop();
+    LOG.info("TopicSetCacheTest passed");
+    System.exit(0); // the embedded jetty keeps the jvm alive otherwise
+  }
+
+  /** Two real topics and a vendor tree of generated ones. */
+  private static String topicSet(int generated) {
+    StringBuilder xml =
+        new StringBuilder(
+            "<wstop:TopicSet xmlns:wstop=\"http://docs.oasis-open.org/wsn/t-1\""
+                + " xmlns:tns1=\"http://www.onvif.org/ver10/topics\""
+                + " xmlns:tt=\"http://www.onvif.org/ver10/schema\""
+                + " xmlns:acme=\"http://example.com/acme/topics\">");
+    xml.append("<tns1:RuleEngine><CellMotionDetector><Motion wstop:topic=\"true\">")
+        .append("<tt:MessageDescription IsProperty=\"true\"><tt:Source>")
+        .append(item("VideoSourceConfigurationToken", "tt:ReferenceToken"))
+        .append("</tt:Source><tt:Data>")
+        .append(item("IsMotion", "xs:boolean"))
+        .append("</tt:Data></tt:MessageDescription></Motion>")
+        .append("</CellMotionDetector></tns1:RuleEngine>");
+    xml.append("<tns1:Device><Trigger><DigitalInput wstop:topic=\"true\">")
+        .append("<tt:MessageDescription IsProperty=\"true\"><tt:Source>")
+        .append(item("InputToken", "tt:ReferenceToken"))
+        .append("</tt:Source><tt:Key>")
+        .append(item("InputToken", "tt:ReferenceToken"))
+        .append("</tt:Key><tt:Data>")
+        .append(item("LogicalState", "xs:boolean"))
+        .append("</tt:Data></tt:MessageDescription></DigitalInput></Trigger></tns1:Device>");
+    xml.append("<acme:Analytics>");
+    for (int m = 0; m < generated; m += 20) {
+      xml.append("<Module").append(m / 20).append('>');
+      for (int t = m; t < Math.min(m + 20, generated); t++) {
+        xml.append("<Rule").append(t).append(" wstop:topic=\"true\">")
+            .append("<tt:MessageDescription IsProperty=\"").append(t % 2 == 0).append("\">")
+            .append("<tt:Source>")
+            .append(item("VideoSourceConfigurationToken", "tt:ReferenceToken"))
+            .append(item("VideoAnalyticsConfigurationToken", "tt:ReferenceToken"))
+            .append(item("Rule", "xs:string"))
+            .append("</tt:Source><tt:Data>")
+            .append(item("State", "xs:boolean"))
+            .append(item("ObjectId", "xs:integer"))
+            .append("</tt:Data></tt:MessageDescription></Rule")
+            .append(t)
+            .append('>');
+      }
+      xml.append("</Module").append(m / 20).append('>');
+    }
+    return xml.append("</acme:Analytics></wstop:TopicSet>").toString();
+  }
+
+  private static String item(String name, String type) {
+    return "<tt:SimpleItemDescription Name=\"" + name + "\" Type=\"" + type + "\"/>";
+  }
+
+  private static TopicSetType parse(String xml) throws Exception {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Element root =
+        factory
+            .newDocumentBuilder()
+            .parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)))
+            .getDocumentElement();
+    TopicSetType topicSet = new TopicSetType();
+    for (Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n instanceof Element) topicSet.getAny().add(n);
+    }
+    return topicSet;
+  }
+}
@@ -1,5 +1,6 @@
 package org.onvif.client;
 
+import de.onvif.events.NotificationConsumerEndpoint;
 import de.onvif.soap.OnvifDevice;
 import java.io.File;
 import java.io.IOException;
@@ -7,34 +8,12 @@ import java.net.ConnectException;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
 import javax.xml.bind.JAXBElement;
 import javax.xml.soap.SOAPException;
-import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.commons.io.FileUtils;
-import org.apache.cxf.wsn.client.Consumer;
-import org.apache.cxf.wsn.client.NotificationBroker;
-import org.apache.cxf.wsn.client.Publisher;
-import org.apache.cxf.wsn.client.Subscription;
-import org.apache.cxf.wsn.services.JaxwsNotificationBroker;
 import org.oasis_open.docs.wsn.b_2.FilterType;
 import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
 import org.oasis_open.docs.wsn.b_2.TopicExpressionType;
-import org.oasis_open.docs.wsn.bw_2.InvalidFilterFault;
-import org.oasis_open.docs.wsn.bw_2.InvalidMessageContentExpressionFault;
-import org.oasis_open.docs.wsn.bw_2.InvalidProducerPropertiesExpressionFault;
-import org.oasis_open.docs.wsn.bw_2.InvalidTopicExpressionFault;
-import org.oasis_open.docs.wsn.bw_2.NotifyMessageNotSupportedFault;
-import org.oasis_open.docs.wsn.bw_2.SubscribeCreationFailedFault;
-import org.oasis_open.docs.wsn.bw_2.TopicExpressionDialectUnknownFault;
-import org.oasis_open.docs.wsn.bw_2.TopicNotSupportedFault;
-import org.oasis_open.docs.wsn.bw_2.UnacceptableInitialTerminationTimeFault;
-import org.oasis_open.docs.wsn.bw_2.UnrecognizedPolicyRequestFault;
-import org.oasis_open.docs.wsn.bw_2.UnsupportedPolicyRequestFault;
-import org.oasis_open.docs.wsrf.rw_2.ResourceUnknownFault;
-import org.onvif.ver10.events.wsdl.CreatePullPointSubscription;
-import org.onvif.ver10.events.wsdl.CreatePullPointSubscription.SubscriptionPolicy;
-import org.onvif.ver10.events.wsdl.CreatePullPointSubscriptionResponse;
 import org.onvif.ver10.events.wsdl.EventPortType;
 import org.onvif.ver10.events.wsdl.GetEventProperties;
 import org.onvif.ver10.events.wsdl.GetEventPropertiesResponse;
@@ -48,9 +27,8 @@ import org.w3c.dom.NodeList;
 
 public class WsNotificationTest {
 
-  // This is a work in progress class...any help is welcome ;)
-  // A good idea could be to follow this guide:
-  // https://access.redhat.com/documentation/en-us/red_hat_jboss_a-mq/6.1/html-single/ws-notification_guide/index#WSNTutorial
+  // Subscribes to the RuleEngine events of the camera, the camera pushes them to an embedded
+  // consumer endpoint. The endpoint address has to be reachable from the camera.
 
   public static void main(String[] args) throws IOException {
     OnvifCredentials creds = GetTestDevice.getOnvifCredentials(args);
@@ -95,7 +73,6 @@ public class WsNotificationTest {
     }
     org.oasis_open.docs.wsn.b_2.ObjectFactory objectFactory =
         new org.oasis_open.docs.wsn.b_2.ObjectFactory();
-    CreatePullPointSubscription pullPointSubscription = new CreatePullPointSubscription();
     FilterType filter = new FilterType();
     TopicExpressionType topicExp = new TopicExpressionType();
     topicExp.getContent().add("tns1:RuleEngine//."); // every event in that
@@ -103,54 +80,30 @@ public class WsNotificationTest {
     topicExp.setDialect("http://www.onvif.org/ver10/tev/topicExpression/ConcreteSet");
     JAXBElement<?> topicExpElem = objectFactory.createTopicExpression(topicExp);
     filter.getAny().add(topicExpElem);
-    pullPointSubscription.setFilter(filter);
-    org.onvif.ver10.events.wsdl.ObjectFactory eventObjFactory =
-        new org.onvif.ver10.events.wsdl.ObjectFactory();
-    SubscriptionPolicy subcriptionPolicy =
-        eventObjFactory.createCreatePullPointSubscriptionSubscriptionPolicy();
-    pullPointSubscription.setSubscriptionPolicy(subcriptionPolicy);
-    String timespan = "PT10S"; // every 10 seconds
-    // String timespan = "PT1M";//every 1 minute
-    pullPointSubscription.setInitialTerminationTime(
-        objectFactory.createSubscribeInitialTerminationTime(timespan));
 
-    try {
-      CreatePullPointSubscriptionResponse resp =
-          eventWs.createPullPointSubscription(pullPointSubscription);
-
-      // Start a consumer that will listen for notification messages
-      // We'll just print the text content out for now.
-      String eventConsumerAddress = "http://localhost:9001/MyConsumer";
-      Consumer consumer =
-          new Consumer(
-              new Consumer.Callback() {
-                public void notify(NotificationMessageHolderType message) {
+    // Start a consumer that will listen for notification messages
+    // We'll just print the text content out for now.
+    String eventConsumerAddress = "http://localhost:9001/MyConsumer";
+    NotificationConsumerEndpoint consumer =
+        new NotificationConsumerEndpoint(
+            eventConsumerAddress,
+            new NotificationConsumerEndpoint.Listener() {
+              public void onMessages(
+                  String deviceId, List<NotificationMessageHolderType> messages) {
+                for (NotificationMessageHolderType message : messages) {
                   Object o = message.getMessage().getAny();
                   System.out.println(message.getMessage().getAny());
                   if (o instanceof Element) {
                     System.out.println(((Element) o).getTextContent());
                   }
                 }
-              },
-              eventConsumerAddress);
-
-      String queuePort = "8182";
-      String brokerPort = "8181";
-      String brokerAddress = "http://localhost:" + brokerPort + "/wsn/NotificationBroker";
-      ActiveMQConnectionFactory activemq =
-          new ActiveMQConnectionFactory(
-              "vm:(broker:(tcp://localhost:" + queuePort + ")?persistent=false)");
-      JaxwsNotificationBroker notificationBrokerServer =
-          new JaxwsNotificationBroker("WSNotificationBroker", activemq);
-      notificationBrokerServer.setAddress(brokerAddress);
-      notificationBrokerServer.init();
-
-      // Create a subscription for a Topic on the broker
-      NotificationBroker notificationBroker = new NotificationBroker(brokerAddress);
-      // PublisherCallback publisherCallback = new PublisherCallback();
-      // Publisher publisher = new Publisher(publisherCallback,
-      // "http://localhost:" + port2 + "/test/publisher");
-      Subscription subscription = notificationBroker.subscribe(consumer, "tns1:RuleEngine");
+              }
+            },
+            1);
+    consumer.setSubscriptionTime(10000); // renewed every few seconds
+    try {
+      consumer.start();
+      consumer.subscribe("camera", cam, filter);
 
       // Device
       // Trigger/Relay
@@ -194,34 +147,20 @@ public class WsNotificationTest {
       // PTZConfiguration
       // MetaDataConfiguration
 
-      // Wait for some messages to accumulate in the pull point
+      // Wait for some messages to arrive
       Thread.sleep(50_000);
 
-      // Cleanup and exit
-      subscription.unsubscribe();
-      consumer.stop();
-
-    } catch (TopicNotSupportedFault
-        | TopicExpressionDialectUnknownFault
-        | InvalidTopicExpressionFault
-        | InvalidMessageContentExpressionFault
-        | InvalidProducerPropertiesExpressionFault
-        | UnacceptableInitialTerminationTimeFault
-        | NotifyMessageNotSupportedFault
-        | ResourceUnknownFault
-        | UnsupportedPolicyRequestFault
-        | InvalidFilterFault
-        | SubscribeCreationFailedFault
-        | UnrecognizedPolicyRequestFault e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
     } catch (InterruptedException e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
     } catch (Exception e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
+    } finally {
+      // Cleanup: unsubscribes and stops the endpoint
+      consumer.stop();
     }
+    System.exit(0);
   }
 
   public static void printTree(Node node, String name) {
@@ -262,17 +201,4 @@ public class WsNotificationTest {
           p.getToken(), p.getName(), cam.getMedia().getSnapshotUri(p.getToken()).getUri());
     }
   }
-
-  public static class PublisherCallback implements Publisher.Callback {
-    final CountDownLatch subscribed = new CountDownLatch(1);
-    final CountDownLatch unsubscribed = new CountDownLatch(1);
-
-    public void subscribe(TopicExpressionType topic) {
-      subscribed.countDown();
-    }
-
-    public void unsubscribe(TopicExpressionType topic) {
-      unsubscribed.countDown();
-    }
-  }
 }